@@ -5,7 +5,7 @@ import uk.co.encity.user.entity.UserProviderStatus;
 import uk.co.encity.user.entity.UserTenantStatus;
 import uk.co.encity.user.events.generated.UserConfirmedEvent;
 import uk.co.encity.user.events.generated.UserEvent;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.util.Map;
 
@@ -17,7 +17,7 @@ public class ConfirmUserCommand extends PatchUserCommand {
 
     transient private String initialPassword;
 
-    public ConfirmUserCommand(String userId, UserRepository repo, Map extras) {
+    public ConfirmUserCommand(String userId, IdentityProvider repo, Map extras) {
         super(UserTenantCommandType.CONFIRM_USER, userId, repo);
         this.initialPassword = (String)extras.get(Extras.INITIAL_PASSWORD);
     }
@@ -4,7 +4,7 @@ import lombok.Getter;
 import org.springframework.lang.NonNull;
 import uk.co.encity.user.entity.User;
 import uk.co.encity.user.events.generated.UserEvent;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.util.Map;
 
@@ -13,7 +13,7 @@ public abstract class PatchUserCommand extends UserCommand {
 
     String userId;
 
-    public PatchUserCommand(UserCommand.UserTenantCommandType cmdType, String userId, UserRepository repo) {
+    public PatchUserCommand(UserCommand.UserTenantCommandType cmdType, String userId, IdentityProvider repo) {
         super(cmdType, repo);
         this.userId = userId;
 
@@ -25,7 +25,7 @@ public abstract class PatchUserCommand extends UserCommand {
     public static PatchUserCommand getPatchUserCommand(
             @NonNull UserTenantCommandType cmdtype,
             String userId,
-            UserRepository repo,
+            IdentityProvider repo,
             Map extras)
     {
         PatchUserCommand patchCmd = null;
@@ -4,7 +4,7 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.io.IOException;
 import java.util.HashMap;
@@ -13,13 +13,13 @@ import java.util.Map;
 public class PatchUserCommandDeserializer extends StdDeserializer<PatchUserCommand> {
 
     private String userId;
-    private UserRepository repo;
+    private IdentityProvider repo;
 
-    public PatchUserCommandDeserializer(String userId, UserRepository repo) {
+    public PatchUserCommandDeserializer(String userId, IdentityProvider repo) {
         this(null, userId, repo);
     }
 
-    public PatchUserCommandDeserializer(Class<?> valueClass, String userId, UserRepository repo) {
+    public PatchUserCommandDeserializer(Class<?> valueClass, String userId, IdentityProvider repo) {
         super(valueClass);
         this.userId = userId;
         this.repo = repo;
@@ -6,11 +6,11 @@ import uk.co.encity.user.entity.UserTenantStatus;
 import uk.co.encity.user.events.generated.UserConfirmedEvent;
 import uk.co.encity.user.events.generated.UserEvent;
 import uk.co.encity.user.events.generated.UserRejectedEvent;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 public class RejectUserCommand extends PatchUserCommand {
 
-    public RejectUserCommand(String userId, UserRepository repo) {
+    public RejectUserCommand(String userId, IdentityProvider repo) {
         super(UserTenantCommandType.REJECT_USER, userId, repo);
     }
 
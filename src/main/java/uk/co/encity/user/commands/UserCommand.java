@@ -5,7 +5,7 @@ package uk.co.encity.user.commands;
 
 import lombok.Getter;
 import uk.co.encity.user.entity.User;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.time.Instant;
 import java.util.HashMap;
@@ -44,9 +44,9 @@ public abstract class UserCommand {
     private String commandId;
     private Instant timeStamp;
     private UserCommand.UserTenantCommandType cmdType;
-    private UserRepository repo;
+    private IdentityProvider repo;
 
-    public UserCommand(UserCommand.UserTenantCommandType cmdType, UserRepository repo) {
+    public UserCommand(UserCommand.UserTenantCommandType cmdType, IdentityProvider repo) {
         this.commandId = repo.getIdentity();
         this.timeStamp = Instant.now();
         this.cmdType = cmdType;
@@ -1,5 +1,7 @@
 package uk.co.encity.user.components;
 
+import java.util.Locale;
+
 public class EmailRecipient {
 
     private String firstName;
@@ -15,4 +17,14 @@ public class EmailRecipient {
     public String getFirstName() { return this.firstName; }
     public String getLastName() { return this.lastName; }
     public String getEmailAddress() { return this.emailAddress; }
+
+    /**
+     * Normalise an email address, or a domain, for comparison.  Surrounding whitespace is removed and case is
+     * ignored, in every repository
+     * @param address the email address or domain
+     * @return the address as it is compared
+     */
+    public static String normalise(String address) {
+        return address.trim().toLowerCase(Locale.ROOT);
+    }
 }
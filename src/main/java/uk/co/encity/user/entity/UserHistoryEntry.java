@@ -0,0 +1,40 @@
+package uk.co.encity.user.entity;
+
+import lombok.Getter;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+
+/**
+ * One entry in the history of a user: an event, together with the command that caused it, if that
+ * command was recorded
+ */
+@Getter
+public class UserHistoryEntry {
+    private final int version;
+    private final String eventId;
+    private final UserEventType eventType;
+    private final Instant eventTime;
+    private final String commandId;
+    private final UserCommand.UserTenantCommandType commandType;
+    private final Instant commandTime;
+
+    public UserHistoryEntry(
+            int version,
+            String eventId,
+            UserEventType eventType,
+            Instant eventTime,
+            String commandId,
+            UserCommand.UserTenantCommandType commandType,
+            Instant commandTime)
+    {
+        this.version = version;
+        this.eventId = eventId;
+        this.eventType = eventType;
+        this.eventTime = eventTime;
+        this.commandId = commandId;
+        this.commandType = commandType;
+        this.commandTime = commandTime;
+    }
+}
@@ -2,13 +2,13 @@ package uk.co.encity.user.events.generated;
 
 import uk.co.encity.user.commands.UserCommand;
 import uk.co.encity.user.entity.User;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 public class UserConfirmedEvent extends UserEvent {
 
     private String commandId;
 
-    public UserConfirmedEvent(String commandId, User u, UserRepository repo) {
+    public UserConfirmedEvent(String commandId, User u, IdentityProvider repo) {
         super(commandId, u, repo);
         this.commandId = commandId;
     }
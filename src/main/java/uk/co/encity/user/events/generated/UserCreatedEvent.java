@@ -1,7 +1,7 @@
 package uk.co.encity.user.events.generated;
 
 import uk.co.encity.user.entity.User;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.time.Instant;
 
@@ -9,7 +9,7 @@ public class UserCreatedEvent extends UserEvent {
 
     private Instant expiryTime;
 
-    public UserCreatedEvent(String commandId, User user, UserRepository repo, Instant expiry) {
+    public UserCreatedEvent(String commandId, User user, IdentityProvider repo, Instant expiry) {
         super(commandId, user, repo);
         this.expiryTime = expiry;
     }
@@ -3,7 +3,7 @@ package uk.co.encity.user.events.generated;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import lombok.Getter;
 import uk.co.encity.user.entity.User;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.time.Instant;
 
@@ -16,7 +16,7 @@ public abstract class UserEvent {
     private String userId;
     private Instant eventTime;
 
-    public UserEvent(String commandId, User user, UserRepository repo) {
+    public UserEvent(String commandId, User user, IdentityProvider repo) {
         this.commandId = commandId;
         this.eventId = repo.getIdentity();
         this.userId = user.getUserId();
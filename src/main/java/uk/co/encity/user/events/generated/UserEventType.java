@@ -4,4 +4,5 @@ public enum UserEventType {
     USER_CREATED,
     USER_CONFIRMED,
     USER_REJECTED,
+    USER_EXPIRED,
 }
@@ -0,0 +1,21 @@
+package uk.co.encity.user.events.generated;
+
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.service.IdentityProvider;
+
+public class UserExpiredEvent extends UserEvent {
+
+    private String commandId;
+
+    public UserExpiredEvent(String commandId, User u, IdentityProvider repo) {
+        super(commandId, u, repo);
+        this.commandId = commandId;
+    }
+
+    public UserEventType getUserEventType() { return UserEventType.USER_EXPIRED; }
+
+    @Override
+    public String getRoutingKey() {
+        return "encity.user.expired";
+    }
+}
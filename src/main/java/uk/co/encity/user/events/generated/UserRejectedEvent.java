@@ -1,13 +1,13 @@
 package uk.co.encity.user.events.generated;
 
 import uk.co.encity.user.entity.User;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 public class UserRejectedEvent extends UserEvent {
 
     private String commandId;
 
-    public UserRejectedEvent(String commandId, User u, UserRepository repo) {
+    public UserRejectedEvent(String commandId, User u, IdentityProvider repo) {
         super(commandId, u, repo);
         this.commandId = commandId;
     }
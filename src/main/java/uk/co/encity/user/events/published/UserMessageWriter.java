@@ -0,0 +1,33 @@
+package uk.co.encity.user.events.published;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import org.springframework.stereotype.Component;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.events.generated.UserEvent;
+
+/**
+ * Renders the JSON body of the message that is published for a user event
+ */
+@Component
+public class UserMessageWriter {
+
+    private final ObjectMapper mapper;
+
+    public UserMessageWriter(ObjectMapper mapper) {
+        SimpleModule module = new SimpleModule();
+        module.addSerializer(UserMessage.class, new UserMessageSerializer());
+        this.mapper = mapper.copy().registerModule(module);
+    }
+
+    /**
+     * @param user the user affected by the event
+     * @param event the event
+     * @return the JSON message body
+     * @throws JsonProcessingException if the user or event cannot be serialized
+     */
+    public String write(User user, UserEvent event) throws JsonProcessingException {
+        return this.mapper.writeValueAsString(new UserMessage(user, event));
+    }
+}
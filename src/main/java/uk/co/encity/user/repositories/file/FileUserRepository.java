@@ -0,0 +1,670 @@
+package uk.co.encity.user.repositories.file;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+import uk.co.encity.user.commands.PatchUserCommand;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.*;
+import uk.co.encity.user.repositories.memory.LocalUserRepository;
+import uk.co.encity.user.repositories.memory.MemoryUser;
+import uk.co.encity.user.repositories.memory.MemoryUserEvent;
+import uk.co.encity.user.service.VersionConflictException;
+
+import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * A {@link LocalUserRepository} that keeps users in an append-only {@link SegmentLog} of memory-mapped files, for
+ * deployments without MongoDB.  It is selected by the <code>file</code> Spring profile.
+ *
+ * Users are event sourced as they are in MongoDB, and events are applied with the same transitions, by
+ * {@link MemoryUser#next}.  The log holds a snapshot of each new user, its events, and a further snapshot every
+ * <code>user.snapshot.everyEvents</code> events.  An index in memory holds the position in the log of each snapshot
+ * and event of each user, from which earlier states are replayed, along with the latest state.  The index is
+ * rebuilt from the log when the repository is opened.
+ *
+ * Compaction drops the history of each user before its <code>user.file.compaction.keepSnapshots</code> latest
+ * snapshots, after which earlier states cannot be read, and so is off by default.  The version of the oldest
+ * snapshot kept is appended to the log as the user's horizon, and recovery drops the history before it again, as
+ * records of dropped history may remain in segments that are not yet compacted.  A sealed segment in which less
+ * than <code>user.file.compaction.liveRatio</code> of the content is still needed is compacted by appending the
+ * records still needed to the log again, and deleting the segment.
+ *
+ * Nothing is published for events
+ */
+@Component
+@Profile(FileUserRepository.PROFILE)
+public class FileUserRepository implements LocalUserRepository, Closeable {
+
+    /**
+     * The Spring profile that selects the file repositories
+     */
+    public static final String PROFILE = "file";
+
+    private static final byte SNAPSHOT = 1;
+    private static final byte EVENT = 2;
+    private static final byte HORIZON = 3;
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    private final SegmentLog log;
+    private final ConcurrentMap<String, UserIndex> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> usersByEmail = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> usersByTenancy = new ConcurrentHashMap<>();
+
+    /**
+     * The commands whose events have not been stored yet, the details of which are stored with the event
+     */
+    private final Cache<String, PatchUserCommand> pendingCommands = Caffeine.newBuilder().maximumSize(10_000).build();
+
+    private final boolean sync;
+    private final int keepSnapshots;
+    private final double liveRatio;
+    private final int snapshotEvery;
+    private final int expiryHours;
+
+    private final Counter compactedSegments;
+
+    /**
+     * The position in the log of a snapshot or event of a user
+     */
+    private static final class Entry {
+        final int version;
+        final Instant time;
+        long position;
+
+        Entry(int version, Instant time, long position) {
+            this.version = version;
+            this.time = time;
+            this.position = position;
+        }
+    }
+
+    /**
+     * The snapshots and events of one user, in version order.  Changes to a user, and reads of its earlier states,
+     * are serialised on its index
+     */
+    private static final class UserIndex {
+        final List<Entry> snapshots = new ArrayList<>();
+        final List<Entry> events = new ArrayList<>();
+        volatile MemoryUser latest;
+        int eventsSinceSnapshot;
+
+        /**
+         * The version of the oldest snapshot kept by compaction, before which the history has been dropped, or null
+         */
+        Entry horizon;
+
+        int lastEventVersion() {
+            return this.events.isEmpty() ? 0 : this.events.get(this.events.size() - 1).version;
+        }
+
+        /**
+         * @return the index of the first event with a later version, found by binary search of the version order
+         */
+        int firstEventAfter(int version) {
+            int low = 0;
+            int high = this.events.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.events.get(mid).version <= version) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    public FileUserRepository(
+            @Value("${user.file.dir:data/users}") String dir,
+            @Value("${user.file.segmentBytes:67108864}") int segmentBytes,
+            @Value("${user.file.sync:true}") boolean sync,
+            @Value("${user.file.compaction.keepSnapshots:0}") int keepSnapshots,
+            @Value("${user.file.compaction.liveRatio:0.5}") double liveRatio,
+            @Value("${user.snapshot.everyEvents:10}") int snapshotEvery,
+            @Value("${user.expiryHours}") int expiryHours,
+            MeterRegistry registry) throws IOException
+    {
+        this.sync = sync;
+        this.keepSnapshots = keepSnapshots;
+        this.liveRatio = liveRatio;
+        this.snapshotEvery = snapshotEvery;
+        this.expiryHours = expiryHours;
+
+        this.log = new SegmentLog(Paths.get(dir), segmentBytes);
+        this.recover();
+        logger.info(String.format("Opened %d users from %d segments in %s", this.users.size(), this.log.segmentCount(), dir));
+
+        this.compactedSegments = Counter.builder("encity.user.file.compacted")
+                .description("The number of log segments deleted by compaction")
+                .register(registry);
+        Gauge.builder("encity.user.file.segments", this.log, SegmentLog::segmentCount)
+                .description("The number of segments in the user log")
+                .register(registry);
+    }
+
+    /**
+     * Rebuild the index from the log.  Compaction may have appended records again after later ones, and stopped
+     * before deleting the originals, so the records of each user are sorted and duplicates dropped
+     */
+    private void recover() throws IOException {
+        this.log.recover((position, content) -> {
+            DataInputStream in = reader(content);
+            byte kind = in.readByte();
+            if (kind == SNAPSHOT) {
+                MemoryUser snap = MemoryUser.readFrom(in);
+                this.users.computeIfAbsent(snap.getUserId(), id -> new UserIndex()).snapshots.add(
+                        new Entry(snap.getVersion(), snap.getLastUpdate(), position));
+            } else if (kind == EVENT) {
+                String userId = in.readUTF();
+                MemoryUserEvent evt = MemoryUserEvent.readFrom(in);
+                this.users.computeIfAbsent(userId, id -> new UserIndex()).events.add(
+                        new Entry(evt.getVersion(), evt.getTime(), position));
+            } else if (kind == HORIZON) {
+                UserIndex index = this.users.computeIfAbsent(in.readUTF(), id -> new UserIndex());
+                Entry horizon = new Entry(in.readInt(), null, position);
+                if (index.horizon == null || index.horizon.version < horizon.version) {
+                    if (index.horizon != null) {
+                        this.log.release(index.horizon.position);
+                    }
+                    index.horizon = horizon;
+                } else {
+                    this.log.release(position);
+                }
+            } else {
+                throw new IOException(String.format("Unknown record type %d at position %x", kind, position));
+            }
+        });
+
+        for (Iterator<UserIndex> it = this.users.values().iterator(); it.hasNext(); ) {
+            UserIndex index = it.next();
+            this.sortAndRelease(index.snapshots);
+            this.sortAndRelease(index.events);
+            if (index.horizon != null) {
+                this.dropHistory(index, index.horizon.version);
+            }
+            if (index.snapshots.isEmpty()) {
+                logger.warn("Ignoring events without a snapshot");
+                index.events.forEach(e -> this.log.release(e.position));
+                if (index.horizon != null) {
+                    this.log.release(index.horizon.position);
+                }
+                it.remove();
+                continue;
+            }
+
+            index.latest = this.replay(index, e -> true);
+            index.eventsSinceSnapshot = index.events.size() - index.firstEventAfter(
+                    index.snapshots.get(index.snapshots.size() - 1).version);
+            this.addToLookups(index.latest);
+        }
+    }
+
+    private void sortAndRelease(List<Entry> entries) {
+        entries.sort(Comparator.comparingInt(e -> e.version));
+        for (int i = entries.size() - 1; i > 0; i--) {
+            if (entries.get(i).version == entries.get(i - 1).version) {
+                this.log.release(entries.remove(i).position);
+            }
+        }
+    }
+
+    /**
+     * Drop the snapshots before a version, and the events up to it
+     * @param index the index of the user
+     * @param oldest the version of the oldest snapshot kept
+     * @return whether anything was dropped
+     */
+    private boolean dropHistory(UserIndex index, int oldest) {
+        boolean dropped = false;
+        while (!index.snapshots.isEmpty() && index.snapshots.get(0).version < oldest) {
+            this.log.release(index.snapshots.remove(0).position);
+            dropped = true;
+        }
+        // The last event is kept, so that a user's first event cannot be stored twice
+        while (index.events.size() > 1 && index.events.get(0).version <= oldest) {
+            this.log.release(index.events.remove(0).position);
+            dropped = true;
+        }
+        return dropped;
+    }
+
+    private void addToLookups(MemoryUser u) {
+        this.usersByEmail
+                .computeIfAbsent(EmailRecipient.normalise(u.getEmailAddress()), email -> ConcurrentHashMap.newKeySet())
+                .add(u.getUserId());
+        this.usersByTenancy
+                .computeIfAbsent(u.getTenancyId(), id -> new ConcurrentSkipListSet<>())
+                .add(u.getUserId());
+    }
+
+    private static DataInputStream reader(ByteBuffer content) {
+        byte[] bytes = new byte[content.remaining()];
+        content.duplicate().get(bytes);
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static byte[] snapshotRecord(MemoryUser user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(SNAPSHOT);
+        user.writeTo(out);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] horizonRecord(String userId, int version) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(HORIZON);
+        out.writeUTF(userId);
+        out.writeInt(version);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] eventRecord(String userId, MemoryUserEvent evt, PatchUserCommand cmd) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(EVENT);
+        out.writeUTF(userId);
+        evt.writeTo(out);
+        out.writeBoolean(cmd != null);
+        if (cmd != null) {
+            out.writeUTF(cmd.getCmdType().name());
+            out.writeLong(cmd.getTimeStamp().getEpochSecond());
+            out.writeInt(cmd.getTimeStamp().getNano());
+        }
+        return bytes.toByteArray();
+    }
+
+    private long append(byte[] record) throws IOException {
+        long position = this.log.append(record);
+        if (this.sync) {
+            this.log.force();
+        }
+        return position;
+    }
+
+    private MemoryUser readSnapshot(long position) throws IOException {
+        DataInputStream in = reader(this.log.read(position));
+        in.readByte();
+        return MemoryUser.readFrom(in);
+    }
+
+    private MemoryUserEvent readEvent(DataInputStream in) throws IOException {
+        in.readByte();
+        in.readUTF();
+        return MemoryUserEvent.readFrom(in);
+    }
+
+    /**
+     * Replay the latest state of a user whose snapshots and events all satisfy a condition
+     * @return the state, or null if no snapshot satisfies the condition
+     */
+    private MemoryUser replay(UserIndex index, Predicate<Entry> filter) throws IOException {
+        synchronized (index) {
+            Entry from = null;
+            for (int i = index.snapshots.size() - 1; i >= 0 && from == null; i--) {
+                if (filter.test(index.snapshots.get(i))) {
+                    from = index.snapshots.get(i);
+                }
+            }
+            if (from == null) {
+                return null;
+            }
+
+            MemoryUser state = this.readSnapshot(from.position);
+            for (int i = index.firstEventAfter(state.getVersion()); i < index.events.size(); i++) {
+                Entry e = index.events.get(i);
+                if (!filter.test(e)) {
+                    break;
+                }
+                state = state.next(this.readEvent(reader(this.log.read(e.position))));
+            }
+            return state;
+        }
+    }
+
+    @Override
+    public String getIdentity() { return new ObjectId().toHexString(); }
+
+    private UserIndex getIndex(String userId) {
+        if (!ObjectId.isValid(userId)) {
+            throw new IllegalArgumentException("Invalid user id: " + userId);
+        }
+        return this.users.get(userId);
+    }
+
+    @Override
+    public User getUser(String userId) {
+        UserIndex index = this.getIndex(userId);
+        return index == null ? null : index.latest;
+    }
+
+    @Override
+    public User getUser(String userId, int asOfVersion) throws IOException {
+        UserIndex index = this.getIndex(userId);
+        return index == null ? null : this.replay(index, e -> e.version <= asOfVersion);
+    }
+
+    @Override
+    public User getUser(String userId, Instant asOfInstant) throws IOException {
+        UserIndex index = this.getIndex(userId);
+        return index == null ? null : this.replay(index, e -> !e.time.isAfter(asOfInstant));
+    }
+
+    @Override
+    public List<User> getUsers(Collection<String> userIds) {
+        List<User> found = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(userIds)) {
+            User user = this.getUser(id);
+            if (user != null) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<User> findByEmail(String domain, String emailAddress) {
+        List<User> found = new ArrayList<>();
+        for (String id : this.usersByEmail.getOrDefault(EmailRecipient.normalise(emailAddress), Collections.emptySet())) {
+            User user = this.getUser(id);
+            if (user != null && (domain == null || EmailRecipient.normalise(domain).equals(EmailRecipient.normalise(user.getDomain())))) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<User> getTenancyUsers(String tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                                      Collection<UserProviderStatus> providerStatuses, String afterUserId, int limit)
+    {
+        NavigableSet<String> ids = this.usersByTenancy.getOrDefault(tenancyId, Collections.emptyNavigableSet());
+        List<User> page = new ArrayList<>();
+        for (String id : afterUserId == null ? ids : ids.tailSet(afterUserId, false)) {
+            User user = this.users.get(id).latest;
+            if ((tenantStatuses.isEmpty() || tenantStatuses.contains(user.getTenantStatus())) &&
+                    (providerStatuses.isEmpty() || providerStatuses.contains(user.getProviderStatus()))) {
+                page.add(user);
+                if (page.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public List<UserHistoryEntry> getUserHistory(String userId, int afterVersion, int limit) {
+        UserIndex index = this.getIndex(userId);
+        List<UserHistoryEntry> entries = new ArrayList<>();
+        if (index == null) {
+            return entries;
+        }
+
+        synchronized (index) {
+            int from = index.firstEventAfter(afterVersion);
+            int to = limit > 0 ? Math.min(index.events.size(), from + limit) : index.events.size();
+            for (Entry e : index.events.subList(from, to)) {
+                try {
+                    DataInputStream in = reader(this.log.read(e.position));
+                    MemoryUserEvent evt = this.readEvent(in);
+                    boolean hasCommand = in.readBoolean();
+                    entries.add(new UserHistoryEntry(
+                            evt.getVersion(),
+                            evt.getEventId(),
+                            evt.getType(),
+                            evt.getTime(),
+                            evt.getCommandId(),
+                            hasCommand ? UserCommand.UserTenantCommandType.valueOf(in.readUTF()) : null,
+                            hasCommand ? Instant.ofEpochSecond(in.readLong(), in.readInt()) : null));
+                } catch (IOException ex) {
+                    throw new IllegalStateException("Unable to read the history of user " + userId, ex);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * There is no identity provider to create the user with, so the user is returned as it is
+     */
+    @Override
+    public User confirmUser(User user, String initialPassword) {
+        return user;
+    }
+
+    @Override
+    public User addUser(String userId, String tenancyId, String domain, EmailRecipient user, boolean isAdmin) throws IOException {
+        if (!ObjectId.isValid(userId)) {
+            throw new IllegalArgumentException("Invalid user id: " + userId);
+        }
+        if (!ObjectId.isValid(tenancyId)) {
+            throw new IllegalArgumentException("Invalid tenancy id: " + tenancyId);
+        }
+
+        MemoryUser u = MemoryUser.forNewUser(userId, tenancyId, domain, user, isAdmin, this.expiryHours);
+        UserIndex index = new UserIndex();
+        synchronized (index) {
+            // The index is claimed before the snapshot is appended, so a concurrent add waits for it below
+            UserIndex existing = this.users.putIfAbsent(userId, index);
+            if (existing != null) {
+                synchronized (existing) {
+                    if (existing.latest == null) {
+                        throw new IOException("User " + userId + " could not be added");
+                    }
+                    return existing.latest;
+                }
+            }
+            try {
+                index.snapshots.add(new Entry(u.getVersion(), u.getLastUpdate(), this.append(snapshotRecord(u))));
+            } catch (IOException | RuntimeException e) {
+                this.users.remove(userId, index);
+                throw e;
+            }
+            index.latest = u;
+        }
+        this.addToLookups(u);
+        return u;
+    }
+
+    /**
+     * The command is held until its event is stored, with which its type and time are stored
+     */
+    @Override
+    public PatchUserCommand addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd) {
+        this.pendingCommands.put(cmd.getCommandId(), cmd);
+        return cmd;
+    }
+
+    /**
+     * Append an event for the next version of a user to the log, followed by a snapshot if one is due
+     * @throws VersionConflictException if an event has already been stored for the next version
+     * @throws IllegalArgumentException if the user does not exist
+     */
+    @Override
+    public UserEvent addUserEvent(String commandId, UserEventType type, User user)
+            throws VersionConflictException, IOException
+    {
+        UserIndex index = this.getIndex(user.getUserId());
+        if (index == null) {
+            throw new IllegalArgumentException(String.format("User with id %s does not exist", user.getUserId()));
+        }
+
+        MemoryUserEvent evt = new MemoryUserEvent(
+                this.getIdentity(),
+                commandId,
+                type,
+                type == UserEventType.USER_CREATED ? 1 : user.getVersion() + 1,
+                Instant.now(),
+                type == UserEventType.USER_CREATED ? user.getExpiryTime() : null);
+        PatchUserCommand cmd = commandId == null ? null : this.pendingCommands.getIfPresent(commandId);
+
+        synchronized (index) {
+            // Compaction may have dropped the events, but not the latest state.  Only a user's first event has the
+            // version of the snapshot written when it was added
+            int current = type == UserEventType.USER_CREATED ? index.lastEventVersion() : index.latest.getVersion();
+            if (evt.getVersion() <= current) {
+                throw new VersionConflictException(String.format(
+                        "User %s has already been updated to version %d", user.getUserId(), evt.getVersion()));
+            }
+
+            long position = this.log.append(eventRecord(user.getUserId(), evt, cmd));
+            index.events.add(new Entry(evt.getVersion(), evt.getTime(), position));
+            index.latest = index.latest.next(evt);
+            if (this.snapshotEvery > 0 && ++index.eventsSinceSnapshot >= this.snapshotEvery) {
+                position = this.log.append(snapshotRecord(index.latest));
+                index.snapshots.add(new Entry(index.latest.getVersion(), index.latest.getLastUpdate(), position));
+                index.eventsSinceSnapshot = 0;
+            }
+            if (this.sync) {
+                this.log.force();
+            }
+        }
+        if (commandId != null) {
+            this.pendingCommands.invalidate(commandId);
+        }
+
+        switch (type) {
+            case USER_CREATED: return new UserCreatedEvent(commandId, user, this, user.getExpiryTime());
+            case USER_CONFIRMED: return new UserConfirmedEvent(commandId, user, this);
+            case USER_REJECTED: return new UserRejectedEvent(commandId, user, this);
+            case USER_EXPIRED: return new UserExpiredEvent(commandId, user, this);
+            default: throw new IllegalStateException("Unexpected value: " + type);
+        }
+    }
+
+    /**
+     * Compact the log, logging rather than failing if it cannot be done
+     */
+    @Scheduled(fixedDelayString = "${user.file.compaction.intervalMillis:600000}")
+    public void compact() {
+        try {
+            int count = this.compactSegments();
+            if (count > 0) {
+                logger.info(String.format("Compacted %d segments of the user log", count));
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to compact the user log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drop the history that is no longer kept, then compact each sealed segment in which too little is still
+     * needed
+     * @return the number of segments deleted
+     */
+    int compactSegments() throws IOException {
+        if (this.keepSnapshots > 0) {
+            boolean dropped = false;
+            for (Map.Entry<String, UserIndex> user : this.users.entrySet()) {
+                UserIndex index = user.getValue();
+                synchronized (index) {
+                    if (index.snapshots.size() <= this.keepSnapshots) {
+                        continue;
+                    }
+                    // The horizon is appended before the history is dropped, so that recovery never finds the
+                    // history without it
+                    int oldest = index.snapshots.get(index.snapshots.size() - this.keepSnapshots).version;
+                    Entry horizon = new Entry(oldest, null, this.log.append(horizonRecord(user.getKey(), oldest)));
+                    if (index.horizon != null) {
+                        this.log.release(index.horizon.position);
+                    }
+                    index.horizon = horizon;
+                    dropped |= this.dropHistory(index, oldest);
+                }
+            }
+            if (dropped) {
+                this.log.force();
+            }
+        }
+
+        int count = 0;
+        for (SegmentLog.Segment segment : this.log.sealedSegments()) {
+            if (segment.liveBytes.get() >= this.liveRatio * segment.capacity()) {
+                continue;
+            }
+
+            if (segment.liveBytes.get() > 0) {
+                for (UserIndex index : this.users.values()) {
+                    synchronized (index) {
+                        this.relocate(index.snapshots, segment);
+                        this.relocate(index.events, segment);
+                        if (index.horizon != null) {
+                            this.relocate(index.horizon, segment);
+                        }
+                    }
+                }
+                this.log.force();
+            }
+            this.log.delete(segment);
+            this.compactedSegments.increment();
+            count++;
+        }
+        return count;
+    }
+
+    private void relocate(List<Entry> entries, SegmentLog.Segment segment) throws IOException {
+        for (Entry e : entries) {
+            this.relocate(e, segment);
+        }
+    }
+
+    private void relocate(Entry e, SegmentLog.Segment segment) throws IOException {
+        if (SegmentLog.segmentOf(e.position) == segment.id) {
+            ByteBuffer content = this.log.read(e.position);
+            byte[] record = new byte[content.remaining()];
+            content.get(record);
+            e.position = this.log.append(record);
+        }
+    }
+
+    @PreDestroy
+    @Override
+    public void close() {
+        this.log.close();
+    }
+}
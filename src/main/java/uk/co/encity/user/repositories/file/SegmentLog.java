@@ -0,0 +1,263 @@
+package uk.co.encity.user.repositories.file;
+
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, held in a directory of memory-mapped segment files of a fixed size.  Records are
+ * only appended to the last segment, and a new segment is started when a record does not fit in it.  Segments
+ * before the last are sealed, and are only ever deleted, once the records still needed from them have been
+ * appended again.
+ *
+ * Each record is its length, the CRC-32 of its content and its content.  The length is written last, and a
+ * zero length marks the end of the records in a segment, so a record that was partly written when the process
+ * stopped is detected by its checksum and ignored.  A record is identified by its position, which is the number
+ * of its segment in the upper half and its offset in the lower half
+ */
+final class SegmentLog implements Closeable {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    static final int HEADER_BYTES = 8;
+    private static final String SUFFIX = ".log";
+
+    /**
+     * Receives each record found by {@link #recover}
+     */
+    interface RecordVisitor {
+        void visit(long position, ByteBuffer content) throws IOException;
+    }
+
+    /**
+     * A segment file, mapped in full
+     */
+    static final class Segment {
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        final AtomicLong liveBytes = new AtomicLong();
+        int end;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+        int capacity() { return this.buffer.capacity(); }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+
+    /**
+     * Open the log in a directory, which is created if it does not exist
+     * @param dir the directory
+     * @param segmentBytes the size of each new segment, which limits the size of a record
+     * @throws IOException if the segments cannot be opened
+     */
+    SegmentLog(Path dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+
+        Files.createDirectories(dir);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            files.forEach(paths::add);
+        }
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            try {
+                int id = Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+                this.segments.put(id, this.map(id, path));
+            } catch (NumberFormatException e) {
+                logger.warn("Ignoring " + path + ", which is not a segment");
+            }
+        }
+
+        this.active = this.segments.isEmpty() ? this.create(1) : this.segments.lastEntry().getValue();
+    }
+
+    static long position(int segmentId, int offset) { return ((long) segmentId << 32) | (offset & 0xFFFFFFFFL); }
+    static int segmentOf(long position) { return (int) (position >>> 32); }
+    static int offsetOf(long position) { return (int) position; }
+
+    private Segment map(int id, Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size() > 0 ? channel.size() : this.segmentBytes;
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    private Segment create(int id) throws IOException {
+        Segment segment = this.map(id, this.dir.resolve(String.format("%010d%s", id, SUFFIX)));
+        this.segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Read every record in the log, in order, and find the end of each segment.  This must be called once, before
+     * anything is appended
+     * @param visitor receives each record
+     * @throws IOException if the visitor fails
+     */
+    synchronized void recover(RecordVisitor visitor) throws IOException {
+        CRC32 crc = new CRC32();
+        for (Segment segment : this.segments.values()) {
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int offset = 0;
+            boolean torn = false;
+            while (offset + HEADER_BYTES <= segment.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || offset + HEADER_BYTES + length > segment.capacity()) {
+                    torn = true;
+                    break;
+                }
+
+                ByteBuffer content = this.content(segment, offset, length);
+                crc.reset();
+                crc.update(content.duplicate());
+                if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                    torn = true;
+                    break;
+                }
+
+                visitor.visit(position(segment.id, offset), content);
+                segment.liveBytes.addAndGet(HEADER_BYTES + length);
+                offset += HEADER_BYTES + length;
+            }
+            segment.end = offset;
+
+            if (torn) {
+                logger.warn(String.format("Ignoring a damaged record at offset %d of %s", offset, segment.path));
+                if (segment == this.active) {
+                    // Clear the damage, so that nothing appended after it can be mistaken for a record
+                    for (int i = offset; i < segment.capacity(); i++) {
+                        segment.buffer.put(i, (byte) 0);
+                    }
+                }
+            }
+        }
+    }
+
+    private ByteBuffer content(Segment segment, int offset, int length) {
+        ByteBuffer content = segment.buffer.duplicate();
+        content.limit(offset + HEADER_BYTES + length).position(offset + HEADER_BYTES);
+        return content.slice();
+    }
+
+    /**
+     * Append a record to the last segment, starting a new segment if it does not fit.  The record is not durable
+     * until {@link #force} is called
+     * @param content the content of the record
+     * @return the position of the record
+     * @throws IOException if a new segment cannot be started, or the record is larger than a segment
+     */
+    synchronized long append(byte[] content) throws IOException {
+        int size = HEADER_BYTES + content.length;
+        if (size > this.segmentBytes) {
+            throw new IOException(String.format(
+                    "A record of %d bytes does not fit in a segment of %d bytes", size, this.segmentBytes));
+        }
+        if (this.active.end + size > this.active.capacity()) {
+            this.active.buffer.force();
+            this.active = this.create(this.active.id + 1);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        ByteBuffer buffer = this.active.buffer.duplicate();
+        int offset = this.active.end;
+        buffer.position(offset + HEADER_BYTES);
+        buffer.put(content);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, content.length);
+
+        this.active.end += size;
+        this.active.liveBytes.addAndGet(size);
+        return position(this.active.id, offset);
+    }
+
+    /**
+     * Write the records appended so far to the storage device
+     */
+    synchronized void force() {
+        this.active.buffer.force();
+    }
+
+    /**
+     * @param position the position of a record
+     * @return the content of the record, which must be read before its segment is deleted
+     */
+    ByteBuffer read(long position) {
+        Segment segment = this.segments.get(segmentOf(position));
+        if (segment == null) {
+            throw new IllegalStateException("No segment holds the record at position " + Long.toHexString(position));
+        }
+        int offset = offsetOf(position);
+        return this.content(segment, offset, segment.buffer.getInt(offset));
+    }
+
+    /**
+     * Record that a record is no longer needed, so that its segment can be compacted
+     * @param position the position of the record
+     */
+    void release(long position) {
+        Segment segment = this.segments.get(segmentOf(position));
+        if (segment != null) {
+            segment.liveBytes.addAndGet(-(HEADER_BYTES + segment.buffer.getInt(offsetOf(position))));
+        }
+    }
+
+    /**
+     * @return the segments before the last one, in order
+     */
+    synchronized List<Segment> sealedSegments() {
+        return new ArrayList<>(this.segments.headMap(this.active.id).values());
+    }
+
+    int segmentCount() { return this.segments.size(); }
+
+    /**
+     * Delete a sealed segment.  No position in it may be read afterwards
+     * @param segment the segment
+     * @throws IOException if the file cannot be deleted
+     */
+    synchronized void delete(Segment segment) throws IOException {
+        if (segment == this.active) {
+            throw new IllegalArgumentException("The last segment cannot be deleted");
+        }
+        this.segments.remove(segment.id);
+        Files.deleteIfExists(segment.path);
+    }
+
+    @Override
+    public synchronized void close() {
+        this.active.buffer.force();
+    }
+}
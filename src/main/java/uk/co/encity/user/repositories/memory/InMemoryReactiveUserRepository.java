@@ -0,0 +1,98 @@
+package uk.co.encity.user.repositories.memory;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import uk.co.encity.user.commands.PatchUserCommand;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEvent;
+import uk.co.encity.user.events.generated.UserEventType;
+import uk.co.encity.user.service.ReactiveUserRepository;
+
+import java.time.Instant;
+import java.util.Collection;
+
+/**
+ * The {@link ReactiveUserRepository} for the <code>memory</code> and <code>file</code> profiles, which serves the
+ * web layer from the same {@link LocalUserRepository} as the message handlers.  Nothing it does blocks for long, so
+ * each call runs on the subscribing thread
+ */
+@Component
+@Profile({ InMemoryUserRepository.PROFILE, "file" })
+public class InMemoryReactiveUserRepository implements ReactiveUserRepository {
+
+    private final LocalUserRepository repo;
+
+    public InMemoryReactiveUserRepository(@Autowired LocalUserRepository repo) {
+        this.repo = repo;
+    }
+
+    @Override
+    public String getIdentity() { return this.repo.getIdentity(); }
+
+    @Override
+    public Mono<User> getUser(String userId) {
+        return Mono.fromCallable(() -> this.repo.getUser(userId));
+    }
+
+    /**
+     * There is only one copy of each user, so it is always up to date
+     */
+    @Override
+    public Mono<User> readUser(String userId, int minVersion) {
+        return this.getUser(userId);
+    }
+
+    @Override
+    public Mono<User> getUser(String userId, int asOfVersion) {
+        return Mono.fromCallable(() -> this.repo.getUser(userId, asOfVersion));
+    }
+
+    @Override
+    public Mono<User> getUser(String userId, Instant asOfInstant) {
+        return Mono.fromCallable(() -> this.repo.getUser(userId, asOfInstant));
+    }
+
+    @Override
+    public Flux<User> getUsers(Collection<String> userIds) {
+        return Mono.fromCallable(() -> this.repo.getUsers(userIds)).flatMapIterable(users -> users);
+    }
+
+    @Override
+    public Flux<User> getTenancyUsers(String tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                                      Collection<UserProviderStatus> providerStatuses, String afterUserId, int limit) {
+        return Flux.defer(() -> Flux.fromIterable(
+                this.repo.getTenancyUsers(tenancyId, tenantStatuses, providerStatuses, afterUserId, limit)));
+    }
+
+    @Override
+    public Flux<User> findByEmail(String domain, String emailAddress) {
+        return Mono.fromCallable(() -> this.repo.findByEmail(domain, emailAddress)).flatMapIterable(users -> users);
+    }
+
+    @Override
+    public Mono<User> confirmUser(User user, String initialPassword) {
+        return Mono.fromCallable(() -> this.repo.confirmUser(user, initialPassword));
+    }
+
+    @Override
+    public Mono<PatchUserCommand> addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd) {
+        return Mono.fromCallable(() -> this.repo.addPatchUserCommand(type, cmd));
+    }
+
+    @Override
+    public Mono<UserEvent> addUserEvent(String commandId, UserEventType type, User user) {
+        return Mono.fromCallable(() -> this.repo.addUserEvent(commandId, type, user));
+    }
+
+    @Override
+    public Flux<UserHistoryEntry> getUserHistory(String userId, int afterVersion, int limit) {
+        return Flux.defer(() -> Flux.fromIterable(this.repo.getUserHistory(userId, afterVersion, limit)));
+    }
+}
@@ -0,0 +1,321 @@
+package uk.co.encity.user.repositories.memory;
+
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import uk.co.encity.user.commands.PatchUserCommand;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.*;
+import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.VersionConflictException;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * A {@link UserRepository} that holds users in memory, for measuring the service layer without a database and for
+ * running the service locally.  It is selected by the <code>memory</code> Spring profile, in place of MongoDB.
+ *
+ * Users are event sourced as they are in MongoDB: each user has a log of events in version order, and snapshots
+ * of its state every <code>user.snapshot.everyEvents</code> events, from which earlier states are replayed.  Only
+ * one event can be stored for each version of a user.  Appends to a user's log are serialised on that log alone, so
+ * writers to different users never contend, and the latest state of a user is read without taking a lock.
+ *
+ * Nothing is persisted, and no messages are published for events
+ */
+@Component
+@Profile(InMemoryUserRepository.PROFILE)
+public class InMemoryUserRepository implements LocalUserRepository {
+
+    /**
+     * The Spring profile that selects the in-memory repositories
+     */
+    public static final String PROFILE = "memory";
+
+    private final ConcurrentMap<String, UserLog> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> usersByEmail = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> usersByTenancy = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PatchUserCommand> commands = new ConcurrentHashMap<>();
+
+    private final int snapshotEvery;
+    private final int expiryHours;
+
+    /**
+     * The snapshots and events of one user
+     */
+    private static final class UserLog {
+        private final List<MemoryUser> snapshots = new ArrayList<>();
+        private final List<MemoryUserEvent> events = new ArrayList<>();
+        private volatile MemoryUser latest;
+        private int eventsSinceSnapshot;
+
+        UserLog(MemoryUser initial) {
+            this.snapshots.add(initial);
+            this.latest = initial;
+        }
+
+        /**
+         * Append an event, unless one has already been stored for its version
+         * @return the state of the user after the event
+         */
+        synchronized MemoryUser append(MemoryUserEvent evt, int snapshotEvery) throws VersionConflictException {
+            if (evt.getVersion() <= this.lastEventVersion()) {
+                throw new VersionConflictException(String.format(
+                        "User %s has already been updated to version %d", this.latest.getUserId(), evt.getVersion()));
+            }
+
+            this.events.add(evt);
+            this.latest = this.latest.next(evt);
+            if (snapshotEvery > 0 && ++this.eventsSinceSnapshot >= snapshotEvery) {
+                this.snapshots.add(this.latest);
+                this.eventsSinceSnapshot = 0;
+            }
+            return this.latest;
+        }
+
+        /**
+         * Replay an earlier state of the user from the latest snapshot that satisfies a condition
+         * @param snapshotFilter the condition on the snapshot
+         * @param eventFilter the condition on the events to replay, which stops at the first event that fails it
+         * @return the state, or null if no snapshot satisfies the condition
+         */
+        synchronized MemoryUser replay(Predicate<MemoryUser> snapshotFilter, Predicate<MemoryUserEvent> eventFilter) {
+            MemoryUser state = null;
+            for (int i = this.snapshots.size() - 1; i >= 0 && state == null; i--) {
+                if (snapshotFilter.test(this.snapshots.get(i))) {
+                    state = this.snapshots.get(i);
+                }
+            }
+            if (state == null) {
+                return null;
+            }
+
+            for (int i = this.firstEventAfter(state.getVersion()); i < this.events.size(); i++) {
+                MemoryUserEvent evt = this.events.get(i);
+                if (!eventFilter.test(evt)) {
+                    break;
+                }
+                state = state.next(evt);
+            }
+            return state;
+        }
+
+        /**
+         * @return a copy of up to <code>limit</code> events after a version, or all of them if the limit is 0
+         */
+        synchronized List<MemoryUserEvent> eventsAfter(int version, int limit) {
+            int from = this.firstEventAfter(version);
+            int to = limit > 0 ? Math.min(this.events.size(), from + limit) : this.events.size();
+            return new ArrayList<>(this.events.subList(from, to));
+        }
+
+        private int lastEventVersion() {
+            return this.events.isEmpty() ? 0 : this.events.get(this.events.size() - 1).getVersion();
+        }
+
+        /**
+         * @return the index of the first event with a later version, found by binary search of the version order
+         */
+        private int firstEventAfter(int version) {
+            int low = 0;
+            int high = this.events.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (this.events.get(mid).getVersion() <= version) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    public InMemoryUserRepository(
+            @Value("${user.snapshot.everyEvents:10}") int snapshotEvery,
+            @Value("${user.expiryHours}") int expiryHours)
+    {
+        this.snapshotEvery = snapshotEvery;
+        this.expiryHours = expiryHours;
+    }
+
+    @Override
+    public String getIdentity() { return new ObjectId().toHexString(); }
+
+    private UserLog getLog(String userId) {
+        if (!ObjectId.isValid(userId)) {
+            throw new IllegalArgumentException("Invalid user id: " + userId);
+        }
+        return this.users.get(userId);
+    }
+
+    @Override
+    public User getUser(String userId) {
+        UserLog log = this.getLog(userId);
+        return log == null ? null : log.latest;
+    }
+
+    @Override
+    public User getUser(String userId, int asOfVersion) {
+        UserLog log = this.getLog(userId);
+        return log == null ? null : log.replay(
+                snap -> snap.getVersion() <= asOfVersion,
+                evt -> evt.getVersion() <= asOfVersion);
+    }
+
+    @Override
+    public User getUser(String userId, Instant asOfInstant) {
+        UserLog log = this.getLog(userId);
+        return log == null ? null : log.replay(
+                snap -> !snap.getLastUpdate().isAfter(asOfInstant),
+                evt -> !evt.getTime().isAfter(asOfInstant));
+    }
+
+    @Override
+    public List<User> getUsers(Collection<String> userIds) {
+        List<User> found = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(userIds)) {
+            User user = this.getUser(id);
+            if (user != null) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<User> findByEmail(String domain, String emailAddress) {
+        List<User> found = new ArrayList<>();
+        for (String id : this.usersByEmail.getOrDefault(EmailRecipient.normalise(emailAddress), Collections.emptySet())) {
+            User user = this.getUser(id);
+            if (user != null && (domain == null || EmailRecipient.normalise(domain).equals(EmailRecipient.normalise(user.getDomain())))) {
+                found.add(user);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<User> getTenancyUsers(String tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                                      Collection<UserProviderStatus> providerStatuses, String afterUserId, int limit)
+    {
+        NavigableSet<String> ids = this.usersByTenancy.getOrDefault(tenancyId, Collections.emptyNavigableSet());
+        List<User> page = new ArrayList<>();
+        for (String id : afterUserId == null ? ids : ids.tailSet(afterUserId, false)) {
+            User user = this.users.get(id).latest;
+            if ((tenantStatuses.isEmpty() || tenantStatuses.contains(user.getTenantStatus())) &&
+                    (providerStatuses.isEmpty() || providerStatuses.contains(user.getProviderStatus()))) {
+                page.add(user);
+                if (page.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public List<UserHistoryEntry> getUserHistory(String userId, int afterVersion, int limit) {
+        UserLog log = this.getLog(userId);
+        List<UserHistoryEntry> entries = new ArrayList<>();
+        if (log == null) {
+            return entries;
+        }
+
+        for (MemoryUserEvent evt : log.eventsAfter(afterVersion, limit)) {
+            PatchUserCommand cmd = this.commands.get(evt.getCommandId());
+            entries.add(new UserHistoryEntry(
+                    evt.getVersion(),
+                    evt.getEventId(),
+                    evt.getType(),
+                    evt.getTime(),
+                    evt.getCommandId(),
+                    cmd == null ? null : cmd.getCmdType(),
+                    cmd == null ? null : cmd.getTimeStamp()));
+        }
+        return entries;
+    }
+
+    /**
+     * There is no identity provider to create the user with, so the user is returned as it is
+     */
+    @Override
+    public User confirmUser(User user, String initialPassword) {
+        return user;
+    }
+
+    @Override
+    public User addUser(String userId, String tenancyId, String domain, EmailRecipient user, boolean isAdmin) {
+        if (!ObjectId.isValid(userId)) {
+            throw new IllegalArgumentException("Invalid user id: " + userId);
+        }
+        if (!ObjectId.isValid(tenancyId)) {
+            throw new IllegalArgumentException("Invalid tenancy id: " + tenancyId);
+        }
+
+        MemoryUser u = MemoryUser.forNewUser(userId, tenancyId, domain, user, isAdmin, this.expiryHours);
+        UserLog existing = this.users.putIfAbsent(userId, new UserLog(u));
+        if (existing != null) {
+            return existing.latest;
+        }
+        this.usersByEmail
+                .computeIfAbsent(EmailRecipient.normalise(u.getEmailAddress()), email -> ConcurrentHashMap.newKeySet())
+                .add(u.getUserId());
+        this.usersByTenancy
+                .computeIfAbsent(tenancyId, id -> new ConcurrentSkipListSet<>())
+                .add(u.getUserId());
+        return u;
+    }
+
+    @Override
+    public PatchUserCommand addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd) {
+        this.commands.put(cmd.getCommandId(), cmd);
+        return cmd;
+    }
+
+    /**
+     * Append an event for the next version of a user to its log
+     * @throws VersionConflictException if an event has already been stored for the next version
+     * @throws IllegalArgumentException if the user does not exist
+     */
+    @Override
+    public UserEvent addUserEvent(String commandId, UserEventType type, User user) throws VersionConflictException {
+        UserLog log = this.getLog(user.getUserId());
+        if (log == null) {
+            throw new IllegalArgumentException(String.format("User with id %s does not exist", user.getUserId()));
+        }
+
+        MemoryUserEvent evt = new MemoryUserEvent(
+                this.getIdentity(),
+                commandId,
+                type,
+                type == UserEventType.USER_CREATED ? 1 : user.getVersion() + 1,
+                Instant.now(),
+                type == UserEventType.USER_CREATED ? user.getExpiryTime() : null);
+        log.append(evt, this.snapshotEvery);
+
+        switch (type) {
+            case USER_CREATED: return new UserCreatedEvent(commandId, user, this, user.getExpiryTime());
+            case USER_CONFIRMED: return new UserConfirmedEvent(commandId, user, this);
+            case USER_REJECTED: return new UserRejectedEvent(commandId, user, this);
+            case USER_EXPIRED: return new UserExpiredEvent(commandId, user, this);
+            default: throw new IllegalStateException("Unexpected value: " + type);
+        }
+    }
+}
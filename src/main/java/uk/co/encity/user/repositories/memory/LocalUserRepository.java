@@ -0,0 +1,38 @@
+package uk.co.encity.user.repositories.memory;
+
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.service.UserRepository;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A {@link UserRepository} that keeps users within the service, rather than in a database, and so can also answer
+ * the queries of the web layer without blocking for long
+ */
+public interface LocalUserRepository extends UserRepository {
+
+    /**
+     * List a page of the users of a tenancy, in order of user identity
+     * @param tenancyId the identity of the tenancy
+     * @param tenantStatuses the tenant statuses to include, or empty for all
+     * @param providerStatuses the provider statuses to include, or empty for all
+     * @param afterUserId the identity of the last user on the previous page, or null for the first page
+     * @param limit the maximum number of users, or 0 for all of the remaining users
+     * @return the users
+     */
+    public List<User> getTenancyUsers(String tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                                      Collection<UserProviderStatus> providerStatuses, String afterUserId, int limit);
+
+    /**
+     * Get a page of the history of a user, in version order
+     * @param userId the identity of the user
+     * @param afterVersion the version after which to start, or 0
+     * @param limit the maximum number of entries, or 0 for the whole of the remaining history
+     * @return the history entries, which is empty if the user does not exist
+     */
+    public List<UserHistoryEntry> getUserHistory(String userId, int afterVersion, int limit);
+}
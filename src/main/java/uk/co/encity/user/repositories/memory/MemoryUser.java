@@ -0,0 +1,173 @@
+package uk.co.encity.user.repositories.memory;
+
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+
+/**
+ * An immutable state of a user held by the {@link InMemoryUserRepository}.  Applying an event produces a new
+ * state, so a state can be shared between threads, and kept as a snapshot, without copying.  A state can also be
+ * written in a compact binary form, for the repositories that keep users in files
+ */
+public final class MemoryUser implements User {
+
+    private final String userId;
+    private final String tenancyId;
+    private final String firstName;
+    private final String lastName;
+    private final String emailAddress;
+    private final boolean adminUser;
+    private final String domain;
+    private final UUID confirmUUID;
+    private final Instant creationTime;
+    private final int version;
+    private final Instant lastUpdate;
+    private final UserTenantStatus tenantStatus;
+    private final UserProviderStatus providerStatus;
+    private final Instant expiryTime;
+
+    private MemoryUser(String userId, String tenancyId, String firstName, String lastName, String emailAddress,
+                       boolean adminUser, String domain, UUID confirmUUID, Instant creationTime, int version,
+                       Instant lastUpdate, UserTenantStatus tenantStatus, UserProviderStatus providerStatus,
+                       Instant expiryTime) {
+        this.userId = userId;
+        this.tenancyId = tenancyId;
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.emailAddress = emailAddress;
+        this.adminUser = adminUser;
+        this.domain = domain;
+        this.confirmUUID = confirmUUID;
+        this.creationTime = creationTime;
+        this.version = version;
+        this.lastUpdate = lastUpdate;
+        this.tenantStatus = tenantStatus;
+        this.providerStatus = providerStatus;
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * Create the initial state of a newly added user
+     * @return a version 1 state of an UNCONFIRMED, ACTIVE user
+     */
+    public static MemoryUser forNewUser(String userId, String tenancyId, String domain, EmailRecipient user,
+                                        boolean isAdmin, int expiryHours) {
+        Instant now = Instant.now();
+        return new MemoryUser(userId, tenancyId, user.getFirstName(), user.getLastName(), user.getEmailAddress().trim(),
+                isAdmin, domain, UUID.randomUUID(), now, 1, now, UserTenantStatus.UNCONFIRMED,
+                UserProviderStatus.ACTIVE, now.plus(expiryHours, ChronoUnit.HOURS));
+    }
+
+    /**
+     * Produce the state that follows an event, with the same transitions as the events stored in MongoDB
+     * @param evt the event
+     * @return the new state
+     */
+    public MemoryUser next(MemoryUserEvent evt) {
+        UserTenantStatus status = this.tenantStatus;
+        Instant expiry = this.expiryTime;
+        switch (evt.getType()) {
+            case USER_CREATED: expiry = evt.getExpiryTime(); break;
+            case USER_CONFIRMED: status = UserTenantStatus.CONFIRMED; break;
+            case USER_REJECTED: status = UserTenantStatus.REJECTED; break;
+            case USER_EXPIRED: status = UserTenantStatus.EXPIRED; break;
+            default: throw new IllegalStateException("Unexpected value: " + evt.getType());
+        }
+        return new MemoryUser(this.userId, this.tenancyId, this.firstName, this.lastName, this.emailAddress,
+                this.adminUser, this.domain, this.confirmUUID, this.creationTime, evt.getVersion(), evt.getTime(),
+                status, this.providerStatus, expiry);
+    }
+
+    /**
+     * Write the state in binary form
+     * @param out the destination
+     * @throws IOException if the state cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(this.userId);
+        out.writeUTF(this.tenancyId);
+        writeString(out, this.firstName);
+        writeString(out, this.lastName);
+        out.writeUTF(this.emailAddress);
+        out.writeBoolean(this.adminUser);
+        writeString(out, this.domain);
+        out.writeLong(this.confirmUUID.getMostSignificantBits());
+        out.writeLong(this.confirmUUID.getLeastSignificantBits());
+        writeInstant(out, this.creationTime);
+        out.writeInt(this.version);
+        writeInstant(out, this.lastUpdate);
+        out.writeUTF(this.tenantStatus.name());
+        out.writeUTF(this.providerStatus.name());
+        writeInstant(out, this.expiryTime);
+    }
+
+    /**
+     * Read a state written by {@link #writeTo}
+     * @param in the source
+     * @return the state
+     * @throws IOException if the state cannot be read
+     */
+    public static MemoryUser readFrom(DataInput in) throws IOException {
+        return new MemoryUser(
+                in.readUTF(),
+                in.readUTF(),
+                readString(in),
+                readString(in),
+                in.readUTF(),
+                in.readBoolean(),
+                readString(in),
+                new UUID(in.readLong(), in.readLong()),
+                readInstant(in),
+                in.readInt(),
+                readInstant(in),
+                UserTenantStatus.valueOf(in.readUTF()),
+                UserProviderStatus.valueOf(in.readUTF()),
+                readInstant(in));
+    }
+
+    static void writeString(DataOutput out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    static void writeInstant(DataOutput out, Instant value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.getEpochSecond());
+            out.writeInt(value.getNano());
+        }
+    }
+
+    static Instant readInstant(DataInput in) throws IOException {
+        return in.readBoolean() ? Instant.ofEpochSecond(in.readLong(), in.readInt()) : null;
+    }
+
+    public String getUserId() { return userId; }
+    public String getTenancyId() { return tenancyId; }
+    public String getFirstName() { return firstName; }
+    public String getLastName() { return lastName; }
+    public String getEmailAddress() { return emailAddress; }
+    public boolean isAdminUser() { return adminUser; }
+    public int getVersion() { return version; }
+    public Instant getLastUpdate() { return lastUpdate; }
+    public UserTenantStatus getTenantStatus() { return tenantStatus; }
+    public UserProviderStatus getProviderStatus() { return providerStatus; }
+    public String getDomain() { return domain; }
+    public UUID getConfirmUUID() { return confirmUUID; }
+    public Instant getCreationTime() { return creationTime; }
+    public Instant getExpiryTime() { return expiryTime; }
+}
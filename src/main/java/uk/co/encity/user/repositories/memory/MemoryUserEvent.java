@@ -0,0 +1,66 @@
+package uk.co.encity.user.repositories.memory;
+
+import lombok.Getter;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * An event in the log of a user held by the {@link InMemoryUserRepository}, which is applied to a user with
+ * {@link MemoryUser#next}
+ */
+@Getter
+public final class MemoryUserEvent {
+    private final String eventId;
+    private final String commandId;
+    private final UserEventType type;
+    private final int version;
+    private final Instant time;
+
+    /**
+     * The expiry time set by a {@link UserEventType#USER_CREATED} event, or null
+     */
+    private final Instant expiryTime;
+
+    public MemoryUserEvent(String eventId, String commandId, UserEventType type, int version, Instant time, Instant expiryTime) {
+        this.eventId = eventId;
+        this.commandId = commandId;
+        this.type = type;
+        this.version = version;
+        this.time = time;
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * Write the event in binary form
+     * @param out the destination
+     * @throws IOException if the event cannot be written
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(this.eventId);
+        MemoryUser.writeString(out, this.commandId);
+        out.writeUTF(this.type.name());
+        out.writeInt(this.version);
+        MemoryUser.writeInstant(out, this.time);
+        MemoryUser.writeInstant(out, this.expiryTime);
+    }
+
+    /**
+     * Read an event written by {@link #writeTo}
+     * @param in the source
+     * @return the event
+     * @throws IOException if the event cannot be read
+     */
+    public static MemoryUserEvent readFrom(DataInput in) throws IOException {
+        return new MemoryUserEvent(
+                in.readUTF(),
+                MemoryUser.readString(in),
+                UserEventType.valueOf(in.readUTF()),
+                in.readInt(),
+                MemoryUser.readInstant(in),
+                MemoryUser.readInstant(in));
+    }
+}
@@ -0,0 +1,17 @@
+package uk.co.encity.user.repositories.mongodb;
+
+/**
+ * How user snapshots, events and commands are converted to and from BSON.  Both modes read and write
+ * the same documents, so the mode can be changed without migrating any data
+ */
+public enum CodecMode {
+    /**
+     * Use the hand-written codecs, which read and write fields directly
+     */
+    EXPLICIT,
+
+    /**
+     * Use the driver's automatic POJO codecs, which discover properties by reflection
+     */
+    POJO
+}
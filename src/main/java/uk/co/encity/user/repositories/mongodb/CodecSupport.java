@@ -0,0 +1,68 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonReader;
+import org.bson.BsonSerializationException;
+import org.bson.BsonWriter;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Field helpers shared by the hand-written codecs.  They produce the same BSON as the POJO codecs: null
+ * values are omitted, instants are stored as date-times, enums by name and UUIDs in the standard binary
+ * representation
+ */
+final class CodecSupport {
+
+    /**
+     * The field that holds the class name of a document in a class hierarchy, as written by the POJO codecs
+     */
+    static final String DISCRIMINATOR_KEY = "_t";
+
+    private CodecSupport() {}
+
+    static void writeObjectId(BsonWriter writer, String name, ObjectId value) {
+        if (value != null) {
+            writer.writeObjectId(name, value);
+        }
+    }
+
+    static void writeString(BsonWriter writer, String name, String value) {
+        if (value != null) {
+            writer.writeString(name, value);
+        }
+    }
+
+    static void writeInstant(BsonWriter writer, String name, Instant value) {
+        if (value != null) {
+            writer.writeDateTime(name, value.toEpochMilli());
+        }
+    }
+
+    static void writeEnum(BsonWriter writer, String name, Enum<?> value) {
+        if (value != null) {
+            writer.writeString(name, value.name());
+        }
+    }
+
+    static void writeUuid(BsonWriter writer, String name, UUID value) {
+        if (value != null) {
+            writer.writeBinaryData(name, new BsonBinary(value));
+        }
+    }
+
+    static Instant readInstant(BsonReader reader) {
+        return Instant.ofEpochMilli(reader.readDateTime());
+    }
+
+    static UUID readUuid(BsonReader reader) {
+        BsonBinary binary = reader.readBinaryData();
+        if (binary.getType() != BsonBinarySubType.UUID_STANDARD.getValue()) {
+            throw new BsonSerializationException("Expected a UUID in the standard representation, but found subtype " + binary.getType());
+        }
+        return binary.asUuid();
+    }
+}
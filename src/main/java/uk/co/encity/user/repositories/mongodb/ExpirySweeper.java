@@ -0,0 +1,126 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Expires unconfirmed users whose confirmation window has closed, off the request path.
+ *
+ * Each run reads the views of the users that are longest past their expiry time, a batch at a time, and stores a
+ * {@link UserEventType#USER_EXPIRED} event for each with one bulk write per batch.  The events are announced
+ * through the outbox, like any other.  A run stops after a bounded number of batches, so a backlog of expired
+ * users is worked off over several runs rather than in one long one.
+ *
+ * Sweepers in several instances of the service may pick the same users.  Only one event can be stored for each
+ * version of a user, so each user is expired once, and the other sweepers count a conflict.  The sweeper reads
+ * the <code>user_view</code> read model, so it only runs while that is enabled
+ */
+@Component
+@Profile("!memory & !file")
+@ConditionalOnProperty(name = "user.view.enabled", havingValue = "true", matchIfMissing = true)
+public class ExpirySweeper {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    private final MongoDBUserRepository repo;
+    private final int batchSize;
+    private final int maxBatches;
+
+    private final Counter expired;
+    private final Counter conflicts;
+    private final Counter failures;
+    private final DistributionSummary expiredPerRun;
+    private final Timer runTime;
+
+    public ExpirySweeper(
+            @Autowired MongoDBUserRepository repo,
+            @Value("${user.expiry.batchSize:100}") int batchSize,
+            @Value("${user.expiry.maxBatches:10}") int maxBatches,
+            MeterRegistry registry)
+    {
+        this.repo = repo;
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+
+        this.expired = Counter.builder("encity.user.expiry.expired")
+                .description("The number of users expired by the sweeper")
+                .register(registry);
+        this.conflicts = Counter.builder("encity.user.expiry.conflicts")
+                .description("The number of expired users that were updated by something else before the sweeper")
+                .register(registry);
+        this.failures = Counter.builder("encity.user.expiry.failures")
+                .description("The number of sweeper batches that could not be written")
+                .register(registry);
+        this.expiredPerRun = DistributionSummary.builder("encity.user.expiry.run.users")
+                .description("The number of users expired by each run of the sweeper")
+                .register(registry);
+        this.runTime = Timer.builder("encity.user.expiry.run.time")
+                .description("The time taken by each run of the sweeper")
+                .register(registry);
+    }
+
+    /**
+     * Expire the users that are past their expiry time, up to the maximum number of batches
+     */
+    @Scheduled(fixedDelayString = "${user.expiry.sweepMillis:60000}")
+    public void sweep() {
+        int count = this.runTime.record(this::sweepBatches);
+        this.expiredPerRun.record(count);
+        if (count > 0) {
+            logger.info(String.format("Expired %d unconfirmed users", count));
+        }
+    }
+
+    /**
+     * @return the number of users expired
+     */
+    int sweepBatches() {
+        Instant now = Instant.now();
+        int total = 0;
+
+        for (int batch = 0; batch < this.maxBatches; batch++) {
+            List<ReplayedUser> users;
+            List<ReplayedUser> stored;
+            try {
+                users = this.repo.findExpiredUsers(now, this.batchSize);
+                if (users.isEmpty()) {
+                    break;
+                }
+                stored = this.repo.addUserEvents(UserEventType.USER_EXPIRED, users);
+            } catch (IOException | MongoException e) {
+                logger.warn("Unable to expire a batch of users: " + e.getMessage());
+                this.failures.increment();
+                break;
+            }
+
+            this.expired.increment(stored.size());
+            this.conflicts.increment(users.size() - stored.size());
+            total += stored.size();
+
+            // A short batch means nothing is left, and a batch of conflicts may be picked again - leave both to the next run
+            if (users.size() < this.batchSize || stored.isEmpty()) {
+                break;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,81 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Creates the {@link GroupCommitWriter}s through which the repository inserts commands, events and outbox
+ * messages, with the settings that trade the latency of each insert against the throughput of many:
+ * <ul>
+ *     <li><code>user.groupCommit.maxBatch</code> - the most documents written by one <code>insertMany</code></li>
+ *     <li><code>user.groupCommit.windowMillis</code> - how long a smaller batch is held back for more documents,
+ *     which is 0 to write it as soon as a write slot is free</li>
+ *     <li><code>user.groupCommit.maxInFlight</code> - the number of batches written to a collection at a time</li>
+ * </ul>
+ * Events written in a transaction with their outbox message are not grouped, since each is its own transaction
+ */
+@Component
+@Profile("!memory & !file")
+public class GroupCommit {
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private final boolean enabled;
+    private final int maxBatch;
+    private final long windowMillis;
+    private final int maxInFlight;
+    private final MeterRegistry registry;
+
+    private final ScheduledExecutorService timer;
+
+    public GroupCommit(
+            @Value("${user.groupCommit.enabled:true}") boolean enabled,
+            @Value("${user.groupCommit.maxBatch:100}") int maxBatch,
+            @Value("${user.groupCommit.windowMillis:0}") long windowMillis,
+            @Value("${user.groupCommit.maxInFlight:2}") int maxInFlight,
+            MeterRegistry registry)
+    {
+        this.enabled = enabled;
+        this.maxBatch = maxBatch;
+        this.windowMillis = windowMillis;
+        this.maxInFlight = maxInFlight;
+        this.registry = registry;
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "user-group-commit-window");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return a writer for a collection, or null if inserts are not grouped
+     */
+    <T> GroupCommitWriter<T> writer(MongoCollection<T> collection) {
+        if (!this.enabled) {
+            return null;
+        }
+        return new GroupCommitWriter<>(
+                collection.getNamespace().getCollectionName(),
+                docs -> Mono.from(collection.insertMany(docs, UNORDERED)).toFuture(),
+                this.maxBatch,
+                this.windowMillis,
+                this.maxInFlight,
+                this.timer,
+                this.registry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.timer.shutdown();
+    }
+}
@@ -0,0 +1,204 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.WriteError;
+import com.mongodb.bulk.BulkWriteError;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Groups the inserts of concurrent callers into a collection, so that many documents are acknowledged by one
+ * <code>insertMany</code> rather than each waiting for its own acknowledgement.
+ *
+ * Up to <code>maxInFlight</code> batches are written at a time.  While that many are being written, inserts
+ * queue up, and are written together, up to <code>maxBatch</code> at a time, as soon as a batch completes.  So
+ * a lightly loaded writer adds no delay, and batches grow with the load.  A window of more than zero holds back a
+ * batch smaller than <code>maxBatch</code> for up to that long, for bigger batches at the cost of latency.
+ *
+ * Batches are written unordered, so each document succeeds or fails on its own, and the caller of a document that
+ * breaks a unique index gets the same {@link MongoWriteException} as it would from <code>insertOne</code>
+ * @param <T> the type of the documents
+ */
+final class GroupCommitWriter<T> {
+
+    /**
+     * Writes a batch of documents, unordered
+     * @param <T> the type of the documents
+     */
+    interface BatchInserter<T> {
+        CompletableFuture<?> insertMany(List<T> docs);
+    }
+
+    private static final class Pending<T> {
+        final T doc;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(T doc) { this.doc = doc; }
+    }
+
+    private final BatchInserter<T> inserter;
+    private final int maxBatch;
+    private final long windowMillis;
+    private final int maxInFlight;
+    private final ScheduledExecutorService timer;
+    private final DistributionSummary batchSizes;
+
+    private final Queue<Pending<T>> queue = new ArrayDeque<>();
+    private int inFlight;
+
+    /**
+     * Incremented each time a batch is taken, so that a window opened for an earlier batch is ignored
+     */
+    private long generation;
+    private boolean windowOpen;
+    private boolean windowElapsed;
+
+    GroupCommitWriter(
+            String collectionName,
+            BatchInserter<T> inserter,
+            int maxBatch,
+            long windowMillis,
+            int maxInFlight,
+            ScheduledExecutorService timer,
+            MeterRegistry registry)
+    {
+        this.inserter = inserter;
+        this.maxBatch = maxBatch;
+        this.windowMillis = windowMillis;
+        this.maxInFlight = maxInFlight;
+        this.timer = timer;
+        this.batchSizes = DistributionSummary.builder("encity.user.groupCommit.batch")
+                .description("The number of documents written by each group commit")
+                .tag("collection", collectionName)
+                .register(registry);
+    }
+
+    /**
+     * Insert a document with the next batch
+     * @param doc the document
+     * @return a future that completes when the batch has been acknowledged, or fails if the document was not
+     * inserted
+     */
+    CompletableFuture<Void> insert(T doc) {
+        Pending<T> pending = new Pending<>(doc);
+        List<List<Pending<T>>> ready;
+        synchronized (this) {
+            this.queue.add(pending);
+            ready = this.takeReady();
+        }
+        ready.forEach(this::send);
+        return pending.done;
+    }
+
+    /**
+     * Wait for an insert, rethrowing the exception that failed it
+     * @param done the future returned by {@link #insert}
+     */
+    static void await(CompletableFuture<Void> done) {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Take the batches that can be written now.  Must be called holding the lock
+     */
+    private List<List<Pending<T>>> takeReady() {
+        List<List<Pending<T>>> ready = new ArrayList<>();
+        while (this.inFlight < this.maxInFlight && !this.queue.isEmpty()) {
+            if (this.queue.size() < this.maxBatch && this.windowMillis > 0 && !this.windowElapsed) {
+                if (!this.windowOpen) {
+                    this.windowOpen = true;
+                    long openedFor = this.generation;
+                    this.timer.schedule(() -> this.windowClosed(openedFor), this.windowMillis, TimeUnit.MILLISECONDS);
+                }
+                break;
+            }
+
+            List<Pending<T>> batch = new ArrayList<>(Math.min(this.maxBatch, this.queue.size()));
+            while (batch.size() < this.maxBatch && !this.queue.isEmpty()) {
+                batch.add(this.queue.poll());
+            }
+            this.inFlight++;
+            this.generation++;
+            this.windowOpen = false;
+            this.windowElapsed = false;
+            ready.add(batch);
+        }
+        return ready;
+    }
+
+    private void windowClosed(long openedFor) {
+        List<List<Pending<T>>> ready;
+        synchronized (this) {
+            if (openedFor != this.generation) {
+                return;
+            }
+            this.windowElapsed = true;
+            ready = this.takeReady();
+        }
+        ready.forEach(this::send);
+    }
+
+    private void send(List<Pending<T>> batch) {
+        this.batchSizes.record(batch.size());
+        List<T> docs = new ArrayList<>(batch.size());
+        batch.forEach(p -> docs.add(p.doc));
+
+        CompletableFuture<?> result;
+        try {
+            result = this.inserter.insertMany(docs);
+        } catch (RuntimeException e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+
+        result.whenComplete((r, e) -> {
+            complete(batch, e instanceof CompletionException ? e.getCause() : e);
+
+            List<List<Pending<T>>> ready;
+            synchronized (this) {
+                this.inFlight--;
+                ready = this.takeReady();
+            }
+            ready.forEach(this::send);
+        });
+    }
+
+    /**
+     * Complete the callers of a batch.  Only the documents named by the write errors of a bulk write exception
+     * failed, unless the write concern was not met
+     */
+    private static <T> void complete(List<Pending<T>> batch, Throwable e) {
+        if (e == null) {
+            batch.forEach(p -> p.done.complete(null));
+            return;
+        }
+        if (!(e instanceof MongoBulkWriteException) || ((MongoBulkWriteException) e).getWriteConcernError() != null) {
+            batch.forEach(p -> p.done.completeExceptionally(e));
+            return;
+        }
+
+        MongoBulkWriteException bulk = (MongoBulkWriteException) e;
+        for (BulkWriteError error : bulk.getWriteErrors()) {
+            batch.get(error.getIndex()).done.completeExceptionally(new MongoWriteException(
+                    new WriteError(error.getCode(), error.getMessage(), error.getDetails()),
+                    bulk.getServerAddress()));
+        }
+        batch.forEach(p -> p.done.complete(null));
+    }
+}
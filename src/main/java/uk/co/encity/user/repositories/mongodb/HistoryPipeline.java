@@ -0,0 +1,93 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import uk.co.encity.user.entity.UserHistoryEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * An aggregation over <code>user_events</code> that returns a page of a user's history: the events after a given
+ * version, in version order, each with the command that caused it.  Pages are keyed on the version, so each page
+ * is an index range scan however far into the history it starts, and no stage needs to hold the whole page
+ */
+final class HistoryPipeline {
+
+    /**
+     * The field of the result document that holds the command, if one was recorded
+     */
+    static final String COMMAND_FIELD = "command";
+
+    private HistoryPipeline() {}
+
+    /**
+     * Build the pipeline for a page of a user's history
+     * @param userId the identity of the user
+     * @param afterVersion the version after which the page starts
+     * @param limit the maximum number of entries, or 0 for no limit
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> forUser(ObjectId userId, int afterVersion, int limit) {
+        List<Bson> stages = new ArrayList<>();
+        stages.add(match(and(eq("userId", userId), gt("userVersionNumber", afterVersion))));
+        stages.add(sort(ascending("userVersionNumber")));
+        if (limit > 0) {
+            stages.add(limit(limit));
+        }
+        stages.add(new Document("$lookup", new Document("from", "user_commands")
+                .append("localField", "commandId")
+                .append("foreignField", "_id")
+                .append("as", COMMAND_FIELD)));
+        return stages;
+    }
+
+    /**
+     * Build a history entry from a document produced by the pipeline
+     * @param result the event document, with its command embedded
+     * @param registry the registry holding the event and command codecs
+     * @return the history entry
+     */
+    static UserHistoryEntry toEntry(BsonDocument result, CodecRegistry registry) {
+        BsonDocument eventDoc = result.clone();
+        BsonValue embedded = eventDoc.remove(COMMAND_FIELD);
+
+        MongoDBUserEvent evt = decode(registry.get(MongoDBUserEvent.class), eventDoc);
+        ObjectId eventId = eventDoc.containsKey("_id") ? eventDoc.getObjectId("_id").getValue() : null;
+
+        MongoDBUserCommand cmd = null;
+        if (embedded != null) {
+            BsonArray commandDocs = embedded.asArray();
+            if (!commandDocs.isEmpty()) {
+                cmd = decode(registry.get(MongoDBUserCommand.class), commandDocs.get(0).asDocument());
+            }
+        }
+
+        return new UserHistoryEntry(
+                evt.getUserVersionNumber(),
+                eventId == null ? null : eventId.toHexString(),
+                evt.getUserEventType(),
+                evt.getEventTime(),
+                evt.getCommandId() == null ? null : evt.getCommandId().toHexString(),
+                cmd == null ? null : cmd.getCommandType(),
+                cmd == null ? null : cmd.getTimeStamp());
+    }
+
+    private static <T> T decode(Codec<T> codec, BsonDocument doc) {
+        return codec.decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+    }
+}
@@ -0,0 +1,16 @@
+package uk.co.encity.user.repositories.mongodb;
+
+/**
+ * How a repository fetches the data needed to inflate a user
+ */
+public enum InflationMode {
+    /**
+     * Fetch the latest snapshot and its trailing events in a single aggregation
+     */
+    AGGREGATION,
+
+    /**
+     * Fetch the latest snapshot, then query for its trailing events
+     */
+    TWO_QUERY
+}
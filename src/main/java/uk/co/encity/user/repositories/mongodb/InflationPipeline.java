@@ -0,0 +1,206 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.client.model.Field;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Accumulators.first;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.exclude;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Sorts.orderBy;
+
+/**
+ * An aggregation over <code>user_snapshots</code> that returns the latest snapshot of a user together with
+ * all of the events that follow it, in version order, so that a user can be inflated in one round trip.  Variants
+ * of the pipeline return the user as it was at an earlier version or time, replaying only the events up to it.
+ *
+ * Only the events that follow the latest snapshots are certain to be in <code>user_events</code>, as the
+ * {@link SnapshotCompactor} moves older ones to an archive.  The variants for an earlier version or time also read
+ * the archived events, and can be run against the archived snapshots as well as the live ones
+ */
+final class InflationPipeline {
+
+    /**
+     * The field of the result document that holds the trailing events
+     */
+    static final String EVENTS_FIELD = "events";
+
+    /**
+     * The field in which a batch pipeline groups the latest snapshot of each user
+     */
+    private static final String LATEST_FIELD = "latest";
+
+    /**
+     * The field in which the variants for an earlier version or time embed the archived events
+     */
+    private static final String ARCHIVED_EVENTS_FIELD = "archivedEvents";
+
+    private InflationPipeline() {}
+
+    /**
+     * Build the pipeline for a given user
+     * @param userId the identity of the user
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> forUser(ObjectId userId) {
+        return pipeline(eq("userIdentity", userId), descending("lastUpdate"), null);
+    }
+
+    /**
+     * Build a pipeline for a batch of users, which returns one document - the latest snapshot with its trailing
+     * events - for each user that exists.  The snapshots are found with a single <code>$in</code> over the index
+     * on user identity and time, and the latest is picked for each user as they stream past in index order
+     * @param userIds the identities of the users
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> forUsers(Collection<ObjectId> userIds) {
+        List<Bson> stages = new ArrayList<>(Arrays.asList(
+                match(in("userIdentity", userIds)),
+                sort(orderBy(ascending("userIdentity"), descending("lastUpdate"))),
+                group("$userIdentity", first(LATEST_FIELD, "$$ROOT")),
+                replaceRoot("$" + LATEST_FIELD)));
+        stages.add(lookupEvents("user_events", EVENTS_FIELD, null));
+        return stages;
+    }
+
+    /**
+     * Build a pipeline that returns a user as it was at a given version: the latest snapshot at or before the
+     * version, with only the events that follow it up to the version
+     * @param userId the identity of the user
+     * @param version the version of the user to return
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> asOfVersion(ObjectId userId, int version) {
+        return pipeline(
+                and(eq("userIdentity", userId), lte("toVersion", version)),
+                descending("toVersion"),
+                new Document("$lte", Arrays.asList("$userVersionNumber", version)));
+    }
+
+    /**
+     * Build a pipeline that returns a user as it was at a given time: the latest snapshot taken at or before the
+     * time, with only the events that follow it up to the time
+     * @param userId the identity of the user
+     * @param instant the time at which to return the user
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> asOfInstant(ObjectId userId, Instant instant) {
+        Date at = Date.from(instant);
+        return pipeline(
+                and(eq("userIdentity", userId), lte("lastUpdate", at)),
+                descending("lastUpdate"),
+                new Document("$lte", Arrays.asList("$eventTime", at)));
+    }
+
+    /**
+     * @param snapshotFilter selects the snapshots to start from
+     * @param snapshotSort puts the snapshot to start from first
+     * @param eventLimit a condition on the events that follow the snapshot, or null to include them all, in which
+     *                   case the events are all in <code>user_events</code>
+     */
+    private static List<Bson> pipeline(Bson snapshotFilter, Bson snapshotSort, Document eventLimit) {
+        List<Bson> stages = new ArrayList<>(Arrays.asList(
+                match(snapshotFilter),
+                sort(snapshotSort),
+                limit(1),
+                lookupEvents("user_events", EVENTS_FIELD, eventLimit)));
+
+        if (eventLimit != null) {
+            // Archived events are older than any live ones, so they come first
+            stages.add(lookupEvents(SnapshotCompactor.ARCHIVED_EVENTS, ARCHIVED_EVENTS_FIELD, eventLimit));
+            stages.add(addFields(new Field<>(EVENTS_FIELD, new Document("$concatArrays",
+                    Arrays.asList("$" + ARCHIVED_EVENTS_FIELD, "$" + EVENTS_FIELD)))));
+            stages.add(project(exclude(ARCHIVED_EVENTS_FIELD)));
+        }
+        return stages;
+    }
+
+    /**
+     * @param from the collection that holds the events
+     * @param as the field in which to embed them
+     * @param eventLimit a condition on the events that follow the snapshot, or null to include them all
+     * @return a stage that embeds the events that follow each snapshot, in version order
+     */
+    private static Bson lookupEvents(String from, String as, Document eventLimit) {
+        List<Document> eventConditions = new ArrayList<>(Arrays.asList(
+                new Document("$eq", Arrays.asList("$userId", "$$uid")),
+                new Document("$gt", Arrays.asList("$userVersionNumber", "$$toVersion"))));
+        if (eventLimit != null) {
+            eventConditions.add(eventLimit);
+        }
+
+        List<Bson> lookupStages = Arrays.asList(
+                match(new Document("$expr", new Document("$and", eventConditions))),
+                sort(ascending("userVersionNumber")));
+
+        return new Document("$lookup", new Document("from", from)
+                .append("let", new Document("uid", "$userIdentity").append("toVersion", "$toVersion"))
+                .append("pipeline", lookupStages)
+                .append("as", as));
+    }
+
+    /**
+     * @param result a document produced by the pipeline
+     * @return whether the user is inflated from the snapshot written when it was added, in which case a later
+     * snapshot may have been archived
+     */
+    static boolean startsFromInitialSnapshot(BsonDocument result) {
+        return result.getInt32("toVersion").getValue() == UserRebuilder.INITIAL_VERSION;
+    }
+
+    /**
+     * Inflate a user from a document produced by the pipeline
+     * @param result the snapshot document, with its trailing events embedded
+     * @param registry the registry holding the snapshot and event codecs
+     * @param startNanos the value of {@link System#nanoTime()} when the aggregation was issued
+     * @return the inflated user
+     */
+    static ReplayedUser inflate(BsonDocument result, CodecRegistry registry, long startNanos) {
+        BsonDocument snapDoc = result.clone();
+        BsonValue embedded = snapDoc.remove(EVENTS_FIELD);
+
+        UserSnapshot snap = decode(registry.get(UserSnapshot.class), snapDoc);
+
+        List<MongoDBUserEvent> events = new ArrayList<>();
+        if (embedded != null) {
+            Codec<MongoDBUserEvent> eventCodec = registry.get(MongoDBUserEvent.class);
+            BsonArray eventDocs = embedded.asArray();
+            int lastVersion = snap.getToVersion();
+            for (BsonValue e : eventDocs) {
+                // While the compactor is moving events, they may be both live and archived
+                MongoDBUserEvent evt = decode(eventCodec, e.asDocument());
+                if (evt.getUserVersionNumber() > lastVersion) {
+                    events.add(evt);
+                    lastVersion = evt.getUserVersionNumber();
+                }
+            }
+        }
+
+        return UserSnapshot.inflate(snap, events, startNanos);
+    }
+
+    private static <T> T decode(Codec<T> codec, BsonDocument doc) {
+        return codec.decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+    }
+}
@@ -0,0 +1,47 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+/**
+ * Creates the one MongoDB client of the service.  The repositories and the maintenance components all use it, so
+ * there is a single connection pool, sized by the {@link MongoClientCustomizer}, and a single set of driver metrics.
+ *
+ * The client is that of the reactive streams driver, so the request path never blocks on the database.  Components
+ * that run on threads of their own, such as the {@link OutboxRelay}, wait for its publishers instead
+ */
+@Configuration
+@Profile("!memory & !file")
+public class MongoClientConfig {
+
+    /**
+     * The name with which the client's meters are tagged
+     */
+    static final String CLIENT_NAME = "users";
+
+    /**
+     * @param mongodbURI the connection string
+     * @param codecMode how user snapshots, events and commands are to be converted
+     * @param clientCustomizer applies the pool settings and metrics
+     * @return the client, which is closed when the application context is
+     */
+    @Bean(destroyMethod = "close")
+    public MongoClient userMongoClient(
+            @Value("${mongodb.uri}") String mongodbURI,
+            @Value("${user.codecs:EXPLICIT}") CodecMode codecMode,
+            MongoClientCustomizer clientCustomizer)
+    {
+        MongoClientSettings clientSettings = clientCustomizer.customize(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(mongodbURI))
+                .codecRegistry(UserCodecRegistry.create(codecMode)), CLIENT_NAME)
+                .build();
+
+        return MongoClients.create(clientSettings);
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the settings of the MongoDB client created by {@link MongoClientConfig}, on top of those in the connection string:
+ * <ul>
+ *     <li>the size of the connection pool, from <code>user.mongodb.pool.minSize</code>,
+ *     <code>user.mongodb.pool.maxSize</code>, <code>user.mongodb.pool.maxWaitMillis</code> and
+ *     <code>user.mongodb.pool.maxIdleMillis</code>, each of which is left to the connection string if unset</li>
+ *     <li>the {@link MongoCommandMetrics} and {@link MongoPoolMetrics} listeners, unless
+ *     <code>user.mongodb.metrics</code> is false</li>
+ * </ul>
+ */
+@Component
+@Profile("!memory & !file")
+public class MongoClientCustomizer {
+
+    private final Integer minSize;
+    private final Integer maxSize;
+    private final Long maxWaitMillis;
+    private final Long maxIdleMillis;
+    private final boolean metrics;
+    private final MeterRegistry registry;
+
+    public MongoClientCustomizer(
+            @Value("${user.mongodb.pool.minSize:#{null}}") Integer minSize,
+            @Value("${user.mongodb.pool.maxSize:#{null}}") Integer maxSize,
+            @Value("${user.mongodb.pool.maxWaitMillis:#{null}}") Long maxWaitMillis,
+            @Value("${user.mongodb.pool.maxIdleMillis:#{null}}") Long maxIdleMillis,
+            @Value("${user.mongodb.metrics:true}") boolean metrics,
+            MeterRegistry registry)
+    {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxIdleMillis = maxIdleMillis;
+        this.metrics = metrics;
+        this.registry = registry;
+    }
+
+    /**
+     * Apply the settings to a client's settings, after its connection string has been applied
+     * @param builder the builder of the client's settings
+     * @param client the name of the client, with which its meters are tagged
+     * @return the builder
+     */
+    public MongoClientSettings.Builder customize(MongoClientSettings.Builder builder, String client) {
+        builder.applyToConnectionPoolSettings(pool -> {
+            if (this.minSize != null) {
+                pool.minSize(this.minSize);
+            }
+            if (this.maxSize != null) {
+                pool.maxSize(this.maxSize);
+            }
+            if (this.maxWaitMillis != null) {
+                pool.maxWaitTime(this.maxWaitMillis, TimeUnit.MILLISECONDS);
+            }
+            if (this.maxIdleMillis != null) {
+                pool.maxConnectionIdleTime(this.maxIdleMillis, TimeUnit.MILLISECONDS);
+            }
+            if (this.metrics) {
+                pool.addConnectionPoolListener(new MongoPoolMetrics(this.registry, client));
+            }
+        });
+        if (this.metrics) {
+            builder.addCommandListener(new MongoCommandMetrics(this.registry, client));
+        }
+        return builder;
+    }
+}
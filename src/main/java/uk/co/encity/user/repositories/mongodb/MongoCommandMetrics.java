@@ -0,0 +1,73 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the time taken by each command the driver sends to the server, as the timer
+ * <code>encity.user.mongodb.command</code>, tagged with the collection, the command and whether it succeeded.  The
+ * collection is only named in the command sent, so it is held until the command completes
+ */
+class MongoCommandMetrics implements CommandListener {
+
+    private static final String NO_COLLECTION = "none";
+
+    private final MeterRegistry registry;
+    private final String client;
+    private final ConcurrentMap<Integer, String> collections = new ConcurrentHashMap<>();
+
+    /**
+     * @param registry the registry of the timers
+     * @param client the name of the client, to tell apart the timers of more than one client
+     */
+    MongoCommandMetrics(MeterRegistry registry, String client) {
+        this.registry = registry;
+        this.client = client;
+    }
+
+    /**
+     * @return the collection named by a command, which is the value of the command's name for most commands
+     */
+    static String collectionOf(String commandName, BsonDocument command) {
+        BsonValue value = command.get("getMore".equals(commandName) ? "collection" : commandName);
+        return value != null && value.isString() ? value.asString().getValue() : NO_COLLECTION;
+    }
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        this.collections.put(event.getRequestId(), collectionOf(event.getCommandName(), event.getCommand()));
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        this.record(event.getRequestId(), event.getCommandName(), "success", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        this.record(event.getRequestId(), event.getCommandName(), "failure", event.getElapsedTime(TimeUnit.NANOSECONDS));
+    }
+
+    private void record(int requestId, String commandName, String status, long nanos) {
+        String collection = this.collections.remove(requestId);
+        Timer.builder("encity.user.mongodb.command")
+                .description("The time taken by commands sent to MongoDB")
+                .tag("client", this.client)
+                .tag("collection", collection == null ? NO_COLLECTION : collection)
+                .tag("command", commandName)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(this.registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
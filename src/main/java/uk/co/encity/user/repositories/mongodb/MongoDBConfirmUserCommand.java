@@ -5,6 +5,10 @@ import uk.co.encity.user.commands.ConfirmUserCommand;
 
 @BsonDiscriminator
 public class MongoDBConfirmUserCommand extends MongoDBPatchUserCommand {
+    MongoDBConfirmUserCommand() {
+        super();
+    }
+
     public MongoDBConfirmUserCommand(ConfirmUserCommand cmd) {
         super(cmd);
     }
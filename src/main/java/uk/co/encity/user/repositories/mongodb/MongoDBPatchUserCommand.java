@@ -12,11 +12,24 @@ import uk.co.encity.user.commands.RejectUserCommand;
 public class MongoDBPatchUserCommand extends MongoDBUserCommand {
     private ObjectId userId;
 
+    /**
+     * Construct an empty command, to be populated when a command document is decoded
+     */
+    protected MongoDBPatchUserCommand() {
+        super();
+    }
+
     public MongoDBPatchUserCommand(PatchUserCommand cmd) {
         super();
+        // Keep the command's own identity, which the events it causes refer to
+        this.setCommandId(new ObjectId(cmd.getCommandId()));
+        this.setTimeStamp(cmd.getTimeStamp());
+        this.setCommandType(cmd.getCmdType());
         this.userId = new ObjectId(cmd.getUserId());
     }
 
+    void setUserId(ObjectId userId) { this.userId = userId; }
+
     public static MongoDBPatchUserCommand getMongoDBPatchUserCommand(PatchUserCommand cmd) {
         MongoDBPatchUserCommand dbCmd = null;
         switch (cmd.getCmdType()) {
@@ -0,0 +1,1079 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.mongodb.BasicDBObject;
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.ClientSession;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+import reactor.util.retry.Retry;
+import uk.co.encity.user.commands.PatchUserCommand;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEvent;
+import uk.co.encity.user.events.generated.UserEventType;
+import uk.co.encity.user.events.published.UserMessageWriter;
+import uk.co.encity.user.service.IamProvider;
+import uk.co.encity.user.service.ReactiveUserRepository;
+import uk.co.encity.user.service.VersionConflictException;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * A {@link ReactiveUserRepository} backed by the MongoDB reactive streams driver, through the client created by
+ * {@link MongoClientConfig}.  This is the only implementation of the MongoDB event store: the blocking
+ * {@link MongoDBUserRepository} and the maintenance components in this package are built on it
+ */
+@Component
+@Profile("!memory & !file")
+public class MongoDBReactiveUserRepository implements ReactiveUserRepository {
+
+    /**
+     * The external Identity and Access Management Provider
+     */
+    private final IamProvider iamProvider;
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    /**
+     * The server error code for a write that collided with one made by a concurrent transaction
+     */
+    private static final int WRITE_CONFLICT = 112;
+
+    private final MongoClient mongoClient;
+    private final MongoDatabase db;
+    private final CodecRegistry codecRegistry;
+    private final SnapshotPolicy snapshotPolicy;
+    private final UserCache userCache;
+    private final InflationMode inflationMode;
+    private final UserMessageWriter messageWriter;
+
+    /**
+     * The writers that group inserts with those of concurrent callers, or null if inserts are not grouped
+     */
+    private final GroupCommitWriter<MongoDBUserCommand> commandWriter;
+    private final GroupCommitWriter<MongoDBUserEvent> eventWriter;
+    private final GroupCommitWriter<OutboxMessage> outboxWriter;
+
+    /**
+     * Whether an event and its outbox message are written in one transaction, which needs a replica set
+     */
+    @Value("${user.outbox.transactional:true}")
+    boolean transactionalOutbox;
+
+    /**
+     * The name of the AMQP exchange to which outbox messages are published
+     */
+    @Value("${user.outbox.exchange:encity-exchange}")
+    String exchangeName;
+
+    /**
+     * Whether users are read from, and projected into, the <code>user_view</code> read model
+     */
+    @Value("${user.view.enabled:true}")
+    boolean viewEnabled;
+
+    /**
+     * The number of history entries fetched from the server at a time
+     */
+    @Value("${user.history.batchSize:100}")
+    int historyBatchSize;
+
+    /**
+     * The number of users fetched from the server at a time when listing the users of a tenancy
+     */
+    @Value("${user.tenancyUsers.batchSize:100}")
+    int tenancyUsersBatchSize;
+
+    /**
+     * The read preference for reads by clients that have no consistency token
+     */
+    @Value("${user.read.preference:primary}")
+    String readPreference;
+
+    /**
+     * The number of times a transaction is run again after a transient error, or its commit is retried
+     */
+    @Value("${user.transaction.maxRetries:3}")
+    int maxTransactionRetries;
+
+    // TODO: Does this belong in the repo - maybe should move it outside?
+    @Value("${user.expiryHours}")
+    int expiryHours;
+
+    @Override
+    public String getIdentity() { return new ObjectId().toHexString(); }
+
+    /**
+     * @return the database that holds the user collections, for use by maintenance components in this package
+     */
+    MongoDatabase getDatabase() { return this.db; }
+
+    public MongoDBReactiveUserRepository(
+            @Autowired MongoClient mongoClient,
+            @Value("${user.db}") String dbName,
+            @Autowired IamProvider iamProvider,
+            @Autowired SnapshotPolicy snapshotPolicy,
+            @Autowired UserCache userCache,
+            @Value("${user.inflationMode:AGGREGATION}") InflationMode inflationMode,
+            @Autowired UserMessageWriter messageWriter,
+            @Autowired GroupCommit groupCommit)
+    {
+        this.iamProvider = iamProvider;
+        this.snapshotPolicy = snapshotPolicy;
+        this.userCache = userCache;
+        this.inflationMode = inflationMode;
+        this.messageWriter = messageWriter;
+
+        this.mongoClient = mongoClient;
+        this.db = this.mongoClient.getDatabase(dbName);
+        this.codecRegistry = this.db.getCodecRegistry();
+
+        this.commandWriter = groupCommit.writer(this.db.getCollection("user_commands", MongoDBUserCommand.class));
+        this.eventWriter = groupCommit.writer(this.db.getCollection("user_events", MongoDBUserEvent.class));
+        this.outboxWriter = groupCommit.writer(this.db.getCollection("user_outbox", OutboxMessage.class));
+    }
+
+    private Mono<UserSnapshot> getLatestSnapshot(String id) {
+        ObjectId targetId = new ObjectId(id);
+        MongoCollection<UserSnapshot> snapshots = db.getCollection("user_snapshots", UserSnapshot.class);
+
+        return Mono.from(snapshots.find(eq("userIdentity", targetId)).sort(new BasicDBObject("lastUpdate", -1)).first());
+    }
+
+    private Flux<MongoDBUserEvent> getEventRange(String userId, int fromVersion) {
+        MongoCollection<MongoDBUserEvent> events = db.getCollection("user_events", MongoDBUserEvent.class);
+
+        ObjectId uId = new ObjectId(userId);
+        return Flux.from(events
+                .find(and(eq("userId", uId), gt("userVersionNumber", fromVersion)))
+                .sort(ascending("userVersionNumber")));
+    }
+
+    /**
+     * Inflate a user from the result of a single aggregation, which returns the latest snapshot
+     * together with its trailing events
+     * @param userId the identity of the user
+     * @return a {@link Mono} that emits the user, or completes empty if the user does not exist
+     */
+    private Mono<ReplayedUser> inflateByAggregation(String userId) {
+        return this.aggregateUser(() -> InflationPipeline.forUser(new ObjectId(userId)));
+    }
+
+    /**
+     * @param pipeline supplies an {@link InflationPipeline}
+     * @return a {@link Mono} that emits the user inflated from the result of the pipeline, or completes empty if it
+     * found no snapshot
+     */
+    private Mono<ReplayedUser> aggregateUser(Supplier<List<Bson>> pipeline) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            MongoCollection<UserSnapshot> snapshots = db.getCollection("user_snapshots", UserSnapshot.class);
+
+            return Mono.from(snapshots.aggregate(pipeline.get(), BsonDocument.class).first())
+                    .map(result -> InflationPipeline.inflate(result, this.codecRegistry, start));
+        });
+    }
+
+    /**
+     * Inflate a user as it was at an earlier version or time.  When the nearest live snapshot is the one written
+     * when the user was added, a nearer one may have been archived by the {@link SnapshotCompactor}, so the
+     * archived snapshots are searched as well
+     * @param pipeline supplies an {@link InflationPipeline} for an earlier version or time
+     * @return a {@link Mono} that emits the user, or completes empty if it found no snapshot
+     */
+    private Mono<ReplayedUser> aggregateUserAsOf(Supplier<List<Bson>> pipeline) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            List<Bson> stages = pipeline.get();
+            MongoCollection<UserSnapshot> snapshots = db.getCollection("user_snapshots", UserSnapshot.class);
+            Mono<BsonDocument> archived = Mono.from(db.getCollection(SnapshotCompactor.ARCHIVED_SNAPSHOTS, UserSnapshot.class)
+                    .aggregate(stages, BsonDocument.class).first());
+
+            return Mono.from(snapshots.aggregate(stages, BsonDocument.class).first())
+                    .flatMap(result -> InflationPipeline.startsFromInitialSnapshot(result) ?
+                            archived.defaultIfEmpty(result) : Mono.just(result))
+                    .switchIfEmpty(archived)
+                    .map(result -> InflationPipeline.inflate(result, this.codecRegistry, start));
+        });
+    }
+
+    /**
+     * Inflate a user by reading the latest snapshot, then the events that follow it
+     * @param userId the identity of the user
+     * @return a {@link Mono} that emits the user, or completes empty if the user does not exist
+     */
+    private Mono<ReplayedUser> inflateByTwoQueries(String userId) {
+        return this.getLatestSnapshot(userId)
+                .flatMap(snap -> {
+                    long start = System.nanoTime();
+                    return this.getEventRange(snap.getUserId(), snap.getToVersion())
+                            .collectList()
+                            .map(events -> UserSnapshot.inflate(snap, events, start));
+                });
+    }
+
+    /**
+     * Get a user from the cache, from the <code>user_view</code> read model, or - if the user has no view, or
+     * the view is stale - by inflating the latest snapshot with all subsequent events
+     * @param userId the identity of the user
+     * @return a {@link Mono} that emits the user, or completes empty if the user does not exist
+     */
+    @Override
+    public Mono<User> getUser(String userId) {
+        return Mono.fromSupplier(() -> this.userCache.get(userId))
+                .switchIfEmpty(Mono.defer(() -> {
+                    Mono<ReplayedUser> inflated = (this.inflationMode == InflationMode.AGGREGATION ?
+                            this.inflateByAggregation(userId) :
+                            this.inflateByTwoQueries(userId))
+                            .doOnNext(this.snapshotPolicy::recordReplay);
+
+                    if (this.viewEnabled) {
+                        inflated = this.readView(userId)
+                                .switchIfEmpty(inflated.doOnNext(this::backfillView));
+                    }
+
+                    return inflated.doOnNext(this.userCache::put);
+                }))
+                .cast(User.class);
+    }
+
+    /**
+     * Read a user with the configured read preference or - for a client that knows of a version of the user - from
+     * a secondary, if there is one.  The view and, if needed, the events are read with majority read concern in one
+     * causally consistent session, so the second read never sees an earlier state than the first.  A user that the
+     * secondary has not yet replicated up to the client's version, or at all, is read from the primary instead.
+     * A cached user before the client's version is dropped from the cache, and read from the primary.
+     *
+     * Users read from a secondary are not cached or projected, so nothing older than the primary's state is written
+     */
+    @Override
+    public Mono<User> readUser(String userId, int minVersion) {
+        ReadPreference preference = minVersion > 0 ?
+                ReadPreference.secondaryPreferred() :
+                ReadPreference.valueOf(this.readPreference);
+        if (preference.equals(ReadPreference.primary())) {
+            return this.getUser(userId);
+        }
+
+        return Mono.<User>fromSupplier(() -> this.cachedUser(userId, minVersion))
+                .switchIfEmpty(Mono.usingWhen(
+                        this.mongoClient.startSession(ClientSessionOptions.builder().causallyConsistent(true).build()),
+                        session -> this.readReplica(
+                                this.db.withReadPreference(preference).withReadConcern(ReadConcern.MAJORITY),
+                                session,
+                                new ObjectId(userId)),
+                        session -> Mono.fromRunnable(session::close)))
+                .filter(user -> {
+                    if (user.getVersion() < minVersion) {
+                        logger.debug(String.format("Replica has user %s at version %d, before version %d - reading from the primary",
+                                userId, user.getVersion(), minVersion));
+                        return false;
+                    }
+                    return true;
+                })
+                .switchIfEmpty(Mono.defer(() -> this.getUser(userId)));
+    }
+
+    /**
+     * @param userId the identity of the user
+     * @param minVersion the earliest version of the user that may be returned
+     * @return the cached user, or null if the user is not cached, or is cached at an earlier version - in which
+     * case it is removed from the cache, so that the read that follows does not find it again
+     */
+    private User cachedUser(String userId, int minVersion) {
+        User cached = this.userCache.get(userId);
+        if (cached != null && cached.getVersion() < minVersion) {
+            logger.debug(String.format("Cache has user %s at version %d, before version %d - reading from the database",
+                    userId, cached.getVersion(), minVersion));
+            this.userCache.invalidateBefore(userId, minVersion);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * Read a user from its view or, if it has none that is up to date, by inflating it
+     * @param replica the database, with the read preference and read concern to read with
+     * @param session the session in which to read
+     * @param userId the identity of the user
+     * @return a {@link Mono} that emits the user, or completes empty if the replica does not have the user
+     */
+    private Mono<User> readReplica(MongoDatabase replica, ClientSession session, ObjectId userId) {
+        Mono<ReplayedUser> inflated = Mono.defer(() -> {
+            long start = System.nanoTime();
+            return Mono.from(replica.getCollection("user_snapshots", UserSnapshot.class)
+                            .aggregate(session, InflationPipeline.forUser(userId), BsonDocument.class)
+                            .first())
+                    .map(result -> InflationPipeline.inflate(result, this.codecRegistry, start));
+        });
+        if (!this.viewEnabled) {
+            return inflated.cast(User.class);
+        }
+
+        MongoCollection<UserView> views = replica.getCollection("user_view", UserView.class);
+        Mono<ReplayedUser> view = this.transactionalOutbox ?
+                Mono.from(views.find(session, eq("_id", userId)).first()).map(UserView::toUser) :
+                Mono.from(views.aggregate(session, UserView.withNewerEvents(userId), BsonDocument.class).first())
+                        .filter(result -> !UserView.isStale(result))
+                        .map(result -> this.codecRegistry.get(UserView.class)
+                                .decode(new BsonDocumentReader(result), DecoderContext.builder().build())
+                                .toUser());
+
+        return view.switchIfEmpty(inflated).cast(User.class);
+    }
+
+    /**
+     * Get a batch of users from the cache, then the views of the rest, then by inflating any that are left - each
+     * step in a single query for the whole batch
+     */
+    @Override
+    public Flux<User> getUsers(Collection<String> userIds) {
+        return Flux.defer(() -> {
+            Set<String> ids = new LinkedHashSet<>(userIds);
+            Map<String, User> found = new ConcurrentHashMap<>();
+            List<ObjectId> misses = new ArrayList<>();
+
+            for (String id : ids) {
+                User cached = this.userCache.get(id);
+                if (cached != null) {
+                    found.put(id, cached);
+                } else {
+                    misses.add(new ObjectId(id));
+                }
+            }
+
+            Mono<List<ObjectId>> remaining = Mono.just(misses);
+            if (!misses.isEmpty() && this.viewEnabled) {
+                remaining = this.readViews(misses)
+                        .doOnNext(user -> {
+                            this.userCache.put(user);
+                            found.put(user.getUserId(), user);
+                        })
+                        .then(Mono.fromSupplier(() -> {
+                            misses.removeIf(id -> found.containsKey(id.toHexString()));
+                            return misses;
+                        }));
+            }
+
+            return remaining
+                    .flatMapMany(this::inflateUsers)
+                    .doOnNext(user -> {
+                        this.snapshotPolicy.recordReplay(user);
+                        if (this.viewEnabled) {
+                            this.backfillView(user);
+                        }
+                        this.userCache.put(user);
+                        found.put(user.getUserId(), user);
+                    })
+                    .thenMany(Flux.fromIterable(ids))
+                    .filter(found::containsKey)
+                    .map(found::get);
+        });
+    }
+
+    /**
+     * Find the users with an email address through the case-insensitive email index, then read them as a batch
+     */
+    @Override
+    public Flux<User> findByEmail(String domain, String emailAddress) {
+        return Flux.defer(() -> Flux.from(db.getCollection("user_snapshots")
+                        .find(UserSnapshot.emailFilter(domain, emailAddress))
+                        .collation(UserSnapshot.EMAIL_COLLATION)
+                        .projection(include("userIdentity"))))
+                .map(snap -> snap.getObjectId("userIdentity").toHexString())
+                .collectList()
+                .flatMapMany(userIds -> userIds.isEmpty() ? Flux.empty() : this.getUsers(userIds));
+    }
+
+    /**
+     * @param userIds the identities of the users
+     * @return a {@link Flux} of the users that exist, inflated by a single aggregation
+     */
+    private Flux<ReplayedUser> inflateUsers(List<ObjectId> userIds) {
+        if (userIds.isEmpty()) {
+            return Flux.empty();
+        }
+        MongoCollection<UserSnapshot> snapshots = db.getCollection("user_snapshots", UserSnapshot.class);
+        return Flux.from(snapshots.aggregate(InflationPipeline.forUsers(userIds), BsonDocument.class))
+                .map(result -> InflationPipeline.inflate(result, this.codecRegistry, System.nanoTime()));
+    }
+
+    /**
+     * Read the views of a batch of users, as {@link #readView(String)} does for one
+     * @param userIds the identities of the users
+     * @return a {@link Flux} of the users with a view that is not stale
+     */
+    private Flux<ReplayedUser> readViews(List<ObjectId> userIds) {
+        MongoCollection<UserView> views = this.views();
+
+        if (this.transactionalOutbox) {
+            return Flux.from(views.find(in("_id", userIds))).map(UserView::toUser);
+        }
+
+        return Flux.from(views.aggregate(UserView.withNewerEvents(userIds), BsonDocument.class))
+                .filter(result -> !UserView.isStale(result))
+                .map(result -> this.codecRegistry.get(UserView.class)
+                        .decode(new BsonDocumentReader(result), DecoderContext.builder().build())
+                        .toUser());
+    }
+
+    /**
+     * Inflate a user as it was at an earlier version, from the nearest snapshot at or before that version.  Earlier
+     * states are never cached or projected, so reads of the current state are unaffected
+     */
+    @Override
+    public Mono<User> getUser(String userId, int asOfVersion) {
+        return this.aggregateUserAsOf(() -> InflationPipeline.asOfVersion(new ObjectId(userId), asOfVersion))
+                .cast(User.class);
+    }
+
+    /**
+     * Inflate a user as it was at an earlier time, from the nearest snapshot taken at or before that time
+     */
+    @Override
+    public Mono<User> getUser(String userId, Instant asOfInstant) {
+        return this.aggregateUserAsOf(() -> InflationPipeline.asOfInstant(new ObjectId(userId), asOfInstant))
+                .cast(User.class);
+    }
+
+    /**
+     * Stream a page of a user's history from a cursor.  The driver fetches a batch of entries at a time as the
+     * subscriber requests them, so memory use does not grow with the length of the history.
+     *
+     * Events archived by the {@link SnapshotCompactor} are older than any in <code>user_events</code>, so the page
+     * starts in the archive and carries on in <code>user_events</code> after the last archived entry
+     */
+    @Override
+    public Flux<UserHistoryEntry> getUserHistory(String userId, int afterVersion, int limit) {
+        return Flux.defer(() -> {
+            AtomicInteger lastVersion = new AtomicInteger(afterVersion);
+            AtomicInteger count = new AtomicInteger();
+
+            Flux<UserHistoryEntry> archived = this.history(this.archivedEvents(), userId, afterVersion, limit)
+                    .doOnNext(entry -> {
+                        lastVersion.set(entry.getVersion());
+                        count.incrementAndGet();
+                    });
+            Flux<UserHistoryEntry> live = Flux.defer(() -> limit > 0 && count.get() >= limit ? Flux.empty() :
+                    this.history(this.events(), userId, lastVersion.get(), limit > 0 ? limit - count.get() : 0));
+
+            return Flux.concat(archived, live);
+        });
+    }
+
+    private Flux<UserHistoryEntry> history(MongoCollection<MongoDBUserEvent> events, String userId,
+                                           int afterVersion, int limit)
+    {
+        return Flux.from(events
+                        .aggregate(HistoryPipeline.forUser(new ObjectId(userId), afterVersion, limit), BsonDocument.class)
+                        .batchSize(this.historyBatchSize))
+                .map(result -> HistoryPipeline.toEntry(result, this.codecRegistry));
+    }
+
+    /**
+     * Stream a page of the users of a tenancy from the <code>user_view</code> read model, which holds the current
+     * state of each user.  The cursor is read a batch at a time as the subscriber requests users, so memory use
+     * does not grow with the size of the tenancy.  Users that have not been projected into the read model - those
+     * added before it existed, until they are next read or rebuilt - are not listed
+     */
+    @Override
+    public Flux<User> getTenancyUsers(String tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                                      Collection<UserProviderStatus> providerStatuses, String afterUserId, int limit) {
+        return Flux.defer(() -> {
+            Bson filter = UserView.tenancyFilter(
+                    new ObjectId(tenancyId),
+                    tenantStatuses,
+                    providerStatuses,
+                    afterUserId == null ? null : new ObjectId(afterUserId));
+
+            return Flux.from(this.views()
+                            .find(filter)
+                            .sort(ascending("_id"))
+                            .limit(limit)
+                            .batchSize(this.tenancyUsersBatchSize))
+                    .map(UserView::toUser);
+        });
+    }
+
+    /**
+     * Read a user from the <code>user_view</code> read model.  When events are stored in the same transaction
+     * as the view, the view cannot lag behind them, so it is read by key alone.  Otherwise, the read also checks
+     * for an event newer than the view
+     * @param userId the identity of the user
+     * @return a {@link Mono} that emits the user, or completes empty if the user has no view or the view is stale
+     */
+    private Mono<ReplayedUser> readView(String userId) {
+        return Mono.defer(() -> {
+            MongoCollection<UserView> views = this.views();
+            ObjectId id = new ObjectId(userId);
+
+            if (this.transactionalOutbox) {
+                return Mono.from(views.find(eq("_id", id)).first()).map(UserView::toUser);
+            }
+
+            return Mono.from(views.aggregate(UserView.withNewerEvents(id), BsonDocument.class).first())
+                    .filter(result -> {
+                        if (UserView.isStale(result)) {
+                            logger.debug(String.format("View of user %s is stale - inflating from events", userId));
+                            return false;
+                        }
+                        return true;
+                    })
+                    .map(result -> this.codecRegistry.get(UserView.class)
+                            .decode(new BsonDocumentReader(result), DecoderContext.builder().build())
+                            .toUser());
+        });
+    }
+
+    /**
+     * Write the view of a user that had no view, or a stale one.  The caller does not wait for the view
+     * to be stored
+     * @param user the inflated user
+     */
+    private void backfillView(ReplayedUser user) {
+        this.replaceView(null, user.getUserId(), user)
+                .subscribe(
+                        result -> {},
+                        e -> logger.warn(String.format("Failed to write view of user %s: %s", user.getUserId(), e.getMessage())));
+    }
+
+    /**
+     * Replace the view of a user, unless a view of a later version has already been written
+     * @param session the session in which to write, or null
+     * @param userId the identity of the user
+     * @param user the latest state of the user, or null if it is unknown - in which case the view is removed
+     *             rather than left behind the user's events
+     * @return a {@link Mono} that completes when the view has been written
+     */
+    private Mono<Void> replaceView(ClientSession session, String userId, ReplayedUser user) {
+        return Mono.defer(() -> {
+            MongoCollection<UserView> views = this.views();
+
+            if (user == null) {
+                Bson filter = eq("_id", new ObjectId(userId));
+                return Mono.from(session == null ? views.deleteOne(filter) : views.deleteOne(session, filter)).then();
+            }
+
+            UserView view = UserView.of(user);
+            return Mono.from(session == null ?
+                            views.replaceOne(view.replaceFilter(), view, UserView.UPSERT) :
+                            views.replaceOne(session, view.replaceFilter(), view, UserView.UPSERT))
+                    // The upsert found a view of a later version, and tried to insert a second view of the user
+                    .onErrorResume(e -> session == null && isDuplicateKey(e), e -> Mono.empty())
+                    .then();
+        });
+    }
+
+    /**
+     * Create the external representation of the user with the IAM Provider.  The provider's client is
+     * blocking, so the call is made on a worker thread rather than an event loop thread
+     */
+    @Override
+    public Mono<User> confirmUser(User user, String initialPassword) {
+        return Mono.fromCallable(() -> {
+                    iamProvider.createUser(user, initialPassword);
+                    return user;
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    /**
+     * Add a new user with a given identity.  The initial snapshot has the identity of the user, so only one of two
+     * adds of the same user can store it.  The other gets the stored user
+     * @return a {@link Mono} that emits the version 1 user, or the user already stored with the identity
+     */
+    Mono<User> addUser(String userId, String tenancyId, String domain, EmailRecipient user, boolean isAdmin) {
+        return Mono.defer(() -> {
+            // Create a snapshot, and a User from the snapshot
+            UserSnapshot snap = UserSnapshot.forNewUser(userId, tenancyId, domain, user, isAdmin, this.expiryHours);
+            ReplayedUser u = new ReplayedUser(UserState.of(snap), 0, 0);
+
+            // Store the snapshot, and project it into the view
+            return Mono.from(db.getCollection("user_snapshots", UserSnapshot.class).insertOne(snap))
+                    .then(this.viewEnabled ? this.replaceView(null, u.getUserId(), u) : Mono.empty())
+                    .then(Mono.fromRunnable(() -> this.userCache.put(u)))
+                    .thenReturn((User) u)
+                    .onErrorResume(MongoDBReactiveUserRepository::isDuplicateKey, e -> {
+                        logger.debug(String.format("User %s has already been added", userId));
+                        return this.getUser(userId);
+                    });
+        });
+    }
+
+    /**
+     * Store an event for the next version of a user, together with the message that announces it.  The message
+     * is written to the <code>user_outbox</code> collection in the same transaction as the event, and is published
+     * later by the {@link OutboxRelay}.  The user's view is brought up to date in the same transaction.
+     *
+     * The unique index on user id and version ensures that only one event can be stored for each version, so
+     * concurrent commands on the same user cannot both succeed.  A transaction that collides with a concurrent one
+     * is run again, and finds the other's event, or signals a conflict if it still collides after
+     * <code>user.transaction.maxRetries</code> attempts
+     * @return a {@link Mono} that emits the stored event, or signals a {@link VersionConflictException} if an
+     * event has already been stored for the next version
+     */
+    @Override
+    public Mono<UserEvent> addUserEvent(String commandId, UserEventType type, User user) {
+        return Mono.defer(() -> {
+            final MongoDBUserEvent evt = MongoDBUserEvent.forUser(commandId, type, user);
+            final UserEvent userEvent = evt.asUserEvent(commandId, user, this);
+            final OutboxMessage msg;
+            try {
+                msg = this.outboxMessage(user, userEvent);
+            } catch (JsonProcessingException e) {
+                return Mono.error(e);
+            }
+
+            // Work out the user that follows the event, and whether it needs a fresh snapshot
+            final UserSnapshot snap = this.snapshotPolicy.nextSnapshot(user, evt);
+            final ReplayedUser after = user instanceof ReplayedUser ? ((ReplayedUser) user).next(evt, snap != null) : null;
+
+            Mono<Void> write = this.transactionalOutbox ?
+                    this.insertInTransaction(evt, msg, user.getUserId(), after) :
+                    insert(this.eventWriter, this.events(), evt)
+                            .then(insert(this.outboxWriter, this.outbox(), msg))
+                            .then(this.updateViewAfterEvent(user.getUserId(), after));
+
+            return write
+                    .onErrorMap(
+                            MongoDBReactiveUserRepository::isVersionConflict,
+                            e -> {
+                                this.userCache.invalidate(user.getUserId());
+                                return new VersionConflictException(String.format(
+                                        "User %s has already been updated to version %d",
+                                        user.getUserId(),
+                                        evt.getUserVersionNumber()));
+                            })
+                    .doOnSuccess(result -> {
+                        if (snap != null) {
+                            this.writeSnapshot(snap);
+                        }
+                        if (after != null) {
+                            this.userCache.put(after);
+                        } else {
+                            // Without the state it came from, the new state can't be derived - read it next time
+                            this.userCache.invalidate(user.getUserId());
+                        }
+                    })
+                    .thenReturn(userEvent);
+        });
+    }
+
+    /**
+     * Read a batch of unconfirmed users whose confirmation window has closed, from their views
+     * @param now the time at which to judge expiry
+     * @param limit the maximum number of users to read
+     * @return a {@link Flux} of the users, longest expired first
+     */
+    Flux<ReplayedUser> findExpiredUsers(Instant now, int limit) {
+        return Flux.defer(() -> Flux.from(this.views()
+                        .find(UserView.expiredFilter(now))
+                        .sort(ascending("user.expiryTime"))
+                        .limit(limit)))
+                .map(UserView::toUser);
+    }
+
+    /**
+     * An event for one user of a batch, with everything that is written alongside it
+     */
+    private static final class PendingEvent {
+        final ReplayedUser user;
+        final MongoDBUserEvent evt;
+        final OutboxMessage msg;
+        final UserSnapshot snap;
+        final ReplayedUser after;
+
+        PendingEvent(ReplayedUser user, MongoDBUserEvent evt, OutboxMessage msg, UserSnapshot snap) {
+            this.user = user;
+            this.evt = evt;
+            this.msg = msg;
+            this.snap = snap;
+            this.after = user.next(evt, snap != null);
+        }
+    }
+
+    /**
+     * Store an event of the same type for each of a batch of users, as {@link #addUserEvent} does for one, but
+     * with one bulk write to each collection.  Each event is its own command, so it gets a fresh command id.
+     *
+     * With a transactional outbox, the batch is written in one transaction.  A version conflict aborts the
+     * transaction, which is then retried without the conflicting user.  Otherwise, the events are inserted
+     * unordered, and messages and views are written for the events that were stored
+     * @param type the type of event
+     * @param users the users, as they are before the event
+     * @return a {@link Mono} that emits the users for which an event was stored, as they are after it, or signals
+     * a {@link JsonProcessingException} if a message cannot be rendered
+     */
+    Mono<List<ReplayedUser>> addUserEvents(UserEventType type, List<ReplayedUser> users) {
+        return Mono.defer(() -> {
+            List<PendingEvent> pending = new ArrayList<>();
+            for (ReplayedUser user : users) {
+                String commandId = new ObjectId().toHexString();
+                MongoDBUserEvent evt = MongoDBUserEvent.forUser(commandId, type, user);
+                try {
+                    OutboxMessage msg = this.outboxMessage(user, evt.asUserEvent(commandId, user, this));
+                    pending.add(new PendingEvent(user, evt, msg, this.snapshotPolicy.nextSnapshot(user, evt)));
+                } catch (JsonProcessingException e) {
+                    return Mono.error(e);
+                }
+            }
+
+            List<PendingEvent> conflicts = new ArrayList<>();
+            Mono<List<PendingEvent>> write = this.transactionalOutbox ?
+                    this.writeEventsInTransaction(pending, conflicts) :
+                    this.writeEvents(pending, conflicts);
+
+            return write.flatMap(stored -> Flux.fromIterable(conflicts)
+                    .concatMap(conflict -> {
+                        String userId = conflict.user.getUserId();
+                        this.userCache.invalidate(userId);
+                        if (this.transactionalOutbox || !this.viewEnabled) {
+                            return Mono.empty();
+                        }
+                        // The view the user was read from may have missed a later event - rewrite it so that the user
+                        // is not picked again for the same event
+                        return this.inflateByAggregation(userId)
+                                .doOnNext(latest -> {
+                                    this.snapshotPolicy.recordReplay(latest);
+                                    this.backfillView(latest);
+                                });
+                    })
+                    .then(Mono.fromSupplier(() -> {
+                        List<ReplayedUser> after = new ArrayList<>();
+                        for (PendingEvent p : stored) {
+                            if (p.snap != null) {
+                                this.writeSnapshot(p.snap);
+                            }
+                            this.userCache.put(p.after);
+                            after.add(p.after);
+                        }
+                        return after;
+                    })));
+        });
+    }
+
+    /**
+     * Write a batch of events, their messages and views in one transaction, leaving out any event that conflicts
+     * @return a {@link Mono} that emits the events that were stored
+     */
+    private Mono<List<PendingEvent>> writeEventsInTransaction(List<PendingEvent> pending, List<PendingEvent> conflicts) {
+        if (pending.isEmpty()) {
+            return Mono.just(pending);
+        }
+
+        return this.inTransaction(session -> Mono.from(this.events().insertMany(session, eventsOf(pending)))
+                        .then(Mono.from(this.outbox().insertMany(session, messagesOf(pending))))
+                        .then(this.viewEnabled ? Mono.from(this.views().bulkWrite(session, viewsOf(pending))).then() : Mono.empty()))
+                .thenReturn(pending)
+                .onErrorResume(MongoBulkWriteException.class, e ->
+                        this.writeEventsInTransaction(this.removeConflicts(pending, e, conflicts), conflicts));
+    }
+
+    /**
+     * Insert a batch of events unordered, then write the messages and views of those that did not conflict
+     * @return a {@link Mono} that emits the events that were stored
+     */
+    private Mono<List<PendingEvent>> writeEvents(List<PendingEvent> pending, List<PendingEvent> conflicts) {
+        return Mono.from(this.events().insertMany(eventsOf(pending), new InsertManyOptions().ordered(false)))
+                .thenReturn(pending)
+                .onErrorResume(MongoBulkWriteException.class, e ->
+                        Mono.fromCallable(() -> this.removeConflicts(pending, e, conflicts)))
+                .flatMap(stored -> stored.isEmpty() ? Mono.just(stored) :
+                        Mono.from(this.outbox().insertMany(messagesOf(stored)))
+                                .then(this.viewEnabled ? this.updateViewsAfterEvents(stored) : Mono.empty())
+                                .thenReturn(stored));
+    }
+
+    /**
+     * Bring the views of a batch of users up to date after events stored outside a transaction.  A duplicate key
+     * means a later view was already written, and any other failure leaves a view behind the events, which
+     * readers detect
+     */
+    private Mono<Void> updateViewsAfterEvents(List<PendingEvent> pending) {
+        return Mono.from(this.views().bulkWrite(viewsOf(pending), new BulkWriteOptions().ordered(false)))
+                .then()
+                .onErrorResume(e -> {
+                    if (e instanceof MongoBulkWriteException) {
+                        for (BulkWriteError error : ((MongoBulkWriteException) e).getWriteErrors()) {
+                            if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                                logger.warn(String.format("Failed to update view of user %s: %s",
+                                        pending.get(error.getIndex()).user.getUserId(), error.getMessage()));
+                            }
+                        }
+                    } else {
+                        logger.warn(String.format("Failed to update views of %d users: %s", pending.size(), e.getMessage()));
+                    }
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Separate the events that failed a bulk write because another event was stored for the same version first
+     * @param pending the events in the bulk write
+     * @param e the failure, whose errors are indexed by position in <code>pending</code>
+     * @param conflicts the list to which the conflicting events are added
+     * @return the events that did not conflict
+     * @throws MongoBulkWriteException if the write failed for any other reason
+     */
+    private List<PendingEvent> removeConflicts(List<PendingEvent> pending, MongoBulkWriteException e,
+                                               List<PendingEvent> conflicts)
+    {
+        Set<Integer> failed = new HashSet<>();
+        for (BulkWriteError error : e.getWriteErrors()) {
+            if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+            failed.add(error.getIndex());
+        }
+        if (failed.isEmpty()) {
+            throw e;
+        }
+
+        List<PendingEvent> remaining = new ArrayList<>();
+        for (int i = 0; i < pending.size(); i++) {
+            if (failed.contains(i)) {
+                logger.debug(String.format("User %s has already been updated to version %d",
+                        pending.get(i).user.getUserId(), pending.get(i).evt.getUserVersionNumber()));
+                conflicts.add(pending.get(i));
+            } else {
+                remaining.add(pending.get(i));
+            }
+        }
+        return remaining;
+    }
+
+    private static List<MongoDBUserEvent> eventsOf(List<PendingEvent> pending) {
+        List<MongoDBUserEvent> events = new ArrayList<>();
+        for (PendingEvent p : pending) {
+            events.add(p.evt);
+        }
+        return events;
+    }
+
+    private static List<OutboxMessage> messagesOf(List<PendingEvent> pending) {
+        List<OutboxMessage> messages = new ArrayList<>();
+        for (PendingEvent p : pending) {
+            messages.add(p.msg);
+        }
+        return messages;
+    }
+
+    private static List<WriteModel<UserView>> viewsOf(List<PendingEvent> pending) {
+        List<WriteModel<UserView>> writes = new ArrayList<>();
+        for (PendingEvent p : pending) {
+            UserView view = UserView.of(p.after);
+            writes.add(new ReplaceOneModel<>(view.replaceFilter(), view, UserView.UPSERT));
+        }
+        return writes;
+    }
+
+    private MongoCollection<MongoDBUserEvent> events() {
+        return db.getCollection("user_events", MongoDBUserEvent.class);
+    }
+
+    private MongoCollection<MongoDBUserEvent> archivedEvents() {
+        return db.getCollection(SnapshotCompactor.ARCHIVED_EVENTS, MongoDBUserEvent.class);
+    }
+
+    private MongoCollection<OutboxMessage> outbox() {
+        return db.getCollection("user_outbox", OutboxMessage.class);
+    }
+
+    private MongoCollection<UserView> views() {
+        return db.getCollection("user_view", UserView.class);
+    }
+
+    /**
+     * Bring a view up to date after an event stored outside a transaction.  A failure leaves the view behind
+     * the events, which readers detect
+     */
+    private Mono<Void> updateViewAfterEvent(String userId, ReplayedUser after) {
+        if (!this.viewEnabled) {
+            return Mono.empty();
+        }
+        return this.replaceView(null, userId, after)
+                .onErrorResume(e -> {
+                    logger.warn(String.format("Failed to update view of user %s: %s", userId, e.getMessage()));
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Insert an event and its outbox message, and update the user's view, in a single transaction
+     * @return a {@link Mono} that completes when the transaction has been committed
+     */
+    private Mono<Void> insertInTransaction(MongoDBUserEvent evt, OutboxMessage msg, String userId, ReplayedUser after) {
+        return this.inTransaction(session -> Mono.from(this.events().insertOne(session, evt))
+                .then(Mono.from(this.outbox().insertOne(session, msg)))
+                .then(this.viewEnabled ? this.replaceView(session, userId, after) : Mono.empty()));
+    }
+
+    /**
+     * Run writes in a transaction of their own, which is aborted if they fail.  As with the synchronous driver's
+     * <code>withTransaction</code>, the transaction is run again after an error labelled as transient - such as a
+     * write conflict with a concurrent transaction - and a commit whose outcome is unknown is retried, each up to
+     * <code>user.transaction.maxRetries</code> times
+     * @param writes makes the writes in the session it is given
+     * @return a {@link Mono} that completes when the transaction has been committed
+     */
+    private Mono<Void> inTransaction(Function<ClientSession, Mono<Void>> writes) {
+        return Mono.usingWhen(
+                this.mongoClient.startSession(),
+                session -> Mono.defer(() -> {
+                            session.startTransaction();
+                            return writes.apply(session).then(this.commit(session));
+                        })
+                        .onErrorResume(e -> this.abort(session).then(Mono.error(e)))
+                        .retryWhen(this.retryOn(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)),
+                session -> Mono.fromRunnable(session::close),
+                (session, e) -> this.abortAndClose(session),
+                this::abortAndClose);
+    }
+
+    private Mono<Void> commit(ClientSession session) {
+        return Mono.defer(() -> Mono.from(session.commitTransaction()))
+                .retryWhen(this.retryOn(MongoException.UNKNOWN_TRANSACTION_COMMIT_RESULT_LABEL));
+    }
+
+    /**
+     * @param label an error label
+     * @return a spec that resubscribes after an error with the label, and passes on the last error when the
+     * retries run out
+     */
+    private Retry retryOn(String label) {
+        return Retry.max(this.maxTransactionRetries)
+                .filter(e -> e instanceof MongoException && ((MongoException) e).hasErrorLabel(label))
+                .doBeforeRetry(signal -> logger.debug(String.format("Retrying transaction after %s: %s",
+                        label, signal.failure().getMessage())))
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private Mono<Void> abort(ClientSession session) {
+        return Mono.defer(() -> session.hasActiveTransaction() ? Mono.from(session.abortTransaction()) : Mono.<Void>empty())
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    private Mono<Void> abortAndClose(ClientSession session) {
+        return this.abort(session).doFinally(signal -> session.close());
+    }
+
+    /**
+     * Write a fresh snapshot in the background.  The caller does not wait for the snapshot to be stored
+     * @param snap the snapshot produced by the {@link SnapshotPolicy}
+     */
+    private void writeSnapshot(UserSnapshot snap) {
+        Mono.from(db.getCollection("user_snapshots", UserSnapshot.class).insertOne(snap))
+                .subscribe(
+                        result -> {
+                            this.snapshotPolicy.snapshotWritten();
+                            logger.debug(String.format("Wrote snapshot of user %s at version %d", snap.getUserId(), snap.getToVersion()));
+                        },
+                        e -> {
+                            this.snapshotPolicy.snapshotFailed();
+                            logger.warn(String.format("Failed to write snapshot of user %s: %s", snap.getUserId(), e.getMessage()));
+                        });
+    }
+
+    @Override
+    public Mono<PatchUserCommand> addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd) {
+        return Mono.defer(() -> {
+            MongoCollection<MongoDBUserCommand> commands = db.getCollection("user_commands", MongoDBUserCommand.class);
+            MongoDBPatchUserCommand dbCmd = MongoDBPatchUserCommand.getMongoDBPatchUserCommand(cmd);
+
+            return insert(this.commandWriter, commands, dbCmd).thenReturn(cmd);
+        });
+    }
+
+    /**
+     * @param user the user affected by an event
+     * @param userEvent the event
+     * @return the outbox message that announces the event
+     * @throws JsonProcessingException if the message cannot be rendered
+     */
+    private OutboxMessage outboxMessage(User user, UserEvent userEvent) throws JsonProcessingException {
+        return new OutboxMessage(
+                new ObjectId(user.getUserId()),
+                this.exchangeName,
+                userEvent.getRoutingKey(),
+                this.messageWriter.write(user, userEvent));
+    }
+
+    /**
+     * @return true if a write failed because a document with the same unique key - the same version of a user, or
+     * the same identity - is already stored
+     */
+    private static boolean isDuplicateKey(Throwable e) {
+        return e instanceof MongoWriteException &&
+                ((MongoWriteException) e).getError().getCategory() == ErrorCategory.DUPLICATE_KEY;
+    }
+
+    /**
+     * @return true if an event could not be stored because another was stored for the same version, or because its
+     * transaction still collided with a concurrent one after it was retried
+     */
+    private static boolean isVersionConflict(Throwable e) {
+        return isDuplicateKey(e) || (e instanceof MongoException && (
+                ((MongoException) e).getCode() == WRITE_CONFLICT ||
+                ((MongoException) e).hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)));
+    }
+
+    /**
+     * Insert a document with the next group commit, or on its own if inserts are not grouped
+     * @return a {@link Mono} that completes when the document has been inserted
+     */
+    private static <T> Mono<Void> insert(GroupCommitWriter<T> writer, MongoCollection<T> collection, T doc) {
+        return writer == null ?
+                Mono.from(collection.insertOne(doc)).then() :
+                Mono.defer(() -> Mono.fromFuture(writer.insert(doc)));
+    }
+}
@@ -5,6 +5,10 @@ import uk.co.encity.user.commands.RejectUserCommand;
 
 @BsonDiscriminator
 public class MongoDBRejectUserCommand extends MongoDBPatchUserCommand {
+    MongoDBRejectUserCommand() {
+        super();
+    }
+
     public MongoDBRejectUserCommand(RejectUserCommand cmd) {
         super(cmd);
     }
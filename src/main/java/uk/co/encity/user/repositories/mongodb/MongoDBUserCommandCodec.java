@@ -0,0 +1,94 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonReader;
+import org.bson.BsonReaderMark;
+import org.bson.BsonSerializationException;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import uk.co.encity.user.commands.UserCommand;
+
+import static uk.co.encity.user.repositories.mongodb.CodecSupport.*;
+
+/**
+ * A hand-written {@link Codec} for the {@link MongoDBUserCommand} hierarchy.  Like the POJO codec, it records the
+ * class of each command in the <code>_t</code> field, so documents written by either codec can be read by the other
+ */
+final class MongoDBUserCommandCodec implements Codec<MongoDBUserCommand> {
+
+    private static final String CONFIRM = MongoDBConfirmUserCommand.class.getName();
+    private static final String REJECT = MongoDBRejectUserCommand.class.getName();
+
+    @Override
+    public void encode(BsonWriter writer, MongoDBUserCommand cmd, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writer.writeString(DISCRIMINATOR_KEY, cmd.getClass().getName());
+        writeObjectId(writer, "_id", cmd.getCommandId());
+        writeInstant(writer, "timeStamp", cmd.getTimeStamp());
+        writeEnum(writer, "commandType", cmd.getCommandType());
+        if (cmd instanceof MongoDBPatchUserCommand) {
+            writeObjectId(writer, "userId", ((MongoDBPatchUserCommand) cmd).getUserId());
+        }
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public MongoDBUserCommand decode(BsonReader reader, DecoderContext decoderContext) {
+        BsonReaderMark mark = reader.getMark();
+        String discriminator = this.readDiscriminator(reader);
+        mark.reset();
+
+        MongoDBPatchUserCommand cmd;
+        if (CONFIRM.equals(discriminator)) {
+            cmd = new MongoDBConfirmUserCommand();
+        } else if (REJECT.equals(discriminator)) {
+            cmd = new MongoDBRejectUserCommand();
+        } else {
+            throw new BsonSerializationException("Unknown user command class: " + discriminator);
+        }
+
+        // Fields that are absent keep the values given to them by the constructor, as with the POJO codec
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "_id": cmd.setCommandId(reader.readObjectId()); break;
+                case "timeStamp": cmd.setTimeStamp(readInstant(reader)); break;
+                case "commandType": cmd.setCommandType(UserCommand.UserTenantCommandType.valueOf(reader.readString())); break;
+                case "userId": cmd.setUserId(reader.readObjectId()); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return cmd;
+    }
+
+    /**
+     * Scan a document for its discriminator
+     * @param reader a reader positioned at the start of the document
+     * @return the class name in the discriminator, or null if there is none
+     */
+    private String readDiscriminator(BsonReader reader) {
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            if (reader.readName().equals(DISCRIMINATOR_KEY)) {
+                return reader.readString();
+            }
+            reader.skipValue();
+        }
+        return null;
+    }
+
+    @Override
+    public Class<MongoDBUserCommand> getEncoderClass() {
+        return MongoDBUserCommand.class;
+    }
+}
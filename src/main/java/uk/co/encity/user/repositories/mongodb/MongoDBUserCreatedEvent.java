@@ -6,7 +6,7 @@ import org.bson.codecs.pojo.annotations.BsonDiscriminator;
 import uk.co.encity.user.entity.User;
 import uk.co.encity.user.events.generated.UserCreatedEvent;
 import uk.co.encity.user.events.generated.UserEvent;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.time.Instant;
 
@@ -21,14 +21,13 @@ public class MongoDBUserCreatedEvent extends MongoDBUserEvent {
     }
 
     @Override
-    protected UserSnapshot applyToUserSnapshot(UserSnapshot snap) {
-        // Nothing to do - the snap should be up to date
-        snap.setExpiryTime(this.expiryTime);
-        return snap;
+    protected Instant nextExpiryTime(Instant current) {
+        // Nothing else to do - the snapshot should be up to date
+        return this.expiryTime;
     }
 
     @Override
-    protected UserEvent asUserEvent(String commandId, User user, UserRepository repo) {
+    protected UserEvent asUserEvent(String commandId, User user, IdentityProvider repo) {
         return new UserCreatedEvent(commandId, user, repo, this.expiryTime);
     }
 }
@@ -6,9 +6,10 @@ import org.bson.codecs.pojo.annotations.BsonDiscriminator;
 import org.bson.codecs.pojo.annotations.BsonProperty;
 import org.bson.types.ObjectId;
 import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserTenantStatus;
 import uk.co.encity.user.events.generated.UserEvent;
 import uk.co.encity.user.events.generated.UserEventType;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 import java.time.Instant;
 
@@ -31,19 +32,81 @@ public abstract class MongoDBUserEvent {
     }
 
     /**
-     * Apply this event to a given snapshot, producing a new snapshot
-     * @param snap
-     * @return
+     * Apply this event to the state of a user
+     * @param state the state before the event, which is not changed
+     * @return the state after the event
      */
-    protected abstract UserSnapshot applyToUserSnapshot(final UserSnapshot snap);
+    protected final UserState updateUser(final UserState state) {
+        return state.next(
+                this.userVersionNumber,
+                this.eventTime,
+                this.nextTenantStatus(state.getTenantStatus()),
+                this.nextExpiryTime(state.getExpiryTime()));
+    }
 
-    protected final UserSnapshot updateUser(final UserSnapshot userSnap) {
-        // Update the core fields
-        userSnap.setLastUpdate(this.eventTime);
-        userSnap.setToVersion(this.userVersionNumber);
+    /**
+     * @param current the tenant status before the event
+     * @return the tenant status after the event - by default, it is unchanged
+     */
+    protected UserTenantStatus nextTenantStatus(final UserTenantStatus current) {
+        return current;
+    }
 
-        return this.applyToUserSnapshot(userSnap);
+    /**
+     * @param current the expiry time before the event
+     * @return the expiry time after the event - by default, it is unchanged
+     */
+    protected Instant nextExpiryTime(final Instant current) {
+        return current;
     }
 
-    protected abstract UserEvent asUserEvent(String commandId, User user, UserRepository repo);
+    protected abstract UserEvent asUserEvent(String commandId, User user, IdentityProvider repo);
+
+    /**
+     * Create the database representation of an event that has happened to a user
+     * @param commandId the identity of the command that caused the event
+     * @param type the type of event
+     * @param user the user, as it was before the event
+     * @return a {@link MongoDBUserEvent} with the next version number of the user
+     */
+    static MongoDBUserEvent forUser(String commandId, UserEventType type, User user) {
+        Instant now = Instant.now();
+        switch (type) {
+            case USER_CREATED:
+                return MongoDBUserCreatedEvent.builder()
+                        .userId(new ObjectId(user.getUserId()))
+                        .eventTime(now)
+                        .userVersionNumber(1)
+                        .userEventType(type)
+                        .expiryTime(user.getExpiryTime())
+                        .commandId(new ObjectId(commandId))
+                        .build();
+            case USER_CONFIRMED:
+                return MongoDBUserConfirmedEvent.builder()
+                        .userId(new ObjectId(user.getUserId()))
+                        .eventTime(now)
+                        .userVersionNumber(user.getVersion() + 1)
+                        .userEventType(type)
+                        .commandId(new ObjectId(commandId))
+                        .build();
+            case USER_REJECTED:
+                return MongoDBUserRejectedEvent.builder()
+                        .userId(new ObjectId(user.getUserId()))
+                        .eventTime(now)
+                        .userVersionNumber(user.getVersion() + 1)
+                        .userEventType(type)
+                        .commandId(new ObjectId(commandId))
+                        .build();
+            case USER_EXPIRED:
+                return MongoDBUserExpiredEvent.builder()
+                        .userId(new ObjectId(user.getUserId()))
+                        .eventTime(now)
+                        .userVersionNumber(user.getVersion() + 1)
+                        .userEventType(type)
+                        .commandId(new ObjectId(commandId))
+                        .build();
+            default:
+                throw new IllegalStateException("Unexpected value: " + type);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonReader;
+import org.bson.BsonSerializationException;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+
+import static uk.co.encity.user.repositories.mongodb.CodecSupport.*;
+
+/**
+ * A hand-written {@link Codec} for the {@link MongoDBUserEvent} hierarchy.  Like the POJO codec, it records the
+ * class of each event in the <code>_t</code> field, so documents written by either codec can be read by the other
+ */
+final class MongoDBUserEventCodec implements Codec<MongoDBUserEvent> {
+
+    private static final String CREATED = MongoDBUserCreatedEvent.class.getName();
+    private static final String CONFIRMED = MongoDBUserConfirmedEvent.class.getName();
+    private static final String REJECTED = MongoDBUserRejectedEvent.class.getName();
+    private static final String EXPIRED = MongoDBUserExpiredEvent.class.getName();
+
+    @Override
+    public void encode(BsonWriter writer, MongoDBUserEvent evt, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writer.writeString(DISCRIMINATOR_KEY, evt.getClass().getName());
+        writeObjectId(writer, "_id", evt.getEventId());
+        writeObjectId(writer, "userId", evt.getUserId());
+        writeObjectId(writer, "commandId", evt.getCommandId());
+        writeInstant(writer, "eventTime", evt.getEventTime());
+        writer.writeInt32("userVersionNumber", evt.getUserVersionNumber());
+        writeEnum(writer, "userEventType", evt.getUserEventType());
+        if (evt instanceof MongoDBUserCreatedEvent) {
+            writeInstant(writer, "expiryTime", ((MongoDBUserCreatedEvent) evt).getExpiryTime());
+        }
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public MongoDBUserEvent decode(BsonReader reader, DecoderContext decoderContext) {
+        String discriminator = null;
+        ObjectId eventId = null;
+        ObjectId userId = null;
+        ObjectId commandId = null;
+        Instant eventTime = null;
+        int userVersionNumber = 0;
+        UserEventType userEventType = null;
+        Instant expiryTime = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case DISCRIMINATOR_KEY: discriminator = reader.readString(); break;
+                case "_id": eventId = reader.readObjectId(); break;
+                case "userId": userId = reader.readObjectId(); break;
+                case "commandId": commandId = reader.readObjectId(); break;
+                case "eventTime": eventTime = readInstant(reader); break;
+                case "userVersionNumber": userVersionNumber = reader.readInt32(); break;
+                case "userEventType": userEventType = UserEventType.valueOf(reader.readString()); break;
+                case "expiryTime": expiryTime = readInstant(reader); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        MongoDBUserEvent.MongoDBUserEventBuilder<?, ?> builder;
+        if (CREATED.equals(discriminator)) {
+            builder = MongoDBUserCreatedEvent.builder().expiryTime(expiryTime);
+        } else if (CONFIRMED.equals(discriminator)) {
+            builder = MongoDBUserConfirmedEvent.builder();
+        } else if (REJECTED.equals(discriminator)) {
+            builder = MongoDBUserRejectedEvent.builder();
+        } else if (EXPIRED.equals(discriminator)) {
+            builder = MongoDBUserExpiredEvent.builder();
+        } else {
+            throw new BsonSerializationException("Unknown user event class: " + discriminator);
+        }
+
+        return builder
+                .eventId(eventId)
+                .userId(userId)
+                .commandId(commandId)
+                .eventTime(eventTime)
+                .userVersionNumber(userVersionNumber)
+                .userEventType(userEventType)
+                .build();
+    }
+
+    @Override
+    public Class<MongoDBUserEvent> getEncoderClass() {
+        return MongoDBUserEvent.class;
+    }
+}
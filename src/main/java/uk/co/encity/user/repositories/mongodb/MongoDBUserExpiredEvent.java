@@ -0,0 +1,30 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import lombok.Getter;
+import lombok.experimental.SuperBuilder;
+import org.bson.codecs.pojo.annotations.BsonDiscriminator;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEvent;
+import uk.co.encity.user.events.generated.UserExpiredEvent;
+import uk.co.encity.user.service.IdentityProvider;
+
+@SuperBuilder
+@Getter
+@BsonDiscriminator
+public class MongoDBUserExpiredEvent extends MongoDBUserEvent {
+
+    public MongoDBUserExpiredEvent() {
+        super();
+    }
+
+    @Override
+    protected UserTenantStatus nextTenantStatus(UserTenantStatus current) {
+        return UserTenantStatus.EXPIRED;
+    }
+
+    @Override
+    protected UserEvent asUserEvent(String commandId, User user, IdentityProvider repo) {
+        return new UserExpiredEvent(commandId, user, repo);
+    }
+}
@@ -7,7 +7,7 @@ import uk.co.encity.user.entity.User;
 import uk.co.encity.user.entity.UserTenantStatus;
 import uk.co.encity.user.events.generated.UserEvent;
 import uk.co.encity.user.events.generated.UserRejectedEvent;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.IdentityProvider;
 
 @SuperBuilder
 @Getter
@@ -19,13 +19,12 @@ public class MongoDBUserRejectedEvent extends MongoDBUserEvent {
     }
 
     @Override
-    protected UserSnapshot applyToUserSnapshot(UserSnapshot snap) {
-        snap.setTenantStatus(UserTenantStatus.REJECTED);
-        return snap;
+    protected UserTenantStatus nextTenantStatus(UserTenantStatus current) {
+        return UserTenantStatus.REJECTED;
     }
 
     @Override
-    protected UserEvent asUserEvent(String commandId, User user, UserRepository repo) {
+    protected UserEvent asUserEvent(String commandId, User user, IdentityProvider repo) {
         return new UserRejectedEvent(commandId, user, repo);
     }
 }
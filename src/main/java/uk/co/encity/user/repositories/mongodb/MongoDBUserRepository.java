@@ -1,250 +1,144 @@
 package uk.co.encity.user.repositories.mongodb;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.ConnectionString;
-import com.mongodb.MongoClientSettings;
-import com.mongodb.client.*;
-import org.bson.UuidRepresentation;
-import org.bson.codecs.UuidCodec;
-import org.bson.codecs.configuration.CodecRegistries;
-import org.bson.codecs.configuration.CodecRegistry;
-import org.bson.codecs.pojo.PojoCodecProvider;
-import org.bson.types.ObjectId;
+import com.mongodb.reactivestreams.client.MongoDatabase;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Component;
-import reactor.util.Logger;
-import reactor.util.Loggers;
+import reactor.core.Exceptions;
+import reactor.core.publisher.Mono;
 import uk.co.encity.user.commands.PatchUserCommand;
 import uk.co.encity.user.commands.UserCommand;
 import uk.co.encity.user.components.EmailRecipient;
 import uk.co.encity.user.entity.User;
-import uk.co.encity.user.entity.UserProviderStatus;
-import uk.co.encity.user.entity.UserTenantStatus;
 import uk.co.encity.user.events.generated.UserEvent;
 import uk.co.encity.user.events.generated.UserEventType;
-import uk.co.encity.user.service.IamProvider;
 import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.VersionConflictException;
 
 import java.io.IOException;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
-
-/* MongoDB Reactive - coming soon
-import com.mongodb.reactivestreams.client.MongoClient;
-import com.mongodb.reactivestreams.client.MongoClients;
-import com.mongodb.reactivestreams.client.MongoCollection;
-import com.mongodb.reactivestreams.client.MongoDatabase;
-import com.mongodb.reactivestreams.client.Success;
-*/
-
-import static com.mongodb.client.model.Filters.*;
-import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
-import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
 
+/**
+ * The {@link UserRepository} for the message handlers and the maintenance components, which run on threads of their
+ * own and can wait for the database.  Each call waits for the same call on the {@link MongoDBReactiveUserRepository},
+ * so both share one client, one cache and one implementation of the event store.  It must not be called on an event
+ * loop thread
+ */
 @Component
+@Profile("!memory & !file")
 public class MongoDBUserRepository implements UserRepository {
 
-    /**
-     * The external Identity and Access Management Provider
-     */
-    private final IamProvider iamProvider;
-
-    /**
-     * The {@link Logger} for this class
-     */
-    private final Logger logger = Loggers.getLogger(getClass());
+    private final MongoDBReactiveUserRepository repo;
 
-    private final MongoClient mongoClient;
-    private final MongoDatabase db;
-    private final CodecRegistry codecRegistry;
-
-    // TODO: Does this belong in the repo - maybe should move it outside?
-    @Value("${user.expiryHours}")
-    int expiryHours;
+    public MongoDBUserRepository(@Autowired MongoDBReactiveUserRepository repo) {
+        this.repo = repo;
+    }
 
     @Override
-    public String getIdentity() { return new ObjectId().toHexString(); }
-
-    public MongoDBUserRepository(
-            @Value("${mongodb.uri}") String mongodbURI,
-            @Value("${user.db}") String dbName,
-            @Autowired IamProvider iamProvider,
-            @Autowired RepositoryConfig repoConfig)
-    {
-        this.iamProvider = iamProvider;
-
-        ConnectionString connectionString = new ConnectionString(mongodbURI);
-
-        CodecRegistry pojoCodecRegistry = fromProviders(PojoCodecProvider.builder().automatic(true).build());
+    public String getIdentity() { return this.repo.getIdentity(); }
 
-        this.codecRegistry = fromRegistries(
-                CodecRegistries.fromCodecs(new UuidCodec(UuidRepresentation.STANDARD)),
-                MongoClientSettings.getDefaultCodecRegistry(),
-                pojoCodecRegistry);
-
-        MongoClientSettings clientSettings = MongoClientSettings.builder()
-                .applyConnectionString(connectionString)
-                .codecRegistry(this.codecRegistry)
-                .build();
+    /**
+     * @return the database that holds the user collections, for use by maintenance components in this package
+     */
+    MongoDatabase getDatabase() { return this.repo.getDatabase(); }
 
-        this.mongoClient = MongoClients.create(clientSettings);
-        this.db = this.mongoClient.getDatabase(dbName);
+    @Override
+    public User getUser(String userId) throws IOException {
+        return await(this.repo.getUser(userId));
     }
 
-    private UserSnapshot getLatestSnapshot(String id) {
-        ObjectId targetId = new ObjectId(id);
-        MongoCollection<UserSnapshot> snapshots = db.getCollection("user_snapshots").withDocumentClass(UserSnapshot.class);
-        UserSnapshot snap = snapshots.find(eq("userIdentity", targetId)).sort(new BasicDBObject("lastUpdate", -1)).first();
-
-        return snap;
+    @Override
+    public User getUser(String userId, int asOfVersion) throws IOException {
+        return await(this.repo.getUser(userId, asOfVersion));
     }
 
-    private User inflate(final UserSnapshot snap) throws IOException {
-
-        UserSnapshot snapCopy = null;
-
-        if (snap != null) {
-            snapCopy =  new UserSnapshot(snap);
-
-            // Get all events since for the user, in chronological order
-            List<MongoDBUserEvent> events = getEventRange(snap.getUserId(), snap.getToVersion());
-            for (MongoDBUserEvent e : events) {
-                snapCopy = e.updateUser(snapCopy);
-            }
-        }
-        return snapCopy.asUser();
+    @Override
+    public User getUser(String userId, Instant asOfInstant) throws IOException {
+        return await(this.repo.getUser(userId, asOfInstant));
     }
 
-    private List<MongoDBUserEvent> getEventRange(String userId, int fromVersion) {
-        List<MongoDBUserEvent> evtList = new ArrayList<>();
-
-        MongoCollection<MongoDBUserEvent> events = db.getCollection("user_events", MongoDBUserEvent.class);
-
-        // Define a query that finds the right versions and sorts them
-        ObjectId uId = new ObjectId(userId);
-        FindIterable<MongoDBUserEvent> evts = events.find(and(eq("userId", uId), gt("userVersionNumber", fromVersion)));
-
-        for (MongoDBUserEvent e : evts) {
-            evtList.add(e);
-        }
-        return evtList;
+    @Override
+    public List<User> getUsers(Collection<String> userIds) throws IOException {
+        return await(this.repo.getUsers(userIds).collectList());
     }
 
     @Override
-    public User getUser(String userId) throws IOException {
-        UserSnapshot latestSnap = this.getLatestSnapshot(userId);
-        return this.inflate(latestSnap);
+    public List<User> findByEmail(String domain, String emailAddress) throws IOException {
+        return await(this.repo.findByEmail(domain, emailAddress).collectList());
     }
 
     @Override
     public User confirmUser(User user, String initialPassword) throws IOException {
-        // Attempt to create the external representation of the User using the IAMProvider
-        iamProvider.createUser(user, initialPassword);
-        return user;
+        return await(this.repo.confirmUser(user, initialPassword));
     }
 
     @Override
-    public User addUser(String tenancyId, String domain, EmailRecipient user, boolean isAdmin) throws IOException {
-        // Create a snapshot
-        Instant now = Instant.now();
-        UserSnapshot snap = new UserSnapshot();
-        snap.setUserIdentity(new ObjectId());
-        snap.setTenancyIdentity(new ObjectId(tenancyId));
-        snap.setFirstName(user.getFirstName());
-        snap.setLastName(user.getLastName());
-        snap.setEmailAddress(user.getEmailAddress());
-        snap.setAdminUser(isAdmin);
-        snap.setTenantStatus(UserTenantStatus.UNCONFIRMED);
-        snap.setProviderStatus(UserProviderStatus.ACTIVE);
-        snap.setFromVersion(1);
-        snap.setToVersion(1);
-        snap.setLastUpdate(now);
-        snap.setDomain(domain);
-        snap.setConfirmUUID(UUID.randomUUID());
-        snap.setExpiryTime(now.plus(this.expiryHours, ChronoUnit.HOURS));
-        snap.setUserCreationTime(now);
-
-        // Create a User from the snapshot
-        User u = new User() {
-            public String getUserId() { return snap.getUserId(); }
-            public String getTenancyId() { return snap.getTenancyId(); }
-            public String getFirstName() { return snap.getFirstName(); }
-            public String getLastName() { return snap.getLastName(); }
-            public String getEmailAddress() { return snap.getEmailAddress(); }
-            public boolean isAdminUser() { return snap.isAdminUser(); }
-            public int getVersion() { return snap.getToVersion(); }
-            public Instant getLastUpdate() { return snap.getLastUpdate(); }
-            public UserTenantStatus getTenantStatus() { return snap.getTenantStatus(); }
-            public UserProviderStatus getProviderStatus() { return snap.getProviderStatus(); }
-            public String getDomain() { return snap.getDomain(); }
-            public UUID getConfirmUUID() { return snap.getConfirmUUID(); }
-            public Instant getCreationTime() { return now; }
-            public Instant getExpiryTime() { return snap.getExpiryTime(); }
-        };
-
-        // Store the snapshot
-        MongoCollection<UserSnapshot> userSnapshots = db.getCollection("user_snapshots", UserSnapshot.class);
-        userSnapshots.insertOne(snap);
-
-        // Return the user
-        return u;
+    public User addUser(String userId, String tenancyId, String domain, EmailRecipient user, boolean isAdmin) throws IOException {
+        return await(this.repo.addUser(userId, tenancyId, domain, user, isAdmin));
     }
 
     @Override
-    public UserEvent addUserEvent(String commandId, UserEventType type, User user) {
-        final MongoDBUserEvent evt;
-        Instant now = Instant.now();
-        switch (type) {
-            case USER_CREATED:
-                evt = MongoDBUserCreatedEvent.builder()
-                        .userId(new ObjectId(user.getUserId()))
-                        .eventTime(now)
-                        .userVersionNumber(1)
-                        .userEventType(type)
-                        .expiryTime(user.getExpiryTime())
-                        .commandId(new ObjectId(commandId))
-                        .build();
-                break;
-            case USER_CONFIRMED:
-                evt = MongoDBUserConfirmedEvent.builder()
-                        .userId(new ObjectId(user.getUserId()))
-                        .eventTime(now)
-                        .userVersionNumber(user.getVersion() + 1)
-                        .userEventType(type)
-                        .commandId(new ObjectId(commandId))
-                        .build();
-                break;
-            case USER_REJECTED:
-                evt = MongoDBUserRejectedEvent.builder()
-                        .userId(new ObjectId(user.getUserId()))
-                        .eventTime(now)
-                        .userVersionNumber(user.getVersion() + 1)
-                        .userEventType(type)
-                        .commandId(new ObjectId(commandId))
-                        .build();
-                break;
-            default:
-                throw new IllegalStateException("Unexpected value: " + type);
-        }
+    public PatchUserCommand addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd) {
+        return this.repo.addPatchUserCommand(type, cmd).block();
+    }
 
-        MongoCollection<MongoDBUserEvent> events = db.getCollection("user_events", MongoDBUserEvent.class);
-        events.insertOne(evt);
+    /**
+     * @throws VersionConflictException if an event has already been stored for the next version
+     * @throws IOException if the message cannot be rendered
+     */
+    @Override
+    public UserEvent addUserEvent(String commandId, UserEventType type, User user) throws VersionConflictException, IOException {
+        try {
+            return this.repo.addUserEvent(commandId, type, user).block();
+        } catch (RuntimeException e) {
+            Throwable cause = Exceptions.unwrap(e);
+            if (cause instanceof VersionConflictException) {
+                throw (VersionConflictException) cause;
+            }
+            throw rethrow(e);
+        }
+    }
 
-        return evt.asUserEvent(commandId, user, this);
+    /**
+     * @see MongoDBReactiveUserRepository#findExpiredUsers
+     */
+    List<ReplayedUser> findExpiredUsers(Instant now, int limit) {
+        return this.repo.findExpiredUsers(now, limit).collectList().block();
     }
 
-    @Override
-    public PatchUserCommand addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd) {
-        MongoCollection<MongoDBUserCommand> commands = db.getCollection("user_commands", MongoDBUserCommand.class);
+    /**
+     * @see MongoDBReactiveUserRepository#addUserEvents
+     * @throws IOException if a message cannot be rendered
+     */
+    List<ReplayedUser> addUserEvents(UserEventType type, List<ReplayedUser> users) throws IOException {
+        return await(this.repo.addUserEvents(type, users));
+    }
 
-        MongoDBPatchUserCommand dbCmd = MongoDBPatchUserCommand.getMongoDBPatchUserCommand(cmd);
-        commands.insertOne(dbCmd);
+    /**
+     * Wait for a result, rethrowing the exception that failed it
+     * @return the result, or null if there is none
+     * @throws IOException if the result could not be produced because of one
+     */
+    private static <T> T await(Mono<T> result) throws IOException {
+        try {
+            return result.block();
+        } catch (RuntimeException e) {
+            throw rethrow(e);
+        }
+    }
 
-        return cmd;
+    /**
+     * @param e an exception thrown by {@link Mono#block()}, which wraps any checked exception
+     * @return the exception, for the caller to throw, unless it wraps an {@link IOException}
+     * @throws IOException if it wraps one
+     */
+    private static RuntimeException rethrow(RuntimeException e) throws IOException {
+        Throwable cause = Exceptions.unwrap(e);
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        return e;
     }
 }
@@ -0,0 +1,148 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolClosedEvent;
+import com.mongodb.event.ConnectionPoolCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the state of the driver's connection pool for each server:
+ * <ul>
+ *     <li><code>encity.user.mongodb.pool.size</code> - the number of open connections</li>
+ *     <li><code>encity.user.mongodb.pool.checkedOut</code> - the number of connections in use</li>
+ *     <li><code>encity.user.mongodb.pool.wait</code> - the time spent waiting to check out a connection</li>
+ *     <li><code>encity.user.mongodb.pool.failures</code> - the number of check outs that failed</li>
+ * </ul>
+ * The driver does not say which check out a connection was given to, so waits are matched to check outs in the
+ * order they started, which is the order the pool serves them
+ */
+class MongoPoolMetrics implements ConnectionPoolListener {
+
+    private final MeterRegistry registry;
+    private final String client;
+    private final ConcurrentMap<ServerId, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * The state of the pool of one server
+     */
+    private static final class Pool {
+        final AtomicInteger size = new AtomicInteger();
+        final AtomicInteger checkedOut = new AtomicInteger();
+        final Queue<Long> checkOutStarts = new ConcurrentLinkedQueue<>();
+        final Timer wait;
+        final Counter failures;
+        final List<Meter> meters;
+
+        Pool(MeterRegistry registry, Tags tags) {
+            this.wait = Timer.builder("encity.user.mongodb.pool.wait")
+                    .description("The time spent waiting to check out a connection")
+                    .tags(tags)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            this.failures = Counter.builder("encity.user.mongodb.pool.failures")
+                    .description("The number of connection check outs that failed")
+                    .tags(tags)
+                    .register(registry);
+            this.meters = Arrays.asList(
+                    Gauge.builder("encity.user.mongodb.pool.size", this.size, AtomicInteger::get)
+                            .description("The number of open connections")
+                            .tags(tags)
+                            .register(registry),
+                    Gauge.builder("encity.user.mongodb.pool.checkedOut", this.checkedOut, AtomicInteger::get)
+                            .description("The number of connections in use")
+                            .tags(tags)
+                            .register(registry),
+                    this.wait,
+                    this.failures);
+        }
+    }
+
+    /**
+     * @param registry the registry of the meters
+     * @param client the name of the client, to tell apart the meters of more than one client
+     */
+    MongoPoolMetrics(MeterRegistry registry, String client) {
+        this.registry = registry;
+        this.client = client;
+    }
+
+    private Pool pool(ServerId serverId) {
+        return this.pools.computeIfAbsent(serverId, id -> new Pool(
+                this.registry, Tags.of("client", this.client, "server", id.getAddress().toString())));
+    }
+
+    @Override
+    public void connectionPoolCreated(ConnectionPoolCreatedEvent event) {
+        this.pool(event.getServerId());
+    }
+
+    @Override
+    public void connectionPoolClosed(ConnectionPoolClosedEvent event) {
+        Pool pool = this.pools.remove(event.getServerId());
+        if (pool != null) {
+            pool.meters.forEach(this.registry::remove);
+        }
+    }
+
+    @Override
+    public void connectionCreated(ConnectionCreatedEvent event) {
+        this.pool(event.getConnectionId().getServerId()).size.incrementAndGet();
+    }
+
+    @Override
+    public void connectionClosed(ConnectionClosedEvent event) {
+        this.pool(event.getConnectionId().getServerId()).size.decrementAndGet();
+    }
+
+    @Override
+    public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+        this.pool(event.getServerId()).checkOutStarts.add(System.nanoTime());
+    }
+
+    @Override
+    public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+        Pool pool = this.pool(event.getConnectionId().getServerId());
+        pool.checkedOut.incrementAndGet();
+        this.recordWait(pool);
+    }
+
+    @Override
+    public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+        Pool pool = this.pool(event.getServerId());
+        pool.failures.increment();
+        this.recordWait(pool);
+    }
+
+    @Override
+    public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+        this.pool(event.getConnectionId().getServerId()).checkedOut.decrementAndGet();
+    }
+
+    private void recordWait(Pool pool) {
+        Long started = pool.checkOutStarts.poll();
+        if (started != null) {
+            pool.wait.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+}
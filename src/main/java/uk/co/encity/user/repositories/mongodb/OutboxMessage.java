@@ -0,0 +1,46 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+import org.bson.types.ObjectId;
+
+import java.time.Instant;
+
+/**
+ * A message waiting to be published to the message broker.  Messages are stored in the
+ * <code>user_outbox</code> collection in the same transaction as the event they describe, and are
+ * removed by the {@link OutboxRelay} once the broker has confirmed them
+ */
+@Getter @Setter
+public class OutboxMessage {
+    @BsonProperty("_id") private ObjectId messageId;
+    private ObjectId userId;
+    private String exchange;
+    private String routingKey;
+    private String payload;
+    private Instant createdTime;
+
+    /**
+     * The relay that has leased the message for publication, and when the lease ends
+     */
+    private String claimedBy;
+    private Instant claimedUntil;
+
+    public OutboxMessage() {
+        this.messageId = new ObjectId();
+    }
+
+    public OutboxMessage(ObjectId userId, String exchange, String routingKey, String payload) {
+        this();
+        this.userId = userId;
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.payload = payload;
+        this.createdTime = Instant.now();
+        this.claimedUntil = Instant.EPOCH;
+    }
+
+    @BsonProperty("_id") public ObjectId getMessageId() { return messageId; }
+    @BsonProperty("_id") public void setMessageId(ObjectId messageId) { this.messageId = messageId; }
+}
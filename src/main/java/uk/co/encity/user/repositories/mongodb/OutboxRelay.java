@@ -0,0 +1,173 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoException;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.set;
+
+/**
+ * Publishes the messages in the <code>user_outbox</code> collection to the message broker, off the request path.
+ *
+ * The relay polls the outbox, leases a batch of messages so that relays in other instances of the service
+ * leave them alone, publishes the batch and waits for the broker to confirm it, then deletes the batch.
+ * If publication fails, the lease runs out and the batch is tried again, so messages are delivered at
+ * least once
+ */
+@Component
+@Profile("!memory & !file")
+public class OutboxRelay {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    private final MongoCollection<OutboxMessage> outbox;
+    private final RabbitTemplate rabbitTemplate;
+    private final int batchSize;
+    private final Duration lease;
+    private final long confirmTimeoutMillis;
+
+    /**
+     * Identifies the leases taken by this relay
+     */
+    private final String relayId = new ObjectId().toHexString();
+
+    private final Counter published;
+    private final Counter failures;
+    private final Timer batchTime;
+
+    public OutboxRelay(
+            @Autowired MongoDBUserRepository repo,
+            @Autowired RabbitTemplate rabbitTemplate,
+            @Value("${user.outbox.batchSize:100}") int batchSize,
+            @Value("${user.outbox.leaseSeconds:30}") long leaseSeconds,
+            @Value("${user.outbox.confirmTimeoutMillis:5000}") long confirmTimeoutMillis,
+            MeterRegistry registry)
+    {
+        this.outbox = repo.getDatabase().getCollection("user_outbox", OutboxMessage.class);
+        this.rabbitTemplate = rabbitTemplate;
+        this.rabbitTemplate.setMessageConverter(new Jackson2JsonMessageConverter());
+        this.batchSize = batchSize;
+        this.lease = Duration.ofSeconds(leaseSeconds);
+        this.confirmTimeoutMillis = confirmTimeoutMillis;
+
+        this.published = Counter.builder("encity.user.outbox.published")
+                .description("The number of outbox messages confirmed by the broker")
+                .register(registry);
+        this.failures = Counter.builder("encity.user.outbox.failures")
+                .description("The number of outbox batches that could not be published")
+                .register(registry);
+        this.batchTime = Timer.builder("encity.user.outbox.batch.time")
+                .description("The time taken to lease, publish and remove a batch of outbox messages")
+                .register(registry);
+    }
+
+    /**
+     * Publish everything that is currently in the outbox, a batch at a time
+     */
+    @Scheduled(fixedDelayString = "${user.outbox.pollMillis:200}")
+    public void relay() {
+        int count;
+        do {
+            count = this.batchTime.record(this::relayBatch);
+        } while (count == this.batchSize);
+    }
+
+    /**
+     * Lease, publish and remove one batch of messages
+     * @return the number of messages published
+     */
+    int relayBatch() {
+        List<OutboxMessage> batch;
+        try {
+            batch = this.leaseBatch();
+        } catch (MongoException e) {
+            logger.warn("Unable to read the outbox: " + e.getMessage());
+            this.failures.increment();
+            return 0;
+        }
+
+        if (batch.isEmpty()) {
+            return 0;
+        }
+
+        List<ObjectId> ids = new ArrayList<>();
+        try {
+            this.rabbitTemplate.invoke(operations -> {
+                for (OutboxMessage msg : batch) {
+                    operations.convertAndSend(msg.getExchange(), msg.getRoutingKey(), msg.getPayload());
+                    ids.add(msg.getMessageId());
+                }
+                operations.waitForConfirmsOrDie(this.confirmTimeoutMillis);
+                return null;
+            });
+        } catch (AmqpException e) {
+            logger.warn(String.format("Failed to publish %d outbox messages - they will be retried: %s", batch.size(), e.getMessage()));
+            this.failures.increment();
+            return 0;
+        }
+
+        Mono.from(this.outbox.deleteMany(and(in("_id", ids), eq("claimedBy", this.relayId)))).block();
+        this.published.increment(ids.size());
+        logger.debug(String.format("Published %d outbox messages", ids.size()));
+        return ids.size();
+    }
+
+    /**
+     * Lease the oldest messages that are not leased by another relay
+     * @return the leased messages, oldest first
+     */
+    private List<OutboxMessage> leaseBatch() {
+        Instant now = Instant.now();
+        Bson available = lt("claimedUntil", now);
+
+        List<ObjectId> candidates = Flux.from(this.outbox
+                        .find(available)
+                        .sort(ascending("_id"))
+                        .projection(include("_id"))
+                        .limit(this.batchSize))
+                .map(OutboxMessage::getMessageId)
+                .collectList()
+                .block();
+        if (candidates.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Another relay may lease some of the candidates first - only the ones updated here belong to this relay
+        Mono.from(this.outbox.updateMany(
+                and(in("_id", candidates), available),
+                combine(set("claimedBy", this.relayId), set("claimedUntil", now.plus(this.lease))))).block();
+
+        return Flux.from(this.outbox.find(and(in("_id", candidates), eq("claimedBy", this.relayId)))
+                        .sort(ascending("_id")))
+                .collectList()
+                .block();
+    }
+}
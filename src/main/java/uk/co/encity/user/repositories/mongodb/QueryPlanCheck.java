@@ -0,0 +1,21 @@
+package uk.co.encity.user.repositories.mongodb;
+
+/**
+ * What to do when the self-check finds that a repository query is not supported by an index
+ */
+public enum QueryPlanCheck {
+    /**
+     * Do not check query plans
+     */
+    OFF,
+
+    /**
+     * Log a warning for each query that is not supported by an index
+     */
+    WARN,
+
+    /**
+     * Refuse to start if any query is not supported by an index
+     */
+    FAIL
+}
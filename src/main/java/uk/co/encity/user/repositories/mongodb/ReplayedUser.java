@@ -0,0 +1,68 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * A {@link User} that was inflated by replaying events on top of a snapshot.  As well as the user
+ * itself, it remembers how much replay was needed, so that the repository can decide whether to
+ * write a fresh snapshot when the next event is added.  The extra accessors are package-private so
+ * that they are not serialized with the user
+ */
+class ReplayedUser implements User {
+
+    private final UserState state;
+    private final int replayedEvents;
+    private final long replayNanos;
+
+    ReplayedUser(UserState state, int replayedEvents, long replayNanos) {
+        this.state = state;
+        this.replayedEvents = replayedEvents;
+        this.replayNanos = replayNanos;
+    }
+
+    /**
+     * @return the inflated state of the user, which is immutable
+     */
+    UserState getState() { return this.state; }
+
+    /**
+     * Produce the user that follows an event
+     * @param evt the event
+     * @param snapshotted true if a snapshot including the event is being written
+     * @return the user after the event
+     */
+    ReplayedUser next(MongoDBUserEvent evt, boolean snapshotted) {
+        int events = snapshotted ? 0 : this.replayedEvents + 1;
+        return new ReplayedUser(evt.updateUser(this.state), events, this.replayNanos);
+    }
+
+    /**
+     * @return the number of events that were applied to the snapshot
+     */
+    int getReplayedEvents() { return this.replayedEvents; }
+
+    /**
+     * @return the time taken to fetch and apply the events, in nanoseconds
+     */
+    long getReplayNanos() { return this.replayNanos; }
+
+    public String getUserId() { return state.getUserId(); }
+    public String getTenancyId() { return state.getTenancyId(); }
+    public String getFirstName() { return state.getFirstName(); }
+    public String getLastName() { return state.getLastName(); }
+    public String getEmailAddress() { return state.getEmailAddress(); }
+    public boolean isAdminUser() { return state.isAdminUser(); }
+    public int getVersion() { return state.getVersion(); }
+    public Instant getLastUpdate() { return state.getLastUpdate(); }
+    public UserTenantStatus getTenantStatus() { return state.getTenantStatus(); }
+    public UserProviderStatus getProviderStatus() { return state.getProviderStatus(); }
+    public String getDomain() { return state.getDomain(); }
+    public UUID getConfirmUUID() { return state.getConfirmUUID(); }
+    public Instant getCreationTime() { return state.getCreationTime(); }
+    public Instant getExpiryTime() { return state.getExpiryTime(); }
+}
@@ -0,0 +1,323 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Moves the snapshots and events that are only needed to read a user at an earlier version or time out of
+ * <code>user_snapshots</code> and <code>user_events</code>, so that their indexes hold only what current reads use.
+ *
+ * For each user with more than <code>user.compaction.keepSnapshots</code> snapshots, besides the one written when
+ * the user was added, the older snapshots are moved to <code>user_snapshots_archive</code>, and the events up to the
+ * oldest snapshot that is kept are moved to <code>user_events_archive</code>.  The initial snapshot stays, so
+ * reads at an earlier version or time always find a snapshot to start from, and the {@link UserRebuilder} can replay
+ * every user from the start.  Those reads fall back to the archive for the snapshots and events they need.
+ *
+ * Each run scans the snapshots in user order and archives a batch of users at a time, copying before deleting, and
+ * stops after a bounded number of batches, so the next run carries on from the last user it archived.  A copy that
+ * is already in the archive, from a run that stopped before deleting it or from another instance of the service,
+ * is skipped.  The job only runs when <code>user.compaction.enabled=true</code>
+ */
+@Component
+@Profile("!memory & !file")
+@ConditionalOnProperty(name = "user.compaction.enabled", havingValue = "true")
+public class SnapshotCompactor {
+
+    /**
+     * The collection that holds archived snapshots
+     */
+    static final String ARCHIVED_SNAPSHOTS = "user_snapshots_archive";
+
+    /**
+     * The collection that holds archived events
+     */
+    static final String ARCHIVED_EVENTS = "user_events_archive";
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private final MongoDatabase db;
+    private final int keepSnapshots;
+    private final int batchSize;
+    private final int maxBatches;
+
+    private final Counter snapshotsArchived;
+    private final Counter eventsArchived;
+    private final Counter bytesReclaimed;
+    private final Counter failures;
+    private final Timer runTime;
+
+    /**
+     * The last user archived by a run that stopped before the end of the snapshots, or null to start from the first
+     */
+    private ObjectId resumeAfter;
+
+    /**
+     * The snapshots and events of one user that are to be archived
+     */
+    static final class UserArchive {
+        final ObjectId userId;
+        final List<ObjectId> snapshotIds;
+        final int toVersion;
+
+        UserArchive(ObjectId userId, List<ObjectId> snapshotIds, int toVersion) {
+            this.userId = userId;
+            this.snapshotIds = snapshotIds;
+            this.toVersion = toVersion;
+        }
+
+        /**
+         * @return a filter that matches the user's events up to and including the version of the oldest snapshot kept
+         */
+        Bson eventFilter() {
+            return and(eq("userId", this.userId), lte("userVersionNumber", this.toVersion));
+        }
+    }
+
+    /**
+     * The totals of a compaction run
+     */
+    static final class Compaction {
+        int users;
+        long snapshots;
+        long events;
+        long bytes;
+
+        void add(Compaction other) {
+            this.users += other.users;
+            this.snapshots += other.snapshots;
+            this.events += other.events;
+            this.bytes += other.bytes;
+        }
+    }
+
+    public SnapshotCompactor(
+            @Autowired MongoDBUserRepository repo,
+            @Value("${user.compaction.keepSnapshots:2}") int keepSnapshots,
+            @Value("${user.compaction.batchSize:500}") int batchSize,
+            @Value("${user.compaction.maxBatches:10}") int maxBatches,
+            MeterRegistry registry)
+    {
+        this.db = repo.getDatabase();
+        this.keepSnapshots = Math.max(keepSnapshots, 1);
+        this.batchSize = batchSize;
+        this.maxBatches = maxBatches;
+
+        this.snapshotsArchived = Counter.builder("encity.user.compaction.snapshots")
+                .description("The number of snapshots moved to the archive")
+                .register(registry);
+        this.eventsArchived = Counter.builder("encity.user.compaction.events")
+                .description("The number of events moved to the archive")
+                .register(registry);
+        this.bytesReclaimed = Counter.builder("encity.user.compaction.reclaimed")
+                .description("The size of the snapshots and events moved out of the live collections")
+                .baseUnit("bytes")
+                .register(registry);
+        this.failures = Counter.builder("encity.user.compaction.failures")
+                .description("The number of compaction batches that could not be archived")
+                .register(registry);
+        this.runTime = Timer.builder("encity.user.compaction.run.time")
+                .description("The time taken by each run of the compactor")
+                .register(registry);
+    }
+
+    /**
+     * Archive the snapshots and events of the next users, up to the maximum number of batches
+     */
+    @Scheduled(fixedDelayString = "${user.compaction.intervalMillis:3600000}")
+    public void compact() {
+        long start = System.nanoTime();
+        Compaction total = this.compactBatches();
+        long elapsed = System.nanoTime() - start;
+        this.runTime.record(elapsed, TimeUnit.NANOSECONDS);
+
+        if (total.users > 0) {
+            logger.info(String.format("Archived %d snapshots and %d events of %d users in %dms, reclaiming %d bytes",
+                    total.snapshots, total.events, total.users, TimeUnit.NANOSECONDS.toMillis(elapsed), total.bytes));
+        }
+    }
+
+    /**
+     * @return the totals of the batches archived
+     */
+    Compaction compactBatches() {
+        Compaction total = new Compaction();
+        List<UserArchive> batch = new ArrayList<>();
+        int batches = 0;
+
+        Bson filter = this.resumeAfter == null ? new Document() : gt("userIdentity", this.resumeAfter);
+        try (Stream<Document> snapshots = Flux.from(db.getCollection("user_snapshots")
+                .find(filter)
+                .projection(include("userIdentity", "toVersion"))
+                .sort(ascending("userIdentity", "toVersion"))
+                .batchSize(this.batchSize))
+                .toStream(this.batchSize))
+        {
+            Iterator<Document> cursor = snapshots.iterator();
+            List<Document> userSnapshots = new ArrayList<>();
+            while (cursor.hasNext() || !userSnapshots.isEmpty()) {
+                Document next = cursor.hasNext() ? cursor.next() : null;
+                if (next != null && (userSnapshots.isEmpty() ||
+                        next.getObjectId("userIdentity").equals(userSnapshots.get(0).getObjectId("userIdentity")))) {
+                    userSnapshots.add(next);
+                    continue;
+                }
+
+                UserArchive archive = plan(userSnapshots, this.keepSnapshots);
+                userSnapshots.clear();
+                if (next != null) {
+                    userSnapshots.add(next);
+                }
+                if (archive == null) {
+                    continue;
+                }
+
+                batch.add(archive);
+                if (batch.size() == this.batchSize) {
+                    total.add(this.archive(batch));
+                    this.resumeAfter = archive.userId;
+                    batch.clear();
+                    if (++batches == this.maxBatches) {
+                        return total;
+                    }
+                }
+            }
+
+            total.add(this.archive(batch));
+            this.resumeAfter = null;
+        } catch (MongoException e) {
+            logger.warn("Unable to archive a batch of users: " + e.getMessage());
+            this.failures.increment();
+        }
+        return total;
+    }
+
+    /**
+     * Decide what to archive for a user
+     * @param snapshots the identity, user identity and version of each of the user's snapshots, in version order
+     * @param keep the number of snapshots to keep, besides the initial one
+     * @return what to archive, or null if the user has no more snapshots than are kept
+     */
+    static UserArchive plan(List<Document> snapshots, int keep) {
+        List<Document> archivable = snapshots.stream()
+                .filter(snap -> snap.getInteger("toVersion") != UserRebuilder.INITIAL_VERSION)
+                .collect(Collectors.toList());
+        if (archivable.size() <= keep) {
+            return null;
+        }
+
+        List<Document> archived = archivable.subList(0, archivable.size() - keep);
+        return new UserArchive(
+                snapshots.get(0).getObjectId("userIdentity"),
+                archived.stream().map(snap -> snap.getObjectId("_id")).collect(Collectors.toList()),
+                archivable.get(archived.size()).getInteger("toVersion"));
+    }
+
+    /**
+     * Copy the snapshots and events of a batch of users to the archive, then delete them
+     * @return the totals of the batch
+     */
+    private Compaction archive(List<UserArchive> batch) {
+        Compaction result = new Compaction();
+        if (batch.isEmpty()) {
+            return result;
+        }
+
+        MongoCollection<RawBsonDocument> snapshots = db.getCollection("user_snapshots", RawBsonDocument.class);
+        MongoCollection<RawBsonDocument> events = db.getCollection("user_events", RawBsonDocument.class);
+        Bson snapshotFilter = in("_id", batch.stream()
+                .flatMap(user -> user.snapshotIds.stream())
+                .collect(Collectors.toList()));
+        Bson eventFilter = or(batch.stream().map(UserArchive::eventFilter).collect(Collectors.toList()));
+
+        result.bytes += this.copy(snapshots.find(snapshotFilter), db.getCollection(ARCHIVED_SNAPSHOTS, RawBsonDocument.class));
+        result.bytes += this.copy(events.find(eventFilter), db.getCollection(ARCHIVED_EVENTS, RawBsonDocument.class));
+        result.snapshots = Mono.from(snapshots.deleteMany(snapshotFilter)).block().getDeletedCount();
+        result.events = Mono.from(events.deleteMany(eventFilter)).block().getDeletedCount();
+        result.users = batch.size();
+
+        this.snapshotsArchived.increment(result.snapshots);
+        this.eventsArchived.increment(result.events);
+        this.bytesReclaimed.increment(result.bytes);
+        return result;
+    }
+
+    /**
+     * Copy documents to an archive collection, in unordered bulk inserts
+     * @return the size of the documents copied
+     */
+    private long copy(FindPublisher<RawBsonDocument> docs, MongoCollection<RawBsonDocument> archive) {
+        List<RawBsonDocument> chunk = new ArrayList<>(this.batchSize);
+        long bytes = 0;
+
+        for (RawBsonDocument doc : Flux.from(docs.batchSize(this.batchSize)).toIterable(this.batchSize)) {
+            chunk.add(doc);
+            bytes += doc.getByteBuffer().remaining();
+            if (chunk.size() == this.batchSize) {
+                insert(archive, chunk);
+            }
+        }
+        insert(archive, chunk);
+        return bytes;
+    }
+
+    private static void insert(MongoCollection<RawBsonDocument> archive, List<RawBsonDocument> chunk) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+
+        try {
+            Mono.from(archive.insertMany(chunk, UNORDERED)).block();
+        } catch (MongoBulkWriteException e) {
+            // Documents archived by a run that stopped before deleting them are already present
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+            if (e.getWriteConcernError() != null) {
+                throw e;
+            }
+        } finally {
+            chunk.clear();
+        }
+    }
+}
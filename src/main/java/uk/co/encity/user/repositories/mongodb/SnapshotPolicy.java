@@ -0,0 +1,109 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import uk.co.encity.user.entity.User;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a fresh snapshot of a user should be written, so that the number of events replayed
+ * by each read stays bounded.  A snapshot is due once the number of events since the last snapshot
+ * reaches a threshold, or when replaying them took longer than a time budget.  Either rule may be
+ * switched off by setting it to zero.
+ *
+ * The policy also records the length and duration of every replay, so that the thresholds can be tuned
+ */
+@Component
+public class SnapshotPolicy {
+
+    private final int everyEvents;
+    private final Duration replayBudget;
+
+    private final DistributionSummary replayLength;
+    private final Timer replayTime;
+    private final Counter snapshotsWritten;
+    private final Counter snapshotFailures;
+
+    /**
+     * Construct a policy
+     * @param everyEvents write a snapshot once this many events follow the latest snapshot (0 to disable)
+     * @param replayBudgetMillis write a snapshot when a replay takes longer than this (0 to disable)
+     * @param registry the registry in which to record replay metrics
+     */
+    public SnapshotPolicy(
+            @Value("${user.snapshot.everyEvents:10}") int everyEvents,
+            @Value("${user.snapshot.replayBudgetMillis:0}") long replayBudgetMillis,
+            MeterRegistry registry)
+    {
+        this.everyEvents = everyEvents;
+        this.replayBudget = Duration.ofMillis(replayBudgetMillis);
+
+        this.replayLength = DistributionSummary.builder("encity.user.replay.events")
+                .description("The number of events replayed on top of a snapshot to inflate a user")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.replayTime = Timer.builder("encity.user.replay.time")
+                .description("The time taken to fetch and replay the events that follow a snapshot")
+                .publishPercentileHistogram()
+                .register(registry);
+        this.snapshotsWritten = Counter.builder("encity.user.snapshots.written")
+                .description("The number of snapshots written by the snapshot policy")
+                .register(registry);
+        this.snapshotFailures = Counter.builder("encity.user.snapshots.failed")
+                .description("The number of snapshots that the snapshot policy failed to write")
+                .register(registry);
+    }
+
+    /**
+     * Record the cost of inflating a user
+     * @param user the inflated user
+     */
+    void recordReplay(ReplayedUser user) {
+        this.replayLength.record(user.getReplayedEvents());
+        this.replayTime.record(user.getReplayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Decide whether a snapshot is due
+     * @param eventsSinceSnapshot the number of events that follow the latest snapshot
+     * @param replayNanos the time taken by the most recent replay of those events
+     * @return true if a snapshot should be written
+     */
+    boolean isSnapshotDue(int eventsSinceSnapshot, long replayNanos) {
+        if (this.everyEvents > 0 && eventsSinceSnapshot >= this.everyEvents) {
+            return true;
+        }
+        return !this.replayBudget.isZero() && replayNanos > this.replayBudget.toNanos();
+    }
+
+    /**
+     * Work out whether adding an event to a user makes a snapshot due, and if so produce it
+     * @param user the user, as it was before the event
+     * @param evt the event that has just been stored
+     * @return the snapshot to write, or null if none is due.  Only users inflated by a repository
+     * carry enough information to decide, so other users never produce a snapshot
+     */
+    UserSnapshot nextSnapshot(User user, MongoDBUserEvent evt) {
+        if (!(user instanceof ReplayedUser)) {
+            return null;
+        }
+
+        ReplayedUser replayed = (ReplayedUser) user;
+        if (!this.isSnapshotDue(replayed.getReplayedEvents() + 1, replayed.getReplayNanos())) {
+            return null;
+        }
+
+        return evt.updateUser(replayed.getState()).toSnapshot(new ObjectId());
+    }
+
+    void snapshotWritten() { this.snapshotsWritten.increment(); }
+
+    void snapshotFailed() { this.snapshotFailures.increment(); }
+}
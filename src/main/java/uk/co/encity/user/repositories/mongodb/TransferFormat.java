@@ -0,0 +1,151 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.ByteBuf;
+import org.bson.RawBsonDocument;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The file formats in which {@link UserExporter} writes collections and {@link UserImporter} reads them.  Each file
+ * holds one collection, a document at a time, so neither side holds more than one document in memory.  Documents
+ * are copied as raw BSON, without decoding them into the repository's classes, so every field is kept as it is
+ */
+public enum TransferFormat {
+
+    /**
+     * One document per line in canonical extended JSON, which keeps the BSON type of every value
+     */
+    NDJSON("ndjson") {
+        private final JsonWriterSettings settings = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+        @Override
+        DocumentWriter writer(OutputStream out) {
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            return new DocumentWriter() {
+                @Override
+                public void write(RawBsonDocument doc) throws IOException {
+                    writer.write(doc.toJson(settings));
+                    writer.newLine();
+                }
+
+                @Override
+                public void close() throws IOException { writer.close(); }
+            };
+        }
+
+        @Override
+        DocumentReader reader(InputStream in) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            return new DocumentReader() {
+                @Override
+                public RawBsonDocument read() throws IOException {
+                    String line = reader.readLine();
+                    while (line != null && line.isEmpty()) {
+                        line = reader.readLine();
+                    }
+                    return line == null ? null : RawBsonDocument.parse(line);
+                }
+
+                @Override
+                public void close() throws IOException { reader.close(); }
+            };
+        }
+    },
+
+    /**
+     * The documents' BSON, one after another, as <code>mongodump</code> writes them
+     */
+    BSON("bson") {
+        @Override
+        DocumentWriter writer(OutputStream out) {
+            return new DocumentWriter() {
+                @Override
+                public void write(RawBsonDocument doc) throws IOException {
+                    ByteBuf buffer = doc.getByteBuffer();
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes);
+                }
+
+                @Override
+                public void close() throws IOException { out.close(); }
+            };
+        }
+
+        @Override
+        DocumentReader reader(InputStream in) {
+            DataInputStream data = new DataInputStream(in);
+            return new DocumentReader() {
+                @Override
+                public RawBsonDocument read() throws IOException {
+                    int first = data.read();
+                    if (first < 0) {
+                        return null;
+                    }
+                    byte[] bytes = new byte[4];
+                    bytes[0] = (byte) first;
+                    data.readFully(bytes, 1, 3);
+                    int length = (bytes[0] & 0xFF) | (bytes[1] & 0xFF) << 8 | (bytes[2] & 0xFF) << 16 | (bytes[3] & 0xFF) << 24;
+                    if (length < 5) {
+                        throw new EOFException("Invalid document length " + length);
+                    }
+
+                    byte[] doc = new byte[length];
+                    System.arraycopy(bytes, 0, doc, 0, 4);
+                    data.readFully(doc, 4, length - 4);
+                    return new RawBsonDocument(doc);
+                }
+
+                @Override
+                public void close() throws IOException { data.close(); }
+            };
+        }
+    };
+
+    /**
+     * Writes documents to a stream
+     */
+    interface DocumentWriter extends Closeable {
+        void write(RawBsonDocument doc) throws IOException;
+    }
+
+    /**
+     * Reads documents from a stream
+     */
+    interface DocumentReader extends Closeable {
+        /**
+         * @return the next document, or null at the end of the stream
+         */
+        RawBsonDocument read() throws IOException;
+    }
+
+    private final String extension;
+
+    TransferFormat(String extension) {
+        this.extension = extension;
+    }
+
+    /**
+     * @param collection the name of the collection
+     * @param compressed whether the file is compressed with gzip
+     * @return the name of the file that holds the collection
+     */
+    String fileName(String collection, boolean compressed) {
+        return collection + "." + this.extension + (compressed ? ".gz" : "");
+    }
+
+    abstract DocumentWriter writer(OutputStream out);
+    abstract DocumentReader reader(InputStream in);
+}
@@ -0,0 +1,35 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The progress of an export or import, which is updated concurrently by its workers
+ */
+final class TransferProgress {
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder> documents = new ConcurrentHashMap<>();
+    private final LongAdder skipped = new LongAdder();
+
+    void transferred(String collection, int count) {
+        this.documents.computeIfAbsent(collection, c -> new LongAdder()).add(count);
+    }
+
+    void skipped(int count) { this.skipped.add(count); }
+
+    long getDocuments() { return this.documents.values().stream().mapToLong(LongAdder::sum).sum(); }
+    long getDocuments(String collection) {
+        LongAdder count = this.documents.get(collection);
+        return count == null ? 0 : count.sum();
+    }
+    long getSkipped() { return this.skipped.sum(); }
+
+    @Override
+    public String toString() {
+        long documents = this.getDocuments();
+        double seconds = Math.max(System.nanoTime() - this.startNanos, 1) / 1e9;
+        return String.format("%d documents %s in %.1fs - %.0f documents/s",
+                documents, this.documents, seconds, documents / seconds);
+    }
+}
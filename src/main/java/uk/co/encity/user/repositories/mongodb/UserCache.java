@@ -0,0 +1,96 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * A bounded, in-process cache of inflated users, keyed by user id.  Entries are evicted when the cache
+ * is full, and expire a fixed time after they were written so that changes made by other instances of the
+ * service are eventually seen.
+ *
+ * The repositories write through the cache whenever they add a user or an event.  An entry is only ever
+ * replaced by a user at the same or a later version, so a slow read can never overwrite a newer write.  Writes
+ * made by other instances are removed from the cache by the {@link UserCacheWatcher}, when it is enabled.
+ *
+ * Hit, miss and eviction counts are published to the meter registry under the cache name <code>users</code>
+ */
+@Component
+public class UserCache {
+
+    private final Cache<String, ReplayedUser> cache;
+
+    /**
+     * Construct a cache
+     * @param maximumSize the maximum number of users to hold
+     * @param ttlSeconds the number of seconds after which a cached user expires
+     * @param registry the registry in which to publish cache statistics
+     */
+    public UserCache(
+            @Value("${user.cache.maximumSize:10000}") long maximumSize,
+            @Value("${user.cache.ttlSeconds:60}") long ttlSeconds,
+            MeterRegistry registry)
+    {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+
+        CaffeineCacheMetrics.monitor(registry, this.cache, "users");
+    }
+
+    /**
+     * @param userId the identity of the user
+     * @return the cached user, or null if the user is not cached
+     */
+    ReplayedUser get(String userId) {
+        return this.cache.getIfPresent(userId);
+    }
+
+    /**
+     * Cache a user, unless a later version of it is already cached
+     * @param user the user to cache
+     */
+    void put(ReplayedUser user) {
+        this.cache.asMap().merge(
+                user.getUserId(),
+                user,
+                (cached, latest) -> latest.getVersion() >= cached.getVersion() ? latest : cached);
+    }
+
+    /**
+     * Remove a user from the cache
+     * @param userId the identity of the user
+     */
+    void invalidate(String userId) {
+        this.cache.invalidate(userId);
+    }
+
+    /**
+     * Remove a user from the cache if the cached user is older than a given version
+     * @param userId the identity of the user
+     * @param version the version of the user known to exist
+     * @return true if a user was removed
+     */
+    boolean invalidateBefore(String userId, int version) {
+        boolean[] removed = new boolean[1];
+        this.cache.asMap().computeIfPresent(userId, (id, cached) -> {
+            removed[0] = cached.getVersion() < version;
+            return removed[0] ? null : cached;
+        });
+        return removed[0];
+    }
+
+    /**
+     * Remove every user from the cache
+     */
+    void invalidateAll() {
+        this.cache.invalidateAll();
+    }
+}
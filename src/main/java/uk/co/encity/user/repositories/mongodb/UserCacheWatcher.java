@@ -0,0 +1,188 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.reactivestreams.client.ChangeStreamPublisher;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+import reactor.util.retry.Retry;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * Keeps the {@link UserCache} of this instance coherent with writes made by other instances of the service.
+ *
+ * The watcher follows a change stream over the <code>user_events</code> and <code>user_snapshots</code>
+ * collections, and removes a cached user as soon as an event or snapshot of a later version is stored.  Users
+ * written by this instance are already cached at that version, so they stay cached.
+ *
+ * The watcher remembers the resume token of the last change it has seen.  If the stream fails, it is reopened
+ * from that token, so no change is missed and the cache is kept.  Only if the token has fallen out of the oplog
+ * is the whole cache cleared.  The cache does not outlive the process, so a new process starts with an empty
+ * cache and watches from the present.  Change streams need a replica set
+ */
+@Component
+@Profile("!memory & !file")
+@ConditionalOnProperty(name = "user.cache.watch", havingValue = "true", matchIfMissing = true)
+public class UserCacheWatcher {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    /**
+     * Server error codes for a resume token that is no longer in the oplog, and for a deployment without change streams
+     */
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private static final int CHANGE_STREAMS_UNSUPPORTED = 40573;
+
+    private final MongoDatabase db;
+    private final UserCache userCache;
+    private final long retryMillis;
+
+    private final Counter invalidations;
+    private final Counter restarts;
+
+    private volatile BsonDocument resumeToken;
+    private Disposable subscription;
+
+    public UserCacheWatcher(
+            @Autowired MongoDBUserRepository repo,
+            @Autowired UserCache userCache,
+            @Value("${user.cache.watchRetryMillis:5000}") long retryMillis,
+            MeterRegistry registry)
+    {
+        this.db = repo.getDatabase();
+        this.userCache = userCache;
+        this.retryMillis = retryMillis;
+
+        this.invalidations = Counter.builder("encity.user.cache.invalidations")
+                .description("The number of cached users removed because another instance changed them")
+                .register(registry);
+        this.restarts = Counter.builder("encity.user.cache.watch.restarts")
+                .description("The number of times the change stream was reopened after a failure")
+                .register(registry);
+    }
+
+    @PostConstruct
+    public void start() {
+        this.subscription = this.watch().subscribe(
+                change -> {},
+                e -> logger.error("Stopped watching for changes to users: " + e.getMessage()));
+    }
+
+    @PreDestroy
+    public void stop() {
+        this.subscription.dispose();
+    }
+
+    /**
+     * @return the stages of the change stream, which pass on only the fields the watcher needs
+     */
+    static List<Bson> pipeline() {
+        return Arrays.asList(
+                match(and(
+                        eq("operationType", "insert"),
+                        in("ns.coll", "user_events", "user_snapshots"))),
+                project(include(
+                        "operationType", "ns",
+                        "fullDocument.userId", "fullDocument.userVersionNumber",
+                        "fullDocument.userIdentity", "fullDocument.toVersion")));
+    }
+
+    /**
+     * @return a {@link Flux} that follows the change stream, applying each change to the cache, and reopens it after
+     * a failure.  It completes if the deployment does not support change streams
+     */
+    private Flux<ChangeStreamDocument<BsonDocument>> watch() {
+        return Flux.defer(() -> {
+                    ChangeStreamPublisher<BsonDocument> stream = this.db.watch(pipeline(), BsonDocument.class)
+                            .maxAwaitTime(1, TimeUnit.SECONDS);
+                    if (this.resumeToken != null) {
+                        stream = stream.resumeAfter(this.resumeToken);
+                    }
+                    logger.info(this.resumeToken == null ?
+                            "Watching for changes to users" : "Resumed watching for changes to users");
+                    return Flux.from(stream);
+                })
+                .doOnNext(change -> {
+                    if (change.getNamespace() != null) {
+                        this.apply(change.getNamespace().getCollectionName(), change.getFullDocument());
+                    }
+                    this.resumeToken = change.getResumeToken();
+                })
+                .retryWhen(Retry.fixedDelay(Long.MAX_VALUE, Duration.ofMillis(this.retryMillis))
+                        .filter(e -> e instanceof MongoException && !isUnsupported(e))
+                        .doBeforeRetry(signal -> this.restart(signal.failure())))
+                .onErrorResume(UserCacheWatcher::isUnsupported, e -> {
+                    logger.warn("Change streams are not supported by this deployment - cached users are not kept coherent");
+                    return Flux.empty();
+                });
+    }
+
+    private static boolean isUnsupported(Throwable e) {
+        return e instanceof MongoCommandException && ((MongoCommandException) e).getErrorCode() == CHANGE_STREAMS_UNSUPPORTED;
+    }
+
+    /**
+     * Remove a cached user that is older than a stored event or snapshot
+     * @param collection the collection to which the document was written
+     * @param document the fields of the document passed on by the {@link #pipeline()}
+     * @return true if a user was removed from the cache
+     */
+    boolean apply(String collection, BsonDocument document) {
+        boolean events = collection.equals("user_events");
+        String idField = events ? "userId" : "userIdentity";
+        String versionField = events ? "userVersionNumber" : "toVersion";
+        if (document == null || !document.isObjectId(idField) || !document.isInt32(versionField)) {
+            return false;
+        }
+
+        boolean removed = this.userCache.invalidateBefore(
+                document.getObjectId(idField).getValue().toHexString(),
+                document.getInt32(versionField).getValue());
+        if (removed) {
+            this.invalidations.increment();
+        }
+        return removed;
+    }
+
+    /**
+     * Prepare to reopen the change stream after a failure
+     */
+    private void restart(Throwable e) {
+        if (e instanceof MongoCommandException && ((MongoCommandException) e).getErrorCode() == CHANGE_STREAM_HISTORY_LOST) {
+            logger.warn("Changes to users have been lost from the oplog - clearing the cache");
+            this.userCache.invalidateAll();
+            this.resumeToken = null;
+        }
+        logger.warn(String.format("Change stream failed, reopening in %d ms: %s", this.retryMillis, e.getMessage()));
+        this.restarts.increment();
+    }
+}
@@ -0,0 +1,31 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Provides the hand-written codecs for user snapshots, events and commands.  A codec for a hierarchy is
+ * returned for the base class and for each of its subclasses
+ */
+final class UserCodecProvider implements CodecProvider {
+
+    private final UserSnapshotCodec snapshotCodec = new UserSnapshotCodec();
+    private final MongoDBUserEventCodec eventCodec = new MongoDBUserEventCodec();
+    private final MongoDBUserCommandCodec commandCodec = new MongoDBUserCommandCodec();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        if (clazz == UserSnapshot.class) {
+            return (Codec<T>) this.snapshotCodec;
+        }
+        if (MongoDBUserEvent.class.isAssignableFrom(clazz)) {
+            return (Codec<T>) this.eventCodec;
+        }
+        if (MongoDBUserCommand.class.isAssignableFrom(clazz)) {
+            return (Codec<T>) this.commandCodec;
+        }
+        return null;
+    }
+}
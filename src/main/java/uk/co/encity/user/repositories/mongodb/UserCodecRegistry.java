@@ -0,0 +1,61 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.UuidRepresentation;
+import org.bson.codecs.UuidCodec;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.codecs.pojo.Convention;
+import org.bson.codecs.pojo.Conventions;
+import org.bson.codecs.pojo.PojoCodecProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
+import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
+
+/**
+ * Builds the {@link CodecRegistry} used for user snapshots, events and commands, which {@link MongoClientConfig}
+ * gives to the client.  Tests that encode or decode documents without a client obtain the same registry from here.
+ *
+ * Snapshots, events and commands use the hand-written codecs unless the {@link CodecMode} says otherwise.
+ * Other documents, such as outbox messages, always use the POJO codecs
+ */
+public final class UserCodecRegistry {
+
+    private UserCodecRegistry() {}
+
+    /**
+     * @return a registry that uses the hand-written codecs
+     */
+    public static CodecRegistry create() {
+        return create(CodecMode.EXPLICIT);
+    }
+
+    /**
+     * @param mode how user snapshots, events and commands are to be converted
+     * @return the registry
+     */
+    public static CodecRegistry create(CodecMode mode) {
+        // The event classes are immutable, so the codec must be allowed to set their private fields
+        List<Convention> conventions = new ArrayList<>(Conventions.DEFAULT_CONVENTIONS);
+        conventions.add(Conventions.SET_PRIVATE_FIELDS_CONVENTION);
+
+        CodecRegistry pojoCodecRegistry = fromProviders(
+                PojoCodecProvider.builder().automatic(true).conventions(conventions).build());
+
+        if (mode == CodecMode.POJO) {
+            return fromRegistries(
+                    CodecRegistries.fromCodecs(new UuidCodec(UuidRepresentation.STANDARD)),
+                    MongoClientSettings.getDefaultCodecRegistry(),
+                    pojoCodecRegistry);
+        }
+
+        return fromRegistries(
+                fromProviders(new UserCodecProvider()),
+                CodecRegistries.fromCodecs(new UuidCodec(UuidRepresentation.STANDARD)),
+                MongoClientSettings.getDefaultCodecRegistry(),
+                pojoCodecRegistry);
+    }
+}
@@ -0,0 +1,192 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+/**
+ * Exports the event store - the <code>user_snapshots</code>, <code>user_events</code> and <code>user_commands</code>
+ * collections, and the snapshots and events archived by the {@link SnapshotCompactor} - to a directory, with a file
+ * for each collection, for copying users between environments or seeding load tests.  The collections are exported in parallel, each streamed from a cursor to its file.
+ *
+ * When <code>user.export.tenancyId</code> is set, only the users of that tenancy, and their events and commands, are
+ * exported.  The identities of the tenancy's users are held in memory to select them.
+ *
+ * The export runs on start-up when <code>user.export.run=true</code>, and the application exits when it is done.
+ * {@link UserImporter} reads the files
+ */
+@Component
+@Profile("!memory & !file")
+@ConditionalOnProperty(name = "user.export.run", havingValue = "true")
+public class UserExporter implements ApplicationRunner {
+
+    /**
+     * The collections of the event store, in the order in which they are imported
+     */
+    static final List<String> COLLECTIONS = Arrays.asList("user_snapshots", "user_events", "user_commands",
+            SnapshotCompactor.ARCHIVED_SNAPSHOTS, SnapshotCompactor.ARCHIVED_EVENTS);
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    private final MongoDatabase db;
+    private final ApplicationContext context;
+    private final Path dir;
+    private final TransferFormat format;
+    private final boolean compressed;
+    private final String tenancyId;
+    private final int batchSize;
+    private final Duration progressInterval;
+    private final boolean exitWhenDone;
+
+    public UserExporter(
+            @Autowired MongoDBUserRepository repo,
+            @Autowired ApplicationContext context,
+            @Value("${user.transfer.dir:user-export}") String dir,
+            @Value("${user.transfer.format:NDJSON}") TransferFormat format,
+            @Value("${user.transfer.compressed:true}") boolean compressed,
+            @Value("${user.export.tenancyId:}") String tenancyId,
+            @Value("${user.transfer.batchSize:1000}") int batchSize,
+            @Value("${user.transfer.progressSeconds:10}") long progressSeconds,
+            @Value("${user.transfer.exit:true}") boolean exitWhenDone)
+    {
+        this.db = repo.getDatabase();
+        this.context = context;
+        this.dir = Paths.get(dir);
+        this.format = format;
+        this.compressed = compressed;
+        this.tenancyId = tenancyId.isEmpty() ? null : tenancyId;
+        this.batchSize = batchSize;
+        this.progressInterval = Duration.ofSeconds(progressSeconds);
+        this.exitWhenDone = exitWhenDone;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        boolean succeeded = false;
+        try {
+            this.export();
+            succeeded = true;
+        } finally {
+            if (this.exitWhenDone) {
+                int status = succeeded ? 0 : 1;
+                System.exit(SpringApplication.exit(this.context, () -> status));
+            }
+        }
+    }
+
+    /**
+     * Export the event store
+     * @return the final progress of the export
+     * @throws Exception if a collection cannot be exported
+     */
+    public TransferProgress export() throws Exception {
+        Files.createDirectories(this.dir);
+        List<Bson> filters = this.filters();
+        TransferProgress progress = new TransferProgress();
+        logger.info(String.format("Exporting %s to %s as %s%s", this.tenancyId == null ? "all users" :
+                "the users of tenancy " + this.tenancyId, this.dir, this.format, this.compressed ? " (gzip)" : ""));
+
+        Disposable reporter = Flux.interval(this.progressInterval, this.progressInterval)
+                .subscribe(tick -> logger.info("Export progress: " + progress));
+
+        ExecutorService pool = Executors.newFixedThreadPool(COLLECTIONS.size());
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < COLLECTIONS.size(); i++) {
+                String collection = COLLECTIONS.get(i);
+                Bson filter = filters.get(i);
+                tasks.add(pool.submit(() -> {
+                    this.exportCollection(collection, filter, progress);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } finally {
+            pool.shutdown();
+            reporter.dispose();
+        }
+
+        logger.info("Export finished: " + progress);
+        return progress;
+    }
+
+    /**
+     * @return the filter for each collection, in the order of {@link #COLLECTIONS}
+     */
+    private List<Bson> filters() {
+        if (this.tenancyId == null) {
+            return COLLECTIONS.stream().<Bson>map(collection -> new Document()).collect(Collectors.toList());
+        }
+
+        ObjectId tenancy = new ObjectId(this.tenancyId);
+        List<ObjectId> userIds = Flux.from(this.db.getCollection("user_snapshots")
+                        .distinct("userIdentity", eq("tenancyIdentity", tenancy), ObjectId.class))
+                .collectList()
+                .block();
+        logger.info(String.format("Tenancy %s has %d users", this.tenancyId, userIds.size()));
+        return Arrays.asList(eq("tenancyIdentity", tenancy), in("userId", userIds), in("userId", userIds),
+                eq("tenancyIdentity", tenancy), in("userId", userIds));
+    }
+
+    private void exportCollection(String collection, Bson filter, TransferProgress progress) throws IOException {
+        MongoCollection<RawBsonDocument> docs = this.db.getCollection(collection, RawBsonDocument.class);
+        Path path = this.dir.resolve(this.format.fileName(collection, this.compressed));
+
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        if (this.compressed) {
+            out = new GZIPOutputStream(out, 1 << 16);
+        }
+
+        try (TransferFormat.DocumentWriter writer = this.format.writer(out)) {
+            int count = 0;
+            for (RawBsonDocument doc : Flux.from(docs.find(filter).batchSize(this.batchSize)).toIterable(this.batchSize)) {
+                writer.write(doc);
+                if (++count == this.batchSize) {
+                    progress.transferred(collection, count);
+                    count = 0;
+                }
+            }
+            progress.transferred(collection, count);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Imports the event store from the files written by {@link UserExporter}.  Each file is read by one thread, which
+ * hands each document to one of <code>user.import.workers</code> workers, chosen by its user, through a bounded
+ * queue.  Each worker inserts its documents in unordered bulk inserts of <code>user.transfer.batchSize</code>, so
+ * memory use is bounded by the queues and batches, however large the files.  Keeping each user on one worker
+ * keeps the writes of a user in the order they were exported.
+ *
+ * Documents that are already in the collection are skipped, so an interrupted import can be run again.  The
+ * <code>user_view</code> read model is not imported: rebuild it afterwards with <code>user.rebuild.run=true</code>.
+ *
+ * The import runs on start-up when <code>user.import.run=true</code>, and the application exits when it is done
+ */
+@Component
+@Profile("!memory & !file")
+@ConditionalOnProperty(name = "user.import.run", havingValue = "true")
+public class UserImporter implements ApplicationRunner {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    /**
+     * Tells a worker that there are no more documents
+     */
+    private static final RawBsonDocument END = new RawBsonDocument(new BsonDocument(), new BsonDocumentCodec());
+
+    private static final InsertManyOptions UNORDERED = new InsertManyOptions().ordered(false);
+
+    private final MongoDatabase db;
+    private final ApplicationContext context;
+    private final Path dir;
+    private final TransferFormat format;
+    private final boolean compressed;
+    private final int workers;
+    private final int batchSize;
+    private final Duration progressInterval;
+    private final boolean exitWhenDone;
+
+    public UserImporter(
+            @Autowired MongoDBUserRepository repo,
+            @Autowired ApplicationContext context,
+            @Value("${user.transfer.dir:user-export}") String dir,
+            @Value("${user.transfer.format:NDJSON}") TransferFormat format,
+            @Value("${user.transfer.compressed:true}") boolean compressed,
+            @Value("${user.import.workers:0}") int workers,
+            @Value("${user.transfer.batchSize:1000}") int batchSize,
+            @Value("${user.transfer.progressSeconds:10}") long progressSeconds,
+            @Value("${user.transfer.exit:true}") boolean exitWhenDone)
+    {
+        this.db = repo.getDatabase();
+        this.context = context;
+        this.dir = Paths.get(dir);
+        this.format = format;
+        this.compressed = compressed;
+        this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.batchSize = batchSize;
+        this.progressInterval = Duration.ofSeconds(progressSeconds);
+        this.exitWhenDone = exitWhenDone;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        boolean succeeded = false;
+        try {
+            this.importAll();
+            succeeded = true;
+        } finally {
+            if (this.exitWhenDone) {
+                int status = succeeded ? 0 : 1;
+                System.exit(SpringApplication.exit(this.context, () -> status));
+            }
+        }
+    }
+
+    /**
+     * Import each collection whose file is in the directory
+     * @return the final progress of the import
+     * @throws Exception if a collection cannot be imported
+     */
+    public TransferProgress importAll() throws Exception {
+        TransferProgress progress = new TransferProgress();
+        logger.info(String.format("Importing from %s as %s%s with %d workers",
+                this.dir, this.format, this.compressed ? " (gzip)" : "", this.workers));
+
+        Disposable reporter = Flux.interval(this.progressInterval, this.progressInterval)
+                .subscribe(tick -> logger.info("Import progress: " + progress));
+        try {
+            for (String collection : UserExporter.COLLECTIONS) {
+                Path path = this.dir.resolve(this.format.fileName(collection, this.compressed));
+                if (Files.exists(path)) {
+                    this.importCollection(collection, path, progress);
+                } else {
+                    logger.warn(String.format("Not importing %s, as %s does not exist", collection, path));
+                }
+            }
+        } finally {
+            reporter.dispose();
+        }
+
+        logger.info(String.format("Import finished: %s, %d documents already present", progress, progress.getSkipped()));
+        return progress;
+    }
+
+    /**
+     * @return the user of a document, by which it is given to a worker, or its own identity if it has no user
+     */
+    static BsonValue userOf(RawBsonDocument doc) {
+        BsonValue user = doc.get("userIdentity");
+        if (user == null) {
+            user = doc.get("userId");
+        }
+        return user != null ? user : doc.get("_id");
+    }
+
+    /**
+     * @return the worker to which a document is given
+     */
+    static int workerOf(RawBsonDocument doc, int workers) {
+        BsonValue user = userOf(doc);
+        return user == null ? 0 : Math.floorMod(user.hashCode(), workers);
+    }
+
+    private void importCollection(String collection, Path path, TransferProgress progress) throws Exception {
+        MongoCollection<RawBsonDocument> docs = this.db.getCollection(collection, RawBsonDocument.class);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+
+        List<BlockingQueue<RawBsonDocument>> queues = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < this.workers; i++) {
+            BlockingQueue<RawBsonDocument> queue = new ArrayBlockingQueue<>(this.batchSize * 2);
+            queues.add(queue);
+            tasks.add(pool.submit(() -> this.insertFrom(queue, docs, collection, progress, failure)));
+        }
+
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+        if (this.compressed) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        try (TransferFormat.DocumentReader reader = this.format.reader(in)) {
+            for (RawBsonDocument doc = reader.read(); doc != null && failure.get() == null; doc = reader.read()) {
+                queues.get(workerOf(doc, this.workers)).put(doc);
+            }
+        } finally {
+            for (BlockingQueue<RawBsonDocument> queue : queues) {
+                queue.put(END);
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+            pool.shutdown();
+        }
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Insert the documents given to a worker, in batches.  After a failure, the worker keeps taking documents, so
+     * that the reader is not blocked, but inserts no more
+     */
+    private void insertFrom(BlockingQueue<RawBsonDocument> queue, MongoCollection<RawBsonDocument> docs,
+                            String collection, TransferProgress progress, AtomicReference<Exception> failure)
+    {
+        List<RawBsonDocument> batch = new ArrayList<>(this.batchSize);
+        try {
+            for (RawBsonDocument doc = queue.take(); doc != END; doc = queue.take()) {
+                batch.add(doc);
+                if (batch.size() == this.batchSize) {
+                    this.insert(docs, batch, collection, progress, failure);
+                }
+            }
+            this.insert(docs, batch, collection, progress, failure);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    private void insert(MongoCollection<RawBsonDocument> docs, List<RawBsonDocument> batch, String collection,
+                        TransferProgress progress, AtomicReference<Exception> failure)
+    {
+        if (batch.isEmpty() || failure.get() != null) {
+            batch.clear();
+            return;
+        }
+
+        int size = batch.size();
+        int skipped = 0;
+        try {
+            Mono.from(docs.insertMany(batch, UNORDERED)).block();
+        } catch (MongoBulkWriteException e) {
+            // Documents that are already present break the unique index on _id, and are skipped
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                    failure.compareAndSet(null, e);
+                    return;
+                }
+            }
+            if (e.getWriteConcernError() != null) {
+                failure.compareAndSet(null, e);
+                return;
+            }
+            skipped = e.getWriteErrors().size();
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+            return;
+        } finally {
+            batch.clear();
+        }
+
+        progress.transferred(collection, size - skipped);
+        progress.skipped(skipped);
+    }
+}
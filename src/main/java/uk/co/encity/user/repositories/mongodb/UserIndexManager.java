@@ -0,0 +1,379 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import javax.annotation.PostConstruct;
+import java.time.Instant;
+import java.util.*;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Indexes.*;
+import static com.mongodb.client.model.Sorts.ascending;
+import static com.mongodb.client.model.Sorts.descending;
+import static com.mongodb.client.model.Sorts.orderBy;
+
+/**
+ * Declares the indexes that the user repositories rely on, and creates them on start-up.  Creating an
+ * index that already exists with the same specification is a no-op, so this is safe on every start.
+ *
+ * Optionally, the manager also asks MongoDB to explain each of the repositories' queries, and warns
+ * (or refuses to start) if a query would scan a collection or sort in memory rather than use an index
+ */
+@Component
+@Profile("!memory & !file")
+public class UserIndexManager {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    /**
+     * Plan stages that indicate a query is not supported by an index
+     */
+    private static final Set<String> UNSUPPORTED_STAGES = new HashSet<>(Arrays.asList("COLLSCAN", "SORT"));
+
+    /**
+     * Server error codes for an index that already exists with different options or keys
+     */
+    private static final int INDEX_OPTIONS_CONFLICT = 85;
+    private static final int INDEX_KEY_SPECS_CONFLICT = 86;
+
+    private final MongoDatabase db;
+    private final boolean createIndexes;
+    private final QueryPlanCheck queryPlanCheck;
+
+    /**
+     * A query issued by a repository, with placeholder values, so that its plan can be checked
+     */
+    static final class QueryShape {
+        final String description;
+        final String collection;
+        final Bson filter;
+        final Bson sort;
+        final Collation collation;
+
+        QueryShape(String description, String collection, Bson filter, Bson sort) {
+            this(description, collection, filter, sort, null);
+        }
+
+        /**
+         * @param collation the collation of the query, which must match that of the index it needs
+         */
+        QueryShape(String description, String collection, Bson filter, Bson sort, Collation collation) {
+            this.description = description;
+            this.collection = collection;
+            this.filter = filter;
+            this.sort = sort;
+            this.collation = collation;
+        }
+    }
+
+    public UserIndexManager(
+            @Autowired MongoDBUserRepository repo,
+            @Value("${user.indexes.create:true}") boolean createIndexes,
+            @Value("${user.indexes.queryPlanCheck:OFF}") QueryPlanCheck queryPlanCheck)
+    {
+        this.db = repo.getDatabase();
+        this.createIndexes = createIndexes;
+        this.queryPlanCheck = queryPlanCheck;
+    }
+
+    /**
+     * @return the indexes required by the repositories, keyed by collection name
+     */
+    static Map<String, List<IndexModel>> requiredIndexes() {
+        Map<String, List<IndexModel>> indexes = new LinkedHashMap<>();
+
+        indexes.put("user_snapshots", Arrays.asList(
+                new IndexModel(
+                        compoundIndex(ascending("userIdentity"), descending("lastUpdate")),
+                        new IndexOptions().name("userIdentity_lastUpdate")),
+                // Supports finding the nearest snapshot at or before a version, and the initial snapshots read by a rebuild
+                new IndexModel(
+                        compoundIndex(ascending("userIdentity"), ascending("toVersion")),
+                        new IndexOptions().name("userIdentity_toVersion")),
+                // Supports case-insensitive lookup of users by email address, with or without their domain
+                new IndexModel(
+                        compoundIndex(ascending("emailAddress"), ascending("domain"), ascending("toVersion")),
+                        new IndexOptions().name("emailAddress_domain_toVersion").collation(UserSnapshot.EMAIL_COLLATION))));
+
+        // Unique, so that only one event can be stored for each version of a user
+        indexes.put("user_events", Arrays.asList(
+                new IndexModel(
+                        compoundIndex(ascending("userId"), ascending("userVersionNumber")),
+                        new IndexOptions().name("userId_userVersionNumber").unique(true))));
+
+        // Archived snapshots are only read at an earlier version or time, and archived events only after them
+        indexes.put(SnapshotCompactor.ARCHIVED_SNAPSHOTS, Arrays.asList(
+                new IndexModel(
+                        compoundIndex(ascending("userIdentity"), descending("lastUpdate")),
+                        new IndexOptions().name("userIdentity_lastUpdate")),
+                new IndexModel(
+                        compoundIndex(ascending("userIdentity"), ascending("toVersion")),
+                        new IndexOptions().name("userIdentity_toVersion"))));
+
+        indexes.put(SnapshotCompactor.ARCHIVED_EVENTS, Arrays.asList(
+                new IndexModel(
+                        compoundIndex(ascending("userId"), ascending("userVersionNumber")),
+                        new IndexOptions().name("userId_userVersionNumber").unique(true))));
+
+        indexes.put("user_commands", Arrays.asList(
+                new IndexModel(
+                        compoundIndex(ascending("userId"), ascending("timeStamp")),
+                        new IndexOptions().name("userId_timeStamp"))));
+
+        // Supports listing the users of a tenancy, filtered by status, in order of identity
+        indexes.put("user_view", Arrays.asList(
+                new IndexModel(
+                        compoundIndex(
+                                ascending("user.tenancyIdentity"),
+                                ascending("user.tenantStatus"),
+                                ascending("user.providerStatus"),
+                                ascending("_id")),
+                        new IndexOptions().name("tenancy_tenantStatus_providerStatus_id")),
+                // Supports the expiry sweeper's search for unconfirmed users whose confirmation window has closed
+                new IndexModel(
+                        compoundIndex(ascending("user.tenantStatus"), ascending("user.expiryTime")),
+                        new IndexOptions().name("tenantStatus_expiryTime"))));
+
+        // Supports the outbox relay's search for messages that are not leased
+        indexes.put("user_outbox", Arrays.asList(
+                new IndexModel(
+                        compoundIndex(ascending("claimedUntil"), ascending("_id")),
+                        new IndexOptions().name("claimedUntil_id"))));
+
+        return indexes;
+    }
+
+    /**
+     * @return the queries issued by the repositories, for checking against the indexes
+     */
+    static List<QueryShape> repositoryQueries() {
+        ObjectId anyId = new ObjectId();
+
+        return Arrays.asList(
+                new QueryShape(
+                        "latest snapshot of a user",
+                        "user_snapshots",
+                        eq("userIdentity", anyId),
+                        descending("lastUpdate")),
+                new QueryShape(
+                        "latest snapshots of a batch of users",
+                        "user_snapshots",
+                        in("userIdentity", anyId, new ObjectId()),
+                        orderBy(ascending("userIdentity"), descending("lastUpdate"))),
+                new QueryShape(
+                        "nearest snapshot at or before a version",
+                        "user_snapshots",
+                        and(eq("userIdentity", anyId), lte("toVersion", 1)),
+                        descending("toVersion")),
+                new QueryShape(
+                        "nearest snapshot at or before a time",
+                        "user_snapshots",
+                        and(eq("userIdentity", anyId), lte("lastUpdate", new Date())),
+                        descending("lastUpdate")),
+                new QueryShape(
+                        "archived snapshot at or before a version",
+                        SnapshotCompactor.ARCHIVED_SNAPSHOTS,
+                        and(eq("userIdentity", anyId), lte("toVersion", 1)),
+                        descending("toVersion")),
+                new QueryShape(
+                        "snapshots in user order for compaction",
+                        "user_snapshots",
+                        gt("userIdentity", anyId),
+                        ascending("userIdentity", "toVersion")),
+                new QueryShape(
+                        "users with an email address in a domain",
+                        "user_snapshots",
+                        UserSnapshot.emailFilter("example.com", "someone@example.com"),
+                        ascending("emailAddress"),
+                        UserSnapshot.EMAIL_COLLATION),
+                new QueryShape(
+                        "initial snapshots in a range of users",
+                        "user_snapshots",
+                        and(gte("userIdentity", anyId), lt("userIdentity", new ObjectId()), eq("toVersion", 1)),
+                        ascending("userIdentity")),
+                new QueryShape(
+                        "events in a range of users",
+                        "user_events",
+                        and(gte("userId", anyId), lt("userId", new ObjectId())),
+                        ascending("userId", "userVersionNumber")),
+                new QueryShape(
+                        "events following a snapshot",
+                        "user_events",
+                        and(eq("userId", anyId), gt("userVersionNumber", 1)),
+                        ascending("userVersionNumber")),
+                new QueryShape(
+                        "archived events following a snapshot",
+                        SnapshotCompactor.ARCHIVED_EVENTS,
+                        and(eq("userId", anyId), gt("userVersionNumber", 1)),
+                        ascending("userVersionNumber")),
+                new QueryShape(
+                        "commands for a user",
+                        "user_commands",
+                        eq("userId", anyId),
+                        ascending("timeStamp")),
+                new QueryShape(
+                        "users of a tenancy",
+                        "user_view",
+                        UserView.tenancyFilter(anyId, Collections.emptySet(), Collections.emptySet(), anyId),
+                        ascending("_id")),
+                new QueryShape(
+                        "unconfirmed users past their expiry time",
+                        "user_view",
+                        UserView.expiredFilter(Instant.now()),
+                        ascending("user.expiryTime")),
+                new QueryShape(
+                        "outbox messages that are not leased",
+                        "user_outbox",
+                        lt("claimedUntil", new Date()),
+                        ascending("_id")));
+    }
+
+    @PostConstruct
+    public void start() {
+        if (this.createIndexes) {
+            this.createIndexes();
+        }
+        if (this.queryPlanCheck != QueryPlanCheck.OFF) {
+            this.checkQueryPlans();
+        }
+    }
+
+    /**
+     * Create any of the required indexes that do not already exist.  An existing index whose options differ
+     * from the declaration (for example, one created before it was declared unique) is dropped and rebuilt
+     */
+    public void createIndexes() {
+        for (Map.Entry<String, List<IndexModel>> entry : requiredIndexes().entrySet()) {
+            MongoCollection<Document> collection = db.getCollection(entry.getKey());
+            for (IndexModel index : entry.getValue()) {
+                try {
+                    Mono.from(collection.createIndex(index.getKeys(), index.getOptions())).block();
+                } catch (MongoCommandException e) {
+                    if (e.getErrorCode() != INDEX_OPTIONS_CONFLICT && e.getErrorCode() != INDEX_KEY_SPECS_CONFLICT) {
+                        throw e;
+                    }
+                    // Check before dropping the old index, so a failed rebuild cannot leave the collection without one
+                    if (Boolean.TRUE.equals(index.getOptions().isUnique())) {
+                        Document duplicate = Mono.from(collection.aggregate(duplicateKeys(index.getKeys()))
+                                .allowDiskUse(true)
+                                .first()).block();
+                        if (duplicate != null) {
+                            throw new IllegalStateException(String.format(
+                                    "Cannot make index %s on %s unique, as documents share the key %s.  Remove the " +
+                                    "duplicates, or start with user.indexes.create=false to keep the existing index",
+                                    index.getOptions().getName(), entry.getKey(), duplicate.get("_id", Document.class).toJson()));
+                        }
+                    }
+                    logger.warn(String.format("Rebuilding index %s on %s: %s",
+                            index.getOptions().getName(), entry.getKey(), e.getErrorMessage()));
+                    Mono.from(collection.dropIndex(index.getOptions().getName())).block();
+                    Mono.from(collection.createIndex(index.getKeys(), index.getOptions())).block();
+                }
+            }
+            logger.info(String.format("Ensured %d indexes on %s", entry.getValue().size(), entry.getKey()));
+        }
+    }
+
+    /**
+     * @param keys the keys of an index
+     * @return an aggregation that returns a key held by more than one document, if there is one
+     */
+    static List<Bson> duplicateKeys(Bson keys) {
+        Document key = new Document();
+        for (String field : keys.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).keySet()) {
+            key.append(field, "$" + field);
+        }
+        return Arrays.asList(
+                new Document("$group", new Document("_id", key).append("count", new Document("$sum", 1))),
+                new Document("$match", new Document("count", new Document("$gt", 1))),
+                new Document("$limit", 1));
+    }
+
+    /**
+     * Explain each repository query and report any that are not supported by an index
+     * @throws IllegalStateException if the check is in FAIL mode and a query is not supported by an index
+     */
+    public void checkQueryPlans() {
+        List<String> problems = new ArrayList<>();
+
+        for (QueryShape query : repositoryQueries()) {
+            Document find = new Document("find", query.collection)
+                    .append("filter", query.filter.toBsonDocument(BsonDocument.class, db.getCodecRegistry()))
+                    .append("sort", query.sort.toBsonDocument(BsonDocument.class, db.getCodecRegistry()));
+            if (query.collation != null) {
+                find.append("collation", query.collation.asDocument());
+            }
+            Document explain = Mono.from(db.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"))).block();
+
+            Set<String> stages = unsupportedStages(explain);
+            if (stages.isEmpty()) {
+                logger.debug(String.format("Query for %s on %s uses an index", query.description, query.collection));
+            } else {
+                problems.add(String.format("query for %s on %s is not supported by an index (plan has %s)",
+                        query.description, query.collection, stages));
+            }
+        }
+
+        for (String problem : problems) {
+            logger.warn("Query plan check: " + problem);
+        }
+
+        if (!problems.isEmpty() && this.queryPlanCheck == QueryPlanCheck.FAIL) {
+            throw new IllegalStateException("Query plan check failed: " + String.join("; ", problems));
+        }
+    }
+
+    /**
+     * Find the stages of a winning query plan that indicate a collection scan or an in-memory sort
+     * @param explain the output of the <code>explain</code> command
+     * @return the names of any such stages
+     */
+    static Set<String> unsupportedStages(Document explain) {
+        Set<String> found = new TreeSet<>();
+        collectWinningPlanStages(explain, false, found);
+        found.retainAll(UNSUPPORTED_STAGES);
+        return found;
+    }
+
+    private static void collectWinningPlanStages(Object node, boolean inWinningPlan, Set<String> stages) {
+        if (node instanceof Document) {
+            Document doc = (Document) node;
+            for (Map.Entry<String, Object> field : doc.entrySet()) {
+                if (field.getKey().equals("rejectedPlans")) {
+                    continue;
+                }
+                if (inWinningPlan && field.getKey().equals("stage") && field.getValue() instanceof String) {
+                    stages.add((String) field.getValue());
+                }
+                collectWinningPlanStages(
+                        field.getValue(),
+                        inWinningPlan || field.getKey().equals("winningPlan"),
+                        stages);
+            }
+        } else if (node instanceof List) {
+            for (Object element : (List<?>) node) {
+                collectWinningPlanStages(element, inWinningPlan, stages);
+            }
+        }
+    }
+}
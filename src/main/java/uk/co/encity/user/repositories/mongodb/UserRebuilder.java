@@ -0,0 +1,431 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.Logger;
+import reactor.util.Loggers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import static com.mongodb.client.model.Aggregates.bucketAuto;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.include;
+import static com.mongodb.client.model.Sorts.ascending;
+
+/**
+ * Rebuilds the latest snapshot and the <code>user_view</code> document of every user from the event store, for use
+ * when the meaning of an event has changed or a bad deploy has written wrong snapshots.
+ *
+ * The users are split into partitions of roughly equal size by ranges of user identity.  Each partition is rebuilt
+ * by a task on a fork-join pool, which streams the partition's initial snapshots and events with two cursors in
+ * user order, folds each user's events into its initial snapshot, and writes the results in bulk.  Progress and
+ * throughput are logged while the rebuild runs.  Events archived by the {@link SnapshotCompactor} are merged into
+ * the live ones from a third cursor, and archived snapshots are dropped along with the live ones they replace.
+ *
+ * The rebuild runs on start-up when <code>user.rebuild.run=true</code>, and the application exits when it is done.
+ * Other instances of the service keep any users they have cached until those users next change
+ */
+@Component
+@Profile("!memory & !file")
+@ConditionalOnProperty(name = "user.rebuild.run", havingValue = "true")
+public class UserRebuilder implements ApplicationRunner {
+
+    /**
+     * The {@link Logger} for this class
+     */
+    private final Logger logger = Loggers.getLogger(getClass());
+
+    /**
+     * The version of the snapshot written when a user is added, which is the start of every rebuild
+     */
+    static final int INITIAL_VERSION = 1;
+
+    /**
+     * The order in which events are folded: by user, then by version
+     */
+    private static final Comparator<MongoDBUserEvent> EVENT_ORDER = Comparator
+            .comparing(MongoDBUserEvent::getUserId)
+            .thenComparingInt(MongoDBUserEvent::getUserVersionNumber);
+
+    private final MongoDatabase db;
+    private final ApplicationContext context;
+    private final int partitions;
+    private final int parallelism;
+    private final int batchSize;
+    private final Duration progressInterval;
+    private final boolean rebuildSnapshots;
+    private final boolean rebuildViews;
+    private final boolean exitWhenDone;
+
+    public UserRebuilder(
+            @Autowired MongoDBUserRepository repo,
+            @Autowired ApplicationContext context,
+            @Value("${user.rebuild.partitions:64}") int partitions,
+            @Value("${user.rebuild.parallelism:0}") int parallelism,
+            @Value("${user.rebuild.batchSize:500}") int batchSize,
+            @Value("${user.rebuild.progressSeconds:10}") long progressSeconds,
+            @Value("${user.rebuild.snapshots:true}") boolean rebuildSnapshots,
+            @Value("${user.rebuild.views:true}") boolean rebuildViews,
+            @Value("${user.rebuild.exit:true}") boolean exitWhenDone)
+    {
+        this.db = repo.getDatabase();
+        this.context = context;
+        this.partitions = partitions;
+        this.parallelism = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.batchSize = batchSize;
+        this.progressInterval = Duration.ofSeconds(progressSeconds);
+        this.rebuildSnapshots = rebuildSnapshots;
+        this.rebuildViews = rebuildViews;
+        this.exitWhenDone = exitWhenDone;
+    }
+
+    /**
+     * A range of user identities, from the first (inclusive) to the last (exclusive, or unbounded if null)
+     */
+    static final class Partition {
+        final ObjectId from;
+        final ObjectId to;
+        final long users;
+
+        Partition(ObjectId from, ObjectId to, long users) {
+            this.from = from;
+            this.to = to;
+            this.users = users;
+        }
+
+        /**
+         * @param field the field that holds the user identity
+         * @return a filter that matches the partition
+         */
+        Bson range(String field) {
+            return this.to == null ? gte(field, this.from) : and(gte(field, this.from), lt(field, this.to));
+        }
+
+        @Override
+        public String toString() { return String.format("[%s, %s)", this.from, this.to == null ? "" : this.to); }
+    }
+
+    /**
+     * The progress of a rebuild, which is updated concurrently by the partition tasks
+     */
+    static final class Progress {
+        private final long expectedUsers;
+        private final long startNanos = System.nanoTime();
+        private final LongAdder users = new LongAdder();
+        private final LongAdder events = new LongAdder();
+        private final LongAdder skippedEvents = new LongAdder();
+        private final AtomicInteger failedPartitions = new AtomicInteger();
+
+        Progress(long expectedUsers) {
+            this.expectedUsers = expectedUsers;
+        }
+
+        void userRebuilt(int eventCount) {
+            this.users.increment();
+            this.events.add(eventCount);
+        }
+
+        void eventSkipped() { this.skippedEvents.increment(); }
+
+        void partitionFailed() { this.failedPartitions.incrementAndGet(); }
+
+        long getUsers() { return this.users.sum(); }
+        long getEvents() { return this.events.sum(); }
+        long getSkippedEvents() { return this.skippedEvents.sum(); }
+        int getFailedPartitions() { return this.failedPartitions.get(); }
+
+        @Override
+        public String toString() {
+            long users = this.getUsers();
+            long events = this.getEvents();
+            double seconds = Math.max(System.nanoTime() - this.startNanos, 1) / 1e9;
+            return String.format("%d/%d users (%.1f%%), %d events in %.1fs - %.0f users/s, %.0f events/s",
+                    users, this.expectedUsers, this.expectedUsers == 0 ? 100.0 : 100.0 * users / this.expectedUsers,
+                    events, seconds, users / seconds, events / seconds);
+        }
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        Progress progress = this.rebuild();
+        if (this.exitWhenDone) {
+            int status = progress.getFailedPartitions() == 0 ? 0 : 1;
+            System.exit(SpringApplication.exit(this.context, () -> status));
+        }
+    }
+
+    /**
+     * Rebuild every user
+     * @return the final progress of the rebuild
+     */
+    public Progress rebuild() {
+        List<Partition> ranges = this.partition();
+        Progress progress = new Progress(ranges.stream().mapToLong(p -> p.users).sum());
+        logger.info(String.format("Rebuilding %d users in %d partitions with parallelism %d (snapshots: %b, views: %b)",
+                progress.expectedUsers, ranges.size(), this.parallelism, this.rebuildSnapshots, this.rebuildViews));
+
+        Disposable reporter = Flux.interval(this.progressInterval, this.progressInterval)
+                .subscribe(tick -> logger.info("Rebuild progress: " + progress));
+
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Partition range : ranges) {
+                tasks.add(pool.submit(() -> this.rebuildPartition(range, progress)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+            reporter.dispose();
+        }
+
+        logger.info(String.format("Rebuild finished: %s, %d events without an initial snapshot, %d failed partitions",
+                progress, progress.getSkippedEvents(), progress.getFailedPartitions()));
+        return progress;
+    }
+
+    /**
+     * Split the users into ranges of roughly equal size, using the initial snapshot of each user
+     * @return the partitions, in user order
+     */
+    private List<Partition> partition() {
+        MongoCollection<Document> snapshots = db.getCollection("user_snapshots");
+        List<Document> buckets = Flux.from(snapshots.aggregate(Arrays.asList(
+                        match(eq("toVersion", INITIAL_VERSION)),
+                        project(include("userIdentity")),
+                        bucketAuto("$userIdentity", this.partitions)))
+                .allowDiskUse(true))
+                .collectList()
+                .block();
+
+        List<Partition> ranges = new ArrayList<>();
+        for (int i = 0; i < buckets.size(); i++) {
+            Document bounds = buckets.get(i).get("_id", Document.class);
+            boolean last = i == buckets.size() - 1;
+            ranges.add(new Partition(
+                    bounds.getObjectId("min"),
+                    last ? null : bounds.getObjectId("max"),
+                    buckets.get(i).getInteger("count")));
+        }
+        return ranges;
+    }
+
+    /**
+     * Rebuild the users in one partition.  A failure is logged and counted, and does not stop other partitions
+     */
+    private void rebuildPartition(Partition range, Progress progress) {
+        MongoCollection<UserSnapshot> snapshots = db.getCollection("user_snapshots", UserSnapshot.class);
+        MongoCollection<MongoDBUserEvent> events = db.getCollection("user_events", MongoDBUserEvent.class);
+        MongoCollection<MongoDBUserEvent> archivedEvents = db.getCollection(SnapshotCompactor.ARCHIVED_EVENTS, MongoDBUserEvent.class);
+        MongoCollection<UserView> views = db.getCollection("user_view", UserView.class);
+
+        List<WriteModel<UserSnapshot>> snapshotWrites = new ArrayList<>();
+        List<WriteModel<UserView>> viewWrites = new ArrayList<>();
+
+        try (Stream<UserSnapshot> initial = Flux.from(snapshots
+                    .find(and(range.range("userIdentity"), eq("toVersion", INITIAL_VERSION)))
+                    .sort(ascending("userIdentity"))
+                    .batchSize(this.batchSize))
+                    .toStream(this.batchSize);
+             Stream<MongoDBUserEvent> trailing = Flux.from(events
+                    .find(range.range("userId"))
+                    .sort(ascending("userId", "userVersionNumber"))
+                    .batchSize(this.batchSize))
+                    .toStream(this.batchSize);
+             Stream<MongoDBUserEvent> archived = Flux.from(archivedEvents
+                    .find(range.range("userId"))
+                    .sort(ascending("userId", "userVersionNumber"))
+                    .batchSize(this.batchSize))
+                    .toStream(this.batchSize))
+        {
+            fold(initial.iterator(), merge(archived.iterator(), trailing.iterator(), EVENT_ORDER), user -> {
+                this.addWrites(user, snapshotWrites, viewWrites);
+                if (snapshotWrites.size() + viewWrites.size() >= this.batchSize) {
+                    this.flush(snapshots, snapshotWrites, views, viewWrites);
+                }
+            }, progress);
+            this.flush(snapshots, snapshotWrites, views, viewWrites);
+
+            // Archived snapshots were folded from the same events as the live ones, so they are replaced as well
+            if (this.rebuildSnapshots) {
+                Mono.from(db.getCollection(SnapshotCompactor.ARCHIVED_SNAPSHOTS)
+                        .deleteMany(and(range.range("userIdentity"), gt("toVersion", INITIAL_VERSION)))).block();
+            }
+        } catch (RuntimeException e) {
+            progress.partitionFailed();
+            logger.error(String.format("Failed to rebuild partition %s: %s", range, e.getMessage()));
+        }
+    }
+
+    /**
+     * Fold the events of each user into its initial snapshot.  Both inputs must be sorted by user, and the events
+     * of each user by version.  Events of a user with no initial snapshot are skipped
+     * @param initial the initial snapshots of the users
+     * @param events the events of the same users
+     * @param sink receives each rebuilt user, whose replay length is the number of events folded
+     * @param progress the progress to update
+     */
+    static void fold(Iterator<UserSnapshot> initial, Iterator<MongoDBUserEvent> events,
+                     Consumer<ReplayedUser> sink, Progress progress)
+    {
+        List<MongoDBUserEvent> run = new ArrayList<>();
+        MongoDBUserEvent next = events.hasNext() ? events.next() : null;
+
+        while (initial.hasNext()) {
+            UserSnapshot snap = initial.next();
+            ObjectId userId = snap.getUserIdentity();
+
+            while (next != null && next.getUserId().compareTo(userId) < 0) {
+                progress.eventSkipped();
+                next = events.hasNext() ? events.next() : null;
+            }
+
+            run.clear();
+            while (next != null && next.getUserId().equals(userId)) {
+                // Any event recorded at the snapshot's version is already part of it
+                if (next.getUserVersionNumber() > snap.getToVersion()) {
+                    run.add(next);
+                }
+                next = events.hasNext() ? events.next() : null;
+            }
+
+            sink.accept(new ReplayedUser(UserState.of(snap).apply(run), run.size(), 0));
+            progress.userRebuilt(run.size());
+        }
+
+        while (next != null) {
+            progress.eventSkipped();
+            next = events.hasNext() ? events.next() : null;
+        }
+    }
+
+    /**
+     * Merge two iterators that are sorted in the same order.  Where both hold the same element, as they may while
+     * the compactor is moving it from one to the other, it is returned once
+     * @param first one of the iterators
+     * @param second the other iterator
+     * @param order the order of both iterators
+     * @return an iterator over the elements of both, in order
+     */
+    static <T> Iterator<T> merge(Iterator<T> first, Iterator<T> second, Comparator<? super T> order) {
+        return new Iterator<T>() {
+            private T nextFirst = first.hasNext() ? first.next() : null;
+            private T nextSecond = second.hasNext() ? second.next() : null;
+
+            @Override
+            public boolean hasNext() { return this.nextFirst != null || this.nextSecond != null; }
+
+            @Override
+            public T next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                int comparison = this.nextFirst == null ? 1 :
+                        this.nextSecond == null ? -1 : order.compare(this.nextFirst, this.nextSecond);
+                T result = comparison <= 0 ? this.nextFirst : this.nextSecond;
+                if (comparison <= 0) {
+                    this.nextFirst = first.hasNext() ? first.next() : null;
+                }
+                if (comparison >= 0) {
+                    this.nextSecond = second.hasNext() ? second.next() : null;
+                }
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Add the writes for a rebuilt user: a single snapshot at its latest version, replacing any later than the
+     * initial one, and its view
+     */
+    private void addWrites(ReplayedUser user, List<WriteModel<UserSnapshot>> snapshotWrites,
+                           List<WriteModel<UserView>> viewWrites)
+    {
+        ObjectId userId = user.getState().getUserIdentity();
+
+        if (this.rebuildSnapshots) {
+            ObjectId snapshotId = null;
+            if (user.getReplayedEvents() > 0) {
+                UserSnapshot snap = user.getState().toSnapshot(new ObjectId());
+                snapshotId = snap.getSnapshotId();
+                snapshotWrites.add(new InsertOneModel<>(snap));
+                user = new ReplayedUser(user.getState(), 0, 0);
+            }
+            // Excludes the new snapshot, so the writes can be applied in any order
+            snapshotWrites.add(new DeleteManyModel<>(and(
+                    eq("userIdentity", userId),
+                    gt("toVersion", INITIAL_VERSION),
+                    ne("_id", snapshotId))));
+        }
+
+        if (this.rebuildViews) {
+            UserView view = UserView.of(user);
+            viewWrites.add(new ReplaceOneModel<>(view.replaceFilter(), view, UserView.UPSERT));
+        }
+    }
+
+    private void flush(MongoCollection<UserSnapshot> snapshots, List<WriteModel<UserSnapshot>> snapshotWrites,
+                       MongoCollection<UserView> views, List<WriteModel<UserView>> viewWrites)
+    {
+        BulkWriteOptions unordered = new BulkWriteOptions().ordered(false);
+
+        if (!snapshotWrites.isEmpty()) {
+            Mono.from(snapshots.bulkWrite(snapshotWrites, unordered)).block();
+            snapshotWrites.clear();
+        }
+
+        if (!viewWrites.isEmpty()) {
+            try {
+                Mono.from(views.bulkWrite(viewWrites, unordered)).block();
+            } catch (MongoBulkWriteException e) {
+                // A view that is already at a later version fails its upsert, and is left as it is
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    if (ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY) {
+                        throw e;
+                    }
+                }
+            }
+            viewWrites.clear();
+        }
+    }
+}
@@ -1,20 +1,30 @@
 package uk.co.encity.user.repositories.mongodb;
 
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
 import lombok.Getter;
 import lombok.Setter;
 import org.bson.codecs.pojo.annotations.BsonIgnore;
 import org.bson.codecs.pojo.annotations.BsonProperty;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import reactor.util.Logger;
 import reactor.util.Loggers;
+import uk.co.encity.user.components.EmailRecipient;
 import uk.co.encity.user.components.HasUser;
 import uk.co.encity.user.entity.User;
 import uk.co.encity.user.entity.UserProviderStatus;
 import uk.co.encity.user.entity.UserTenantStatus;
 
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+
 /**
  * A 'raw' snapshot of a user at a point in time.  There are no derived fields
  * or business logic in a snapshot.  To obtain a logical entity, all subsequent events
@@ -48,34 +58,95 @@ public class UserSnapshot implements HasUser {
     private Instant expiryTime;
     private Instant userCreationTime;
 
+    /**
+     * Compares email addresses, and domains, without regard to case.  Queries must use it to be supported by the
+     * email address index
+     */
+    static final Collation EMAIL_COLLATION = Collation.builder()
+            .locale("en")
+            .collationStrength(CollationStrength.SECONDARY)
+            .build();
+
     public UserSnapshot() {
         this.snapshotId = new ObjectId();
     }
 
     /**
-     * Copy constructor
-     * @param source the {@link UserSnapshot} to copy
-     * @return a copy of the <code>source</code> object
+     * Create the initial snapshot of a newly added user
+     * @param tenancyId the identity of the tenancy that the user belongs to
+     * @param domain the domain of the tenancy
+     * @param user the contact details of the user
+     * @param isAdmin whether the user is an administrator of the tenancy
+     * @param expiryHours the number of hours that the user has to confirm their account
+     * @return a version 1 snapshot of an UNCONFIRMED, ACTIVE user
+     */
+    static UserSnapshot forNewUser(String tenancyId, String domain, EmailRecipient user, boolean isAdmin, int expiryHours) {
+        return forNewUser(new ObjectId().toHexString(), tenancyId, domain, user, isAdmin, expiryHours);
+    }
+
+    /**
+     * Create the initial snapshot of a newly added user with a given identity.  The snapshot takes the identity of
+     * the user, so that the unique index on <code>_id</code> lets only one initial snapshot be stored for the user
+     * @param userId the identity of the user
+     * @return a version 1 snapshot of an UNCONFIRMED, ACTIVE user
      */
-    protected UserSnapshot(UserSnapshot source) {
-        this.snapshotId = new ObjectId(String.valueOf(source.snapshotId));
-        this.userIdentity = new ObjectId(String.valueOf(source.userIdentity));
-        this.tenancyIdentity = new ObjectId(String.valueOf(source.tenancyIdentity));
-        this.firstName = source.firstName;
-        this.lastName = source.lastName;
-        this.emailAddress = source.emailAddress;
-        this.isAdminUser = source.isAdminUser;
-        this.fromVersion = source.fromVersion;
-        this.toVersion = source.toVersion;
-        this.lastUpdate = source.lastUpdate;
-        this.tenantStatus = source.tenantStatus;
-        this.providerStatus = source.providerStatus;
-        this.domain = source.domain;
-        this.confirmUUID = source.confirmUUID;
-        this.expiryTime = source.expiryTime;
-        this.userCreationTime = source.userCreationTime;
+    static UserSnapshot forNewUser(String userId, String tenancyId, String domain, EmailRecipient user, boolean isAdmin, int expiryHours) {
+        Instant now = Instant.now();
+        UserSnapshot snap = new UserSnapshot();
+        snap.setUserIdentity(new ObjectId(userId));
+        snap.setSnapshotId(snap.getUserIdentity());
+        snap.setTenancyIdentity(new ObjectId(tenancyId));
+        snap.setFirstName(user.getFirstName());
+        snap.setLastName(user.getLastName());
+        snap.setEmailAddress(user.getEmailAddress().trim());
+        snap.setAdminUser(isAdmin);
+        snap.setTenantStatus(UserTenantStatus.UNCONFIRMED);
+        snap.setProviderStatus(UserProviderStatus.ACTIVE);
+        snap.setFromVersion(1);
+        snap.setToVersion(1);
+        snap.setLastUpdate(now);
+        snap.setDomain(domain);
+        snap.setConfirmUUID(UUID.randomUUID());
+        snap.setExpiryTime(now.plus(expiryHours, ChronoUnit.HOURS));
+        snap.setUserCreationTime(now);
+        return snap;
     }
 
+    /**
+     * Inflate a user by folding events, in version order, into the state recorded in a snapshot.  The snapshot
+     * is not changed
+     * @param snap the latest snapshot of the user, which may be null
+     * @param events the events that follow the snapshot, sorted by version
+     * @param startNanos the value of {@link System#nanoTime()} when the replay began, including the time
+     *                   taken to fetch the events
+     * @return the inflated {@link User}, or null if there is no snapshot
+     */
+    static ReplayedUser inflate(final UserSnapshot snap, final List<MongoDBUserEvent> events, long startNanos) {
+        if (snap == null) {
+            return null;
+        }
+
+        UserState state = UserState.of(snap).apply(events);
+        return new ReplayedUser(state, events.size(), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Build a filter that finds the initial snapshot of each user with an email address.  Email addresses never
+     * change, so the initial snapshot identifies every user that has one.  It must be used with
+     * {@link #EMAIL_COLLATION}
+     * @param domain the domain of the users, or null for any domain
+     * @param emailAddress the email address, in any case
+     * @return the filter
+     */
+    static Bson emailFilter(String domain, String emailAddress) {
+        List<Bson> conditions = new ArrayList<>();
+        conditions.add(eq("emailAddress", EmailRecipient.normalise(emailAddress)));
+        if (domain != null) {
+            conditions.add(eq("domain", EmailRecipient.normalise(domain)));
+        }
+        conditions.add(eq("toVersion", 1));
+        return and(conditions);
+    }
 
     @BsonProperty("_id") public ObjectId getSnapshotId() { return snapshotId; }
     @BsonProperty("_id") public void setSnapshotId(ObjectId snapshotId) { this.snapshotId = snapshotId; }
@@ -93,21 +164,6 @@ public class UserSnapshot implements HasUser {
     public String getTenancyId() { return this.tenancyIdentity.toHexString(); }
 
     public User asUser() {
-        return new User() {
-            public String getUserId() { return userIdentity.toHexString() ; }
-            public String getTenancyId() { return tenancyIdentity.toHexString(); }
-            public String getFirstName() { return firstName; }
-            public String getLastName() { return lastName; }
-            public String getEmailAddress() { return emailAddress; }
-            public boolean isAdminUser() { return isAdminUser; }
-            public int getVersion() { return toVersion; }
-            public Instant getLastUpdate() { return lastUpdate; }
-            public UserTenantStatus getTenantStatus() { return tenantStatus; }
-            public UserProviderStatus getProviderStatus() { return providerStatus; }
-            public String getDomain() { return domain; }
-            public UUID getConfirmUUID() { return confirmUUID; }
-            public Instant getCreationTime() { return userCreationTime; }
-            public Instant getExpiryTime() { return expiryTime; }
-        };
+        return UserState.of(this);
     }
 }
@@ -0,0 +1,83 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+
+import static uk.co.encity.user.repositories.mongodb.CodecSupport.*;
+
+/**
+ * A hand-written {@link Codec} for {@link UserSnapshot}, which reads and writes the same documents as the
+ * POJO codec without discovering the snapshot's properties by reflection
+ */
+final class UserSnapshotCodec implements Codec<UserSnapshot> {
+
+    @Override
+    public void encode(BsonWriter writer, UserSnapshot snap, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        writeObjectId(writer, "_id", snap.getSnapshotId());
+        writeObjectId(writer, "userIdentity", snap.getUserIdentity());
+        writeObjectId(writer, "tenancyIdentity", snap.getTenancyIdentity());
+        writeString(writer, "firstName", snap.getFirstName());
+        writeString(writer, "lastName", snap.getLastName());
+        writeString(writer, "emailAddress", snap.getEmailAddress());
+        writer.writeBoolean("adminUser", snap.isAdminUser());
+        writer.writeInt32("fromVersion", snap.getFromVersion());
+        writer.writeInt32("toVersion", snap.getToVersion());
+        writeInstant(writer, "lastUpdate", snap.getLastUpdate());
+        writeEnum(writer, "tenantStatus", snap.getTenantStatus());
+        writeEnum(writer, "providerStatus", snap.getProviderStatus());
+        writeString(writer, "domain", snap.getDomain());
+        writeUuid(writer, "confirmUUID", snap.getConfirmUUID());
+        writeInstant(writer, "expiryTime", snap.getExpiryTime());
+        writeInstant(writer, "userCreationTime", snap.getUserCreationTime());
+        writer.writeEndDocument();
+    }
+
+    @Override
+    public UserSnapshot decode(BsonReader reader, DecoderContext decoderContext) {
+        UserSnapshot snap = new UserSnapshot();
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            String name = reader.readName();
+            if (reader.getCurrentBsonType() == BsonType.NULL) {
+                reader.readNull();
+                continue;
+            }
+
+            switch (name) {
+                case "_id": snap.setSnapshotId(reader.readObjectId()); break;
+                case "userIdentity": snap.setUserIdentity(reader.readObjectId()); break;
+                case "tenancyIdentity": snap.setTenancyIdentity(reader.readObjectId()); break;
+                case "firstName": snap.setFirstName(reader.readString()); break;
+                case "lastName": snap.setLastName(reader.readString()); break;
+                case "emailAddress": snap.setEmailAddress(reader.readString()); break;
+                case "adminUser": snap.setAdminUser(reader.readBoolean()); break;
+                case "fromVersion": snap.setFromVersion(reader.readInt32()); break;
+                case "toVersion": snap.setToVersion(reader.readInt32()); break;
+                case "lastUpdate": snap.setLastUpdate(readInstant(reader)); break;
+                case "tenantStatus": snap.setTenantStatus(UserTenantStatus.valueOf(reader.readString())); break;
+                case "providerStatus": snap.setProviderStatus(UserProviderStatus.valueOf(reader.readString())); break;
+                case "domain": snap.setDomain(reader.readString()); break;
+                case "confirmUUID": snap.setConfirmUUID(readUuid(reader)); break;
+                case "expiryTime": snap.setExpiryTime(readInstant(reader)); break;
+                case "userCreationTime": snap.setUserCreationTime(readInstant(reader)); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return snap;
+    }
+
+    @Override
+    public Class<UserSnapshot> getEncoderClass() {
+        return UserSnapshot.class;
+    }
+}
@@ -0,0 +1,168 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.types.ObjectId;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The immutable state of a user, produced by folding events into a snapshot.
+ *
+ * The fields that no event changes are held in a {@link Profile}, which is created once from the snapshot and
+ * shared by every later state of the user.  Applying an event therefore allocates a single small object, and
+ * a state can be handed to any number of readers - or kept in the cache - without being copied
+ */
+final class UserState implements User {
+
+    /**
+     * The part of a user's state that is fixed when the user is created
+     */
+    static final class Profile {
+        private final ObjectId userIdentity;
+        private final String userId;
+        private final ObjectId tenancyIdentity;
+        private final String firstName;
+        private final String lastName;
+        private final String emailAddress;
+        private final boolean adminUser;
+        private final String domain;
+        private final UUID confirmUUID;
+        private final Instant creationTime;
+
+        /**
+         * The first version covered by the snapshot that the state was built from
+         */
+        private final int fromVersion;
+
+        private Profile(UserSnapshot snap) {
+            this.userIdentity = snap.getUserIdentity();
+            this.userId = snap.getUserIdentity().toHexString();
+            this.tenancyIdentity = snap.getTenancyIdentity();
+            this.firstName = snap.getFirstName();
+            this.lastName = snap.getLastName();
+            this.emailAddress = snap.getEmailAddress();
+            this.adminUser = snap.isAdminUser();
+            this.domain = snap.getDomain();
+            this.confirmUUID = snap.getConfirmUUID();
+            this.creationTime = snap.getUserCreationTime();
+            this.fromVersion = snap.getFromVersion();
+        }
+    }
+
+    private final Profile profile;
+    private final int version;
+    private final Instant lastUpdate;
+    private final UserTenantStatus tenantStatus;
+    private final UserProviderStatus providerStatus;
+    private final Instant expiryTime;
+
+    private UserState(Profile profile, int version, Instant lastUpdate, UserTenantStatus tenantStatus,
+                      UserProviderStatus providerStatus, Instant expiryTime) {
+        this.profile = profile;
+        this.version = version;
+        this.lastUpdate = lastUpdate;
+        this.tenantStatus = tenantStatus;
+        this.providerStatus = providerStatus;
+        this.expiryTime = expiryTime;
+    }
+
+    /**
+     * @param snap a snapshot, which is not retained
+     * @return the state recorded in the snapshot
+     */
+    static UserState of(UserSnapshot snap) {
+        return new UserState(
+                new Profile(snap),
+                snap.getToVersion(),
+                snap.getLastUpdate(),
+                snap.getTenantStatus(),
+                snap.getProviderStatus(),
+                snap.getExpiryTime());
+    }
+
+    /**
+     * Produce the state that follows an event, sharing this state's profile
+     * @param version the version of the user after the event
+     * @param lastUpdate the time of the event
+     * @param tenantStatus the tenant status after the event
+     * @param expiryTime the expiry time after the event
+     * @return the new state
+     */
+    UserState next(int version, Instant lastUpdate, UserTenantStatus tenantStatus, Instant expiryTime) {
+        return new UserState(this.profile, version, lastUpdate, tenantStatus, this.providerStatus, expiryTime);
+    }
+
+    /**
+     * Fold a run of events into this state.  Only the last event's version and time survive, so the
+     * intermediate states are never built
+     * @param events the events that follow this state, sorted by version
+     * @return the state after the last event, or this state if there are no events
+     */
+    UserState apply(List<MongoDBUserEvent> events) {
+        if (events.isEmpty()) {
+            return this;
+        }
+
+        UserTenantStatus status = this.tenantStatus;
+        Instant expiry = this.expiryTime;
+        for (int i = 0; i < events.size(); i++) {
+            MongoDBUserEvent e = events.get(i);
+            status = e.nextTenantStatus(status);
+            expiry = e.nextExpiryTime(expiry);
+        }
+
+        MongoDBUserEvent last = events.get(events.size() - 1);
+        return this.next(last.getUserVersionNumber(), last.getEventTime(), status, expiry);
+    }
+
+    /**
+     * @param snapshotId the identity of the new snapshot
+     * @return a snapshot that records this state
+     */
+    UserSnapshot toSnapshot(ObjectId snapshotId) {
+        UserSnapshot snap = new UserSnapshot();
+        snap.setSnapshotId(snapshotId);
+        snap.setUserIdentity(this.profile.userIdentity);
+        snap.setTenancyIdentity(this.profile.tenancyIdentity);
+        snap.setFirstName(this.profile.firstName);
+        snap.setLastName(this.profile.lastName);
+        snap.setEmailAddress(this.profile.emailAddress);
+        snap.setAdminUser(this.profile.adminUser);
+        snap.setDomain(this.profile.domain);
+        snap.setConfirmUUID(this.profile.confirmUUID);
+        snap.setUserCreationTime(this.profile.creationTime);
+        snap.setFromVersion(this.profile.fromVersion);
+        snap.setToVersion(this.version);
+        snap.setLastUpdate(this.lastUpdate);
+        snap.setTenantStatus(this.tenantStatus);
+        snap.setProviderStatus(this.providerStatus);
+        snap.setExpiryTime(this.expiryTime);
+        return snap;
+    }
+
+    ObjectId getUserIdentity() { return this.profile.userIdentity; }
+
+    /**
+     * @return the part of the state shared with the user's other states
+     */
+    Profile getProfile() { return this.profile; }
+
+    public String getUserId() { return this.profile.userId; }
+    public String getTenancyId() { return this.profile.tenancyIdentity.toHexString(); }
+    public String getFirstName() { return this.profile.firstName; }
+    public String getLastName() { return this.profile.lastName; }
+    public String getEmailAddress() { return this.profile.emailAddress; }
+    public boolean isAdminUser() { return this.profile.adminUser; }
+    public int getVersion() { return this.version; }
+    public Instant getLastUpdate() { return this.lastUpdate; }
+    public UserTenantStatus getTenantStatus() { return this.tenantStatus; }
+    public UserProviderStatus getProviderStatus() { return this.providerStatus; }
+    public String getDomain() { return this.profile.domain; }
+    public UUID getConfirmUUID() { return this.profile.confirmUUID; }
+    public Instant getCreationTime() { return this.profile.creationTime; }
+    public Instant getExpiryTime() { return this.expiryTime; }
+}
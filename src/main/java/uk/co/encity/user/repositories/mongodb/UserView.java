@@ -0,0 +1,182 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.client.model.ReplaceOptions;
+import lombok.Getter;
+import lombok.Setter;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.pojo.annotations.BsonProperty;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static com.mongodb.client.model.Aggregates.limit;
+import static com.mongodb.client.model.Aggregates.match;
+import static com.mongodb.client.model.Aggregates.project;
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Projections.include;
+
+/**
+ * The latest state of a user, as held in the <code>user_view</code> read model.  There is one document
+ * for each user, keyed by the user's identity, so reading a user is a single primary-key lookup with no
+ * events to replay.
+ *
+ * The document records the version of the user it describes.  Writes only ever replace a view with a view
+ * of the same or a later version, and a reader can compare the version with the user's events to detect a
+ * view that lags behind them.  The state itself is held as an embedded snapshot document
+ */
+@Getter @Setter
+public class UserView {
+
+    /**
+     * The field of a staleness check result that holds any event newer than the view
+     */
+    static final String NEWER_EVENTS_FIELD = "newerEvents";
+
+    /**
+     * Options for writing a view, which creates the document if the user does not have one yet
+     */
+    static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+    @BsonProperty("_id") private ObjectId userId;
+    private int version;
+
+    /**
+     * The version of the latest snapshot of the user, so that the length of the replay a snapshot would
+     * save is known without reading the snapshot
+     */
+    private int snapshotVersion;
+
+    private UserSnapshot user;
+
+    public UserView() {}
+
+    /**
+     * @param user an inflated user
+     * @return the view of the user
+     */
+    static UserView of(ReplayedUser user) {
+        UserView view = new UserView();
+        view.userId = user.getState().getUserIdentity();
+        view.version = user.getVersion();
+        view.snapshotVersion = user.getVersion() - user.getReplayedEvents();
+        view.user = user.getState().toSnapshot(null);
+        return view;
+    }
+
+    /**
+     * @return the user described by the view
+     */
+    ReplayedUser toUser() {
+        return new ReplayedUser(UserState.of(this.user), this.version - this.snapshotVersion, 0);
+    }
+
+    /**
+     * @return a filter that matches the stored view of the same user, unless it is at a later version
+     */
+    Bson replaceFilter() {
+        return and(eq("_id", this.userId), lte("version", this.version));
+    }
+
+    /**
+     * Build an aggregation that reads the view of a user together with the first event, if any, that is newer
+     * than the view, so that a stale view can be detected in the same round trip
+     * @param userId the identity of the user
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> withNewerEvents(ObjectId userId) {
+        return Arrays.asList(match(eq("_id", userId)), lookupNewerEvents());
+    }
+
+    /**
+     * Build an aggregation that reads the views of a batch of users, each with the first event, if any, that is
+     * newer than the view
+     * @param userIds the identities of the users
+     * @return the stages of the aggregation pipeline
+     */
+    static List<Bson> withNewerEvents(Collection<ObjectId> userIds) {
+        return Arrays.asList(match(in("_id", userIds)), lookupNewerEvents());
+    }
+
+    private static Bson lookupNewerEvents() {
+        List<Bson> lookupStages = Arrays.asList(
+                match(new Document("$expr", new Document("$and", Arrays.asList(
+                        new Document("$eq", Arrays.asList("$userId", "$$uid")),
+                        new Document("$gt", Arrays.asList("$userVersionNumber", "$$version")))))),
+                limit(1),
+                project(include("_id")));
+
+        return new Document("$lookup", new Document("from", "user_events")
+                .append("let", new Document("uid", "$_id").append("version", "$version"))
+                .append("pipeline", lookupStages)
+                .append("as", NEWER_EVENTS_FIELD));
+    }
+
+    /**
+     * Build a filter for a page of the users of a tenancy, to be read in order of user identity.  Both statuses are
+     * always constrained - to every value, if the caller does not filter on it - so that the index on tenancy,
+     * statuses and identity can return each combination of statuses in identity order, and the server merges them
+     * rather than sorting the page in memory
+     * @param tenancyId the identity of the tenancy
+     * @param tenantStatuses the tenant statuses to include, or empty for all
+     * @param providerStatuses the provider statuses to include, or empty for all
+     * @param afterUserId the identity of the last user on the previous page, or null for the first page
+     * @return the filter
+     */
+    static Bson tenancyFilter(ObjectId tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                              Collection<UserProviderStatus> providerStatuses, ObjectId afterUserId)
+    {
+        List<Bson> conditions = new ArrayList<>(Arrays.asList(
+                eq("user.tenancyIdentity", tenancyId),
+                in("user.tenantStatus", names(tenantStatuses, UserTenantStatus.values())),
+                in("user.providerStatus", names(providerStatuses, UserProviderStatus.values()))));
+        if (afterUserId != null) {
+            conditions.add(gt("_id", afterUserId));
+        }
+        return and(conditions);
+    }
+
+    /**
+     * Build a filter for the users whose confirmation window closed before they were confirmed or rejected.  The
+     * index on tenant status and expiry time returns them in order of expiry, longest expired first
+     * @param now the time at which to judge expiry
+     * @return the filter
+     */
+    static Bson expiredFilter(Instant now) {
+        return and(
+                eq("user.tenantStatus", UserTenantStatus.UNCONFIRMED.name()),
+                lt("user.expiryTime", Date.from(now)));
+    }
+
+    private static <E extends Enum<E>> List<String> names(Collection<E> selected, E[] all) {
+        List<String> names = new ArrayList<>();
+        for (E value : selected.isEmpty() ? Arrays.asList(all) : selected) {
+            names.add(value.name());
+        }
+        return names;
+    }
+
+    /**
+     * @param result a document produced by {@link #withNewerEvents(ObjectId)}
+     * @return true if an event has been stored since the view was written
+     */
+    static boolean isStale(BsonDocument result) {
+        return result.containsKey(NEWER_EVENTS_FIELD) && !result.getArray(NEWER_EVENTS_FIELD).isEmpty();
+    }
+
+    @BsonProperty("_id") public ObjectId getUserId() { return userId; }
+    @BsonProperty("_id") public void setUserId(ObjectId userId) { this.userId = userId; }
+}
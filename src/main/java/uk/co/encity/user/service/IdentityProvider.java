@@ -0,0 +1,8 @@
+package uk.co.encity.user.service;
+
+/**
+ * A source of new, unique identities for users, events and commands
+ */
+public interface IdentityProvider {
+    public String getIdentity();
+}
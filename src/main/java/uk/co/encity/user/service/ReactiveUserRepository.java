@@ -0,0 +1,95 @@
+package uk.co.encity.user.service;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import uk.co.encity.user.commands.PatchUserCommand;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEvent;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.util.Collection;
+
+/**
+ * A non-blocking repository of users, for use on the request path of the web layer.  Nothing
+ * happens until the returned publishers are subscribed to
+ */
+public interface ReactiveUserRepository extends IdentityProvider {
+
+    public Mono<User> getUser(String userId);
+
+    /**
+     * Get a user for a client that will not change it, so the read may be served by a secondary
+     * @param userId the identity of the user
+     * @param minVersion the latest version of the user that the client knows of, from a consistency token, or 0
+     * @return a {@link Mono} that emits the user at the given version or later, or completes empty if the user
+     * does not exist
+     */
+    public Mono<User> readUser(String userId, int minVersion);
+
+    /**
+     * @param userId the identity of the user
+     * @param asOfVersion the version of the user to return
+     * @return a {@link Mono} that emits the user as it was at the given version (or its current state, if it has
+     * not reached that version yet), or completes empty if the user does not exist
+     */
+    public Mono<User> getUser(String userId, int asOfVersion);
+
+    /**
+     * @param userId the identity of the user
+     * @param asOfInstant the time at which to return the user
+     * @return a {@link Mono} that emits the user as it was at the given time, or completes empty if the user did
+     * not exist then
+     */
+    public Mono<User> getUser(String userId, Instant asOfInstant);
+    /**
+     * Get a batch of users in a fixed number of queries, however many there are
+     * @param userIds the identities of the users
+     * @return a {@link Flux} of the users that exist, in the order of their identities.  Repeated identities are
+     * returned once, and a malformed identity signals an {@link IllegalArgumentException}
+     */
+    public Flux<User> getUsers(Collection<String> userIds);
+
+    /**
+     * Stream a page of the users of a tenancy, in order of user identity
+     * @param tenancyId the identity of the tenancy
+     * @param tenantStatuses the tenant statuses to include, or empty for all
+     * @param providerStatuses the provider statuses to include, or empty for all
+     * @param afterUserId the identity of the last user on the previous page, or null for the first page
+     * @param limit the maximum number of users, or 0 for all of the remaining users
+     * @return a {@link Flux} of users, which is empty if the tenancy has none
+     */
+    public Flux<User> getTenancyUsers(String tenancyId, Collection<UserTenantStatus> tenantStatuses,
+                                      Collection<UserProviderStatus> providerStatuses, String afterUserId, int limit);
+
+    /**
+     * Find the users with an email address, ignoring case
+     * @param domain the domain of the users, or null for any domain
+     * @param emailAddress the email address
+     * @return a {@link Flux} of the users with the email address
+     */
+    public Flux<User> findByEmail(String domain, String emailAddress);
+
+    public Mono<User> confirmUser(User user, String initialPassword);
+    public Mono<PatchUserCommand> addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd);
+
+    /**
+     * Store an event for the next version of a user
+     * @return a {@link Mono} that emits the stored event, or signals a {@link VersionConflictException}
+     * if an event has already been stored for that version
+     */
+    public Mono<UserEvent> addUserEvent(String commandId, UserEventType type, User user);
+
+    /**
+     * Stream the history of a user, in version order, straight from the store
+     * @param userId the identity of the user
+     * @param afterVersion the version after which to start - the last version of the previous page, or 0
+     * @param limit the maximum number of entries, or 0 for the whole of the remaining history
+     * @return a {@link Flux} of history entries, which is empty if the user does not exist
+     */
+    public Flux<UserHistoryEntry> getUserHistory(String userId, int afterVersion, int limit);
+}
@@ -3,8 +3,6 @@ package uk.co.encity.user.service;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import reactor.util.Logger;
@@ -12,13 +10,10 @@ import reactor.util.Loggers;
 import uk.co.encity.user.entity.User;
 import uk.co.encity.user.events.consumed.TenancyConfirmedEvent;
 import uk.co.encity.user.events.consumed.TenancyConfirmedEventDeserializer;
-import uk.co.encity.user.events.generated.UserEvent;
 import uk.co.encity.user.events.generated.UserEventType;
-import uk.co.encity.user.events.published.UserCreatedMessage;
-import uk.co.encity.user.events.published.UserCreatedMessageSerializer;
-import uk.co.encity.user.events.published.UserMessage;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Handle an event confirming the creation of a new tenancy by setting up
@@ -27,11 +22,6 @@ import java.io.IOException;
 @Component
 public class TenancyConfirmedHandler {
 
-    /**
-     * The name of the AMQP exchange used for message publication
-     */
-    private static final String topicExchangeName = "encity-exchange";
-
     /**
      * The {@link Logger} for this class
      */
@@ -39,15 +29,8 @@ public class TenancyConfirmedHandler {
 
     private final UserRepository userRepo;
 
-    /**
-     * The RabbitMQ helper class
-     */
-    private final RabbitTemplate rabbitTemplate;
-
-    public TenancyConfirmedHandler(@Autowired UserRepository repo, @Autowired RabbitTemplate rabbitTmpl) {
+    public TenancyConfirmedHandler(@Autowired UserRepository repo) {
         this.userRepo = repo;
-        this.rabbitTemplate = rabbitTmpl;
-        this.rabbitTemplate.setMessageConverter(new Jackson2JsonMessageConverter());
     }
 
     public void receiveMessage(String message) {
@@ -69,24 +52,33 @@ public class TenancyConfirmedHandler {
         }
 
         try {
-            // Generate a UserCreatedEvent and publish it
-            User theUser = this.userRepo.addUser(evt.getTenancyId(), evt.getDomain(), evt.getAdminUser(), true);
-            UserEvent userEvent = this.userRepo.addUserEvent(evt.getCommandId(), UserEventType.USER_CREATED, theUser);
-            // TODO: delegate the above to the UserService?
+            // A second tenancy for the same administrator must not create a second user
+            String tenancyId = evt.getTenancyId();
+            List<User> existing = this.userRepo.findByEmail(evt.getDomain(), evt.getAdminUser().getEmailAddress());
+            User theUser = existing.stream()
+                    .filter(u -> tenancyId.equals(u.getTenancyId()))
+                    .findFirst()
+                    .orElse(null);
+            if (theUser == null && !existing.isEmpty()) {
+                logger.warn(String.format("Not adding admin user for tenancy %s: user %s already has that email address in domain %s",
+                        tenancyId, existing.get(0).getUserId(), evt.getDomain()));
+                return;
+            }
 
-            UserMessage outboundMsg = new UserMessage(theUser, userEvent);
-            logger.debug("Sending message...");
-            module.addSerializer(UserCreatedMessage.class, new UserCreatedMessageSerializer());
-            mapper.registerModule(module);
-            String jsonEvt;
-            try {
-                jsonEvt = mapper.writeValueAsString(outboundMsg);
-                rabbitTemplate.convertAndSend(topicExchangeName, "encity.user.created", jsonEvt);
-            } catch (IOException e) {
-                logger.error("Error publishing user created message: " + e.getMessage(), e);
+            // The user takes the identity of the message, so a redelivered message, or the same message handled
+            // twice at once, adds it once.  A user added by an earlier delivery is completed below
+            if (theUser == null) {
+                theUser = this.userRepo.addUser(evt.getCommandId(), tenancyId, evt.getDomain(), evt.getAdminUser(), true);
             }
+
+            // Generate a UserCreatedEvent - the repository stores its message in the outbox for publication
+            this.userRepo.addUserEvent(evt.getCommandId(), UserEventType.USER_CREATED, theUser);
+            // TODO: delegate the above to the UserService?
         } catch (IOException e) {
             logger.error("Error adding user to repository" + e.getMessage(), e);
+        } catch (VersionConflictException e) {
+            // An earlier delivery of the message has already stored the event
+            logger.debug("User created event already stored: " + e.getMessage());
         }
     }
 }
@@ -7,15 +7,16 @@ import org.everit.json.schema.ValidationException;
 import org.everit.json.schema.loader.SchemaLoader;
 import org.json.JSONObject;
 import org.json.JSONTokener;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.util.UriComponents;
 import org.springframework.web.util.UriComponentsBuilder;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.util.Logger;
 import reactor.util.Loggers;
@@ -23,11 +24,16 @@ import uk.co.encity.user.commands.PatchUserCommand;
 import uk.co.encity.user.commands.PatchUserCommandDeserializer;
 import uk.co.encity.user.commands.PreConditionException;
 import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserHistoryEntry;
 import uk.co.encity.user.entity.UserProviderStatus;
 import uk.co.encity.user.entity.UserTenantStatus;
 
 import java.io.IOException;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
 import static java.util.Objects.requireNonNull;
 
@@ -35,9 +41,9 @@ import static java.util.Objects.requireNonNull;
 @RestController
 public class UserController {
     /**
-     * The name of the AMQP exchange used for message publication
+     * The header in which a PATCH response returns a consistency token, and in which a GET request may pass it back
      */
-    private static final String topicExchangeName = "encity-exchange";
+    static final String CONSISTENCY_TOKEN_HEADER = "X-Consistency-Token";
 
     /**
      * The {@link Logger} for this class
@@ -47,32 +53,36 @@ public class UserController {
     /**
      * The repository of users
      */
-    private final UserRepository userRepo;
+    private final ReactiveUserRepository userRepo;
 
     /**
-     * The RabbitMQ helper class
+     * The service - orchestrates actions
      */
-    private final RabbitTemplate rabbitTemplate;
+    private final UserService userService;
 
     /**
-     * The service - orchestrates actions
+     * The largest number of users that may be requested in one batch
      */
-    private final UserService userService;
+    @Value("${user.batchGet.maxSize:100}")
+    int maxBatchSize;
+
+    /**
+     * Whether PATCH responses return a consistency token, and GET requests may be served by secondaries
+     */
+    @Value("${user.read.consistencyTokens:false}")
+    boolean consistencyTokens;
 
     /**
      * Construct an instance with access to a repository of users
      *
-     * @param repo the instance of {@link UserRepository} that is used to read and write users to and from
+     * @param repo the instance of {@link ReactiveUserRepository} that is used to read and write users to and from
      *             persistent storage
      */
     public UserController(
-            @Autowired UserRepository repo,
-            @Autowired RabbitTemplate rabbitTmpl,
+            @Autowired ReactiveUserRepository repo,
             @Autowired UserService service) {
         logger.debug(String.format("Constructing %s", this.getClass().getName()));
         this.userRepo = repo;
-        this.rabbitTemplate = rabbitTmpl;
-        this.rabbitTemplate.setMessageConverter(new Jackson2JsonMessageConverter());
         this.userService = service;
 
         logger.debug("Construction of " + this.getClass().getName() + " is complete");
@@ -95,31 +105,33 @@ public class UserController {
             @RequestParam(value = "uuid") String confirmUUID) {
 
         logger.debug("Received request to GET user: " + userId + " for confirmation purposes");
-        ResponseEntity<User> response = null;
 
         // Retrieve the (inflated) user entity
-        User user = null;
-        try {
-            user = this.userRepo.getUser(userId);
-            if (user == null) {
-                response = ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-                return Mono.just(response);
-            }
-        } catch (IOException e) {
-            String msg = "Unexpected failure reading user with id: " + userId;
-            logger.error(msg);
-            response = ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-            return Mono.just(response);
-        }
+        return this.userRepo.getUser(userId)
+                .map(user -> this.getConfirmationResponse(user, confirmUUID))
+                .defaultIfEmpty(ResponseEntity.status(HttpStatus.NOT_FOUND).build())
+                .onErrorResume(e -> {
+                    String msg = "Unexpected failure reading user with id: " + userId;
+                    logger.error(msg);
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                });
+    }
 
+    /**
+     * Check that a user may be confirmed or rejected by the holder of a given confirmation UUID
+     *
+     * @param user        the (inflated) user
+     * @param confirmUUID the nonce supplied with the confirmation request
+     * @return a response containing the user if confirmation is possible, or a CONFLICT response otherwise
+     */
+    private ResponseEntity<User> getConfirmationResponse(User user, String confirmUUID) {
         // TODO: implement proper Spring exception/response handling in the sections below
 
         // Is confirmation still pending?
         if (!user.getTenantStatus().equals(UserTenantStatus.UNCONFIRMED)) {
             String message = "Cannot update user " + user.getEmailAddress() + " because it is not UNCONFIRMED.";
             logger.debug(message + "Actual status=" + user.getTenantStatus());
-            response = ResponseEntity.status(HttpStatus.CONFLICT).build();
-            return Mono.just(response);
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
         }
 
         // Has the user been suspended?
@@ -128,8 +140,7 @@ public class UserController {
                     "Cannot update user account as it is not ACTIVE: " + user.getEmailAddress() +
                             ", status=" + user.getProviderStatus()
             );
-            response = ResponseEntity.status(HttpStatus.CONFLICT).build();
-            return Mono.just(response);
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
         }
 
         // Does the UUID match for this confirmation attempt?
@@ -138,20 +149,17 @@ public class UserController {
                     "Attempt to confirm a user with mis-matched UUIDs.  Incoming: " + confirmUUID +
                             ", target=" + user.getConfirmUUID() + ".\n" +
                             "Repeated attempts with different UUIDs might indicate suspicious activity.");
-            response = ResponseEntity.status(HttpStatus.CONFLICT).build();
-            return Mono.just(response);
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
         }
 
         // Has the confirmation window expired?
         int compareResult = Instant.now().compareTo(user.getExpiryTime());
         if (compareResult > 0) {
             logger.debug("User confirmation window expired at: " + user.getExpiryTime().toString());
-            response = ResponseEntity.status(HttpStatus.CONFLICT).build();
-            return Mono.just(response);
+            return ResponseEntity.status(HttpStatus.CONFLICT).build();
         }
 
-        response = ResponseEntity.status(HttpStatus.OK).body(user);
-        return Mono.just(response);
+        return ResponseEntity.status(HttpStatus.OK).body(user);
     }
 
     /**
@@ -214,68 +222,219 @@ public class UserController {
         }
 
         // Store the command - even if it doesn't 'execute'
-        userRepo.addPatchUserCommand(cmd.getCmdType(), cmd);
+        final PatchUserCommand theCmd = cmd;
+        return userRepo.addPatchUserCommand(cmd.getCmdType(), cmd)
+                //-------------------------------------------------------
+                // 2. Execute the command
+                //-------------------------------------------------------
+                .then(Mono.defer(() -> userService.applyCommand(theCmd)))
+                .map(u -> {
+                    // Build a response (include the correct location)
+                    UriComponents uriComponents = uriBuilder.path("/users/" + u.getUserId()).build();
+                    HttpHeaders headers =  new HttpHeaders();
+                    headers.setLocation(uriComponents.toUri());
+                    if (this.consistencyTokens) {
+                        // The command stored the event for the version after the one it was applied to
+                        headers.set(CONSISTENCY_TOKEN_HEADER, String.valueOf(u.getVersion() + 1));
+                    }
+
+                    return ResponseEntity.status(HttpStatus.OK).headers(headers).body(u);
+                })
+                .onErrorResume(
+                        e -> e instanceof UnsupportedOperationException || e instanceof IOException,
+                        e -> {
+                            logger.error(e.getMessage());
+                            return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                        })
+                .onErrorResume(
+                        e -> e instanceof IllegalArgumentException || e instanceof PreConditionException,
+                        e -> {
+                            logger.info(e.getMessage());
+                            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).build());
+                        })
+                .onErrorResume(
+                        VersionConflictException.class,
+                        e -> {
+                            logger.warn(e.getMessage());
+                            return Mono.just(ResponseEntity.status(HttpStatus.CONFLICT).build());
+                        });
+    }
 
-        //-------------------------------------------------------
-        // 2. Execute the command
-        //-------------------------------------------------------
-        User u = null;
-        try {
-            u = userService.applyCommand(cmd);
-        } catch (UnsupportedOperationException | IOException e) {
-            logger.error(e.getMessage());
-            response = ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-            return Mono.just(response);
-        } catch (IllegalArgumentException | PreConditionException e) {
-            logger.info(e.getMessage());
-            response = ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
-            return Mono.just(response);
+    /**
+     * Attempt to get user info.  When consistency tokens are enabled, the user may be read from a secondary; a client
+     * that passes the token from a PATCH response is guaranteed to see the user at that version or later
+     * @param id the identity of the user
+     * @param consistencyToken the token returned by an earlier PATCH of the user, if any
+     * @return  A Mono that wraps a ResponseEntity containing the response.  Possible
+     *          response status codes are BAD_REQUEST, INTERNAL_SERVER_ERROR, OK, and NOT_FOUND.
+     */
+    @CrossOrigin
+    @GetMapping(value = "/users/{id}", params = {})
+    public Mono<ResponseEntity<User>> getUser(
+            @PathVariable String id,
+            @RequestHeader(value = CONSISTENCY_TOKEN_HEADER, required = false) Integer consistencyToken) {
+        logger.debug("Attempting to GET user: " + id);
+
+        if (!this.consistencyTokens) {
+            return this.respondWithUser(id, userRepo.getUser(id));
         }
+        return this.respondWithUser(id, userRepo.readUser(id, consistencyToken == null ? 0 : consistencyToken));
+    }
 
-        // Build a response (include the correct location)
-        UriComponents uriComponents = uriBuilder.path("/users/" + u.getUserId()).build();
-        HttpHeaders headers =  new HttpHeaders();
-        headers.setLocation(uriComponents.toUri());
+    /**
+     * Get a batch of users in one request, rather than one request per user
+     * @param userIds the identities of the users, as a JSON array
+     * @return  A Mono that wraps a ResponseEntity containing the users that exist, in the order requested.  Possible
+     *          response status codes are BAD_REQUEST, INTERNAL_SERVER_ERROR, and OK.
+     */
+    @CrossOrigin
+    @PostMapping(value = "/users:batchGet")
+    public Mono<ResponseEntity<List<User>>> batchGetUsers(@RequestBody List<String> userIds) {
+        logger.debug(String.format("Attempting to GET a batch of %d users", userIds.size()));
 
-        response = ResponseEntity.status(HttpStatus.OK).headers(headers).body(u);
+        if (userIds.size() > this.maxBatchSize) {
+            logger.info(String.format("Batch of %d users exceeds the maximum of %d", userIds.size(), this.maxBatchSize));
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).build());
+        }
 
-        return Mono.just(response);
+        return userRepo.getUsers(userIds)
+                .collectList()
+                .map(users -> ResponseEntity.status(HttpStatus.OK).body(users))
+                .onErrorResume(IllegalArgumentException.class, e -> {
+                    logger.info("Invalid user id in batch: " + e.getMessage());
+                    return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).build());
+                })
+                .onErrorResume(e -> {
+                    logger.error("Error retrieving a batch of users: " + e.getMessage());
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                });
     }
 
     /**
-     * Attempt to get user info.
+     * Stream the users of a tenancy as newline-delimited JSON or server-sent events, in order of user identity.
+     * Users are written as they are read from the store, so large tenancies are never held in memory.  A client
+     * that wants pages passes a limit, and asks for the next page after the last user that it received
+     * @param tenancyId the identity of the tenancy
+     * @param tenantStatuses the tenant statuses to include, or none for all
+     * @param providerStatuses the provider statuses to include, or none for all
+     * @param after the identity of the last user on the previous page
+     * @param limit the maximum number of users, or 0 for no limit
+     * @return A Flux of users, which is empty if the tenancy has none
+     */
+    @CrossOrigin
+    @GetMapping(value = "/tenancies/{tenancyId}/users", produces = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE })
+    public Flux<User> getTenancyUsers(
+            @PathVariable String tenancyId,
+            @RequestParam(value = "tenantStatus", required = false) Set<UserTenantStatus> tenantStatuses,
+            @RequestParam(value = "providerStatus", required = false) Set<UserProviderStatus> providerStatuses,
+            @RequestParam(value = "after", required = false) String after,
+            @RequestParam(value = "limit", defaultValue = "0") int limit) {
+        logger.debug(String.format("Attempting to list users of tenancy %s after %s", tenancyId, after));
+
+        return userRepo.getTenancyUsers(
+                        tenancyId,
+                        tenantStatuses == null ? Collections.emptySet() : tenantStatuses,
+                        providerStatuses == null ? Collections.emptySet() : providerStatuses,
+                        after,
+                        limit)
+                .doOnError(e -> logger.error(String.format("Error listing users of tenancy %s: %s", tenancyId, e.getMessage())));
+    }
+
+    /**
+     * Find the users with an email address, ignoring case
+     * @param email the email address
+     * @param domain the domain of the users, or none for any domain
+     * @return  A Mono that wraps a ResponseEntity containing the users with the email address.  Possible
+     *          response status codes are INTERNAL_SERVER_ERROR and OK.
+     */
+    @CrossOrigin
+    @GetMapping(value = "/users", params = {"email"})
+    public Mono<ResponseEntity<List<User>>> findUsersByEmail(
+            @RequestParam(value = "email") String email,
+            @RequestParam(value = "domain", required = false) String domain) {
+        logger.debug("Attempting to find users by email address");
+
+        return userRepo.findByEmail(domain, email)
+                .collectList()
+                .map(users -> ResponseEntity.status(HttpStatus.OK).body(users))
+                .onErrorResume(e -> {
+                    logger.error("Error finding users by email address: " + e.getMessage());
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                });
+    }
+
+    /**
+     * Get a user as it was at an earlier version, for investigations.  Only the events between the nearest
+     * earlier snapshot and the version are replayed; reads without the parameter are unaffected
      * @param id the identity of the user
+     * @param asOfVersion the version of the user to return
      * @return  A Mono that wraps a ResponseEntity containing the response.  Possible
      *          response status codes are INTERNAL_SERVER_ERROR, OK, and NOT_FOUND.
      */
     @CrossOrigin
-    @GetMapping(value = "/users/{id}", params = {})
-    public Mono<ResponseEntity<User>> getUser(@PathVariable String id) {
-        logger.debug("Attempting to GET user: " + id);
-        ResponseEntity<User> response = null;
+    @GetMapping(value = "/users/{id}", params = {"asOfVersion"})
+    public Mono<ResponseEntity<User>> getUserAsOfVersion(
+            @PathVariable String id,
+            @RequestParam(value = "asOfVersion") int asOfVersion) {
+        logger.debug(String.format("Attempting to GET user %s as of version %d", id, asOfVersion));
 
-        User theUser = null;
-        try {
-            theUser = userRepo.getUser(id);
-        } catch (IOException e) {
-            logger.debug("Error retrieving user: " + theUser.getUserId());
-            response = ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-            return Mono.just(response);
-        }
+        return this.respondWithUser(id, userRepo.getUser(id, asOfVersion));
+    }
 
-        if (theUser == null) {
-            response = ResponseEntity.status(HttpStatus.NOT_FOUND).build();
-            return Mono.just(response);
-        }
+    /**
+     * Get a user as it was at an earlier time, for investigations
+     * @param id the identity of the user
+     * @param asOf the time at which to return the user, as an ISO-8601 instant
+     * @return  A Mono that wraps a ResponseEntity containing the response.  Possible
+     *          response status codes are BAD_REQUEST, INTERNAL_SERVER_ERROR, OK, and NOT_FOUND.
+     */
+    @CrossOrigin
+    @GetMapping(value = "/users/{id}", params = {"asOf"})
+    public Mono<ResponseEntity<User>> getUserAsOfInstant(
+            @PathVariable String id,
+            @RequestParam(value = "asOf") String asOf) {
+        logger.debug(String.format("Attempting to GET user %s as of %s", id, asOf));
 
+        Instant asOfInstant;
         try {
-            response = ResponseEntity.status(HttpStatus.OK).body(theUser);
-            //response = ResponseEntity.status(HttpStatus.OK).body(this.getHateoasEntityModel(theUser));
-            return Mono.just(response);
-        } catch (Exception e) {
-            logger.error(String.format("Unexpected error: %s", e.getMessage()));
-            response = ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
-            return Mono.just(response);
+            asOfInstant = Instant.parse(asOf);
+        } catch (DateTimeParseException e) {
+            logger.info("Invalid asOf time: " + asOf);
+            return Mono.just(ResponseEntity.status(HttpStatus.BAD_REQUEST).build());
         }
+
+        return this.respondWithUser(id, userRepo.getUser(id, asOfInstant));
+    }
+
+    private Mono<ResponseEntity<User>> respondWithUser(String id, Mono<User> user) {
+        return user
+                .map(theUser -> ResponseEntity.status(HttpStatus.OK).body(theUser))
+                .defaultIfEmpty(ResponseEntity.status(HttpStatus.NOT_FOUND).build())
+                .onErrorResume(e -> {
+                    logger.error(String.format("Error retrieving user %s: %s", id, e.getMessage()));
+                    return Mono.just(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+                });
+    }
+
+    /**
+     * Stream the history of a user - its events, each with the command that caused it - as newline-delimited
+     * JSON or server-sent events.  Entries are written as they are read from the store, so the whole history is
+     * never held in memory.  A client that wants pages passes a limit, and asks for the next page after the last
+     * version that it received
+     * @param id the identity of the user
+     * @param afterVersion the version after which to start, or 0 for the whole history
+     * @param limit the maximum number of entries, or 0 for no limit
+     * @return A Flux of history entries, which is empty if the user does not exist
+     */
+    @CrossOrigin
+    @GetMapping(value = "/users/{id}/events", produces = { MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE })
+    public Flux<UserHistoryEntry> getUserHistory(
+            @PathVariable String id,
+            @RequestParam(value = "afterVersion", defaultValue = "0") int afterVersion,
+            @RequestParam(value = "limit", defaultValue = "0") int limit) {
+        logger.debug(String.format("Attempting to stream history of user %s after version %d", id, afterVersion));
+
+        return userRepo.getUserHistory(id, afterVersion, limit)
+                .doOnError(e -> logger.error(String.format("Error streaming history of user %s: %s", id, e.getMessage())));
     }
 }
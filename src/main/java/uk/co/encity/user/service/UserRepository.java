@@ -8,14 +8,64 @@ import uk.co.encity.user.events.generated.UserEvent;
 import uk.co.encity.user.events.generated.UserEventType;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
-public interface UserRepository {
+public interface UserRepository extends IdentityProvider {
 
-    public String getIdentity();
     public User getUser(String userId) throws IOException;
+
+    /**
+     * @param userId the identity of the user
+     * @param asOfVersion the version of the user to return
+     * @return the user as it was at the given version (or its current state, if it has not reached that version
+     * yet), or null if the user does not exist
+     */
+    public User getUser(String userId, int asOfVersion) throws IOException;
+
+    /**
+     * @param userId the identity of the user
+     * @param asOfInstant the time at which to return the user
+     * @return the user as it was at the given time, or null if the user did not exist then
+     */
+    public User getUser(String userId, Instant asOfInstant) throws IOException;
+    /**
+     * Get a batch of users in a fixed number of queries, however many there are
+     * @param userIds the identities of the users
+     * @return the users that exist, in the order of their identities.  Repeated identities are returned once
+     * @throws IllegalArgumentException if an identity is malformed
+     */
+    public List<User> getUsers(Collection<String> userIds) throws IOException;
+
+    /**
+     * Find the users with an email address, ignoring case
+     * @param domain the domain of the users, or null for any domain
+     * @param emailAddress the email address
+     * @return the users with the email address, which is at most one in a domain unless duplicates were created
+     * before the check in {@link TenancyConfirmedHandler}
+     */
+    public List<User> findByEmail(String domain, String emailAddress) throws IOException;
+
     public User confirmUser(User user, String initialPassword) throws IOException;
-    public User addUser(String tenancyId, String domain, EmailRecipient user, boolean isAdmin) throws IOException;
+
+    /**
+     * Add a new user, with a new identity
+     * @return the version 1 user
+     */
+    public default User addUser(String tenancyId, String domain, EmailRecipient user, boolean isAdmin) throws IOException {
+        return this.addUser(this.getIdentity(), tenancyId, domain, user, isAdmin);
+    }
+
+    /**
+     * Add a new user with a given identity, unless a user with that identity already exists.  Adding the same user
+     * twice, for a redelivered message or from two consumers at once, stores it once
+     * @param userId the identity of the user
+     * @return the version 1 user, or the user already stored with the identity
+     */
+    public User addUser(String userId, String tenancyId, String domain, EmailRecipient user, boolean isAdmin) throws IOException;
+
     public PatchUserCommand addPatchUserCommand(UserCommand.UserTenantCommandType type, PatchUserCommand cmd);
-    public UserEvent addUserEvent(String commandId, UserEventType type, User user);
+    public UserEvent addUserEvent(String commandId, UserEventType type, User user) throws VersionConflictException, IOException;
 }
@@ -1,79 +1,103 @@
 package uk.co.encity.user.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.module.SimpleModule;
-import org.springframework.amqp.core.AmqpTemplate;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 import reactor.util.Logger;
 import uk.co.encity.user.commands.ConfirmUserCommand;
 import uk.co.encity.user.commands.PatchUserCommand;
 import uk.co.encity.user.commands.PreConditionException;
 import uk.co.encity.user.entity.User;
 import uk.co.encity.user.events.generated.UserEvent;
-import uk.co.encity.user.events.published.UserMessage;
-import uk.co.encity.user.events.published.UserMessageSerializer;
 
 import java.io.IOException;
 
 public abstract class UserService {
 
-    public abstract UserRepository getRepository();
-    public abstract AmqpTemplate getAmqpTemplate();
-    public abstract String getTopicExchangeName();
+    public abstract ReactiveUserRepository getRepository();
     public abstract Logger getLogger();
-    public abstract ObjectMapper getMapper();
+
+    /**
+     * @return the number of times a command is re-applied after losing a race with another
+     * command on the same user
+     */
+    public abstract int getMaxVersionConflictRetries();
 
     /**
      * Attempt to perform a state transition command on a User, applying the necessary
-     * business logic and saving the event
+     * business logic and saving the event.  The repository stores the message that announces the event
+     * along with it, so nothing is sent to the message broker on the request path.
+     *
+     * If another command stores an event for the same version of the user first, the user is read again and
+     * the command is re-applied - including its pre-condition checks - up to a limited number of times.  Side
+     * effects outside the repository, such as creating the user with the IAM provider, happen only once the event
+     * is stored, so a command that loses a race never performs them.  If such a side effect fails, the event
+     * stands and the failure is returned to the caller
      * @param command the command (transition) to perform
-     * @return the affected User
+     * @return a {@link Mono} that emits the affected User, or signals an {@link UnsupportedOperationException},
+     * {@link IllegalArgumentException}, {@link PreConditionException}, {@link VersionConflictException}
+     * or {@link IOException}
      */
-    public User applyCommand(PatchUserCommand command) throws
-            UnsupportedOperationException,
-            IllegalArgumentException,
-            PreConditionException,
-            IOException
-    {
-        UserRepository userRepo = this.getRepository();
+    public Mono<User> applyCommand(PatchUserCommand command) {
+        return Mono.defer(() -> this.tryCommand(command))
+                .retryWhen(Retry.max(this.getMaxVersionConflictRetries())
+                        .filter(e -> e instanceof VersionConflictException)
+                        .doBeforeRetry(signal -> this.getLogger().info(String.format(
+                                "Re-applying command %s after a version conflict: %s",
+                                command.getCommandId(),
+                                signal.failure().getMessage())))
+                        .onRetryExhaustedThrow((spec, signal) -> signal.failure()))
+                .flatMap(theUser -> this.completeCommand(command, theUser));
+    }
 
-        // Try to get the user (could throw IOException)
-        User theUser = userRepo.getUser(command.getUserId());
+    /**
+     * Make a single attempt to apply a command to the latest version of a user
+     * @param command the command (transition) to perform
+     * @return a {@link Mono} that emits the affected User, once its event is stored
+     */
+    private Mono<User> tryCommand(PatchUserCommand command) {
+        ReactiveUserRepository userRepo = this.getRepository();
 
-        if (theUser != null) {
-            // Check the pre-conditions of the command - might throw
-            command.checkPreConditions(theUser);
-        } else {
-            throw new IllegalArgumentException(String.format("User with id %s does not exist", command.getUserId()), null);
-        }
+        // Try to get the user
+        return userRepo.getUser(command.getUserId())
+                .switchIfEmpty(Mono.error(() -> new IllegalArgumentException(
+                        String.format("User with id %s does not exist", command.getUserId()), null)))
+                .flatMap(theUser -> {
+                    // Check the pre-conditions of the command - might fail
+                    try {
+                        command.checkPreConditions(theUser);
+                    } catch (PreConditionException e) {
+                        return Mono.error(e);
+                    }
+
+                    switch (command.getCmdType()) {
+                        case CONFIRM_USER:
+                        case REJECT_USER:
+                            break;
+                        default:
+                            return Mono.error(new UnsupportedOperationException(
+                                    "Command not Supported: " + command.getCmdType().toString(), null));
+                    }
 
-        // Perform the command
+                    // Save an event - its message is published from the outbox
+                    UserEvent evt = command.createUserEvent(theUser);
+                    return userRepo.addUserEvent(command.getCommandId(), evt.getUserEventType(), theUser)
+                            .thenReturn(theUser);
+                });
+    }
+
+    /**
+     * Perform the side effects of a command whose event has been stored
+     * @param command the command (transition) that was applied
+     * @param theUser the user to which it was applied
+     * @return a {@link Mono} that emits the affected User
+     */
+    private Mono<User> completeCommand(PatchUserCommand command, User theUser) {
         switch (command.getCmdType()) {
             case CONFIRM_USER:
-                userRepo.confirmUser(theUser, ((ConfirmUserCommand)command).getInitialPassword());
-                break;
-            case REJECT_USER:
-                // No special action is needed to reject a user - the event will be saved (below)
-                break;
+                return this.getRepository().confirmUser(theUser, ((ConfirmUserCommand)command).getInitialPassword());
             default:
-                throw new UnsupportedOperationException("Command not Supported: " + command.getCmdType().toString(), null);
+                // No special action is needed to reject a user - the event has been saved
+                return Mono.just(theUser);
         }
-
-        // Save an event
-        UserEvent evt = command.createUserEvent(theUser);
-        userRepo.addUserEvent(command.getCommandId(), evt.getUserEventType(), theUser);
-
-        // Publish the event
-        SimpleModule module = new SimpleModule();
-
-        UserMessage outboundMsg = new UserMessage(theUser, evt);
-        this.getLogger().debug("Sending message...");
-        module.addSerializer(UserMessage.class, new UserMessageSerializer());
-        this.getMapper().registerModule(module);
-        String jsonEvt;
-
-        jsonEvt = this.getMapper().writeValueAsString(outboundMsg);
-        this.getAmqpTemplate().convertAndSend(this.getTopicExchangeName(), evt.getRoutingKey(), jsonEvt);
-
-        return theUser;
     }
 }
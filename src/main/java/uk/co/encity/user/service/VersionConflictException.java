@@ -0,0 +1,11 @@
+package uk.co.encity.user.service;
+
+/**
+ * Thrown when an event cannot be stored because another event has already been stored for the
+ * same version of the user.  The user should be read again, and the command re-applied
+ */
+public class VersionConflictException extends Exception {
+    public VersionConflictException(String msg) {
+        super(msg);
+    }
+}
@@ -1,12 +1,11 @@
 package uk.co.encity.user.service.jackson;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.Getter;
-import org.springframework.amqp.core.AmqpTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import reactor.util.Logger;
 import reactor.util.Loggers;
-import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.ReactiveUserRepository;
 import uk.co.encity.user.service.UserService;
 
 @Service
@@ -21,24 +20,19 @@ public class JacksonUserService extends UserService {
     /**
      * The repository of users
      */
-    private final UserRepository repository;
+    private final ReactiveUserRepository repository;
 
     /**
-     * The RabbitMQ helper class
+     * The number of times a command is re-applied after a version conflict
      */
-    private final AmqpTemplate amqpTemplate;
+    private final int maxVersionConflictRetries;
 
-    /**
-     * The name of the AMQP exchange used for message publication
-     */
-    private final String topicExchangeName = "encity-exchange";
-
-    private final ObjectMapper mapper;
-
-    public JacksonUserService(UserRepository repo, AmqpTemplate rabbitTmpl, ObjectMapper mapper) {
+    public JacksonUserService(
+            ReactiveUserRepository repo,
+            @Value("${user.command.maxVersionConflictRetries:3}") int maxVersionConflictRetries)
+    {
         this.repository = repo;
-        this.amqpTemplate = rabbitTmpl;
-        this.mapper = mapper;
+        this.maxVersionConflictRetries = maxVersionConflictRetries;
     }
 
 }
@@ -0,0 +1,184 @@
+package uk.co.encity.user.repositories.file;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.UserRepositoryContract;
+import uk.co.encity.user.service.VersionConflictException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FileUserRepositoryTest extends UserRepositoryContract {
+
+    @TempDir
+    Path dir;
+
+    private FileUserRepository fileRepo;
+
+    private FileUserRepository open(int segmentBytes, int keepSnapshots) throws IOException {
+        return new FileUserRepository(
+                dir.toString(), segmentBytes, false, keepSnapshots, 0.5, 2, 24, new SimpleMeterRegistry());
+    }
+
+    @Override
+    protected UserRepository createRepository() throws IOException {
+        this.fileRepo = this.open(4096, 0);
+        return this.fileRepo;
+    }
+
+    @Override
+    protected void destroyRepository() {
+        this.fileRepo.close();
+    }
+
+    private User addConfirmedUser(FileUserRepository repo) throws Exception {
+        User user = repo.addUser(new ObjectId().toHexString(), "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"), false);
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CREATED, user);
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, repo.getUser(user.getUserId()));
+        return repo.getUser(user.getUserId());
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    public void recovers_Users_And_Their_History_When_Reopened() throws Exception {
+        User user = addConfirmedUser(this.fileRepo);
+        this.fileRepo.close();
+
+        this.fileRepo = this.open(4096, 0);
+
+        User reopened = this.fileRepo.getUser(user.getUserId());
+        assertEquals(2, reopened.getVersion());
+        assertEquals(UserTenantStatus.CONFIRMED, reopened.getTenantStatus());
+        assertEquals(UserTenantStatus.UNCONFIRMED, this.fileRepo.getUser(user.getUserId(), 1).getTenantStatus());
+        assertEquals(2, this.fileRepo.getUserHistory(user.getUserId(), 0, 0).size());
+        assertEquals(1, this.fileRepo.findByEmail(null, "ada@example.com").size());
+    }
+
+    @Test
+    public void ignores_A_Partly_Written_Record() throws Exception {
+        User user = addConfirmedUser(this.fileRepo);
+        this.fileRepo.close();
+
+        // A length with no content after it, as if the process stopped while appending
+        try (RandomAccessFile file = new RandomAccessFile(segments().get(0).toFile(), "rw")) {
+            long end = 0;
+            while (file.length() >= end + SegmentLog.HEADER_BYTES) {
+                file.seek(end);
+                int length = file.readInt();
+                if (length == 0) {
+                    break;
+                }
+                end += SegmentLog.HEADER_BYTES + length;
+            }
+            file.seek(end);
+            file.writeInt(100);
+        }
+
+        this.fileRepo = this.open(4096, 0);
+
+        assertEquals(2, this.fileRepo.getUser(user.getUserId()).getVersion());
+        this.fileRepo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_REJECTED,
+                this.fileRepo.getUser(user.getUserId()));
+        this.fileRepo.close();
+        this.fileRepo = this.open(4096, 0);
+        assertEquals(UserTenantStatus.REJECTED, this.fileRepo.getUser(user.getUserId()).getTenantStatus());
+    }
+
+    @Test
+    public void compaction_Deletes_Segments_Of_Dropped_History() throws Exception {
+        this.fileRepo.close();
+        this.fileRepo = this.open(512, 1);
+        User user = addConfirmedUser(this.fileRepo);
+        for (int i = 0; i < 20; i++) {
+            UserEventType type = i % 2 == 0 ? UserEventType.USER_REJECTED : UserEventType.USER_CONFIRMED;
+            this.fileRepo.addUserEvent(new ObjectId().toHexString(), type, this.fileRepo.getUser(user.getUserId()));
+        }
+        int before = segments().size();
+
+        int deleted = this.fileRepo.compactSegments();
+
+        assertTrue(deleted > 0);
+        assertEquals(before - deleted, segments().size());
+        assertEquals(22, this.fileRepo.getUser(user.getUserId()).getVersion());
+        assertNull(this.fileRepo.getUser(user.getUserId(), 1));
+        this.fileRepo.close();
+        this.fileRepo = this.open(512, 1);
+        User reopened = this.fileRepo.getUser(user.getUserId());
+        assertEquals(22, reopened.getVersion());
+        assertEquals(UserTenantStatus.CONFIRMED, reopened.getTenantStatus());
+    }
+
+    @Test
+    public void rejects_A_Stale_Event_After_Compaction() throws Exception {
+        this.fileRepo.close();
+        this.fileRepo = this.open(512, 1);
+        User user = addConfirmedUser(this.fileRepo);
+        User stale = this.fileRepo.getUser(user.getUserId(), 1);
+
+        this.fileRepo.compactSegments();
+
+        assertThrows(VersionConflictException.class, () -> this.fileRepo.addUserEvent(
+                new ObjectId().toHexString(), UserEventType.USER_REJECTED, stale));
+        assertThrows(VersionConflictException.class, () -> this.fileRepo.addUserEvent(
+                new ObjectId().toHexString(), UserEventType.USER_CREATED, stale));
+        assertEquals(UserTenantStatus.CONFIRMED, this.fileRepo.getUser(user.getUserId()).getTenantStatus());
+    }
+
+    @Test
+    public void does_Not_Recover_Dropped_History_When_Reopened() throws Exception {
+        this.fileRepo.close();
+        this.fileRepo = this.open(512, 1);
+        User user = addConfirmedUser(this.fileRepo);
+        for (int i = 0; i < 20; i++) {
+            UserEventType type = i % 2 == 0 ? UserEventType.USER_REJECTED : UserEventType.USER_CONFIRMED;
+            this.fileRepo.addUserEvent(new ObjectId().toHexString(), type, this.fileRepo.getUser(user.getUserId()));
+            // Other users keep most of each segment live, so segments holding dropped history are not deleted
+            for (int j = 0; j < 3; j++) {
+                User other = this.fileRepo.addUser(new ObjectId().toHexString(), "example.com",
+                        new EmailRecipient("Charles", "Babbage", "charles@example.com"), false);
+                this.fileRepo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CREATED, other);
+            }
+        }
+        this.fileRepo.compactSegments();
+        List<Integer> readable = new ArrayList<>();
+        for (int version = 1; version <= 22; version++) {
+            if (this.fileRepo.getUser(user.getUserId(), version) != null) {
+                readable.add(version);
+            }
+        }
+
+        this.fileRepo.close();
+        this.fileRepo = this.open(512, 1);
+
+        for (int version = 1; version <= 22; version++) {
+            User asOf = this.fileRepo.getUser(user.getUserId(), version);
+            if (readable.contains(version)) {
+                assertEquals(version, asOf.getVersion());
+            } else {
+                assertNull(asOf, "version " + version + " was dropped by compaction");
+            }
+        }
+        assertEquals(22, this.fileRepo.getUser(user.getUserId()).getVersion());
+    }
+}
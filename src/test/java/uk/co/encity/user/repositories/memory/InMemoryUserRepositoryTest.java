@@ -0,0 +1,12 @@
+package uk.co.encity.user.repositories.memory;
+
+import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.UserRepositoryContract;
+
+public class InMemoryUserRepositoryTest extends UserRepositoryContract {
+
+    @Override
+    protected UserRepository createRepository() {
+        return new InMemoryUserRepository(2, 24);
+    }
+}
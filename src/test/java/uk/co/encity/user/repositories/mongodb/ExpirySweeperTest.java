@@ -0,0 +1,89 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoException;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ExpirySweeperTest {
+
+    // Class to be tested
+    private ExpirySweeper sweeper;
+
+    // Dependencies
+    @Mock
+    private MongoDBUserRepository repo;
+
+    private MeterRegistry registry;
+
+    @BeforeEach
+    public void setup() {
+        this.registry = new SimpleMeterRegistry();
+        this.sweeper = new ExpirySweeper(repo, 2, 3, registry);
+    }
+
+    private static List<ReplayedUser> users(int count) {
+        List<ReplayedUser> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            users.add(mock(ReplayedUser.class));
+        }
+        return users;
+    }
+
+    @Test
+    public void sweeps_Batches_Until_One_Is_Short() throws Exception {
+        List<ReplayedUser> full = users(2);
+        List<ReplayedUser> shortBatch = users(1);
+        when(repo.findExpiredUsers(any(), eq(2))).thenReturn(full).thenReturn(shortBatch);
+        when(repo.addUserEvents(UserEventType.USER_EXPIRED, full)).thenReturn(full);
+        when(repo.addUserEvents(UserEventType.USER_EXPIRED, shortBatch)).thenReturn(shortBatch);
+
+        sweeper.sweep();
+
+        assertEquals(3, registry.get("encity.user.expiry.expired").counter().count());
+        assertEquals(3, registry.get("encity.user.expiry.run.users").summary().totalAmount());
+        assertEquals(1, registry.get("encity.user.expiry.run.time").timer().count());
+    }
+
+    @Test
+    public void stops_After_The_Maximum_Number_Of_Batches() throws Exception {
+        List<ReplayedUser> full = users(2);
+        when(repo.findExpiredUsers(any(), eq(2))).thenReturn(full);
+        when(repo.addUserEvents(UserEventType.USER_EXPIRED, full)).thenReturn(full);
+
+        assertEquals(6, sweeper.sweepBatches());
+        verify(repo, times(3)).addUserEvents(UserEventType.USER_EXPIRED, full);
+    }
+
+    @Test
+    public void counts_Users_Updated_Before_The_Sweeper_As_Conflicts() throws Exception {
+        List<ReplayedUser> full = users(2);
+        when(repo.findExpiredUsers(any(), eq(2))).thenReturn(full);
+        when(repo.addUserEvents(UserEventType.USER_EXPIRED, full)).thenReturn(full.subList(0, 1)).thenReturn(Collections.emptyList());
+
+        assertEquals(1, sweeper.sweepBatches());
+        assertEquals(3, registry.get("encity.user.expiry.conflicts").counter().count());
+    }
+
+    @Test
+    public void counts_A_Failed_Batch_And_Leaves_The_Rest_To_The_Next_Run() throws Exception {
+        when(repo.findExpiredUsers(any(), eq(2))).thenThrow(new MongoException("no primary"));
+
+        assertEquals(0, sweeper.sweepBatches());
+        assertEquals(1, registry.get("encity.user.expiry.failures").counter().count());
+        verify(repo, never()).addUserEvents(any(), any());
+    }
+}
@@ -0,0 +1,111 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GroupCommitWriterTest {
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final List<CompletableFuture<Void>> results = Collections.synchronizedList(new ArrayList<>());
+
+    private GroupCommitWriter<String> writer(int maxBatch, long windowMillis, int maxInFlight) {
+        return new GroupCommitWriter<>("test", docs -> {
+            CompletableFuture<Void> result = new CompletableFuture<>();
+            this.batches.add(new ArrayList<>(docs));
+            this.results.add(result);
+            return result;
+        }, maxBatch, windowMillis, maxInFlight, this.timer, new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    public void teardown() {
+        this.timer.shutdownNow();
+    }
+
+    @Test
+    public void groups_Inserts_That_Arrive_While_A_Batch_Is_Written() {
+        GroupCommitWriter<String> writer = writer(10, 0, 1);
+
+        CompletableFuture<Void> a = writer.insert("a");
+        CompletableFuture<Void> b = writer.insert("b");
+        CompletableFuture<Void> c = writer.insert("c");
+        assertEquals(Collections.singletonList(Collections.singletonList("a")), this.batches);
+
+        this.results.get(0).complete(null);
+
+        assertTrue(a.isDone());
+        assertEquals(Arrays.asList("b", "c"), this.batches.get(1));
+        assertFalse(b.isDone());
+        this.results.get(1).complete(null);
+        assertTrue(b.isDone() && c.isDone());
+    }
+
+    @Test
+    public void writes_No_More_Than_The_Maximum_Batch() {
+        GroupCommitWriter<String> writer = writer(2, 0, 1);
+        writer.insert("a");
+        writer.insert("b");
+        writer.insert("c");
+        writer.insert("d");
+
+        this.results.get(0).complete(null);
+
+        assertEquals(Arrays.asList("b", "c"), this.batches.get(1));
+    }
+
+    @Test
+    public void fails_Only_The_Documents_That_Broke_An_Index() {
+        GroupCommitWriter<String> writer = writer(10, 0, 1);
+        writer.insert("a");
+        CompletableFuture<Void> b = writer.insert("b");
+        CompletableFuture<Void> c = writer.insert("c");
+        this.results.get(0).complete(null);
+
+        this.results.get(1).completeExceptionally(new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(1, 0, 0, 0, Collections.emptyList(), Collections.emptyList()),
+                Collections.singletonList(new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0)),
+                null,
+                new ServerAddress(),
+                Collections.emptySet()));
+
+        MongoWriteException e = assertThrows(MongoWriteException.class, () -> GroupCommitWriter.await(b));
+        assertEquals(ErrorCategory.DUPLICATE_KEY, e.getError().getCategory());
+        GroupCommitWriter.await(c);
+    }
+
+    @Test
+    public void holds_A_Small_Batch_For_The_Window() throws Exception {
+        GroupCommitWriter<String> writer = writer(10, 50, 1);
+        CompletableFuture<Void> a = writer.insert("a");
+        writer.insert("b");
+        assertTrue(this.batches.isEmpty());
+
+        for (int i = 0; i < 100 && this.batches.isEmpty(); i++) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        assertEquals(Collections.singletonList(Arrays.asList("a", "b")), this.batches);
+        this.results.get(0).complete(null);
+        assertTrue(a.isDone());
+    }
+}
@@ -0,0 +1,114 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonObjectId;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.commands.RejectUserCommand;
+import uk.co.encity.user.commands.UserCommand;
+import uk.co.encity.user.entity.UserHistoryEntry;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class HistoryPipelineTest {
+
+    private CodecRegistry registry;
+    private ObjectId userId;
+
+    @BeforeEach
+    public void setup() {
+        this.registry = UserCodecRegistry.create();
+        this.userId = new ObjectId();
+    }
+
+    private <T> BsonDocument encode(Class<T> clazz, T value) {
+        BsonDocument doc = new BsonDocument();
+        registry.get(clazz).encode(new BsonDocumentWriter(doc), value, EncoderContext.builder().build());
+        return doc;
+    }
+
+    @Nested
+    public class TheForUserMethod {
+        @Test
+        public void starts_After_The_Given_Version_In_Version_Order() {
+            List<Bson> stages = HistoryPipeline.forUser(userId, 7, 50);
+
+            BsonDocument match = stages.get(0).toBsonDocument(BsonDocument.class, registry).getDocument("$match");
+            assertEquals(BsonDocument.parse("{ $and: [ { userId: { $oid: '" + userId.toHexString() + "' } }, " +
+                    "{ userVersionNumber: { $gt: 7 } } ] }"), match);
+            assertEquals(1, stages.get(1).toBsonDocument(BsonDocument.class, registry)
+                    .getDocument("$sort").getInt32("userVersionNumber").getValue());
+            assertEquals(50, stages.get(2).toBsonDocument(BsonDocument.class, registry).getInt32("$limit").getValue());
+        }
+
+        @Test
+        public void reads_The_Rest_Of_The_History_Without_A_Limit() {
+            List<Bson> stages = HistoryPipeline.forUser(userId, 0, 0);
+
+            assertEquals(3, stages.size());
+            assertTrue(stages.get(2).toBsonDocument(BsonDocument.class, registry).containsKey("$lookup"));
+        }
+    }
+
+    @Nested
+    public class TheToEntryMethod {
+        @Test
+        public void joins_An_Event_To_Its_Command() {
+            MongoDBPatchUserCommand cmd = new MongoDBRejectUserCommand(new RejectUserCommand(
+                    userId.toHexString(), () -> new ObjectId().toHexString()));
+            MongoDBUserEvent evt = MongoDBUserRejectedEvent.builder()
+                    .userId(userId)
+                    .commandId(cmd.getCommandId())
+                    .eventTime(Instant.now().truncatedTo(ChronoUnit.MILLIS))
+                    .userVersionNumber(2)
+                    .userEventType(UserEventType.USER_REJECTED)
+                    .build();
+            ObjectId eventId = new ObjectId();
+            BsonDocument result = encode(MongoDBUserEvent.class, evt)
+                    .append("_id", new BsonObjectId(eventId))
+                    .append(HistoryPipeline.COMMAND_FIELD,
+                            new BsonArray(Collections.singletonList(encode(MongoDBUserCommand.class, cmd))));
+
+            UserHistoryEntry entry = HistoryPipeline.toEntry(result, registry);
+
+            assertEquals(2, entry.getVersion());
+            assertEquals(eventId.toHexString(), entry.getEventId());
+            assertEquals(UserEventType.USER_REJECTED, entry.getEventType());
+            assertEquals(evt.getEventTime(), entry.getEventTime());
+            assertEquals(cmd.getCommandId().toHexString(), entry.getCommandId());
+            assertEquals(UserCommand.UserTenantCommandType.REJECT_USER, entry.getCommandType());
+            assertNotNull(entry.getCommandTime());
+        }
+
+        @Test
+        public void leaves_The_Command_Empty_When_None_Was_Recorded() {
+            MongoDBUserEvent evt = MongoDBUserConfirmedEvent.builder()
+                    .userId(userId)
+                    .commandId(new ObjectId())
+                    .eventTime(Instant.now())
+                    .userVersionNumber(2)
+                    .userEventType(UserEventType.USER_CONFIRMED)
+                    .build();
+            BsonDocument result = encode(MongoDBUserEvent.class, evt).append(HistoryPipeline.COMMAND_FIELD, new BsonArray());
+
+            UserHistoryEntry entry = HistoryPipeline.toEntry(result, registry);
+
+            assertEquals(evt.getCommandId().toHexString(), entry.getCommandId());
+            assertNull(entry.getCommandType());
+            assertNull(entry.getCommandTime());
+        }
+    }
+}
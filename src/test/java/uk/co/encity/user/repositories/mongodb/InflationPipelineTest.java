@@ -0,0 +1,228 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the single-aggregation inflation path with the two-query path, by feeding each the
+ * documents that MongoDB would return for the same snapshot and events
+ */
+public class InflationPipelineTest {
+
+    private CodecRegistry registry;
+    private UserSnapshot snap;
+
+    @BeforeEach
+    public void setup() {
+        this.registry = UserCodecRegistry.create();
+        this.snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+        // Timestamps are stored with millisecond precision
+        this.snap.setLastUpdate(this.snap.getLastUpdate().truncatedTo(ChronoUnit.MILLIS));
+        this.snap.setExpiryTime(this.snap.getExpiryTime().truncatedTo(ChronoUnit.MILLIS));
+        this.snap.setUserCreationTime(this.snap.getUserCreationTime().truncatedTo(ChronoUnit.MILLIS));
+    }
+
+    private <T> BsonDocument encode(Class<T> clazz, T value) {
+        BsonDocument doc = new BsonDocument();
+        registry.get(clazz).encode(new BsonDocumentWriter(doc), value, EncoderContext.builder().build());
+        return doc;
+    }
+
+    private <T> T decode(Class<T> clazz, BsonDocument doc) {
+        Codec<T> codec = registry.get(clazz);
+        return codec.decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+    }
+
+    private MongoDBUserEvent rejectedEvent(int version) {
+        return MongoDBUserRejectedEvent.builder()
+                .userId(snap.getUserIdentity())
+                .commandId(new ObjectId())
+                .eventTime(Instant.now().truncatedTo(ChronoUnit.MILLIS))
+                .userVersionNumber(version)
+                .userEventType(UserEventType.USER_REJECTED)
+                .build();
+    }
+
+    /**
+     * Inflate using the documents returned by the two separate queries
+     */
+    private User inflateByTwoQueries(List<BsonDocument> eventDocs) {
+        UserSnapshot decodedSnap = decode(UserSnapshot.class, encode(UserSnapshot.class, snap));
+        List<MongoDBUserEvent> events = new ArrayList<>();
+        for (BsonDocument d : eventDocs) {
+            events.add(decode(MongoDBUserEvent.class, d));
+        }
+        return UserSnapshot.inflate(decodedSnap, events, System.nanoTime());
+    }
+
+    /**
+     * Inflate using the document returned by the aggregation
+     */
+    private User inflateByAggregation(List<BsonDocument> eventDocs) {
+        BsonDocument result = encode(UserSnapshot.class, snap);
+        result.append(InflationPipeline.EVENTS_FIELD, new BsonArray(eventDocs));
+        return InflationPipeline.inflate(result, registry, System.nanoTime());
+    }
+
+    private void assertSameUser(User expected, User actual) {
+        assertEquals(expected.getUserId(), actual.getUserId());
+        assertEquals(expected.getTenancyId(), actual.getTenancyId());
+        assertEquals(expected.getFirstName(), actual.getFirstName());
+        assertEquals(expected.getLastName(), actual.getLastName());
+        assertEquals(expected.getEmailAddress(), actual.getEmailAddress());
+        assertEquals(expected.isAdminUser(), actual.isAdminUser());
+        assertEquals(expected.getVersion(), actual.getVersion());
+        assertEquals(expected.getLastUpdate(), actual.getLastUpdate());
+        assertEquals(expected.getTenantStatus(), actual.getTenantStatus());
+        assertEquals(expected.getProviderStatus(), actual.getProviderStatus());
+        assertEquals(expected.getDomain(), actual.getDomain());
+        assertEquals(expected.getConfirmUUID(), actual.getConfirmUUID());
+        assertEquals(expected.getCreationTime(), actual.getCreationTime());
+        assertEquals(expected.getExpiryTime(), actual.getExpiryTime());
+    }
+
+    @Nested
+    public class TheAggregationPath {
+        @Test
+        public void inflates_The_Same_User_As_The_Two_Query_Path() {
+            List<BsonDocument> eventDocs = Collections.singletonList(encode(MongoDBUserEvent.class, rejectedEvent(2)));
+
+            User expected = inflateByTwoQueries(eventDocs);
+            User actual = inflateByAggregation(eventDocs);
+
+            assertEquals(UserTenantStatus.REJECTED, expected.getTenantStatus());
+            assertEquals(2, expected.getVersion());
+            assertSameUser(expected, actual);
+        }
+
+        @Test
+        public void inflates_A_Snapshot_With_No_Trailing_Events() {
+            User expected = inflateByTwoQueries(Collections.emptyList());
+            User actual = inflateByAggregation(Collections.emptyList());
+
+            assertEquals(1, actual.getVersion());
+            assertSameUser(expected, actual);
+        }
+
+        @Test
+        public void replays_An_Event_That_Is_Both_Archived_And_Live_Once() {
+            BsonDocument eventDoc = encode(MongoDBUserEvent.class, rejectedEvent(2));
+
+            User expected = inflateByTwoQueries(Collections.singletonList(eventDoc));
+            User actual = inflateByAggregation(Arrays.asList(eventDoc, eventDoc.clone()));
+
+            assertEquals(2, actual.getVersion());
+            assertSameUser(expected, actual);
+        }
+    }
+
+    @Nested
+    public class TheForUserMethod {
+        @Test
+        public void fetches_The_Latest_Snapshot_And_Its_Events_In_Version_Order() {
+            List<Bson> stages = InflationPipeline.forUser(snap.getUserIdentity());
+            List<String> operators = new ArrayList<>();
+            for (Bson stage : stages) {
+                operators.add(stage.toBsonDocument(BsonDocument.class, registry).getFirstKey());
+            }
+            assertEquals(Arrays.asList("$match", "$sort", "$limit", "$lookup"), operators);
+
+            BsonDocument lookup = stages.get(3).toBsonDocument(BsonDocument.class, registry).getDocument("$lookup");
+            assertEquals("user_events", lookup.getString("from").getValue());
+            BsonDocument eventSort = lookup.getArray("pipeline").get(1).asDocument().getDocument("$sort");
+            assertEquals(1, eventSort.getInt32("userVersionNumber").getValue());
+        }
+    }
+
+    @Nested
+    public class TheForUsersMethod {
+        @Test
+        public void picks_The_Latest_Snapshot_Of_Each_User_In_One_Aggregation() {
+            ObjectId other = new ObjectId();
+
+            List<Bson> stages = InflationPipeline.forUsers(Arrays.asList(snap.getUserIdentity(), other));
+            List<String> operators = new ArrayList<>();
+            for (Bson stage : stages) {
+                operators.add(stage.toBsonDocument(BsonDocument.class, registry).getFirstKey());
+            }
+
+            assertEquals(Arrays.asList("$match", "$sort", "$group", "$replaceRoot", "$lookup"), operators);
+            BsonArray ids = stages.get(0).toBsonDocument(BsonDocument.class, registry)
+                    .getDocument("$match").getDocument("userIdentity").getArray("$in");
+            assertEquals(2, ids.size());
+            assertEquals(BsonDocument.parse("{ userIdentity: 1, lastUpdate: -1 }"),
+                    stages.get(1).toBsonDocument(BsonDocument.class, registry).getDocument("$sort"));
+        }
+    }
+
+    @Nested
+    public class TheAsOfMethods {
+        private BsonArray eventConditions(List<Bson> stages) {
+            BsonDocument lookup = stages.get(3).toBsonDocument(BsonDocument.class, registry).getDocument("$lookup");
+            return lookup.getArray("pipeline").get(0).asDocument()
+                    .getDocument("$match").getDocument("$expr").getArray("$and");
+        }
+
+        @Test
+        public void starts_From_The_Nearest_Snapshot_At_Or_Before_The_Version() {
+            List<Bson> stages = InflationPipeline.asOfVersion(snap.getUserIdentity(), 5);
+
+            assertEquals(-1, stages.get(1).toBsonDocument(BsonDocument.class, registry)
+                    .getDocument("$sort").getInt32("toVersion").getValue());
+            assertTrue(stages.get(0).toBsonDocument(BsonDocument.class, registry).toJson().contains("\"$lte\": 5"));
+            assertEquals(BsonDocument.parse("{ $lte: [ '$userVersionNumber', 5 ] }"), eventConditions(stages).get(2));
+        }
+
+        @Test
+        public void replays_Only_The_Events_Up_To_The_Instant() {
+            Instant at = Instant.parse("2021-03-01T12:00:00Z");
+
+            List<Bson> stages = InflationPipeline.asOfInstant(snap.getUserIdentity(), at);
+
+            assertEquals(-1, stages.get(1).toBsonDocument(BsonDocument.class, registry)
+                    .getDocument("$sort").getInt32("lastUpdate").getValue());
+            BsonDocument limit = eventConditions(stages).get(2).asDocument();
+            assertEquals(at.toEpochMilli(), limit.getArray("$lte").get(1).asDateTime().getValue());
+        }
+
+        @Test
+        public void replays_Archived_Events_Before_Live_Ones() {
+            List<Bson> stages = InflationPipeline.asOfVersion(snap.getUserIdentity(), 5);
+
+            BsonDocument archived = stages.get(4).toBsonDocument(BsonDocument.class, registry).getDocument("$lookup");
+            assertEquals(SnapshotCompactor.ARCHIVED_EVENTS, archived.getString("from").getValue());
+            assertEquals(BsonDocument.parse("{ $concatArrays: [ '$archivedEvents', '$events' ] }"),
+                    stages.get(5).toBsonDocument(BsonDocument.class, registry)
+                            .getDocument("$addFields").getDocument(InflationPipeline.EVENTS_FIELD));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoException;
+import com.mongodb.reactivestreams.client.MongoClient;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+import uk.co.encity.user.events.published.UserMessageWriter;
+import uk.co.encity.user.service.IamProvider;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Reads of a user by a client with a consistency token.  No server is listening, so any read that reaches the
+ * database fails quickly
+ */
+public class MongoDBReactiveUserRepositoryTest {
+
+    private MongoClient client;
+    private MongoDBReactiveUserRepository repo;
+    private UserCache userCache;
+    private final String userId = new ObjectId().toHexString();
+
+    @BeforeEach
+    public void setup() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        this.userCache = new UserCache(100, 60, registry);
+        this.client = new MongoClientConfig().userMongoClient(
+                "mongodb://localhost:1/?serverSelectionTimeoutMS=100",
+                CodecMode.EXPLICIT,
+                new MongoClientCustomizer(null, null, null, null, false, registry));
+        this.repo = new MongoDBReactiveUserRepository(
+                this.client,
+                "users",
+                mock(IamProvider.class),
+                new SnapshotPolicy(2, 0, registry),
+                this.userCache,
+                InflationMode.AGGREGATION,
+                new UserMessageWriter(new ObjectMapper().findAndRegisterModules()),
+                new GroupCommit(false, 100, 0, 2, registry));
+    }
+
+    @AfterEach
+    public void teardown() {
+        this.client.close();
+    }
+
+    private ReplayedUser cachedUser(int version) {
+        ReplayedUser user = mock(ReplayedUser.class);
+        when(user.getUserId()).thenReturn(this.userId);
+        when(user.getVersion()).thenReturn(version);
+        this.userCache.put(user);
+        return user;
+    }
+
+    @Test
+    public void returns_A_Cached_User_At_The_Clients_Version() {
+        ReplayedUser cached = cachedUser(2);
+
+        StepVerifier.create(repo.readUser(userId, 2))
+                .expectNext(cached)
+                .verifyComplete();
+    }
+
+    @Test
+    public void does_Not_Return_A_Cached_User_Before_The_Clients_Version() {
+        cachedUser(1);
+
+        StepVerifier.create(repo.readUser(userId, 2))
+                .verifyError(MongoException.class);
+        assertNull(userCache.get(userId));
+    }
+}
@@ -0,0 +1,151 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.mongodb.reactivestreams.client.ClientSession;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.events.generated.UserEvent;
+import uk.co.encity.user.events.generated.UserEventType;
+import uk.co.encity.user.events.published.UserMessageWriter;
+import uk.co.encity.user.service.IamProvider;
+import uk.co.encity.user.service.VersionConflictException;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Two commands that append an event for the same version of a user at once.  The database is mocked to behave
+ * as the server does: the second transaction to write the event collides with the first while it is uncommitted,
+ * and finds its event once it has committed
+ */
+public class MongoDBReactiveUserRepositoryTransactionTest {
+
+    private MongoDBReactiveUserRepository repo;
+    private MongoCollection<MongoDBUserEvent> events;
+    private ClientSession first;
+    private ClientSession second;
+    private ReplayedUser user;
+
+    // The state of the event for the next version, as the server would see it
+    private ClientSession pendingIn;
+    private boolean committed;
+    private final Sinks.Empty<Void> firstCommit = Sinks.empty();
+    private boolean commitOnConflict = true;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        MongoClient client = mock(MongoClient.class);
+        MongoDatabase db = mock(MongoDatabase.class);
+        this.events = mock(MongoCollection.class);
+        MongoCollection<OutboxMessage> outbox = mock(MongoCollection.class);
+
+        when(client.getDatabase("users")).thenReturn(db);
+        when(db.getCodecRegistry()).thenReturn(UserCodecRegistry.create());
+        when(db.getCollection("user_events", MongoDBUserEvent.class)).thenReturn(this.events);
+        when(db.getCollection("user_outbox", OutboxMessage.class)).thenReturn(outbox);
+        when(outbox.insertOne(any(ClientSession.class), any())).thenReturn(Mono.empty());
+
+        this.first = this.session(this.firstCommit.asMono());
+        this.second = this.session(Mono.empty());
+        when(client.startSession()).thenReturn(Mono.just(this.first), Mono.just(this.second));
+        when(this.events.insertOne(any(ClientSession.class), any())).thenAnswer(inv -> this.insert(inv.getArgument(0)));
+
+        this.repo = new MongoDBReactiveUserRepository(
+                client,
+                "users",
+                mock(IamProvider.class),
+                new SnapshotPolicy(10, 0, registry),
+                new UserCache(100, 60, registry),
+                InflationMode.AGGREGATION,
+                new UserMessageWriter(new ObjectMapper().findAndRegisterModules()),
+                new GroupCommit(false, 100, 0, 2, registry));
+        this.repo.transactionalOutbox = true;
+        this.repo.viewEnabled = false;
+        this.repo.exchangeName = "encity-exchange";
+        this.repo.maxTransactionRetries = 3;
+
+        UserSnapshot snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+        this.user = new ReplayedUser(UserState.of(snap), 0, 0);
+    }
+
+    private ClientSession session(Mono<Void> commit) {
+        ClientSession session = mock(ClientSession.class);
+        when(session.hasActiveTransaction()).thenReturn(true);
+        when(session.abortTransaction()).thenReturn(Mono.empty());
+        when(session.commitTransaction()).thenReturn(commit.then(Mono.fromRunnable(() -> this.committed = true)));
+        return session;
+    }
+
+    private Mono<Void> insert(ClientSession session) {
+        if (this.committed) {
+            return Mono.error(new MongoWriteException(
+                    new WriteError(11000, "E11000 duplicate key error", new BsonDocument()),
+                    new ServerAddress()));
+        }
+        if (this.pendingIn != null && this.pendingIn != session) {
+            MongoCommandException conflict = new MongoCommandException(BsonDocument.parse(
+                    "{ok: 0, code: 112, codeName: 'WriteConflict', errormsg: 'WriteConflict error', " +
+                            "errorLabels: ['TransientTransactionError']}"),
+                    new ServerAddress());
+            if (this.commitOnConflict) {
+                this.firstCommit.tryEmitEmpty();
+            }
+            return Mono.error(conflict);
+        }
+        this.pendingIn = session;
+        return Mono.empty();
+    }
+
+    @Test
+    public void retries_The_Transaction_That_Collides_And_Reports_A_Version_Conflict() {
+        CompletableFuture<UserEvent> stored = repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, user).toFuture();
+
+        StepVerifier.create(repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, user))
+                .expectError(VersionConflictException.class)
+                .verify();
+
+        assertNotNull(stored.getNow(null));
+        // The first insert, the colliding one, and the retry that finds the committed event
+        verify(events, times(3)).insertOne(any(ClientSession.class), any());
+        verify(second, atLeastOnce()).abortTransaction();
+        verify(first, never()).abortTransaction();
+    }
+
+    @Test
+    public void reports_A_Version_Conflict_When_The_Retries_Run_Out() {
+        this.commitOnConflict = false;
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, user).subscribe();
+
+        StepVerifier.create(repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, user))
+                .expectError(VersionConflictException.class)
+                .verify();
+
+        // The first insert, then one for each retry
+        verify(events, times(5)).insertOne(any(ClientSession.class), any());
+    }
+}
@@ -0,0 +1,56 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.reactivestreams.client.MongoClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import reactor.core.publisher.Mono;
+import uk.co.encity.user.events.published.UserMessageWriter;
+import uk.co.encity.user.service.IamProvider;
+import uk.co.encity.user.service.UserRepository;
+import uk.co.encity.user.service.UserRepositoryContract;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Runs the repository contract against a MongoDB deployment, which is only done when one is given with
+ * <code>-Dmongodb.uri=...</code>.  Each test uses a database of its own, which is dropped afterwards
+ */
+@EnabledIfSystemProperty(named = "mongodb.uri", matches = ".+")
+public class MongoDBUserRepositoryContractTest extends UserRepositoryContract {
+
+    private MongoClient client;
+    private MongoDBReactiveUserRepository mongoRepo;
+
+    @Override
+    protected UserRepository createRepository() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        this.client = new MongoClientConfig().userMongoClient(
+                System.getProperty("mongodb.uri"),
+                CodecMode.EXPLICIT,
+                new MongoClientCustomizer(null, null, null, null, true, registry));
+        this.mongoRepo = new MongoDBReactiveUserRepository(
+                this.client,
+                "user_contract_" + new ObjectId().toHexString(),
+                mock(IamProvider.class),
+                new SnapshotPolicy(2, 0, registry),
+                new UserCache(100, 60, registry),
+                InflationMode.AGGREGATION,
+                new UserMessageWriter(new ObjectMapper().findAndRegisterModules()),
+                new GroupCommit(true, 100, 0, 2, registry));
+        this.mongoRepo.transactionalOutbox = false;
+        this.mongoRepo.viewEnabled = true;
+        this.mongoRepo.exchangeName = "encity-exchange";
+        this.mongoRepo.expiryHours = 24;
+        MongoDBUserRepository repo = new MongoDBUserRepository(this.mongoRepo);
+        new UserIndexManager(repo, true, QueryPlanCheck.OFF).createIndexes();
+        return repo;
+    }
+
+    @Override
+    protected void destroyRepository() {
+        Mono.from(this.mongoRepo.getDatabase().drop()).block();
+        this.client.close();
+    }
+}
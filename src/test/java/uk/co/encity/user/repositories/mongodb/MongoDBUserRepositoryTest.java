@@ -0,0 +1,64 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.mongodb.MongoException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import reactor.core.publisher.Mono;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.events.generated.UserEventType;
+import uk.co.encity.user.service.VersionConflictException;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * The blocking repository waits for the reactive one, and must throw the checked exceptions of the
+ * {@link uk.co.encity.user.service.UserRepository} interface rather than the wrappers that {@link Mono#block()} uses
+ */
+@ExtendWith(MockitoExtension.class)
+public class MongoDBUserRepositoryTest {
+
+    // Class to be tested
+    private MongoDBUserRepository repo;
+
+    // Dependencies
+    @Mock
+    private MongoDBReactiveUserRepository reactiveRepo;
+
+    @Mock
+    private User user;
+
+    @BeforeEach
+    public void setup() {
+        this.repo = new MongoDBUserRepository(reactiveRepo);
+    }
+
+    @Test
+    public void throws_A_Version_Conflict_Signalled_By_The_Reactive_Repository() {
+        when(reactiveRepo.addUserEvent("cmd", UserEventType.USER_CONFIRMED, user))
+                .thenReturn(Mono.error(new VersionConflictException("conflict")));
+
+        assertThrows(VersionConflictException.class, () -> repo.addUserEvent("cmd", UserEventType.USER_CONFIRMED, user));
+    }
+
+    @Test
+    public void throws_A_Message_That_Cannot_Be_Rendered_As_An_IOException() {
+        when(reactiveRepo.addUserEvent("cmd", UserEventType.USER_CONFIRMED, user))
+                .thenReturn(Mono.error(new JsonProcessingException("bad message") {}));
+
+        assertThrows(IOException.class, () -> repo.addUserEvent("cmd", UserEventType.USER_CONFIRMED, user));
+    }
+
+    @Test
+    public void throws_A_Database_Failure_As_It_Is() {
+        when(reactiveRepo.getUser("user")).thenReturn(Mono.error(new MongoException("no primary")));
+
+        assertThrows(MongoException.class, () -> repo.getUser("user"));
+    }
+}
@@ -0,0 +1,77 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.*;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MongoDriverMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+
+    @Test
+    public void names_The_Collection_Of_A_Command() {
+        assertEquals("user_events", MongoCommandMetrics.collectionOf(
+                "insert", new BsonDocument("insert", new BsonString("user_events"))));
+        assertEquals("user_view", MongoCommandMetrics.collectionOf(
+                "getMore", new BsonDocument("getMore", new BsonInt32(1)).append("collection", new BsonString("user_view"))));
+        assertEquals("none", MongoCommandMetrics.collectionOf(
+                "commitTransaction", new BsonDocument("commitTransaction", new BsonInt32(1))));
+    }
+
+    @Test
+    public void times_Commands_By_Collection_And_Command() {
+        MongoCommandMetrics metrics = new MongoCommandMetrics(this.registry, "sync");
+        ConnectionDescription connection = new ConnectionDescription(this.serverId);
+
+        metrics.commandStarted(new CommandStartedEvent(
+                7, connection, "users", "find", new BsonDocument("find", new BsonString("user_snapshots"))));
+        metrics.commandSucceeded(new CommandSucceededEvent(
+                7, connection, "find", new BsonDocument(), TimeUnit.MILLISECONDS.toNanos(3)));
+
+        Timer timer = this.registry.get("encity.user.mongodb.command")
+                .tags("client", "sync", "collection", "user_snapshots", "command", "find", "status", "success")
+                .timer();
+        assertEquals(1, timer.count());
+        assertEquals(3, timer.totalTime(TimeUnit.MILLISECONDS), 0.001);
+    }
+
+    @Test
+    public void tracks_The_Connections_And_Check_Outs_Of_A_Pool() {
+        MongoPoolMetrics metrics = new MongoPoolMetrics(this.registry, "reactive");
+        ConnectionId connectionId = new ConnectionId(this.serverId);
+
+        metrics.connectionPoolCreated(new ConnectionPoolCreatedEvent(this.serverId, ConnectionPoolSettings.builder().build()));
+        metrics.connectionCreated(new ConnectionCreatedEvent(connectionId));
+        metrics.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(this.serverId));
+        metrics.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+        metrics.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(this.serverId));
+        metrics.connectionCheckOutFailed(new ConnectionCheckOutFailedEvent(
+                this.serverId, ConnectionCheckOutFailedEvent.Reason.TIMEOUT));
+
+        assertEquals(1, this.registry.get("encity.user.mongodb.pool.size").gauge().value());
+        assertEquals(1, this.registry.get("encity.user.mongodb.pool.checkedOut").gauge().value());
+        assertEquals(2, this.registry.get("encity.user.mongodb.pool.wait").timer().count());
+        assertEquals(1, this.registry.get("encity.user.mongodb.pool.failures").counter().count());
+
+        metrics.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId));
+        assertEquals(0, this.registry.get("encity.user.mongodb.pool.checkedOut").gauge().value());
+
+        metrics.connectionPoolClosed(new ConnectionPoolClosedEvent(this.serverId));
+        assertNull(this.registry.find("encity.user.mongodb.pool.size").gauge());
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of inflating a user from a decoded snapshot and its trailing events, excluding the cost
+ * of decoding them.  The allocation per inflated user is reported as <code>gc.alloc.rate.norm</code>.  This
+ * is not run as part of the test suite - run {@link #main} from the IDE, or with the test classpath, after
+ * <code>mvn test-compile</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplayBenchmark {
+
+    /**
+     * The number of events that follow the snapshot
+     */
+    @Param({ "0", "10", "50" })
+    public int trailingEvents;
+
+    private UserSnapshot snap;
+    private List<MongoDBUserEvent> events;
+
+    @Setup
+    public void setup() {
+        this.snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+
+        this.events = new ArrayList<>();
+        User user = this.snap.asUser();
+        for (int i = 0; i < this.trailingEvents; i++) {
+            UserEventType type = i % 2 == 0 ? UserEventType.USER_CONFIRMED : UserEventType.USER_REJECTED;
+            MongoDBUserEvent evt = MongoDBUserEvent.forUser(new ObjectId().toHexString(), type, user);
+            this.events.add(evt);
+            user = UserSnapshot.inflate(this.snap, this.events, 0);
+        }
+    }
+
+    /**
+     * Inflate the user and read it, as a repository's caller would
+     */
+    @Benchmark
+    public void inflate(Blackhole bh) {
+        User user = UserSnapshot.inflate(this.snap, this.events, 0);
+        bh.consume(user.getVersion());
+        bh.consume(user.getTenantStatus());
+        bh.consume(user.getEmailAddress());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ReplayBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotCompactorTest {
+
+    private final ObjectId userId = new ObjectId();
+
+    private List<Document> snapshots(Integer... versions) {
+        List<Document> snapshots = new ArrayList<>();
+        for (int version : versions) {
+            snapshots.add(new Document("_id", new ObjectId()).append("userIdentity", userId).append("toVersion", version));
+        }
+        return snapshots;
+    }
+
+    @Test
+    public void archives_All_But_The_Latest_Snapshots_And_The_Initial_One() {
+        List<Document> snapshots = snapshots(1, 11, 21, 31, 41);
+
+        SnapshotCompactor.UserArchive archive = SnapshotCompactor.plan(snapshots, 2);
+
+        assertEquals(userId, archive.userId);
+        assertEquals(Arrays.asList(snapshots.get(1).getObjectId("_id"), snapshots.get(2).getObjectId("_id")),
+                archive.snapshotIds);
+        assertEquals(31, archive.toVersion);
+    }
+
+    @Test
+    public void leaves_A_User_With_No_More_Snapshots_Than_Are_Kept() {
+        assertNull(SnapshotCompactor.plan(snapshots(1, 11, 21), 2));
+        assertNull(SnapshotCompactor.plan(snapshots(1), 1));
+    }
+
+    @Test
+    public void archives_The_Events_Up_To_The_Oldest_Snapshot_Kept() {
+        SnapshotCompactor.UserArchive archive = SnapshotCompactor.plan(snapshots(1, 11, 21), 1);
+
+        String filter = archive.eventFilter().toBsonDocument(Document.class, UserCodecRegistry.create()).toJson();
+        assertTrue(filter.contains(userId.toHexString()));
+        assertTrue(filter.contains("\"$lte\": 21"));
+    }
+}
@@ -0,0 +1,93 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotPolicyTest {
+
+    private SimpleMeterRegistry registry;
+    private UserSnapshot snap;
+
+    @BeforeEach
+    public void setup() {
+        this.registry = new SimpleMeterRegistry();
+        this.snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                true,
+                24);
+    }
+
+    private MongoDBUserEvent confirmedEvent(int version) {
+        return MongoDBUserConfirmedEvent.builder()
+                .userId(snap.getUserIdentity())
+                .commandId(new ObjectId())
+                .eventTime(Instant.now())
+                .userVersionNumber(version)
+                .userEventType(UserEventType.USER_CONFIRMED)
+                .build();
+    }
+
+    @Nested
+    public class TheNextSnapshotMethod {
+        @Test
+        public void produces_A_Snapshot_When_The_Event_Threshold_Is_Reached() {
+            SnapshotPolicy policy = new SnapshotPolicy(1, 0, registry);
+            ReplayedUser user = UserSnapshot.inflate(snap, Collections.emptyList(), System.nanoTime());
+
+            UserSnapshot next = policy.nextSnapshot(user, confirmedEvent(2));
+
+            assertNotNull(next);
+            assertNotEquals(snap.getSnapshotId(), next.getSnapshotId());
+            assertEquals(2, next.getToVersion());
+            assertEquals(UserTenantStatus.CONFIRMED, next.getTenantStatus());
+            assertEquals(UserTenantStatus.UNCONFIRMED, user.getTenantStatus());
+        }
+
+        @Test
+        public void produces_Nothing_Below_The_Event_Threshold() {
+            SnapshotPolicy policy = new SnapshotPolicy(5, 0, registry);
+            ReplayedUser user = UserSnapshot.inflate(snap, Collections.emptyList(), System.nanoTime());
+
+            assertNull(policy.nextSnapshot(user, confirmedEvent(2)));
+        }
+
+        @Test
+        public void produces_A_Snapshot_When_Replay_Exceeds_The_Time_Budget() {
+            SnapshotPolicy policy = new SnapshotPolicy(0, 10, registry);
+            ReplayedUser user = new ReplayedUser(UserState.of(snap), 0, TimeUnit.MILLISECONDS.toNanos(11));
+
+            assertNotNull(policy.nextSnapshot(user, confirmedEvent(2)));
+        }
+
+        @Test
+        public void ignores_Users_That_Were_Not_Replayed() {
+            SnapshotPolicy policy = new SnapshotPolicy(1, 0, registry);
+
+            assertNull(policy.nextSnapshot(snap.asUser(), confirmedEvent(2)));
+        }
+    }
+
+    @Test
+    public void records_The_Length_Of_Each_Replay() {
+        SnapshotPolicy policy = new SnapshotPolicy(10, 0, registry);
+        policy.recordReplay(new ReplayedUser(UserState.of(snap), 3, 1000));
+        policy.recordReplay(new ReplayedUser(UserState.of(snap), 5, 1000));
+
+        assertEquals(2, registry.get("encity.user.replay.events").summary().count());
+        assertEquals(8.0, registry.get("encity.user.replay.events").summary().totalAmount());
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonBinary;
+import org.bson.BsonDateTime;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransferFormatTest {
+
+    private static RawBsonDocument event(ObjectId userId, int version) {
+        return new RawBsonDocument(new BsonDocument("_id", new BsonObjectId(new ObjectId()))
+                .append("userId", new BsonObjectId(userId))
+                .append("userVersionNumber", new BsonInt32(version))
+                .append("eventType", new BsonString("USER_CONFIRMED"))
+                .append("eventDateTime", new BsonDateTime(1_600_000_000_000L))
+                .append("confirmUUID", new BsonBinary(UUID.randomUUID())), new BsonDocumentCodec());
+    }
+
+    private static void roundTrip(TransferFormat format) throws Exception {
+        ObjectId userId = new ObjectId();
+        RawBsonDocument first = event(userId, 1);
+        RawBsonDocument second = event(userId, 2);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (TransferFormat.DocumentWriter writer = format.writer(new GZIPOutputStream(bytes))) {
+            writer.write(first);
+            writer.write(second);
+        }
+
+        try (TransferFormat.DocumentReader reader = format.reader(
+                new GZIPInputStream(new ByteArrayInputStream(bytes.toByteArray())))) {
+            assertEquals(first, reader.read());
+            assertEquals(second, reader.read());
+            assertNull(reader.read());
+        }
+    }
+
+    @Test
+    public void ndjson_Keeps_The_Type_Of_Every_Value() throws Exception {
+        roundTrip(TransferFormat.NDJSON);
+    }
+
+    @Test
+    public void bson_Reads_Back_What_It_Wrote() throws Exception {
+        roundTrip(TransferFormat.BSON);
+    }
+
+    @Test
+    public void names_The_File_Of_A_Collection() {
+        assertEquals("user_events.ndjson.gz", TransferFormat.NDJSON.fileName("user_events", true));
+        assertEquals("user_events.bson", TransferFormat.BSON.fileName("user_events", false));
+    }
+
+    @Test
+    public void gives_The_Documents_Of_A_User_To_One_Worker() {
+        ObjectId userId = new ObjectId();
+        RawBsonDocument snapshot = new RawBsonDocument(
+                new BsonDocument("_id", new BsonObjectId(new ObjectId())).append("userIdentity", new BsonObjectId(userId)),
+                new BsonDocumentCodec());
+
+        int worker = UserImporter.workerOf(snapshot, 8);
+        for (int version = 1; version < 20; version++) {
+            assertEquals(worker, UserImporter.workerOf(event(userId, version), 8));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.co.encity.user.components.EmailRecipient;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith(MockitoExtension.class)
+public class UserCacheWatcherTest {
+
+    // Class to be tested
+    private UserCacheWatcher watcher;
+
+    // Dependencies
+    @Mock
+    private MongoDBUserRepository repo;
+
+    private UserCache cache;
+    private MeterRegistry registry;
+    private ReplayedUser user;
+
+    @BeforeEach
+    public void setup() {
+        this.registry = new SimpleMeterRegistry();
+        this.cache = new UserCache(100, 60, registry);
+        this.watcher = new UserCacheWatcher(repo, cache, 10, registry);
+
+        UserSnapshot snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+        this.user = new ReplayedUser(UserState.of(snap), 0, 0);
+        this.cache.put(this.user);
+    }
+
+    private BsonDocument written(String idField, String versionField, int version) {
+        return new BsonDocument(idField, new BsonObjectId(new ObjectId(user.getUserId())))
+                .append(versionField, new BsonInt32(version));
+    }
+
+    @Test
+    public void removes_A_User_When_Another_Instance_Stores_A_Later_Event() {
+        assertTrue(watcher.apply("user_events", written("userId", "userVersionNumber", 2)));
+
+        assertNull(cache.get(user.getUserId()));
+        assertEquals(1, registry.get("encity.user.cache.invalidations").counter().count());
+    }
+
+    @Test
+    public void keeps_A_User_Already_Cached_At_The_Stored_Version() {
+        assertFalse(watcher.apply("user_events", written("userId", "userVersionNumber", 1)));
+
+        assertSame(user, cache.get(user.getUserId()));
+    }
+
+    @Test
+    public void removes_A_User_When_A_Later_Snapshot_Is_Stored() {
+        assertTrue(watcher.apply("user_snapshots", written("userIdentity", "toVersion", 3)));
+
+        assertNull(cache.get(user.getUserId()));
+    }
+
+    @Test
+    public void ignores_A_Change_Without_The_Fields_It_Needs() {
+        assertFalse(watcher.apply("user_events", new BsonDocument()));
+        assertFalse(watcher.apply("user_events", null));
+    }
+}
@@ -0,0 +1,113 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the decode throughput and allocation rate of the hand-written codecs with the POJO codecs, on the
+ * documents read to inflate a user: one snapshot and its trailing events.  This is not run as part of the
+ * test suite - run {@link #main} from the IDE, or with the test classpath, after <code>mvn test-compile</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserCodecBenchmark {
+
+    /**
+     * The number of events that follow the snapshot
+     */
+    @Param({ "10" })
+    public int trailingEvents;
+
+    @Param({ "EXPLICIT", "POJO" })
+    public CodecMode codecMode;
+
+    private Codec<UserSnapshot> snapshotCodec;
+    private Codec<MongoDBUserEvent> eventCodec;
+
+    private byte[] snapshotBytes;
+    private byte[][] eventBytes;
+
+    private final DecoderContext decoderContext = DecoderContext.builder().build();
+
+    @Setup
+    public void setup() {
+        CodecRegistry registry = UserCodecRegistry.create(this.codecMode);
+        this.snapshotCodec = registry.get(UserSnapshot.class);
+        this.eventCodec = registry.get(MongoDBUserEvent.class);
+
+        UserSnapshot snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+        this.snapshotBytes = encode(this.snapshotCodec, snap);
+
+        User user = snap.asUser();
+        this.eventBytes = new byte[this.trailingEvents][];
+        for (int i = 0; i < this.trailingEvents; i++) {
+            UserEventType type = i % 2 == 0 ? UserEventType.USER_CONFIRMED : UserEventType.USER_REJECTED;
+            this.eventBytes[i] = encode(this.eventCodec, MongoDBUserEvent.forUser(new ObjectId().toHexString(), type, user));
+        }
+    }
+
+    private static <T> byte[] encode(Codec<T> codec, T value) {
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(buffer), value, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+    private <T> T decode(Codec<T> codec, byte[] bytes) {
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes))) {
+            return codec.decode(reader, this.decoderContext);
+        }
+    }
+
+    @Benchmark
+    public UserSnapshot decodeSnapshot() {
+        return decode(this.snapshotCodec, this.snapshotBytes);
+    }
+
+    @Benchmark
+    public int decodeSnapshotAndEvents() {
+        int version = decode(this.snapshotCodec, this.snapshotBytes).getToVersion();
+        for (byte[] bytes : this.eventBytes) {
+            version += decode(this.eventCodec, bytes).getUserVersionNumber();
+        }
+        return version;
+    }
+
+    /**
+     * Run the benchmark with the GC profiler, which reports the allocation rate per operation
+     * (<code>gc.alloc.rate.norm</code>) alongside the throughput
+     */
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(UserCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
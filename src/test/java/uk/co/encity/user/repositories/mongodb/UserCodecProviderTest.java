@@ -0,0 +1,144 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.commands.ConfirmUserCommand;
+import uk.co.encity.user.commands.RejectUserCommand;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the hand-written codecs read and write exactly the documents that the POJO codecs do
+ */
+public class UserCodecProviderTest {
+
+    private CodecRegistry explicit;
+    private CodecRegistry pojo;
+    private UserSnapshot snap;
+
+    @BeforeEach
+    public void setup() {
+        this.explicit = UserCodecRegistry.create(CodecMode.EXPLICIT);
+        this.pojo = UserCodecRegistry.create(CodecMode.POJO);
+        this.snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                true,
+                24);
+        // Timestamps are stored with millisecond precision
+        this.snap.setLastUpdate(this.snap.getLastUpdate().truncatedTo(ChronoUnit.MILLIS));
+        this.snap.setExpiryTime(this.snap.getExpiryTime().truncatedTo(ChronoUnit.MILLIS));
+        this.snap.setUserCreationTime(this.snap.getUserCreationTime().truncatedTo(ChronoUnit.MILLIS));
+    }
+
+    private <T> BsonDocument encode(CodecRegistry registry, Class<T> clazz, T value) {
+        BsonDocument doc = new BsonDocument();
+        registry.get(clazz).encode(new BsonDocumentWriter(doc), value, EncoderContext.builder().build());
+        return doc;
+    }
+
+    private <T> T decode(CodecRegistry registry, Class<T> clazz, BsonDocument doc) {
+        return registry.get(clazz).decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+    }
+
+    private MongoDBUserEvent event(UserEventType type) {
+        return MongoDBUserEvent.forUser(new ObjectId().toHexString(), type, snap.asUser());
+    }
+
+    @Nested
+    public class TheSnapshotCodec {
+        @Test
+        public void writes_The_Same_Document_As_The_Pojo_Codec() {
+            assertEquals(encode(pojo, UserSnapshot.class, snap), encode(explicit, UserSnapshot.class, snap));
+        }
+
+        @Test
+        public void reads_A_Document_Written_By_The_Pojo_Codec() {
+            BsonDocument doc = encode(pojo, UserSnapshot.class, snap);
+
+            UserSnapshot decoded = decode(explicit, UserSnapshot.class, doc);
+
+            assertEquals(snap.getSnapshotId(), decoded.getSnapshotId());
+            assertTrue(decoded.isAdminUser());
+            assertEquals(snap.getConfirmUUID(), decoded.getConfirmUUID());
+            assertEquals(doc, encode(pojo, UserSnapshot.class, decoded));
+        }
+
+        @Test
+        public void ignores_Null_And_Unknown_Fields() {
+            BsonDocument doc = encode(pojo, UserSnapshot.class, snap);
+            doc.put("domain", new BsonNull());
+            doc.put("somethingNew", new BsonInt32(1));
+
+            UserSnapshot decoded = decode(explicit, UserSnapshot.class, doc);
+
+            assertNull(decoded.getDomain());
+            assertEquals(snap.getUserIdentity(), decoded.getUserIdentity());
+        }
+    }
+
+    @Nested
+    public class TheEventCodec {
+        @Test
+        public void writes_The_Same_Documents_As_The_Pojo_Codec() {
+            for (UserEventType type : UserEventType.values()) {
+                MongoDBUserEvent evt = event(type);
+                assertEquals(encode(pojo, MongoDBUserEvent.class, evt), encode(explicit, MongoDBUserEvent.class, evt), type.name());
+            }
+        }
+
+        @Test
+        public void reads_Each_Event_Class_Written_By_The_Pojo_Codec() {
+            for (UserEventType type : UserEventType.values()) {
+                MongoDBUserEvent evt = event(type);
+                BsonDocument doc = encode(pojo, MongoDBUserEvent.class, evt);
+                doc.put("_id", new BsonObjectId(new ObjectId()));
+
+                MongoDBUserEvent decoded = decode(explicit, MongoDBUserEvent.class, doc);
+
+                assertEquals(evt.getClass(), decoded.getClass());
+                assertEquals(doc.getObjectId("_id").getValue(), decoded.getEventId());
+                assertEquals(evt.getUserVersionNumber(), decoded.getUserVersionNumber());
+                assertEquals(doc, encode(pojo, MongoDBUserEvent.class, decoded));
+            }
+        }
+    }
+
+    @Nested
+    public class TheCommandCodec {
+        @Test
+        public void reads_And_Writes_The_Same_Documents_As_The_Pojo_Codec() {
+            MongoDBPatchUserCommand confirm = new MongoDBConfirmUserCommand(new ConfirmUserCommand(
+                    snap.getUserId(), () -> new ObjectId().toHexString(), Collections.singletonMap(ConfirmUserCommand.Extras.INITIAL_PASSWORD, "x")));
+            MongoDBPatchUserCommand reject = new MongoDBRejectUserCommand(new RejectUserCommand(
+                    snap.getUserId(), () -> new ObjectId().toHexString()));
+
+            for (MongoDBPatchUserCommand cmd : new MongoDBPatchUserCommand[] { confirm, reject }) {
+                BsonDocument doc = encode(pojo, MongoDBUserCommand.class, cmd);
+                assertEquals(doc, encode(explicit, MongoDBUserCommand.class, cmd));
+
+                MongoDBUserCommand decoded = decode(explicit, MongoDBUserCommand.class, doc);
+                assertEquals(cmd.getClass(), decoded.getClass());
+                assertEquals(cmd.getUserId(), ((MongoDBPatchUserCommand) decoded).getUserId());
+                assertEquals(doc, encode(pojo, MongoDBUserCommand.class, decoded));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.reactivestreams.client.AggregatePublisher;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+public class UserIndexManagerTest {
+
+    @Nested
+    public class TheUnsupportedStagesMethod {
+        @Test
+        public void accepts_An_Index_Scan() {
+            Document explain = Document.parse(
+                    "{ queryPlanner: { winningPlan: { stage: 'FETCH', inputStage: { stage: 'IXSCAN', indexName: 'userIdentity_lastUpdate' } }," +
+                    "  rejectedPlans: [ { stage: 'SORT', inputStage: { stage: 'COLLSCAN' } } ] } }");
+
+            assertEquals(Collections.emptySet(), UserIndexManager.unsupportedStages(explain));
+        }
+
+        @Test
+        public void reports_A_Collection_Scan_With_An_In_Memory_Sort() {
+            Document explain = Document.parse(
+                    "{ queryPlanner: { winningPlan: { stage: 'SORT', inputStage: { stage: 'COLLSCAN' } }, rejectedPlans: [] } }");
+
+            Set<String> stages = UserIndexManager.unsupportedStages(explain);
+
+            assertTrue(stages.contains("COLLSCAN"));
+            assertTrue(stages.contains("SORT"));
+        }
+
+        @Test
+        public void looks_Inside_Aggregation_Explain_Output() {
+            Document explain = Document.parse(
+                    "{ stages: [ { $cursor: { queryPlanner: { winningPlan: { stage: 'COLLSCAN' } } } } ] }");
+
+            assertEquals(Collections.singleton("COLLSCAN"), UserIndexManager.unsupportedStages(explain));
+        }
+    }
+
+    @Test
+    public void declares_An_Index_For_Every_Queried_Collection() {
+        for (UserIndexManager.QueryShape query : UserIndexManager.repositoryQueries()) {
+            assertTrue(UserIndexManager.requiredIndexes().containsKey(query.collection), query.collection);
+        }
+    }
+
+    @Test
+    public void looks_Up_Email_Addresses_With_The_Collation_Of_Their_Index() {
+        for (UserIndexManager.QueryShape query : UserIndexManager.repositoryQueries()) {
+            if (query.description.contains("email")) {
+                assertEquals(UserSnapshot.EMAIL_COLLATION, query.collation);
+            }
+        }
+        assertTrue(UserIndexManager.requiredIndexes().get("user_snapshots").stream()
+                .anyMatch(index -> UserSnapshot.EMAIL_COLLATION.equals(index.getOptions().getCollation())));
+    }
+
+    @Test
+    public void finds_Duplicates_Of_Every_Field_Of_An_Index() {
+        List<Bson> pipeline = UserIndexManager.duplicateKeys(
+                UserIndexManager.requiredIndexes().get("user_events").get(0).getKeys());
+
+        assertEquals(Document.parse("{ $group: { _id: { userId: '$userId', userVersionNumber: '$userVersionNumber' }, " +
+                "count: { $sum: 1 } } }"), pipeline.get(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void keeps_An_Index_That_Cannot_Be_Made_Unique() {
+        MongoDBUserRepository repo = mock(MongoDBUserRepository.class);
+        MongoDatabase db = mock(MongoDatabase.class);
+        MongoCollection<Document> collection = mock(MongoCollection.class);
+        AggregatePublisher<Document> duplicates = mock(AggregatePublisher.class);
+        when(repo.getDatabase()).thenReturn(db);
+        when(db.getCollection(anyString())).thenReturn(collection);
+        when(collection.createIndex(any(Bson.class), any(IndexOptions.class))).thenAnswer(invocation -> {
+            if (Boolean.TRUE.equals(invocation.<IndexOptions>getArgument(1).isUnique())) {
+                return Mono.error(new MongoCommandException(BsonDocument.parse("{ ok: 0, code: 85, errmsg: 'conflict' }"), new ServerAddress()));
+            }
+            return Mono.just("created");
+        });
+        when(collection.aggregate(anyList())).thenReturn(duplicates);
+        when(duplicates.allowDiskUse(true)).thenReturn(duplicates);
+        when(duplicates.first()).thenReturn(Mono.just(new Document("_id", new Document("userVersionNumber", 2)).append("count", 2)));
+
+        UserIndexManager manager = new UserIndexManager(repo, true, QueryPlanCheck.OFF);
+
+        assertThrows(IllegalStateException.class, manager::createIndexes);
+        verify(collection, never()).dropIndex(anyString());
+    }
+}
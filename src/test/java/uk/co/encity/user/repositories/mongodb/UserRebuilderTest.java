@@ -0,0 +1,121 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonDocument;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserRebuilderTest {
+
+    private static UserSnapshot initialSnapshot() {
+        return UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+    }
+
+    private static MongoDBUserEvent event(UserSnapshot snap, UserEventType type, int version) {
+        MongoDBUserEvent.MongoDBUserEventBuilder<?, ?> builder = type == UserEventType.USER_CONFIRMED ?
+                MongoDBUserConfirmedEvent.builder() :
+                MongoDBUserRejectedEvent.builder();
+        return builder
+                .userId(snap.getUserIdentity())
+                .commandId(new ObjectId())
+                .eventTime(Instant.now())
+                .userVersionNumber(version)
+                .userEventType(type)
+                .build();
+    }
+
+    @Nested
+    public class TheFoldMethod {
+        @Test
+        public void folds_Each_Users_Events_Into_Its_Initial_Snapshot() {
+            UserSnapshot first = initialSnapshot();
+            UserSnapshot second = initialSnapshot();
+            List<MongoDBUserEvent> events = Arrays.asList(
+                    event(first, UserEventType.USER_CONFIRMED, 2),
+                    event(first, UserEventType.USER_REJECTED, 3),
+                    event(second, UserEventType.USER_CONFIRMED, 2));
+            List<ReplayedUser> rebuilt = new ArrayList<>();
+            UserRebuilder.Progress progress = new UserRebuilder.Progress(2);
+
+            UserRebuilder.fold(Arrays.asList(first, second).iterator(), events.iterator(), rebuilt::add, progress);
+
+            assertEquals(2, rebuilt.size());
+            assertEquals(3, rebuilt.get(0).getVersion());
+            assertEquals(UserTenantStatus.REJECTED, rebuilt.get(0).getTenantStatus());
+            assertEquals(2, rebuilt.get(0).getReplayedEvents());
+            assertEquals(2, rebuilt.get(1).getVersion());
+            assertEquals(UserTenantStatus.CONFIRMED, rebuilt.get(1).getTenantStatus());
+            assertEquals(2, progress.getUsers());
+            assertEquals(3, progress.getEvents());
+        }
+
+        @Test
+        public void rebuilds_A_User_Without_Events_As_Its_Initial_Snapshot() {
+            UserSnapshot snap = initialSnapshot();
+            List<ReplayedUser> rebuilt = new ArrayList<>();
+
+            UserRebuilder.fold(Collections.singletonList(snap).iterator(), Collections.emptyIterator(),
+                    rebuilt::add, new UserRebuilder.Progress(1));
+
+            assertEquals(1, rebuilt.get(0).getVersion());
+            assertEquals(0, rebuilt.get(0).getReplayedEvents());
+            assertEquals(UserTenantStatus.UNCONFIRMED, rebuilt.get(0).getTenantStatus());
+        }
+
+        @Test
+        public void skips_Events_Of_Users_Without_An_Initial_Snapshot() {
+            UserSnapshot orphan = initialSnapshot();
+            UserSnapshot snap = initialSnapshot();
+            UserSnapshot lateOrphan = initialSnapshot();
+            List<MongoDBUserEvent> events = Arrays.asList(
+                    event(orphan, UserEventType.USER_CONFIRMED, 2),
+                    event(snap, UserEventType.USER_CONFIRMED, 2),
+                    event(lateOrphan, UserEventType.USER_REJECTED, 2));
+            List<ReplayedUser> rebuilt = new ArrayList<>();
+            UserRebuilder.Progress progress = new UserRebuilder.Progress(1);
+
+            UserRebuilder.fold(Collections.singletonList(snap).iterator(), events.iterator(), rebuilt::add, progress);
+
+            assertEquals(1, rebuilt.size());
+            assertEquals(UserTenantStatus.CONFIRMED, rebuilt.get(0).getTenantStatus());
+            assertEquals(2, progress.getSkippedEvents());
+        }
+    }
+
+    @Test
+    public void merges_Archived_And_Live_Events_Once_Each() {
+        List<Integer> merged = new ArrayList<>();
+
+        UserRebuilder.merge(Arrays.asList(1, 2, 3).iterator(), Arrays.asList(3, 4).iterator(), Integer::compare)
+                .forEachRemaining(merged::add);
+
+        assertEquals(Arrays.asList(1, 2, 3, 4), merged);
+    }
+
+    @Test
+    public void leaves_The_Last_Partition_Unbounded() {
+        ObjectId from = new ObjectId();
+
+        BsonDocument filter = new UserRebuilder.Partition(from, null, 10).range("userId")
+                .toBsonDocument(BsonDocument.class, UserCodecRegistry.create());
+
+        assertEquals(from, filter.getDocument("userId").getObjectId("$gte").getValue());
+        assertFalse(filter.getDocument("userId").containsKey("$lt"));
+    }
+}
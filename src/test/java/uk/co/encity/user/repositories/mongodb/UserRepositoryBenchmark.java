@@ -0,0 +1,151 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.reactivestreams.client.MongoClient;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import reactor.core.publisher.Mono;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.events.generated.UserEventType;
+import uk.co.encity.user.events.published.UserMessageWriter;
+import uk.co.encity.user.repositories.file.FileUserRepository;
+import uk.co.encity.user.repositories.memory.InMemoryUserRepository;
+import uk.co.encity.user.service.IamProvider;
+import uk.co.encity.user.service.UserRepository;
+
+import java.io.Closeable;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the storage engines on the same operations: storing the next event of a user, and reading an earlier
+ * version of a user, which replays it from a snapshot.  MongoDB is included when <code>-Dmongodb.uri=...</code>
+ * is given, and a database of its own is used and dropped.  This is not run as part of the test suite - run
+ * {@link #main} from the IDE, or with the test classpath, after <code>mvn test-compile</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UserRepositoryBenchmark {
+
+    private static final int USERS = 1000;
+
+    @Param({ "memory", "file" })
+    public String engine;
+
+    private UserRepository repo;
+    private MongoClient client;
+    private MongoDBReactiveUserRepository mongoRepo;
+    private final List<String> userIds = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        switch (this.engine) {
+            case "memory":
+                this.repo = new InMemoryUserRepository(10, 24);
+                break;
+            case "file":
+                this.repo = new FileUserRepository(Files.createTempDirectory("users").toString(),
+                        64 * 1024 * 1024, true, 0, 0.5, 10, 24, registry);
+                break;
+            case "mongodb":
+                this.client = new MongoClientConfig().userMongoClient(
+                        System.getProperty("mongodb.uri"),
+                        CodecMode.EXPLICIT,
+                        new MongoClientCustomizer(null, null, null, null, true, registry));
+                this.mongoRepo = new MongoDBReactiveUserRepository(
+                        this.client,
+                        "user_benchmark_" + new ObjectId().toHexString(),
+                        mock(IamProvider.class),
+                        new SnapshotPolicy(10, 0, registry),
+                        new UserCache(USERS, 60, registry),
+                        InflationMode.AGGREGATION,
+                        new UserMessageWriter(new ObjectMapper().findAndRegisterModules()),
+                        new GroupCommit(true, 100, 0, 2, registry));
+                this.mongoRepo.transactionalOutbox = false;
+                this.mongoRepo.viewEnabled = true;
+                this.mongoRepo.exchangeName = "encity-exchange";
+                        this.mongoRepo.expiryHours = 24;
+                MongoDBUserRepository blocking = new MongoDBUserRepository(this.mongoRepo);
+                new UserIndexManager(blocking, true, QueryPlanCheck.OFF).createIndexes();
+                this.repo = blocking;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + this.engine);
+        }
+
+        String tenancyId = new ObjectId().toHexString();
+        for (int i = 0; i < USERS; i++) {
+            User user = this.repo.addUser(tenancyId, "example.com",
+                    new EmailRecipient("Ada", "Lovelace", "ada" + i + "@example.com"), false);
+            this.repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CREATED, user);
+            for (int v = 0; v < 15; v++) {
+                this.update(user.getUserId());
+            }
+            this.userIds.add(user.getUserId());
+        }
+    }
+
+    @TearDown
+    public void teardown() throws Exception {
+        if (this.mongoRepo != null) {
+            Mono.from(this.mongoRepo.getDatabase().drop()).block();
+            this.client.close();
+        }
+        if (this.repo instanceof Closeable) {
+            ((Closeable) this.repo).close();
+        }
+    }
+
+    private User update(String userId) throws Exception {
+        User user = this.repo.getUser(userId);
+        UserEventType type = user.getVersion() % 2 == 0 ? UserEventType.USER_REJECTED : UserEventType.USER_CONFIRMED;
+        this.repo.addUserEvent(new ObjectId().toHexString(), type, user);
+        return user;
+    }
+
+    private String nextUserId() {
+        this.next = (this.next + 1) % USERS;
+        return this.userIds.get(this.next);
+    }
+
+    /**
+     * Store the next event of a user
+     */
+    @Benchmark
+    public User addEvent() throws Exception {
+        return this.update(this.nextUserId());
+    }
+
+    /**
+     * Read a user as it was several events ago
+     */
+    @Benchmark
+    public User readEarlierVersion() throws Exception {
+        String userId = this.nextUserId();
+        return this.repo.getUser(userId, this.repo.getUser(userId).getVersion() - 5);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        OptionsBuilder options = new OptionsBuilder();
+        options.include(UserRepositoryBenchmark.class.getSimpleName());
+        if (System.getProperty("mongodb.uri") != null) {
+            options.param("engine", "memory", "file", "mongodb");
+        }
+        new Runner(options.build()).run();
+    }
+}
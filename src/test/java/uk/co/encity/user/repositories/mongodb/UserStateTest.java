@@ -0,0 +1,94 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserStateTest {
+
+    private UserSnapshot snap;
+
+    @BeforeEach
+    public void setup() {
+        this.snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+    }
+
+    private MongoDBUserEvent event(UserEventType type, int version) {
+        MongoDBUserEvent.MongoDBUserEventBuilder<?, ?> builder = type == UserEventType.USER_CONFIRMED ?
+                MongoDBUserConfirmedEvent.builder() :
+                MongoDBUserRejectedEvent.builder();
+        return builder
+                .userId(snap.getUserIdentity())
+                .commandId(new ObjectId())
+                .eventTime(Instant.now())
+                .userVersionNumber(version)
+                .userEventType(type)
+                .build();
+    }
+
+    @Nested
+    public class TheInflateMethod {
+        @Test
+        public void folds_Events_Without_Changing_The_Snapshot() {
+            List<MongoDBUserEvent> events = Arrays.asList(
+                    event(UserEventType.USER_CONFIRMED, 2),
+                    event(UserEventType.USER_REJECTED, 3));
+
+            ReplayedUser user = UserSnapshot.inflate(snap, events, System.nanoTime());
+
+            assertEquals(3, user.getVersion());
+            assertEquals(UserTenantStatus.REJECTED, user.getTenantStatus());
+            assertEquals(events.get(1).getEventTime(), user.getLastUpdate());
+            assertEquals(1, snap.getToVersion());
+            assertEquals(UserTenantStatus.UNCONFIRMED, snap.getTenantStatus());
+        }
+
+        @Test
+        public void shares_The_Profile_Between_States() {
+            UserState before = UserState.of(snap);
+            UserState after = event(UserEventType.USER_CONFIRMED, 2).updateUser(before);
+
+            assertSame(before.getProfile(), after.getProfile());
+            assertSame(before.getUserId(), after.getUserId());
+            assertEquals(UserTenantStatus.UNCONFIRMED, before.getTenantStatus());
+            assertEquals(UserTenantStatus.CONFIRMED, after.getTenantStatus());
+        }
+    }
+
+    @Nested
+    public class TheToSnapshotMethod {
+        @Test
+        public void records_Every_Field_Of_The_State() {
+            UserState state = event(UserEventType.USER_CONFIRMED, 2).updateUser(UserState.of(snap));
+            ObjectId snapshotId = new ObjectId();
+
+            UserSnapshot next = state.toSnapshot(snapshotId);
+
+            assertEquals(snapshotId, next.getSnapshotId());
+            assertEquals(snap.getUserIdentity(), next.getUserIdentity());
+            assertEquals(snap.getTenancyIdentity(), next.getTenancyIdentity());
+            assertEquals(snap.getEmailAddress(), next.getEmailAddress());
+            assertEquals(snap.getConfirmUUID(), next.getConfirmUUID());
+            assertEquals(snap.getUserCreationTime(), next.getUserCreationTime());
+            assertEquals(snap.getExpiryTime(), next.getExpiryTime());
+            assertEquals(snap.getFromVersion(), next.getFromVersion());
+            assertEquals(2, next.getToVersion());
+            assertEquals(UserTenantStatus.CONFIRMED, next.getTenantStatus());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package uk.co.encity.user.repositories.mongodb;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.UserProviderStatus;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserViewTest {
+
+    private CodecRegistry registry;
+    private UserSnapshot snap;
+
+    @BeforeEach
+    public void setup() {
+        this.registry = UserCodecRegistry.create();
+        this.snap = UserSnapshot.forNewUser(
+                new ObjectId().toHexString(),
+                "example.com",
+                new EmailRecipient("Ada", "Lovelace", "ada@example.com"),
+                false,
+                24);
+        // Timestamps are stored with millisecond precision
+        this.snap.setLastUpdate(this.snap.getLastUpdate().truncatedTo(ChronoUnit.MILLIS));
+        this.snap.setExpiryTime(this.snap.getExpiryTime().truncatedTo(ChronoUnit.MILLIS));
+        this.snap.setUserCreationTime(this.snap.getUserCreationTime().truncatedTo(ChronoUnit.MILLIS));
+    }
+
+    private MongoDBUserEvent confirmedEvent(int version) {
+        return MongoDBUserConfirmedEvent.builder()
+                .userId(snap.getUserIdentity())
+                .commandId(new ObjectId())
+                .eventTime(Instant.now().truncatedTo(ChronoUnit.MILLIS))
+                .userVersionNumber(version)
+                .userEventType(UserEventType.USER_CONFIRMED)
+                .build();
+    }
+
+    private BsonDocument encode(UserView view) {
+        BsonDocument doc = new BsonDocument();
+        registry.get(UserView.class).encode(new BsonDocumentWriter(doc), view, EncoderContext.builder().build());
+        return doc;
+    }
+
+    private UserView decode(BsonDocument doc) {
+        return registry.get(UserView.class).decode(new BsonDocumentReader(doc), DecoderContext.builder().build());
+    }
+
+    @Nested
+    public class TheStoredView {
+        @Test
+        public void is_Keyed_By_User_And_Records_The_Version() {
+            ReplayedUser user = UserSnapshot.inflate(snap, Arrays.asList(confirmedEvent(2)), System.nanoTime());
+
+            BsonDocument doc = encode(UserView.of(user));
+
+            assertEquals(snap.getUserIdentity(), doc.getObjectId("_id").getValue());
+            assertEquals(2, doc.getInt32("version").getValue());
+            assertEquals(1, doc.getInt32("snapshotVersion").getValue());
+        }
+
+        @Test
+        public void reads_Back_As_The_Same_User_With_Its_Replay_Length() {
+            ReplayedUser user = UserSnapshot.inflate(snap, Arrays.asList(confirmedEvent(2)), System.nanoTime());
+
+            ReplayedUser read = decode(encode(UserView.of(user))).toUser();
+
+            assertEquals(user.getUserId(), read.getUserId());
+            assertEquals(user.getTenancyId(), read.getTenancyId());
+            assertEquals(user.getEmailAddress(), read.getEmailAddress());
+            assertEquals(2, read.getVersion());
+            assertEquals(UserTenantStatus.CONFIRMED, read.getTenantStatus());
+            assertEquals(user.getLastUpdate(), read.getLastUpdate());
+            assertEquals(user.getConfirmUUID(), read.getConfirmUUID());
+            assertEquals(1, read.getReplayedEvents());
+        }
+
+        @Test
+        public void follows_The_Snapshot_Policy_When_A_Snapshot_Is_Written() {
+            ReplayedUser user = UserSnapshot.inflate(snap, Arrays.asList(confirmedEvent(2)), System.nanoTime());
+
+            UserView view = UserView.of(user.next(confirmedEvent(3), true));
+
+            assertEquals(3, view.getVersion());
+            assertEquals(3, view.getSnapshotVersion());
+        }
+    }
+
+    @Nested
+    public class TheStalenessCheck {
+        @Test
+        public void looks_For_An_Event_After_The_Views_Version() {
+            List<Bson> stages = UserView.withNewerEvents(snap.getUserIdentity());
+
+            BsonDocument lookup = stages.get(1).toBsonDocument(BsonDocument.class, registry).getDocument("$lookup");
+            assertEquals("user_events", lookup.getString("from").getValue());
+            assertEquals("$version", lookup.getDocument("let").getString("version").getValue());
+            assertEquals(UserView.NEWER_EVENTS_FIELD, lookup.getString("as").getValue());
+        }
+
+        @Test
+        public void reports_A_View_With_A_Newer_Event_As_Stale() {
+            ReplayedUser user = UserSnapshot.inflate(snap, Collections.emptyList(), System.nanoTime());
+            BsonDocument current = encode(UserView.of(user)).append(UserView.NEWER_EVENTS_FIELD, new BsonArray());
+            BsonDocument stale = encode(UserView.of(user)).append(UserView.NEWER_EVENTS_FIELD,
+                    new BsonArray(Arrays.asList(new BsonDocument("_id", new BsonObjectId()))));
+
+            assertFalse(UserView.isStale(current));
+            assertTrue(UserView.isStale(stale));
+            assertEquals(1, decode(current).toUser().getVersion());
+        }
+    }
+
+    @Nested
+    public class TheTenancyFilter {
+        private BsonDocument condition(BsonDocument filter, String field) {
+            for (BsonValue condition : filter.getArray("$and")) {
+                if (condition.asDocument().containsKey(field)) {
+                    return condition.asDocument();
+                }
+            }
+            return null;
+        }
+
+        @Test
+        public void constrains_Both_Statuses_To_Every_Value_When_Not_Filtered() {
+            BsonDocument filter = UserView.tenancyFilter(
+                    snap.getTenancyIdentity(), Collections.emptySet(), Collections.emptySet(), null)
+                    .toBsonDocument(BsonDocument.class, registry);
+
+            assertEquals(UserTenantStatus.values().length,
+                    condition(filter, "user.tenantStatus").getDocument("user.tenantStatus").getArray("$in").size());
+            assertEquals(UserProviderStatus.values().length,
+                    condition(filter, "user.providerStatus").getDocument("user.providerStatus").getArray("$in").size());
+            assertNull(condition(filter, "_id"));
+        }
+
+        @Test
+        public void starts_After_The_Last_User_Of_The_Previous_Page() {
+            ObjectId after = new ObjectId();
+
+            BsonDocument filter = UserView.tenancyFilter(
+                    snap.getTenancyIdentity(), EnumSet.of(UserTenantStatus.CONFIRMED), Collections.emptySet(), after)
+                    .toBsonDocument(BsonDocument.class, registry);
+
+            assertEquals(new BsonArray(Collections.singletonList(new BsonString("CONFIRMED"))),
+                    condition(filter, "user.tenantStatus").getDocument("user.tenantStatus").getArray("$in"));
+            assertEquals(after, condition(filter, "_id").getDocument("_id").getObjectId("$gt").getValue());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package uk.co.encity.user.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.util.Collections;
+
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class TenancyConfirmedHandlerTest {
+
+    private static final String MESSAGE = "{" +
+            "\"eventId\": \"e1\", \"eventType\": \"TENANCY_CONFIRMED\", " +
+            "\"tenancyId\": \"5fd7c1b4a8f0e2340d2b9a11\", \"commandId\": \"5fd7c1b4a8f0e2340d2b9a12\", " +
+            "\"eventDateTime\": { \"epochSecond\": 1607976372, \"nano\": 0 }, " +
+            "\"originalAdminUser\": { \"firstName\": \"Ada\", \"lastName\": \"Lovelace\", \"emailAddress\": \"Ada@Example.com\" }, " +
+            "\"domain\": \"example.com\" }";
+
+    // Class to be tested
+    private TenancyConfirmedHandler handler;
+
+    // Dependencies
+    @Mock
+    private UserRepository userRepo;
+
+    @Mock
+    private User aUser;
+
+    @BeforeEach
+    public void setup() {
+        this.handler = new TenancyConfirmedHandler(userRepo);
+    }
+
+    @Test
+    public void adds_An_Admin_User_With_A_New_Email_Address() throws Exception {
+        when(userRepo.findByEmail("example.com", "Ada@Example.com")).thenReturn(Collections.emptyList());
+        when(userRepo.addUser(any(), any(), any(), any(), anyBoolean())).thenReturn(aUser);
+
+        handler.receiveMessage(MESSAGE);
+
+        verify(userRepo).addUser(eq("5fd7c1b4a8f0e2340d2b9a12"), eq("5fd7c1b4a8f0e2340d2b9a11"), eq("example.com"), any(), eq(true));
+        verify(userRepo).addUserEvent("5fd7c1b4a8f0e2340d2b9a12", UserEventType.USER_CREATED, aUser);
+    }
+
+    @Test
+    public void does_Not_Add_A_Second_User_With_The_Same_Email_Address() throws Exception {
+        when(aUser.getTenancyId()).thenReturn("5fd7c1b4a8f0e2340d2b9a99");
+        when(userRepo.findByEmail("example.com", "Ada@Example.com")).thenReturn(Collections.singletonList(aUser));
+
+        handler.receiveMessage(MESSAGE);
+
+        verify(userRepo, never()).addUser(any(), any(), any(), any(), anyBoolean());
+        verify(userRepo, never()).addUserEvent(any(), any(), any());
+    }
+
+    @Test
+    public void completes_A_User_Added_By_An_Earlier_Delivery() throws Exception {
+        when(aUser.getTenancyId()).thenReturn("5fd7c1b4a8f0e2340d2b9a11");
+        when(userRepo.findByEmail("example.com", "Ada@Example.com")).thenReturn(Collections.singletonList(aUser));
+
+        handler.receiveMessage(MESSAGE);
+
+        verify(userRepo, never()).addUser(any(), any(), any(), any(), anyBoolean());
+        verify(userRepo).addUserEvent("5fd7c1b4a8f0e2340d2b9a12", UserEventType.USER_CREATED, aUser);
+    }
+
+    @Test
+    public void ignores_A_Redelivery_Once_The_Created_Event_Is_Stored() throws Exception {
+        when(aUser.getTenancyId()).thenReturn("5fd7c1b4a8f0e2340d2b9a11");
+        when(userRepo.findByEmail("example.com", "Ada@Example.com")).thenReturn(Collections.singletonList(aUser));
+        when(userRepo.addUserEvent("5fd7c1b4a8f0e2340d2b9a12", UserEventType.USER_CREATED, aUser))
+                .thenThrow(new VersionConflictException("User has already been updated to version 1"));
+
+        handler.receiveMessage(MESSAGE);
+
+        verify(userRepo, never()).addUser(any(), any(), any(), any(), anyBoolean());
+    }
+}
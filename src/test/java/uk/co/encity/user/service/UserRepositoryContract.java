@@ -0,0 +1,164 @@
+package uk.co.encity.user.service;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import uk.co.encity.user.components.EmailRecipient;
+import uk.co.encity.user.entity.User;
+import uk.co.encity.user.entity.UserTenantStatus;
+import uk.co.encity.user.events.generated.UserEventType;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The behaviour that every {@link UserRepository} must share.  Each implementation has a test class that extends
+ * this one and supplies the repository
+ */
+public abstract class UserRepositoryContract {
+
+    protected UserRepository repo;
+    private String tenancyId;
+
+    /**
+     * @return an empty repository
+     */
+    protected abstract UserRepository createRepository() throws Exception;
+
+    /**
+     * Release anything held by the repository
+     */
+    protected void destroyRepository() throws Exception {}
+
+    @BeforeEach
+    public void setup() throws Exception {
+        this.repo = createRepository();
+        this.tenancyId = new ObjectId().toHexString();
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        destroyRepository();
+    }
+
+    private User addUser(String emailAddress) throws Exception {
+        User user = repo.addUser(tenancyId, "example.com", new EmailRecipient("Ada", "Lovelace", emailAddress), true);
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CREATED, user);
+        return repo.getUser(user.getUserId());
+    }
+
+    private static String uniqueEmailAddress() {
+        return "ada." + new ObjectId().toHexString() + "@example.com";
+    }
+
+    @Test
+    public void adds_An_Unconfirmed_User_At_Version_1() throws Exception {
+        User user = addUser(uniqueEmailAddress());
+
+        assertEquals(1, user.getVersion());
+        assertEquals(UserTenantStatus.UNCONFIRMED, user.getTenantStatus());
+        assertEquals(tenancyId, user.getTenancyId());
+        assertNotNull(user.getExpiryTime());
+    }
+
+    @Test
+    public void adds_A_User_With_A_Given_Identity_Once() throws Exception {
+        String userId = new ObjectId().toHexString();
+        EmailRecipient recipient = new EmailRecipient("Ada", "Lovelace", uniqueEmailAddress());
+        User first = repo.addUser(userId, tenancyId, "example.com", recipient, true);
+        repo.addUserEvent(userId, UserEventType.USER_CREATED, first);
+
+        User second = repo.addUser(userId, tenancyId, "example.com", recipient, true);
+
+        assertEquals(userId, second.getUserId());
+        assertEquals(first.getConfirmUUID(), second.getConfirmUUID());
+        assertThrows(VersionConflictException.class,
+                () -> repo.addUserEvent(userId, UserEventType.USER_CREATED, second));
+        assertEquals(1, repo.findByEmail("example.com", recipient.getEmailAddress()).size());
+    }
+
+    @Test
+    public void applies_An_Event_To_The_Next_Version() throws Exception {
+        User user = addUser(uniqueEmailAddress());
+
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, user);
+
+        User confirmed = repo.getUser(user.getUserId());
+        assertEquals(2, confirmed.getVersion());
+        assertEquals(UserTenantStatus.CONFIRMED, confirmed.getTenantStatus());
+    }
+
+    @Test
+    public void stores_Only_One_Event_For_Each_Version() throws Exception {
+        User user = addUser(uniqueEmailAddress());
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_CONFIRMED, user);
+
+        assertThrows(VersionConflictException.class,
+                () -> repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_REJECTED, user));
+        assertEquals(UserTenantStatus.CONFIRMED, repo.getUser(user.getUserId()).getTenantStatus());
+    }
+
+    @Test
+    public void returns_A_User_As_Of_An_Earlier_Version() throws Exception {
+        User user = addUser(uniqueEmailAddress());
+        repo.addUserEvent(new ObjectId().toHexString(), UserEventType.USER_REJECTED, user);
+
+        User before = repo.getUser(user.getUserId(), 1);
+        assertEquals(1, before.getVersion());
+        assertEquals(UserTenantStatus.UNCONFIRMED, before.getTenantStatus());
+        assertEquals(UserTenantStatus.REJECTED, repo.getUser(user.getUserId(), 2).getTenantStatus());
+    }
+
+    @Test
+    public void returns_Null_For_A_User_That_Does_Not_Exist() throws Exception {
+        assertNull(repo.getUser(new ObjectId().toHexString()));
+    }
+
+    @Test
+    public void gets_A_Batch_Of_Users_In_Request_Order_Once_Each() throws Exception {
+        User first = addUser(uniqueEmailAddress());
+        User second = addUser(uniqueEmailAddress());
+
+        List<User> users = repo.getUsers(Arrays.asList(
+                second.getUserId(), first.getUserId(), second.getUserId(), new ObjectId().toHexString()));
+
+        assertEquals(2, users.size());
+        assertEquals(second.getUserId(), users.get(0).getUserId());
+        assertEquals(first.getUserId(), users.get(1).getUserId());
+    }
+
+    @Test
+    public void rejects_A_Malformed_Id_In_A_Batch() {
+        assertThrows(IllegalArgumentException.class, () -> repo.getUsers(Collections.singletonList("not-an-id")));
+    }
+
+    @Test
+    public void finds_Users_By_Email_Address_Ignoring_Case() throws Exception {
+        String emailAddress = uniqueEmailAddress();
+        User user = addUser(emailAddress);
+
+        List<User> found = repo.findByEmail("EXAMPLE.com", emailAddress.toUpperCase());
+
+        assertEquals(1, found.size());
+        assertEquals(user.getUserId(), found.get(0).getUserId());
+        assertEquals(1, repo.findByEmail(null, emailAddress).size());
+        assertTrue(repo.findByEmail("example.org", emailAddress).isEmpty());
+    }
+
+    @Test
+    public void finds_Users_By_Email_Address_Ignoring_Surrounding_Whitespace() throws Exception {
+        String emailAddress = uniqueEmailAddress();
+        User user = addUser("  " + emailAddress.toUpperCase() + " ");
+
+        List<User> found = repo.findByEmail(" Example.COM ", "\t" + emailAddress.replace("ada", "ADA") + "  ");
+
+        assertEquals(1, found.size());
+        assertEquals(user.getUserId(), found.get(0).getUserId());
+        assertEquals(emailAddress.toUpperCase(), found.get(0).getEmailAddress());
+        assertEquals(1, repo.findByEmail(null, emailAddress).size());
+    }
+}
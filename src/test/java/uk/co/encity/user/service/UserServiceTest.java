@@ -1,19 +1,18 @@
 package uk.co.encity.user.service;
 
-import com.fasterxml.jackson.annotation.JsonAutoDetect;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import static org.junit.jupiter.api.Assertions.*;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import static org.mockito.Mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
 import uk.co.encity.user.commands.ConfirmUserCommand;
 import uk.co.encity.user.commands.PreConditionException;
 import uk.co.encity.user.commands.RejectUserCommand;
@@ -22,11 +21,8 @@ import uk.co.encity.user.entity.UserProviderStatus;
 import uk.co.encity.user.entity.UserTenantStatus;
 import uk.co.encity.user.service.jackson.JacksonUserService;
 
-import java.io.IOException;
-import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 
 @ExtendWith(SpringExtension.class)
 @ContextConfiguration(classes = { MockitoExtension.class })
@@ -34,96 +30,146 @@ public class UserServiceTest {
     // Class to be tested
     private UserService userService;
 
-    private Map extras;
+    private Map<ConfirmUserCommand.Extras, Object> extras;
 
     // Dependencies
     @Mock
-    private UserRepository userRepo;
+    private ReactiveUserRepository userRepo;
 
-    @Mock
-    private RabbitTemplate rabbitTemplate;
-
-    // This sucks a bit - when mocking a User we have to provide a mixin definition because
-    // otherwise Jackson serialization struggles with the mock sub-type
-    // See this link for further info: https://stackoverflow.com/questions/22851462/infinite-recursion-when-serializing-objects-with-jackson-and-mockito
     @Mock
     private User aUser;
 
-    @JsonAutoDetect(getterVisibility = JsonAutoDetect.Visibility.NONE, isGetterVisibility = JsonAutoDetect.Visibility.NONE)
-    interface UserMixin {
-        @JsonProperty public String getUserId();
-        @JsonProperty public String getFirstName();
-        @JsonProperty public String getLastName();
-        @JsonProperty public String getEmailAddress();
-        @JsonProperty public boolean isAdminUser();
-        @JsonProperty public int getVersion();
-        @JsonProperty public Instant getLastUpdate();
-        @JsonProperty public UserTenantStatus getTenantStatus();
-        @JsonProperty public UserProviderStatus getProviderStatus();
-        @JsonProperty public String getDomain();
-        @JsonProperty public UUID getConfirmUUID();
-        @JsonProperty public Instant getCreationTime();
-        @JsonProperty public Instant getExpiryTime();
-    }
-
     @BeforeEach
     public void setup() {
-        // Force jackson serialization to use real getters for User objects
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.addMixIn(User.class, UserMixin.class);
-        this.userService = new JacksonUserService(userRepo, rabbitTemplate, mapper);
+        this.userService = new JacksonUserService(userRepo, 3);
 
         // Create some command-specific data
-        this.extras = new HashMap();
+        this.extras = new HashMap<>();
         this.extras.put(ConfirmUserCommand.Extras.INITIAL_PASSWORD, "BoiledFrogs");
     }
 
     @Nested
     public class TheApplyCommandMethod {
         @Test
-        public void allows_An_Unconfirmed_User_To_Be_Confirmed() throws
-                IOException,
-                PreConditionException
+        public void allows_An_Unconfirmed_User_To_Be_Confirmed()
         {
             when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.UNCONFIRMED);
             when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
-            when(userRepo.getUser(anyString())).thenReturn(aUser);
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+            when(userRepo.confirmUser(any(), any())).thenReturn(Mono.just(aUser));
+            when(userRepo.addUserEvent(any(), any(), any())).thenReturn(Mono.empty());
 
-            userService.applyCommand(new ConfirmUserCommand("1234", userRepo, extras ));
+            StepVerifier.create(userService.applyCommand(new ConfirmUserCommand("1234", userRepo, extras )))
+                    .expectNext(aUser)
+                    .verifyComplete();
         }
 
         @Test
-        public void allows_An_Unconfirmed_User_To_Be_Rejected() throws
-                IOException,
-                PreConditionException
+        public void allows_An_Unconfirmed_User_To_Be_Rejected()
         {
             when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.UNCONFIRMED);
             when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
-            when(userRepo.getUser(anyString())).thenReturn(aUser);
-            userService.applyCommand(new RejectUserCommand("1234", userRepo ));
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+            when(userRepo.addUserEvent(any(), any(), any())).thenReturn(Mono.empty());
+
+            StepVerifier.create(userService.applyCommand(new RejectUserCommand("1234", userRepo )))
+                    .expectNext(aUser)
+                    .verifyComplete();
         }
 
         @Test
-        public void prevents_A_Confirmed_User_From_Being_Confirmed() throws
-                IOException
+        public void prevents_A_Confirmed_User_From_Being_Confirmed()
         {
             when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.CONFIRMED);
             when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
-            when(userRepo.getUser(anyString())).thenReturn(aUser);
-            assertThrows(PreConditionException.class,() -> {
-                userService.applyCommand(new ConfirmUserCommand("1234", userRepo, extras ));
-            });
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+
+            StepVerifier.create(userService.applyCommand(new ConfirmUserCommand("1234", userRepo, extras )))
+                    .verifyError(PreConditionException.class);
         }
+
         @Test
-        public void prevents_A_Confirmed_User_From_Being_Rejected() throws
-                IOException
+        public void prevents_A_Confirmed_User_From_Being_Rejected()
         {
             when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.CONFIRMED);
             when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
-            when(userRepo.getUser(anyString())).thenReturn(aUser);
-            assertThrows(PreConditionException.class,() -> {
-                userService.applyCommand(new RejectUserCommand("1234", userRepo ));
-            });
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+
+            StepVerifier.create(userService.applyCommand(new RejectUserCommand("1234", userRepo )))
+                    .verifyError(PreConditionException.class);
+        }
+
+        @Test
+        public void re_Applies_A_Command_After_A_Version_Conflict()
+        {
+            when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.UNCONFIRMED);
+            when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+            when(userRepo.addUserEvent(any(), any(), any()))
+                    .thenReturn(Mono.error(new VersionConflictException("conflict")))
+                    .thenReturn(Mono.empty());
+
+            StepVerifier.create(userService.applyCommand(new RejectUserCommand("1234", userRepo )))
+                    .expectNext(aUser)
+                    .verifyComplete();
+            verify(userRepo, times(2)).getUser(anyString());
+        }
+
+        @Test
+        public void does_Not_Create_The_Iam_User_When_A_Confirmation_Loses_To_A_Rejection()
+        {
+            User rejected = mock(User.class);
+            when(rejected.getTenantStatus()).thenReturn(UserTenantStatus.REJECTED);
+            when(rejected.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
+            when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.UNCONFIRMED);
+            when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser)).thenReturn(Mono.just(rejected));
+            when(userRepo.addUserEvent(any(), any(), any()))
+                    .thenReturn(Mono.error(new VersionConflictException("conflict")));
+
+            StepVerifier.create(userService.applyCommand(new ConfirmUserCommand("1234", userRepo, extras )))
+                    .verifyError(PreConditionException.class);
+            verify(userRepo, never()).confirmUser(any(), any());
+        }
+
+        @Test
+        public void creates_The_Iam_User_After_Storing_The_Confirmation()
+        {
+            when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.UNCONFIRMED);
+            when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+            when(userRepo.addUserEvent(any(), any(), any())).thenReturn(Mono.empty());
+            when(userRepo.confirmUser(any(), any())).thenReturn(Mono.just(aUser));
+
+            StepVerifier.create(userService.applyCommand(new ConfirmUserCommand("1234", userRepo, extras )))
+                    .expectNext(aUser)
+                    .verifyComplete();
+            InOrder order = inOrder(userRepo);
+            order.verify(userRepo).addUserEvent(any(), any(), any());
+            order.verify(userRepo).confirmUser(aUser, "BoiledFrogs");
+        }
+
+        @Test
+        public void gives_Up_After_Repeated_Version_Conflicts()
+        {
+            when(aUser.getTenantStatus()).thenReturn(UserTenantStatus.UNCONFIRMED);
+            when(aUser.getProviderStatus()).thenReturn(UserProviderStatus.ACTIVE);
+            when(userRepo.getUser(anyString())).thenReturn(Mono.just(aUser));
+            when(userRepo.addUserEvent(any(), any(), any()))
+                    .thenReturn(Mono.error(new VersionConflictException("conflict")));
+
+            StepVerifier.create(userService.applyCommand(new RejectUserCommand("1234", userRepo )))
+                    .verifyError(VersionConflictException.class);
+            verify(userRepo, times(1 + userService.getMaxVersionConflictRetries())).getUser(anyString());
+        }
+
+        @Test
+        public void rejects_A_Command_For_A_Missing_User()
+        {
+            when(userRepo.getUser(anyString())).thenReturn(Mono.empty());
+
+            StepVerifier.create(userService.applyCommand(new RejectUserCommand("1234", userRepo )))
+                    .verifyError(IllegalArgumentException.class);
         }
     }
 }